@@ -4,6 +4,7 @@ plugins {
     id("io.freefair.lombok") version "8.13.1"
     id("formatting-conventions")
     id("maven-publish")
+    id("me.champeau.jmh") version "0.7.3"
 }
 
 group = "no.elixir"
@@ -28,6 +29,19 @@ tasks.test {
     useJUnitPlatform()
 }
 
+// Benchmarks live in "src/jmh/java" and are run with "./gradlew lib:crypt4gh:jmh"
+jmh {
+    jmhVersion.set("1.37")
+    // Report the allocation rate (gc.alloc.rate.norm) next to the score of every benchmark
+    profilers.add("gc")
+    // The results are written to "build/results/jmh/results.json", to compare later runs against
+    resultFormat.set("JSON")
+    // A subset of the benchmarks can be run with e.g. "-PjmhIncludes=SegmentBenchmark"
+    if (project.hasProperty("jmhIncludes")) {
+        includes.add(project.property("jmhIncludes") as String)
+    }
+}
+
 // Note: the project version should be set with the argument "-Pversion=<version>" when building
 tasks.jar {
     manifest {
@@ -0,0 +1,97 @@
+package no.elixir.crypt4gh.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.KeyPair;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import no.elixir.crypt4gh.pojo.header.DataEditList;
+import no.elixir.crypt4gh.stream.Crypt4GHInputStream;
+import no.elixir.crypt4gh.stream.Crypt4GHOutputStream;
+import no.elixir.crypt4gh.util.KeyUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures reading a 16 MiB file through a Data Edit List stored in its header, for a growing
+ * number of kept ranges. Half of the data is kept, in ranges of equal size spread evenly over the
+ * file, so the same amount of data is read while the number of skips grows. One operation is one
+ * file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DataEditListBenchmark {
+
+  private static final int DATA_SIZE = 16 * 1024 * 1024;
+
+  /** The number of ranges kept by the Data Edit List */
+  @Param({"1", "16", "1024"})
+  public int keptRanges;
+
+  private KeyPair readerKeyPair;
+  private byte[] encryptedData;
+  private byte[] buffer = new byte[8192];
+
+  /**
+   * Encrypts the data with a Data Edit List in the header.
+   *
+   * @throws Exception In case the data can't be encrypted.
+   */
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    KeyUtils keyUtils = KeyUtils.getInstance();
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    readerKeyPair = keyUtils.generateKeyPair();
+    long rangeSize = DATA_SIZE / (2L * keptRanges);
+    long[] lengths = new long[2 * keptRanges];
+    for (int i = 0; i < lengths.length; i++) {
+      lengths[i] = rangeSize;
+    }
+    byte[] unencryptedData = new byte[DATA_SIZE];
+    new Random(42).nextBytes(unencryptedData);
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(DATA_SIZE + 65536);
+    try (Crypt4GHOutputStream crypt4GHOutputStream =
+        new Crypt4GHOutputStream(
+            byteArrayOutputStream,
+            new DataEditList(lengths),
+            writerKeyPair.getPrivate(),
+            readerKeyPair.getPublic())) {
+      crypt4GHOutputStream.write(unencryptedData);
+    }
+    encryptedData = byteArrayOutputStream.toByteArray();
+  }
+
+  /**
+   * Reads all the data kept by the Data Edit List.
+   *
+   * @return The number of bytes read.
+   * @throws Exception In case the file can't be decrypted.
+   */
+  @Benchmark
+  public long readWithDataEditList() throws Exception {
+    long read = 0;
+    try (Crypt4GHInputStream crypt4GHInputStream =
+        new Crypt4GHInputStream(
+            new ByteArrayInputStream(encryptedData), readerKeyPair.getPrivate())) {
+      int bytesRead;
+      while ((bytesRead = crypt4GHInputStream.read(buffer)) != -1) {
+        read += bytesRead;
+      }
+    }
+    return read;
+  }
+}
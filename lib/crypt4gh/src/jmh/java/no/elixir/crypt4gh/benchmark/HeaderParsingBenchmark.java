@@ -0,0 +1,86 @@
+package no.elixir.crypt4gh.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import no.elixir.crypt4gh.pojo.header.ChaCha20IETFPoly1305EncryptionParameters;
+import no.elixir.crypt4gh.pojo.header.DataEncryptionParameters;
+import no.elixir.crypt4gh.pojo.header.Header;
+import no.elixir.crypt4gh.pojo.header.HeaderPacket;
+import no.elixir.crypt4gh.pojo.header.X25519ChaCha20IETFPoly1305HeaderPacket;
+import no.elixir.crypt4gh.util.KeyUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures parsing a header written by one writer for a growing number of recipients, as the last
+ * of those recipients. The cache of derived keys is cleared before every invocation, so each
+ * invocation measures opening a file with keys that haven't been seen before.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HeaderParsingBenchmark {
+
+  /** The number of recipients the header is encrypted for */
+  @Param({"1", "10", "100"})
+  public int recipients;
+
+  private PrivateKey readerPrivateKey;
+  private byte[] serializedHeader;
+
+  /**
+   * Builds a header with one Data Encryption Parameters packet per recipient.
+   *
+   * @throws Exception In case the header can't be built.
+   */
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    KeyUtils keyUtils = KeyUtils.getInstance();
+    PrivateKey writerPrivateKey = keyUtils.generatePrivateKey();
+    DataEncryptionParameters dataEncryptionParameters =
+        new ChaCha20IETFPoly1305EncryptionParameters(keyUtils.generateSessionKey());
+    List<HeaderPacket> headerPackets = new ArrayList<>();
+    for (int i = 0; i < recipients; i++) {
+      KeyPair readerKeyPair = keyUtils.generateKeyPair();
+      headerPackets.add(
+          new X25519ChaCha20IETFPoly1305HeaderPacket(
+              dataEncryptionParameters, writerPrivateKey, readerKeyPair.getPublic()));
+      readerPrivateKey = readerKeyPair.getPrivate();
+    }
+    serializedHeader = new Header(headerPackets).serialize();
+  }
+
+  /** Forgets the keys derived by the previous invocation. */
+  @Setup(Level.Invocation)
+  public void clearDerivedKeyCache() {
+    KeyUtils.getInstance().getDerivedKeyCache().clear();
+  }
+
+  /**
+   * Parses the header as the last recipient.
+   *
+   * @return The parsed header.
+   * @throws Exception In case the header can't be parsed.
+   */
+  @Benchmark
+  public Header parseHeader() throws Exception {
+    return new Header(new ByteArrayInputStream(serializedHeader), readerPrivateKey);
+  }
+}
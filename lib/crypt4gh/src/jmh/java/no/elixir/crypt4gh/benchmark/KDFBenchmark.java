@@ -0,0 +1,48 @@
+package no.elixir.crypt4gh.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import no.elixir.crypt4gh.pojo.key.KDF;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures deriving the key of a password-protected private key file with each key derivation
+ * function. One operation is one derivation. Scrypt uses fixed cost parameters and ignores the
+ * number of rounds.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class KDFBenchmark {
+
+  private static final int ROUNDS = 100;
+
+  /** The key derivation function */
+  @Param({"SCRYPT", "BCRYPT", "PBKDF2_HMAC_SHA256"})
+  public KDF kdf;
+
+  private final char[] password = "password".toCharArray();
+  private final byte[] salt = new byte[] {1, 2, 3, 4, 1, 2, 3, 4, 1, 2, 3, 4, 1, 2, 3, 4};
+
+  /**
+   * Derives the key from the password and salt.
+   *
+   * @return The derived key.
+   * @throws Exception In case the key can't be derived.
+   */
+  @Benchmark
+  public byte[] derive() throws Exception {
+    return kdf.derive(ROUNDS, password, salt);
+  }
+}
@@ -0,0 +1,162 @@
+package no.elixir.crypt4gh.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import no.elixir.crypt4gh.pojo.body.Segment;
+import no.elixir.crypt4gh.pojo.header.DataEncryptionParameters;
+import no.elixir.crypt4gh.pojo.header.Header;
+import no.elixir.crypt4gh.stream.Crypt4GHInputStream;
+import no.elixir.crypt4gh.stream.Crypt4GHOutputStream;
+import no.elixir.crypt4gh.util.KeyUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the bulk read path of Crypt4GHInputStream with the byte-at-a-time read path it
+ * replaced. The legacy path is reproduced here as it was: every segment is decrypted into a new
+ * Segment object, copied into a freshly allocated int[] and handed out one byte per read() call.
+ * The payload is kept in memory, so only the decryption and the copying are measured. One
+ * operation is one payload, so the score times the payload size is the throughput in bytes per
+ * second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReadPathBenchmark {
+
+  /** The read path to measure: the byte-at-a-time "legacy" one or the current "bulk" one */
+  @Param({"legacy", "bulk"})
+  public String readPath;
+
+  /** The number of unencrypted bytes in the payload */
+  @Param({"16777216"})
+  public int payloadSize;
+
+  /** The size of the buffer the payload is read into */
+  @Param({"8192", "1048576"})
+  public int bufferSize;
+
+  private PrivateKey readerPrivateKey;
+  private byte[] encryptedPayload;
+  private byte[] buffer;
+
+  /**
+   * Generates the keys and the payload, and encrypts the payload to decrypt.
+   *
+   * @throws Exception In case the payload can't be encrypted.
+   */
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    KeyUtils keyUtils = KeyUtils.getInstance();
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    readerPrivateKey = readerKeyPair.getPrivate();
+    byte[] payload = new byte[payloadSize];
+    new Random(42).nextBytes(payload);
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(payloadSize + 65536);
+    try (Crypt4GHOutputStream crypt4GHOutputStream =
+        new Crypt4GHOutputStream(
+            byteArrayOutputStream, writerKeyPair.getPrivate(), readerKeyPair.getPublic())) {
+      crypt4GHOutputStream.write(payload);
+    }
+    encryptedPayload = byteArrayOutputStream.toByteArray();
+    buffer = new byte[bufferSize];
+  }
+
+  /**
+   * Decrypts the payload, reading it into the buffer with the selected read path.
+   *
+   * @return The number of bytes read.
+   * @throws Exception In case the payload can't be decrypted.
+   */
+  @Benchmark
+  public long read() throws Exception {
+    try (InputStream inputStream =
+        "legacy".equals(readPath)
+            ? new LegacyInputStream(new ByteArrayInputStream(encryptedPayload), readerPrivateKey)
+            : new Crypt4GHInputStream(
+                new ByteArrayInputStream(encryptedPayload), readerPrivateKey)) {
+      long read = 0;
+      int bytesRead;
+      while ((bytesRead = inputStream.read(buffer)) != -1) {
+        read += bytesRead;
+      }
+      return read;
+    }
+  }
+
+  /** The read path of Crypt4GHInputStream before bulk reads, without the Data Edit List. */
+  private static class LegacyInputStream extends InputStream {
+
+    private final InputStream in;
+    private final Collection<DataEncryptionParameters> dataEncryptionParametersList;
+    private final int encryptedSegmentSize;
+    private int[] buffer;
+    private int bytesRead;
+
+    LegacyInputStream(InputStream in, PrivateKey readerPrivateKey)
+        throws IOException, GeneralSecurityException {
+      this.in = in;
+      this.dataEncryptionParametersList =
+          new Header(in, readerPrivateKey).getDataEncryptionParametersList();
+      this.encryptedSegmentSize =
+          dataEncryptionParametersList
+              .iterator()
+              .next()
+              .getDataEncryptionMethod()
+              .getEncryptedSegmentSize();
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (buffer == null || buffer.length == bytesRead) {
+        fillBuffer();
+      }
+      if (buffer.length == 0) {
+        return -1;
+      }
+      return buffer[bytesRead++];
+    }
+
+    private void fillBuffer() throws IOException {
+      byte[] encryptedSegmentBytes = in.readNBytes(encryptedSegmentSize);
+      bytesRead = 0;
+      if (encryptedSegmentBytes.length == 0) {
+        buffer = new int[0];
+        return;
+      }
+      try {
+        byte[] unencryptedData =
+            Segment.create(encryptedSegmentBytes, dataEncryptionParametersList)
+                .getUnencryptedData();
+        buffer = new int[unencryptedData.length];
+        for (int i = 0; i < unencryptedData.length; i++) {
+          buffer[i] = unencryptedData[i] & 0xff;
+        }
+      } catch (GeneralSecurityException e) {
+        throw new IOException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package no.elixir.crypt4gh.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import no.elixir.crypt4gh.pojo.header.Header;
+import no.elixir.crypt4gh.stream.Crypt4GHOutputStream;
+import no.elixir.crypt4gh.util.Crypt4GHUtils;
+import no.elixir.crypt4gh.util.KeyUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of rotating the session key of a 64 MiB file with a growing number of
+ * worker threads. The time per operation should drop close to linearly with the number of threads,
+ * up to the number of available cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RotateSessionKeyBenchmark {
+
+  private static final int DATA_SIZE = 64 * 1024 * 1024;
+
+  /** The number of threads re-keying the segments */
+  @Param({"1", "2", "4", "8"})
+  public int threads;
+
+  private ExecutorService executor;
+  private PrivateKey privateKey;
+  private KeyPair recipientKeyPair;
+  private byte[] encryptedData;
+
+  /**
+   * Encrypts the data to re-key and starts the worker threads.
+   *
+   * @throws Exception In case the data can't be encrypted.
+   */
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    KeyUtils keyUtils = KeyUtils.getInstance();
+    KeyPair keyPair = keyUtils.generateKeyPair();
+    privateKey = keyPair.getPrivate();
+    recipientKeyPair = keyUtils.generateKeyPair();
+    byte[] unencryptedData = new byte[DATA_SIZE];
+    new Random(42).nextBytes(unencryptedData);
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(DATA_SIZE + 65536);
+    try (Crypt4GHOutputStream crypt4GHOutputStream =
+        new Crypt4GHOutputStream(byteArrayOutputStream, privateKey, keyPair.getPublic())) {
+      crypt4GHOutputStream.write(unencryptedData);
+    }
+    encryptedData = byteArrayOutputStream.toByteArray();
+    executor = Executors.newFixedThreadPool(threads);
+  }
+
+  /** Stops the worker threads. */
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Rotates the session key of the file, discarding the output.
+   *
+   * @return The header of the re-keyed file.
+   * @throws Exception In case the file can't be re-keyed.
+   */
+  @Benchmark
+  public Header rotateSessionKey() throws Exception {
+    return Crypt4GHUtils.getInstance()
+        .rotateSessionKey(
+            new ByteArrayInputStream(encryptedData),
+            OutputStream.nullOutputStream(),
+            privateKey,
+            recipientKeyPair.getPublic(),
+            executor,
+            2 * threads);
+  }
+}
@@ -0,0 +1,170 @@
+package no.elixir.crypt4gh.benchmark;
+
+import static no.elixir.crypt4gh.pojo.body.Segment.UNENCRYPTED_DATA_SEGMENT_SIZE;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import no.elixir.crypt4gh.pojo.body.Segment;
+import no.elixir.crypt4gh.pojo.header.ChaCha20IETFPoly1305EncryptionParameters;
+import no.elixir.crypt4gh.pojo.header.DataEncryptionMethod;
+import no.elixir.crypt4gh.pojo.header.DataEncryptionParameters;
+import no.elixir.crypt4gh.util.KeyUtils;
+import no.elixir.crypt4gh.util.NonceGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of encrypting and decrypting full 64 KiB segments with each of the
+ * Segment APIs: Segment objects, byte arrays and (direct) ByteBuffers. One operation is one
+ * segment, so the score times 64 KiB is the throughput in bytes per second. The gc profiler shows
+ * how much each API allocates per segment.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SegmentBenchmark {
+
+  private static final int ENCRYPTED_SEGMENTS = 16;
+
+  private final NonceGenerator nonceGenerator = NonceGenerator.getDefault();
+  private DataEncryptionParameters dataEncryptionParameters;
+  private Collection<DataEncryptionParameters> dataEncryptionParametersList;
+  private byte[] data;
+  private byte[][] encryptedSegments;
+  private byte[] output;
+  private ByteBuffer dataBuffer;
+  private ByteBuffer[] encryptedSegmentBuffers;
+  private ByteBuffer outputBuffer;
+  private int next;
+
+  /**
+   * Generates the data key, a segment to encrypt and a few encrypted segments to decrypt in turn.
+   * Decrypting the same segment over and over would re-initialize the pooled Cipher with the key
+   * and nonce it was last initialized with, which never happens when reading a file.
+   *
+   * @throws Exception In case the segments can't be encrypted.
+   */
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    dataEncryptionParameters =
+        new ChaCha20IETFPoly1305EncryptionParameters(KeyUtils.getInstance().generateSessionKey());
+    dataEncryptionParametersList = List.of(dataEncryptionParameters);
+    int encryptedSegmentSize =
+        DataEncryptionMethod.CHACHA20_IETF_POLY1305.getEncryptedSegmentSize();
+    data = new byte[UNENCRYPTED_DATA_SEGMENT_SIZE];
+    new Random(42).nextBytes(data);
+    encryptedSegments = new byte[ENCRYPTED_SEGMENTS][encryptedSegmentSize];
+    encryptedSegmentBuffers = new ByteBuffer[ENCRYPTED_SEGMENTS];
+    for (int i = 0; i < ENCRYPTED_SEGMENTS; i++) {
+      Segment.encrypt(
+          data,
+          0,
+          data.length,
+          encryptedSegments[i],
+          0,
+          dataEncryptionParameters,
+          nonceGenerator);
+      encryptedSegmentBuffers[i] = ByteBuffer.allocateDirect(encryptedSegmentSize);
+      encryptedSegmentBuffers[i].put(encryptedSegments[i]).flip();
+    }
+    output = new byte[encryptedSegmentSize];
+    dataBuffer = ByteBuffer.allocateDirect(data.length);
+    dataBuffer.put(data).flip();
+    outputBuffer = ByteBuffer.allocateDirect(encryptedSegmentSize);
+  }
+
+  /**
+   * Encrypts the segment into a new Segment object.
+   *
+   * @return The encrypted segment.
+   * @throws Exception In case the segment can't be encrypted.
+   */
+  @Benchmark
+  public Segment encryptSegmentObject() throws Exception {
+    return Segment.create(data, dataEncryptionParameters);
+  }
+
+  /**
+   * Encrypts the segment into a reused byte array.
+   *
+   * @return The size of the encrypted segment.
+   * @throws Exception In case the segment can't be encrypted.
+   */
+  @Benchmark
+  public int encryptByteArray() throws Exception {
+    return Segment.encrypt(
+        data, 0, data.length, output, 0, dataEncryptionParameters, nonceGenerator);
+  }
+
+  /**
+   * Encrypts the segment from one direct buffer into another.
+   *
+   * @return The size of the encrypted segment.
+   * @throws Exception In case the segment can't be encrypted.
+   */
+  @Benchmark
+  public int encryptByteBuffer() throws Exception {
+    dataBuffer.rewind();
+    outputBuffer.clear();
+    return Segment.encrypt(dataBuffer, outputBuffer, dataEncryptionParameters, nonceGenerator);
+  }
+
+  /**
+   * Decrypts a segment into a new Segment object.
+   *
+   * @return The decrypted segment.
+   * @throws Exception In case the segment can't be decrypted.
+   */
+  @Benchmark
+  public Segment decryptSegmentObject() throws Exception {
+    return Segment.create(nextEncryptedSegment(), dataEncryptionParametersList);
+  }
+
+  /**
+   * Decrypts a segment into a reused byte array.
+   *
+   * @return The size of the decrypted data.
+   * @throws Exception In case the segment can't be decrypted.
+   */
+  @Benchmark
+  public int decryptByteArray() throws Exception {
+    byte[] encryptedSegment = nextEncryptedSegment();
+    return Segment.decrypt(
+        encryptedSegment, encryptedSegment.length, output, 0, dataEncryptionParametersList);
+  }
+
+  /**
+   * Decrypts a segment from one direct buffer into another.
+   *
+   * @return The size of the decrypted data.
+   * @throws Exception In case the segment can't be decrypted.
+   */
+  @Benchmark
+  public int decryptByteBuffer() throws Exception {
+    nextEncryptedSegment();
+    ByteBuffer encryptedSegmentBuffer = encryptedSegmentBuffers[next];
+    encryptedSegmentBuffer.rewind();
+    outputBuffer.clear();
+    return Segment.decrypt(encryptedSegmentBuffer, outputBuffer, dataEncryptionParametersList);
+  }
+
+  private byte[] nextEncryptedSegment() {
+    next = (next + 1) % ENCRYPTED_SEGMENTS;
+    return encryptedSegments[next];
+  }
+}
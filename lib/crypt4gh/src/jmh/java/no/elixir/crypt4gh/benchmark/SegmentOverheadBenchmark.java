@@ -0,0 +1,134 @@
+package no.elixir.crypt4gh.benchmark;
+
+import static no.elixir.crypt4gh.pojo.body.ChaCha20IETFPoly1305Segment.MAC_SIZE;
+import static no.elixir.crypt4gh.pojo.body.ChaCha20IETFPoly1305Segment.NONCE_SIZE;
+import static no.elixir.crypt4gh.pojo.header.X25519ChaCha20IETFPoly1305HeaderPacket.CHA_CHA_20_POLY_1305;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import no.elixir.crypt4gh.pojo.body.ChaCha20IETFPoly1305Segment;
+import no.elixir.crypt4gh.util.KeyUtils;
+import no.elixir.crypt4gh.util.NonceGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the fixed cost of encrypting and decrypting one segment. The "pooled" benchmarks use the
+ * library, which takes its Cipher from the thread-local pool. The "newCipher" benchmarks do the
+ * same work with a Cipher looked up for every segment, as the library did before the pool. Small
+ * segments make the difference stand out, full segments show its share of the real workload.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SegmentOverheadBenchmark {
+
+  private static final int ENCRYPTED_SEGMENTS = 16;
+
+  /** The number of unencrypted bytes in the segment */
+  @Param({"64", "1024", "65536"})
+  public int segmentSize;
+
+  private final NonceGenerator nonceGenerator = NonceGenerator.getDefault();
+  private SecretKey dataKey;
+  private byte[] data;
+  private byte[][] encryptedSegments;
+  private byte[] output;
+  private int next;
+
+  /**
+   * Generates the data key, a segment to encrypt and a few encrypted segments to decrypt in turn.
+   * Decrypting the same segment over and over would re-initialize the pooled Cipher with the key
+   * and nonce it was last initialized with, which never happens when reading a file.
+   *
+   * @throws Exception In case the segment can't be encrypted.
+   */
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    dataKey = KeyUtils.getInstance().generateSessionKey();
+    data = new byte[segmentSize];
+    new Random(42).nextBytes(data);
+    encryptedSegments = new byte[ENCRYPTED_SEGMENTS][NONCE_SIZE + segmentSize + MAC_SIZE];
+    for (byte[] encryptedSegment : encryptedSegments) {
+      ChaCha20IETFPoly1305Segment.encrypt(
+          data, 0, segmentSize, encryptedSegment, 0, dataKey, nonceGenerator);
+    }
+    output = new byte[NONCE_SIZE + segmentSize + MAC_SIZE];
+  }
+
+  /**
+   * Encrypts the segment with the pooled Cipher.
+   *
+   * @return The size of the encrypted segment.
+   * @throws Exception In case the segment can't be encrypted.
+   */
+  @Benchmark
+  public int pooledEncrypt() throws Exception {
+    return ChaCha20IETFPoly1305Segment.encrypt(
+        data, 0, segmentSize, output, 0, dataKey, nonceGenerator);
+  }
+
+  /**
+   * Encrypts the segment with a Cipher looked up for this segment only.
+   *
+   * @return The size of the encrypted segment.
+   * @throws Exception In case the segment can't be encrypted.
+   */
+  @Benchmark
+  public int newCipherEncrypt() throws Exception {
+    nonceGenerator.nextNonce(output, 0, NONCE_SIZE);
+    Cipher cipher = Cipher.getInstance(CHA_CHA_20_POLY_1305);
+    cipher.init(Cipher.ENCRYPT_MODE, dataKey, new IvParameterSpec(output, 0, NONCE_SIZE));
+    return NONCE_SIZE + cipher.doFinal(data, 0, segmentSize, output, NONCE_SIZE);
+  }
+
+  /**
+   * Decrypts the segment with the pooled Cipher.
+   *
+   * @return The size of the decrypted data.
+   * @throws Exception In case the segment can't be decrypted.
+   */
+  @Benchmark
+  public int pooledDecrypt() throws Exception {
+    byte[] encryptedSegment = nextEncryptedSegment();
+    return ChaCha20IETFPoly1305Segment.decrypt(
+        encryptedSegment, 0, encryptedSegment.length, output, 0, dataKey);
+  }
+
+  /**
+   * Decrypts the segment with a Cipher looked up for this segment only.
+   *
+   * @return The size of the decrypted data.
+   * @throws Exception In case the segment can't be decrypted.
+   */
+  @Benchmark
+  public int newCipherDecrypt() throws Exception {
+    byte[] encryptedSegment = nextEncryptedSegment();
+    Cipher cipher = Cipher.getInstance(CHA_CHA_20_POLY_1305);
+    cipher.init(
+        Cipher.DECRYPT_MODE, dataKey, new IvParameterSpec(encryptedSegment, 0, NONCE_SIZE));
+    return cipher.doFinal(
+        encryptedSegment, NONCE_SIZE, encryptedSegment.length - NONCE_SIZE, output, 0);
+  }
+
+  private byte[] nextEncryptedSegment() {
+    next = (next + 1) % ENCRYPTED_SEGMENTS;
+    return encryptedSegments[next];
+  }
+}
@@ -0,0 +1,152 @@
+package no.elixir.crypt4gh.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyPair;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import no.elixir.crypt4gh.stream.Crypt4GHInputStream;
+import no.elixir.crypt4gh.stream.Crypt4GHOutputStream;
+import no.elixir.crypt4gh.stream.Crypt4GHSeekableByteChannel;
+import no.elixir.crypt4gh.util.KeyUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures reading 1 KiB chunks spread over a 16 MiB file, skipping a fixed number of bytes
+ * between the chunks. The chunks are read by skipping through a Crypt4GHInputStream, by moving the
+ * position of a Crypt4GHSeekableByteChannel forwards, and by reading the same number of chunks at
+ * random positions of the channel. One operation reads all the chunks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SkipSeekBenchmark {
+
+  private static final int DATA_SIZE = 16 * 1024 * 1024;
+  private static final int CHUNK_SIZE = 1024;
+
+  /** The number of bytes skipped between the chunks */
+  @Param({"1024", "65536", "1048576"})
+  public int skipSize;
+
+  private KeyPair readerKeyPair;
+  private Path encryptedFile;
+  private Crypt4GHSeekableByteChannel channel;
+  private long[] randomPositions;
+  private final byte[] chunk = new byte[CHUNK_SIZE];
+  private final ByteBuffer chunkBuffer = ByteBuffer.wrap(chunk);
+
+  /**
+   * Writes the encrypted file and opens a channel on it.
+   *
+   * @throws Exception In case the file can't be encrypted or opened.
+   */
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    KeyUtils keyUtils = KeyUtils.getInstance();
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    readerKeyPair = keyUtils.generateKeyPair();
+    byte[] unencryptedData = new byte[DATA_SIZE];
+    Random random = new Random(42);
+    random.nextBytes(unencryptedData);
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(DATA_SIZE + 65536);
+    try (Crypt4GHOutputStream crypt4GHOutputStream =
+        new Crypt4GHOutputStream(
+            byteArrayOutputStream, writerKeyPair.getPrivate(), readerKeyPair.getPublic())) {
+      crypt4GHOutputStream.write(unencryptedData);
+    }
+    encryptedFile = Files.createTempFile("skip-seek-benchmark", ".c4gh");
+    Files.write(encryptedFile, byteArrayOutputStream.toByteArray());
+    channel =
+        new Crypt4GHSeekableByteChannel(
+            FileChannel.open(encryptedFile, StandardOpenOption.READ), readerKeyPair.getPrivate());
+    randomPositions = new long[(DATA_SIZE + skipSize + CHUNK_SIZE - 1) / (skipSize + CHUNK_SIZE)];
+    for (int i = 0; i < randomPositions.length; i++) {
+      randomPositions[i] = random.nextInt(DATA_SIZE - CHUNK_SIZE);
+    }
+  }
+
+  /**
+   * Closes the channel and deletes the encrypted file.
+   *
+   * @throws Exception In case the file can't be deleted.
+   */
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    channel.close();
+    Files.deleteIfExists(encryptedFile);
+  }
+
+  /**
+   * Reads the chunks by skipping through a stream.
+   *
+   * @return The number of bytes read.
+   * @throws Exception In case the file can't be decrypted.
+   */
+  @Benchmark
+  public long skipStream() throws Exception {
+    long read = 0;
+    try (InputStream crypt4GHInputStream =
+        new Crypt4GHInputStream(Files.newInputStream(encryptedFile), readerKeyPair.getPrivate())) {
+      for (long position = 0; position < DATA_SIZE; position += CHUNK_SIZE + skipSize) {
+        read += crypt4GHInputStream.readNBytes(chunk, 0, CHUNK_SIZE);
+        if (position + CHUNK_SIZE + skipSize < DATA_SIZE) {
+          crypt4GHInputStream.skipNBytes(skipSize);
+        }
+      }
+    }
+    return read;
+  }
+
+  /**
+   * Reads the chunks by moving the position of the channel forwards.
+   *
+   * @return The number of bytes read.
+   * @throws Exception In case the file can't be decrypted.
+   */
+  @Benchmark
+  public long seekChannelForwards() throws Exception {
+    long read = 0;
+    for (long position = 0; position < DATA_SIZE; position += CHUNK_SIZE + skipSize) {
+      chunkBuffer.clear();
+      read += channel.position(position).read(chunkBuffer);
+    }
+    return read;
+  }
+
+  /**
+   * Reads the same number of chunks at random positions of the channel.
+   *
+   * @return The number of bytes read.
+   * @throws Exception In case the file can't be decrypted.
+   */
+  @Benchmark
+  public long seekChannelRandomly() throws Exception {
+    long read = 0;
+    for (long position : randomPositions) {
+      chunkBuffer.clear();
+      read += channel.position(position).read(chunkBuffer);
+    }
+    return read;
+  }
+}
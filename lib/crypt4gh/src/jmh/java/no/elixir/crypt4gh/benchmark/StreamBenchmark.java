@@ -0,0 +1,117 @@
+package no.elixir.crypt4gh.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.security.KeyPair;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import no.elixir.crypt4gh.stream.Crypt4GHInputStream;
+import no.elixir.crypt4gh.stream.Crypt4GHOutputStream;
+import no.elixir.crypt4gh.util.KeyUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures encrypting a whole payload with Crypt4GHOutputStream and decrypting it with
+ * Crypt4GHInputStream, for several payload sizes, writing and reading through buffers of several
+ * sizes. The payload is kept in memory and the output is discarded, so only the streams themselves
+ * are measured, including the header. One operation is one payload.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StreamBenchmark {
+
+  /** The number of unencrypted bytes in the payload */
+  @Param({"1024", "1048576", "16777216"})
+  public int payloadSize;
+
+  /** The size of the buffer the payload is written from and read into */
+  @Param({"512", "8192", "65536"})
+  public int bufferSize;
+
+  private KeyPair writerKeyPair;
+  private KeyPair readerKeyPair;
+  private byte[] payload;
+  private byte[] encryptedPayload;
+  private byte[] buffer;
+
+  /**
+   * Generates the keys and the payload, and encrypts the payload to decrypt.
+   *
+   * @throws Exception In case the payload can't be encrypted.
+   */
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    KeyUtils keyUtils = KeyUtils.getInstance();
+    writerKeyPair = keyUtils.generateKeyPair();
+    readerKeyPair = keyUtils.generateKeyPair();
+    payload = new byte[payloadSize];
+    new Random(42).nextBytes(payload);
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(payloadSize + 65536);
+    try (Crypt4GHOutputStream crypt4GHOutputStream =
+        new Crypt4GHOutputStream(
+            byteArrayOutputStream, writerKeyPair.getPrivate(), readerKeyPair.getPublic())) {
+      crypt4GHOutputStream.write(payload);
+    }
+    encryptedPayload = byteArrayOutputStream.toByteArray();
+    buffer = new byte[bufferSize];
+  }
+
+  /**
+   * Encrypts the payload, writing it in chunks of the buffer size.
+   *
+   * @return The number of bytes written.
+   * @throws Exception In case the payload can't be encrypted.
+   */
+  @Benchmark
+  public long encrypt() throws Exception {
+    long written = 0;
+    try (Crypt4GHOutputStream crypt4GHOutputStream =
+        new Crypt4GHOutputStream(
+            OutputStream.nullOutputStream(),
+            writerKeyPair.getPrivate(),
+            readerKeyPair.getPublic())) {
+      while (written < payloadSize) {
+        int length = (int) Math.min(bufferSize, payloadSize - written);
+        crypt4GHOutputStream.write(payload, (int) written, length);
+        written += length;
+      }
+    }
+    return written;
+  }
+
+  /**
+   * Decrypts the payload, reading it into the buffer.
+   *
+   * @return The number of bytes read.
+   * @throws Exception In case the payload can't be decrypted.
+   */
+  @Benchmark
+  public long decrypt() throws Exception {
+    long read = 0;
+    try (Crypt4GHInputStream crypt4GHInputStream =
+        new Crypt4GHInputStream(
+            new ByteArrayInputStream(encryptedPayload), readerKeyPair.getPrivate())) {
+      int bytesRead;
+      while ((bytesRead = crypt4GHInputStream.read(buffer)) != -1) {
+        read += bytesRead;
+      }
+    }
+    return read;
+  }
+}
@@ -0,0 +1,347 @@
+package no.elixir.crypt4gh.app;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import no.elixir.crypt4gh.util.Checksums;
+
+/**
+ * Runs the same operation (e.g. encryption with keys that were unlocked once) on many files
+ * concurrently, and prints a summary of every file at the end. Not a public API.
+ */
+class BatchProcessor {
+
+  /** The characters that make a path a glob pattern */
+  private static final String GLOB_CHARACTERS = "*?[{";
+
+  /** The algorithm of the output checksums printed in the summary */
+  private static final String SUMMARY_ALGORITHM = "SHA-256";
+
+  private final int threads;
+  private final boolean failFast;
+  private final String[] checksumAlgorithms;
+
+  /**
+   * Creates a batch processor.
+   *
+   * @param threads the number of files to process concurrently
+   * @param failFast whether to stop starting new files once a file has failed
+   * @param checksumAlgorithms the digest algorithms of the checksums to write next to every output
+   *     file, or null
+   */
+  BatchProcessor(int threads, boolean failFast, String[] checksumAlgorithms) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("ERROR: Invalid number of threads: " + threads);
+    }
+    this.threads = threads;
+    this.failFast = failFast;
+    this.checksumAlgorithms = checksumAlgorithms;
+  }
+
+  /**
+   * Lists the files of a batch. The files can be given as:
+   *
+   * <ul>
+   *   <li>a directory: all regular files directly inside it
+   *   <li>a glob pattern, e.g. "data/*.bam" or "data/**.vcf": all regular files matching it
+   *   <li>a manifest: a text file listing one file per line. Empty lines and lines starting with
+   *       '#' are ignored, and relative paths are resolved against the directory of the manifest.
+   * </ul>
+   *
+   * Output files and their checksum files are left out of directories and glob patterns, so that a
+   * batch can be run again on the same directory.
+   *
+   * @param files the directory, glob pattern or manifest
+   * @param outputSuffix the suffix appended to the names of the output files
+   * @return the files of the batch, sorted by path for directories and glob patterns
+   * @throws IOException if the directory or manifest can't be read
+   * @throws IllegalArgumentException if no files were found
+   */
+  static List<Path> listFiles(String files, String outputSuffix) throws IOException {
+    List<Path> result;
+    Path path = isGlob(files) ? null : Paths.get(files);
+    if (path != null && Files.isDirectory(path)) {
+      try (Stream<Path> stream = Files.list(path)) {
+        result = filter(stream, outputSuffix);
+      }
+    } else if (path != null && Files.isRegularFile(path)) {
+      Path baseDirectory = path.toAbsolutePath().getParent();
+      result = new ArrayList<>();
+      for (String line : Files.readAllLines(path)) {
+        line = line.trim();
+        if (!line.isEmpty() && !line.startsWith("#")) {
+          result.add(baseDirectory.resolve(line));
+        }
+      }
+    } else if (path == null) {
+      result = listGlob(files, outputSuffix);
+    } else {
+      throw new IllegalArgumentException("ERROR: Input not found: " + files);
+    }
+    if (result.isEmpty()) {
+      throw new IllegalArgumentException("ERROR: No files found: " + files);
+    }
+    return result;
+  }
+
+  /**
+   * Runs an operation on every file of a batch, writing the output of each file next to it. A file
+   * whose output already exists fails (existing files are never overwritten), and the output of a
+   * file that fails is deleted. A summary of every file (sizes, duration and SHA-256 checksum of
+   * the output) is printed at the end. If checksum algorithms were given, the checksums of each
+   * file and its output are computed in the same pass and written next to the output.
+   *
+   * @param inputs the files to process
+   * @param outputSuffix the suffix appended to the name of a file to name its output
+   * @param operation the operation reading a file and writing its output
+   * @return true if all files were processed successfully
+   */
+  boolean process(List<Path> inputs, String outputSuffix, FileOperation operation) {
+    AtomicBoolean failed = new AtomicBoolean();
+    List<Future<FileResult>> futures = new ArrayList<>();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (Path input : inputs) {
+        Path output = input.resolveSibling(input.getFileName() + outputSuffix);
+        futures.add(
+            executor.submit(
+                () -> {
+                  if (failFast && failed.get()) {
+                    return new FileResult(input, output);
+                  }
+                  FileResult result = processFile(input, output, operation);
+                  if (result.error != null) {
+                    failed.set(true);
+                    System.err.println("Failed: " + input + ": " + result.error);
+                  }
+                  return result;
+                }));
+      }
+      List<FileResult> results = new ArrayList<>();
+      for (Future<FileResult> future : futures) {
+        try {
+          results.add(future.get());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return false;
+        } catch (ExecutionException e) {
+          throw new IllegalStateException(e.getCause());
+        }
+      }
+      printSummary(results);
+      return !failed.get();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Runs the operation on one file, measuring it.
+   *
+   * @param input the file to process
+   * @param output the file to write the output to
+   * @param operation the operation to run
+   * @return the result of processing the file
+   */
+  private FileResult processFile(Path input, Path output, FileOperation operation) {
+    FileResult result = new FileResult(input, output);
+    long start = System.nanoTime();
+    boolean outputCreated = false;
+    try (FileChannel source = FileChannel.open(input, StandardOpenOption.READ);
+        FileChannel target =
+            FileChannel.open(output, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+      outputCreated = true;
+      Checksums sourceChecksums = null;
+      Checksums targetChecksums = new Checksums(SUMMARY_ALGORITHM);
+      if (checksumAlgorithms != null) {
+        sourceChecksums = new Checksums(checksumAlgorithms);
+        String[] targetAlgorithms =
+            Arrays.copyOf(checksumAlgorithms, checksumAlgorithms.length + 1);
+        targetAlgorithms[checksumAlgorithms.length] = SUMMARY_ALGORITHM;
+        targetChecksums = new Checksums(targetAlgorithms);
+      }
+      operation.apply(source, targetChecksums.wrap(target), sourceChecksums);
+      if (sourceChecksums != null) {
+        Crypt4GHUtils.getInstance()
+            .writeChecksumFile(
+                checksumAlgorithms,
+                input.toFile(),
+                sourceChecksums,
+                output.toFile(),
+                targetChecksums);
+      }
+      result.inputSize = source.size();
+      result.outputSize = target.size();
+      result.checksum = targetChecksums.getHexDigests().get(SUMMARY_ALGORITHM);
+    } catch (FileAlreadyExistsException e) {
+      result.error = "Output file already exists: " + output;
+    } catch (NoSuchFileException e) {
+      result.error = "Input file not found";
+    } catch (IOException | GeneralSecurityException | RuntimeException e) {
+      result.error = e.getClass().getSimpleName() + ": " + e.getMessage();
+    }
+    if (result.error != null && outputCreated) {
+      try {
+        Files.deleteIfExists(output);
+        Files.deleteIfExists(
+            output.resolveSibling(output.getFileName() + Crypt4GHUtils.CHECKSUMS_SUFFIX));
+      } catch (IOException e) {
+        // the error of the operation is the one worth reporting
+      }
+    }
+    result.durationMillis = (System.nanoTime() - start) / 1_000_000;
+    return result;
+  }
+
+  /**
+   * Prints one line per file, followed by the totals.
+   *
+   * @param results the results of all files, in the order they were given
+   */
+  private void printSummary(List<FileResult> results) {
+    int succeeded = 0;
+    int failed = 0;
+    int skipped = 0;
+    System.out.println();
+    System.out.printf(
+        "%-7s %14s %14s %10s  %-64s  %s%n",
+        "STATUS", "INPUT BYTES", "OUTPUT BYTES", "TIME (ms)", "OUTPUT SHA-256", "FILE");
+    for (FileResult result : results) {
+      String status;
+      if (result.checksum != null) {
+        status = "OK";
+        succeeded++;
+      } else if (result.error != null) {
+        status = "FAILED";
+        failed++;
+      } else {
+        status = "SKIPPED";
+        skipped++;
+      }
+      System.out.printf(
+          "%-7s %14s %14s %10s  %-64s  %s%n",
+          status,
+          result.checksum != null ? result.inputSize : "-",
+          result.checksum != null ? result.outputSize : "-",
+          result.checksum != null || result.error != null ? result.durationMillis : "-",
+          result.checksum != null ? result.checksum : "-",
+          result.checksum != null ? result.output : result.input);
+    }
+    System.out.printf(
+        "%n%d file(s): %d succeeded, %d failed, %d skipped%n",
+        results.size(), succeeded, failed, skipped);
+  }
+
+  /**
+   * Tells whether a path is a glob pattern.
+   *
+   * @param files the path
+   * @return true if the path contains glob characters
+   */
+  private static boolean isGlob(String files) {
+    return files.chars().anyMatch(c -> GLOB_CHARACTERS.indexOf(c) >= 0);
+  }
+
+  /**
+   * Lists the regular files matching a glob pattern. The pattern is matched against the paths
+   * relative to its longest leading directory without glob characters. Only '/' is recognized as a
+   * separator in the pattern.
+   *
+   * @param glob the glob pattern
+   * @param outputSuffix the suffix of the output files, which are left out
+   * @return the matching files, sorted by path
+   * @throws IOException if a directory can't be read
+   */
+  private static List<Path> listGlob(String glob, String outputSuffix) throws IOException {
+    String[] names = glob.split("/");
+    int patternStart = 0;
+    while (patternStart < names.length - 1 && !isGlob(names[patternStart])) {
+      patternStart++;
+    }
+    String baseDirectory = String.join("/", Arrays.copyOfRange(names, 0, patternStart));
+    Path walkStart =
+        Paths.get(baseDirectory.isEmpty() ? (glob.startsWith("/") ? "/" : ".") : baseDirectory);
+    String relativeGlob = String.join("/", Arrays.copyOfRange(names, patternStart, names.length));
+    int maxDepth = relativeGlob.contains("**") ? Integer.MAX_VALUE : names.length - patternStart;
+    PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + relativeGlob);
+    if (!Files.isDirectory(walkStart)) {
+      return List.of();
+    }
+    try (Stream<Path> stream = Files.walk(walkStart, maxDepth)) {
+      return filter(stream.filter(p -> matcher.matches(walkStart.relativize(p))), outputSuffix);
+    }
+  }
+
+  /**
+   * Keeps the regular files that are not outputs of a previous batch, sorted by path.
+   *
+   * @param paths the paths to filter
+   * @param outputSuffix the suffix of the output files
+   * @return the filtered paths
+   */
+  private static List<Path> filter(Stream<Path> paths, String outputSuffix) {
+    return paths
+        .filter(Files::isRegularFile)
+        .filter(p -> !p.getFileName().toString().endsWith(outputSuffix))
+        .filter(
+            p ->
+                !p.getFileName()
+                    .toString()
+                    .endsWith(outputSuffix + Crypt4GHUtils.CHECKSUMS_SUFFIX))
+        .sorted()
+        .collect(Collectors.toList());
+  }
+
+  /** An operation reading a file and writing its output. */
+  @FunctionalInterface
+  interface FileOperation {
+
+    /**
+     * Runs the operation.
+     *
+     * @param source the file to read
+     * @param target the channel to write the output to
+     * @param sourceChecksums the checksums to add the whole source file to, or null
+     * @throws IOException In case of I/O error.
+     * @throws GeneralSecurityException In case of encryption related error.
+     */
+    void apply(FileChannel source, WritableByteChannel target, Checksums sourceChecksums)
+        throws IOException, GeneralSecurityException;
+  }
+
+  /** The outcome of processing one file. A file with neither checksum nor error was skipped. */
+  private static class FileResult {
+
+    private final Path input;
+    private final Path output;
+    private long inputSize;
+    private long outputSize;
+    private long durationMillis;
+    private String checksum;
+    private String error;
+
+    FileResult(Path input, Path output) {
+      this.input = input;
+      this.output = output;
+    }
+  }
+}
@@ -1,24 +1,42 @@
 package no.elixir.crypt4gh.app;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.PosixFilePermission;
 import java.security.GeneralSecurityException;
 import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import no.elixir.crypt4gh.pojo.key.Format;
 import no.elixir.crypt4gh.stream.Crypt4GHInputStream;
 import no.elixir.crypt4gh.stream.Crypt4GHOutputStream;
+import no.elixir.crypt4gh.util.Checksums;
+import no.elixir.crypt4gh.util.HeaderInspector;
+import no.elixir.crypt4gh.util.IntegrityVerifier;
 import no.elixir.crypt4gh.util.KeyUtils;
+import no.elixir.crypt4gh.util.SegmentIndex;
+import no.elixir.crypt4gh.util.SegmentValidator;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 
 /** Encryption/decryption utility class, not a public API. */
 class Crypt4GHUtils {
 
+  /** The suffix of the files listing the checksums of encrypted/decrypted files */
+  static final String CHECKSUMS_SUFFIX = ".checksums";
+
   private static Crypt4GHUtils ourInstance = new Crypt4GHUtils();
 
   /**
@@ -98,17 +116,26 @@ class Crypt4GHUtils {
 
   /**
    * Encrypts the specified data file in Crypt4GH format and saves the result to a new file. The
-   * encrypted file will be named after the original with the suffix ".enc".
+   * encrypted file will be named after the original with the suffix ".enc". Regular files are
+   * memory-mapped and encrypted segment by segment through NIO channels, anything else (e.g. a
+   * named pipe) is read as a stream. If checksum algorithms are given, checksums of the original
+   * and the encrypted file are computed in the same pass and written to a file named after the
+   * encrypted file with the suffix ".checksums".
    *
    * @param dataFilePath the path to the file that should be encrypted
    * @param privateKeyFilePath the path to the sender's private key file
    * @param publicKeyFilePath the path to the recipient's public key file
+   * @param checksumAlgorithms the digest algorithms of the checksums to compute, or null
    * @throws GeneralSecurityException In case the Crypt4GH header is malformed
    * @throws IOException if an I/O error occurs
    * @throws IllegalArgumentException if the public or private key file cannot be found or if the
    *     private key cannot be decrypted
    */
-  void encryptFile(String dataFilePath, String privateKeyFilePath, String publicKeyFilePath)
+  void encryptFile(
+      String dataFilePath,
+      String privateKeyFilePath,
+      String publicKeyFilePath,
+      String[] checksumAlgorithms)
       throws IOException, GeneralSecurityException {
     File dataInFile = new File(dataFilePath);
     File dataOutFile = new File(dataFilePath + ".enc");
@@ -117,59 +144,689 @@ class Crypt4GHUtils {
             .promptForConfirmation(dataOutFile.getAbsolutePath() + " already exists. Overwrite?")) {
       return;
     }
-    PrivateKey privateKey = null;
-    try {
-      privateKey = readPrivateKey(privateKeyFilePath);
-    } catch (java.nio.file.NoSuchFileException missingFileEx) {
-      throw new IllegalArgumentException(
-          "ERROR: Private key file not found: " + privateKeyFilePath);
-    } catch (javax.crypto.AEADBadTagException badTagEx) {
-      throw new IllegalArgumentException(
-          "ERROR: Unable to decrypt private key file. The password is probably wrong!");
+    PrivateKey privateKey = loadPrivateKey(privateKeyFilePath);
+    PublicKey publicKey = loadPublicKey(publicKeyFilePath);
+    Checksums plaintextChecksums = newChecksums(checksumAlgorithms);
+    Checksums ciphertextChecksums = newChecksums(checksumAlgorithms);
+    System.out.println("Encryption initialized...");
+    if (Files.isRegularFile(dataInFile.toPath())) {
+      try (FileChannel source = FileChannel.open(dataInFile.toPath(), StandardOpenOption.READ);
+          FileChannel target = openOutputFile(dataOutFile)) {
+        no.elixir.crypt4gh.util.Crypt4GHUtils.getInstance()
+            .encrypt(
+                source, target, privateKey, publicKey, plaintextChecksums, ciphertextChecksums);
+      } catch (GeneralSecurityException e) {
+        System.err.println(e.getMessage());
+        dataOutFile.delete();
+        return;
+      }
+    } else {
+      try (InputStream inputStream = new FileInputStream(dataInFile);
+          OutputStream outputStream = wrap(ciphertextChecksums, new FileOutputStream(dataOutFile));
+          Crypt4GHOutputStream crypt4GHOutputStream =
+              new Crypt4GHOutputStream(outputStream, privateKey, publicKey)) {
+        IOUtils.copyLarge(wrap(plaintextChecksums, inputStream), crypt4GHOutputStream);
+      } catch (FileNotFoundException fileNotFoundEx) {
+        throw new IllegalArgumentException("ERROR: Input file not found: " + dataFilePath);
+      } catch (GeneralSecurityException e) {
+        System.err.println(e.getMessage());
+        dataOutFile.delete();
+        return;
+      }
     }
-    PublicKey publicKey = null;
-    try {
-      publicKey = keyUtils.readPublicKey(new File(publicKeyFilePath));
+    System.out.println("Done: " + dataOutFile.getAbsolutePath());
+    printChecksums(
+        checksumAlgorithms, dataInFile, plaintextChecksums, dataOutFile, ciphertextChecksums);
+  }
+
+  /**
+   * Decrypts the specified file in Crypt4GH format and saves the result to a new file. The
+   * decrypted file will be named after the original with the suffix ".dec". Regular files are
+   * memory-mapped and decrypted segment by segment through NIO channels, anything else (e.g. a
+   * named pipe) is read as a stream. If checksum algorithms are given, checksums of the encrypted
+   * and the decrypted file are computed in the same pass and written to a file named after the
+   * decrypted file with the suffix ".checksums".
+   *
+   * @param dataFilePath the path to the file that should be decrypted
+   * @param privateKeyFilePath the path to the recipient's private key file
+   * @param checksumAlgorithms the digest algorithms of the checksums to compute, or null
+   * @throws GeneralSecurityException In case the Crypt4GH header is malformed
+   * @throws IOException if an I/O error occurs
+   * @throws IllegalArgumentException if the private key file cannot be found or cannot be decrypted
+   */
+  void decryptFile(String dataFilePath, String privateKeyFilePath, String[] checksumAlgorithms)
+      throws IOException, GeneralSecurityException {
+    File dataInFile = new File(dataFilePath);
+    File dataOutFile = new File(dataFilePath + ".dec");
+    if (dataOutFile.exists()
+        && !ConsoleUtils.getInstance()
+            .promptForConfirmation(dataOutFile.getAbsolutePath() + " already exists. Overwrite?")) {
+      return;
+    }
+    PrivateKey privateKey = loadPrivateKey(privateKeyFilePath);
+    Checksums ciphertextChecksums = newChecksums(checksumAlgorithms);
+    Checksums plaintextChecksums = newChecksums(checksumAlgorithms);
+    System.out.println("Decryption initialized...");
+    if (Files.isRegularFile(dataInFile.toPath())) {
+      try (FileChannel source = FileChannel.open(dataInFile.toPath(), StandardOpenOption.READ);
+          FileChannel target = openOutputFile(dataOutFile)) {
+        no.elixir.crypt4gh.util.Crypt4GHUtils.getInstance()
+            .decrypt(source, target, privateKey, plaintextChecksums, ciphertextChecksums);
+      } catch (GeneralSecurityException e) {
+        System.err.println(e.getMessage());
+        dataOutFile.delete();
+        return;
+      }
+    } else {
+      try (InputStream inputStream =
+              wrap(
+                  ciphertextChecksums,
+                  new BufferedInputStream(new FileInputStream(dataInFile)));
+          OutputStream outputStream = new FileOutputStream(dataOutFile);
+          Crypt4GHInputStream crypt4GHInputStream =
+              new Crypt4GHInputStream(inputStream, privateKey)) {
+        IOUtils.copyLarge(crypt4GHInputStream, wrap(plaintextChecksums, outputStream));
+        if (ciphertextChecksums != null) {
+          // segments after the last range kept by a Data Edit List are never read otherwise
+          inputStream.transferTo(OutputStream.nullOutputStream());
+        }
+      } catch (FileNotFoundException fileNotFoundEx) {
+        throw new IllegalArgumentException("ERROR: Input file not found: " + dataFilePath);
+      } catch (GeneralSecurityException e) {
+        System.err.println(e.getMessage());
+        dataOutFile.delete();
+        return;
+      }
+    }
+    System.out.println("Done: " + dataOutFile.getAbsolutePath());
+    printChecksums(
+        checksumAlgorithms, dataInFile, ciphertextChecksums, dataOutFile, plaintextChecksums);
+  }
+
+  /**
+   * Re-encrypts the specified Crypt4GH file for another recipient and saves the result to a new
+   * file. Only the header is decrypted and encrypted again, the data is copied as it is. The new
+   * file will be named after the original with the suffix ".reenc".
+   *
+   * @param dataFilePath the path to the Crypt4GH file to re-encrypt
+   * @param privateKeyFilePath the path to the current recipient's private key file
+   * @param publicKeyFilePath the path to the new recipient's public key file
+   * @throws GeneralSecurityException In case the Crypt4GH header is malformed
+   * @throws IOException if an I/O error occurs
+   * @throws IllegalArgumentException if the public or private key file cannot be found or if the
+   *     private key cannot be decrypted
+   */
+  void reencryptFile(String dataFilePath, String privateKeyFilePath, String publicKeyFilePath)
+      throws IOException, GeneralSecurityException {
+    File dataInFile = new File(dataFilePath);
+    File dataOutFile = new File(dataFilePath + ".reenc");
+    if (dataOutFile.exists()
+        && !ConsoleUtils.getInstance()
+            .promptForConfirmation(dataOutFile.getAbsolutePath() + " already exists. Overwrite?")) {
+      return;
+    }
+    PrivateKey privateKey = loadPrivateKey(privateKeyFilePath);
+    PublicKey publicKey = loadPublicKey(publicKeyFilePath);
+    System.out.println("Re-encryption initialized...");
+    try (FileChannel source = FileChannel.open(dataInFile.toPath(), StandardOpenOption.READ);
+        FileChannel target = openOutputFile(dataOutFile)) {
+      no.elixir.crypt4gh.util.Crypt4GHUtils.getInstance()
+          .reencrypt(source, target, privateKey, publicKey);
+      System.out.println("Done: " + dataOutFile.getAbsolutePath());
     } catch (java.nio.file.NoSuchFileException missingFileEx) {
-      throw new IllegalArgumentException("ERROR: Public key file not found: " + publicKeyFilePath);
+      throw new IllegalArgumentException("ERROR: Input file not found: " + dataFilePath);
+    } catch (GeneralSecurityException e) {
+      System.err.println(e.getMessage());
+      dataOutFile.delete();
+    }
+  }
+
+  /**
+   * Rotates the session key of the specified Crypt4GH file and saves the result to a new file. The
+   * data is decrypted and encrypted again with a new session key, one segment per available
+   * processor at a time. The new file will be named after the original with the suffix ".rekeyed".
+   *
+   * @param dataFilePath the path to the Crypt4GH file to re-key
+   * @param privateKeyFilePath the path to the recipient's private key file
+   * @param publicKeyFilePath the path to the public key file of the recipient of the new file
+   * @throws GeneralSecurityException In case the Crypt4GH header is malformed
+   * @throws IOException if an I/O error occurs
+   * @throws IllegalArgumentException if the public or private key file cannot be found or if the
+   *     private key cannot be decrypted
+   */
+  void rekeyFile(String dataFilePath, String privateKeyFilePath, String publicKeyFilePath)
+      throws IOException, GeneralSecurityException {
+    File dataInFile = new File(dataFilePath);
+    File dataOutFile = new File(dataFilePath + ".rekeyed");
+    if (dataOutFile.exists()
+        && !ConsoleUtils.getInstance()
+            .promptForConfirmation(dataOutFile.getAbsolutePath() + " already exists. Overwrite?")) {
+      return;
     }
-    try (InputStream inputStream = new FileInputStream(dataInFile);
-        OutputStream outputStream = new FileOutputStream(dataOutFile);
-        Crypt4GHOutputStream crypt4GHOutputStream =
-            new Crypt4GHOutputStream(outputStream, privateKey, publicKey)) {
-      System.out.println("Encryption initialized...");
-      IOUtils.copyLarge(inputStream, crypt4GHOutputStream);
+    PrivateKey privateKey = loadPrivateKey(privateKeyFilePath);
+    PublicKey publicKey = loadPublicKey(publicKeyFilePath);
+    System.out.println("Session key rotation initialized...");
+    int threads = Runtime.getRuntime().availableProcessors();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try (InputStream inputStream = new BufferedInputStream(new FileInputStream(dataInFile));
+        OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(dataOutFile))) {
+      no.elixir.crypt4gh.util.Crypt4GHUtils.getInstance()
+          .rotateSessionKey(
+              inputStream, outputStream, privateKey, publicKey, executor, 2 * threads);
       System.out.println("Done: " + dataOutFile.getAbsolutePath());
     } catch (FileNotFoundException fileNotFoundEx) {
       throw new IllegalArgumentException("ERROR: Input file not found: " + dataFilePath);
     } catch (GeneralSecurityException e) {
       System.err.println(e.getMessage());
       dataOutFile.delete();
+    } finally {
+      executor.shutdownNow();
     }
   }
 
   /**
-   * Decrypts the specified file in Crypt4GH format and saves the result to a new file. The
-   * decrypted file will be named after the original with the suffix ".dec".
+   * Extracts a plaintext range of the specified Crypt4GH file into a new Crypt4GH file for another
+   * recipient, without decrypting the data. The new file will be named after the original with the
+   * range and the suffix ".enc" appended, e.g. "file.c4gh.100-200.enc".
    *
-   * @param dataFilePath the path to the file that should be decrypted
-   * @param privateKeyFilePath the path to the recipient's private key file
+   * @param dataFilePath the path to the Crypt4GH file to extract the range from
+   * @param range the plaintext byte range to extract, as "start-end" (end exclusive)
+   * @param privateKeyFilePath the path to the current recipient's private key file
+   * @param publicKeyFilePath the path to the new recipient's public key file
    * @throws GeneralSecurityException In case the Crypt4GH header is malformed
    * @throws IOException if an I/O error occurs
-   * @throws IllegalArgumentException if the private key file cannot be found or cannot be decrypted
+   * @throws IllegalArgumentException if the range is malformed, or if the public or private key
+   *     file cannot be found or if the private key cannot be decrypted
    */
-  void decryptFile(String dataFilePath, String privateKeyFilePath)
+  void extractRange(
+      String dataFilePath, String range, String privateKeyFilePath, String publicKeyFilePath)
       throws IOException, GeneralSecurityException {
+    String[] bounds = range.split("-");
+    long start;
+    long end;
+    try {
+      start = Long.parseLong(bounds[0].trim());
+      end = Long.parseLong(bounds[1].trim());
+    } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+      throw new IllegalArgumentException("ERROR: Invalid range (expected start-end): " + range);
+    }
     File dataInFile = new File(dataFilePath);
-    File dataOutFile = new File(dataFilePath + ".dec");
+    File dataOutFile = new File(dataFilePath + "." + start + "-" + end + ".enc");
     if (dataOutFile.exists()
         && !ConsoleUtils.getInstance()
             .promptForConfirmation(dataOutFile.getAbsolutePath() + " already exists. Overwrite?")) {
       return;
     }
-    PrivateKey privateKey = null;
+    PrivateKey privateKey = loadPrivateKey(privateKeyFilePath);
+    PublicKey publicKey = loadPublicKey(publicKeyFilePath);
+    System.out.println("Extraction initialized...");
+    try (FileChannel source = FileChannel.open(dataInFile.toPath(), StandardOpenOption.READ);
+        FileChannel target = openOutputFile(dataOutFile)) {
+      no.elixir.crypt4gh.util.Crypt4GHUtils.getInstance()
+          .extractRange(source, target, privateKey, publicKey, start, end);
+      System.out.println("Done: " + dataOutFile.getAbsolutePath());
+    } catch (java.nio.file.NoSuchFileException missingFileEx) {
+      throw new IllegalArgumentException("ERROR: Input file not found: " + dataFilePath);
+    } catch (GeneralSecurityException e) {
+      System.err.println(e.getMessage());
+      dataOutFile.delete();
+    }
+  }
+
+  /**
+   * Splits the specified Crypt4GH file into segment-aligned parts for another recipient, without
+   * decrypting the data. The parts will be named after the original with their number and the
+   * suffix ".enc" appended, e.g. "file.c4gh.part1.enc".
+   *
+   * @param dataFilePath the path to the Crypt4GH file to split
+   * @param parts the number of parts to split the file into
+   * @param privateKeyFilePath the path to the current recipient's private key file
+   * @param publicKeyFilePath the path to the recipient's public key file
+   * @throws GeneralSecurityException In case the Crypt4GH header is malformed
+   * @throws IOException if an I/O error occurs
+   * @throws IllegalArgumentException if the number of parts is not a positive number, or if the
+   *     public or private key file cannot be found or if the private key cannot be decrypted
+   */
+  void splitFile(
+      String dataFilePath, String parts, String privateKeyFilePath, String publicKeyFilePath)
+      throws IOException, GeneralSecurityException {
+    int partCount;
+    try {
+      partCount = Integer.parseInt(parts.trim());
+    } catch (NumberFormatException e) {
+      partCount = 0;
+    }
+    if (partCount < 1) {
+      throw new IllegalArgumentException("ERROR: Invalid number of parts: " + parts);
+    }
+    File dataInFile = new File(dataFilePath);
+    List<File> dataOutFiles = new ArrayList<>();
+    for (int i = 1; i <= partCount; i++) {
+      File dataOutFile = new File(dataFilePath + ".part" + i + ".enc");
+      if (dataOutFile.exists()
+          && !ConsoleUtils.getInstance()
+              .promptForConfirmation(
+                  dataOutFile.getAbsolutePath() + " already exists. Overwrite?")) {
+        return;
+      }
+      dataOutFiles.add(dataOutFile);
+    }
+    PrivateKey privateKey = loadPrivateKey(privateKeyFilePath);
+    PublicKey publicKey = loadPublicKey(publicKeyFilePath);
+    System.out.println("Splitting initialized...");
+    List<FileChannel> targets = new ArrayList<>();
+    boolean done = false;
+    try (FileChannel source = FileChannel.open(dataInFile.toPath(), StandardOpenOption.READ)) {
+      for (File dataOutFile : dataOutFiles) {
+        targets.add(openOutputFile(dataOutFile));
+      }
+      no.elixir.crypt4gh.util.Crypt4GHUtils.getInstance()
+          .split(source, targets, privateKey, publicKey);
+      done = true;
+    } catch (java.nio.file.NoSuchFileException missingFileEx) {
+      throw new IllegalArgumentException("ERROR: Input file not found: " + dataFilePath);
+    } catch (GeneralSecurityException e) {
+      System.err.println(e.getMessage());
+    } finally {
+      for (FileChannel target : targets) {
+        target.close();
+      }
+    }
+    for (File dataOutFile : dataOutFiles) {
+      if (done) {
+        System.out.println("Done: " + dataOutFile.getAbsolutePath());
+      } else {
+        dataOutFile.delete();
+      }
+    }
+  }
+
+  /**
+   * Prints the structure of the header and the sizes of the data of the specified Crypt4GH file,
+   * without a private key. Only the header is read, and nothing is decrypted.
+   *
+   * @param dataFilePath the path to the Crypt4GH file to inspect
+   * @throws IOException if an I/O error occurs
+   * @throws IllegalArgumentException if the file cannot be found
+   */
+  void inspectFile(String dataFilePath) throws IOException {
+    HeaderInspector.Report report;
+    try (FileChannel source = FileChannel.open(Path.of(dataFilePath), StandardOpenOption.READ)) {
+      report = HeaderInspector.getInstance().inspect(source);
+    } catch (java.nio.file.NoSuchFileException missingFileEx) {
+      throw new IllegalArgumentException("ERROR: Input file not found: " + dataFilePath);
+    } catch (GeneralSecurityException e) {
+      System.err.println(e.getMessage());
+      return;
+    }
+    System.out.println("File size:         " + report.getFileSize());
+    System.out.println("Header length:     " + report.getHeaderLength());
+    System.out.println("Header packets:    " + report.getPacketCount());
+    for (int i = 0; i < report.getPacketCount(); i++) {
+      System.out.println(
+          "  "
+              + report.getPacketLengths().get(i)
+              + " bytes, writer public key "
+              + Base64.getEncoder().encodeToString(report.getWriterPublicKeys().get(i)));
+    }
+    System.out.println("Encrypted data:    " + report.getEncryptedBodySize());
+    System.out.println("Segments:          " + report.getSegmentCount());
+    System.out.println("Plaintext size:    " + report.getPlaintextSize());
+  }
+
+  /**
+   * Writes the segment index of the specified Crypt4GH file next to it, named after the file with
+   * the suffix ".idx", with a truncated hash of every segment. Short segments in the middle of the
+   * data are found and indexed at their actual length.
+   *
+   * @param dataFilePath the path to the Crypt4GH file to index
+   * @param privateKeyFilePath the path to the recipient's private key file
+   * @throws GeneralSecurityException In case the private key can't be read
+   * @throws IOException if an I/O error occurs
+   * @throws IllegalArgumentException if the data file or the private key file cannot be found or
+   *     if the private key cannot be decrypted
+   */
+  void indexFile(String dataFilePath, String privateKeyFilePath)
+      throws IOException, GeneralSecurityException {
+    File indexFile = new File(dataFilePath + SegmentIndex.SUFFIX);
+    if (indexFile.exists()
+        && !ConsoleUtils.getInstance()
+            .promptForConfirmation(indexFile.getAbsolutePath() + " already exists. Overwrite?")) {
+      return;
+    }
+    PrivateKey privateKey = loadPrivateKey(privateKeyFilePath);
+    System.out.println("Indexing initialized...");
+    SegmentIndex segmentIndex;
+    try (FileChannel source = FileChannel.open(Path.of(dataFilePath), StandardOpenOption.READ)) {
+      segmentIndex = SegmentIndex.create(source, privateKey, true);
+    } catch (java.nio.file.NoSuchFileException missingFileEx) {
+      throw new IllegalArgumentException("ERROR: Input file not found: " + dataFilePath);
+    } catch (GeneralSecurityException e) {
+      System.err.println(e.getMessage());
+      return;
+    }
+    try (OutputStream outputStream =
+        new BufferedOutputStream(Channels.newOutputStream(openOutputFile(indexFile)))) {
+      segmentIndex.write(outputStream);
+    }
+    System.out.println(
+        "Done: "
+            + indexFile.getAbsolutePath()
+            + " ("
+            + segmentIndex.getSegmentCount()
+            + " segments)");
+  }
+
+  /**
+   * Checks that every segment of the specified Crypt4GH file but the last one is a full segment,
+   * and prints the positions of the short segments found in the middle of the data (e.g. written
+   * by a stream that was flushed while encrypting). Such files can't be read by readers expecting
+   * fixed-size segments, this library included.
+   *
+   * @param dataFilePath the path to the Crypt4GH file to validate
+   * @param privateKeyFilePath the path to the recipient's private key file
+   * @return true if all segments could be read and all but the last one are full segments
+   * @throws GeneralSecurityException In case the private key can't be read
+   * @throws IOException if an I/O error occurs
+   * @throws IllegalArgumentException if the data file or the private key file cannot be found or
+   *     if the private key cannot be decrypted
+   */
+  boolean validateFile(String dataFilePath, String privateKeyFilePath)
+      throws IOException, GeneralSecurityException {
+    PrivateKey privateKey = loadPrivateKey(privateKeyFilePath);
+    SegmentValidator.Report report;
+    try (FileChannel source = FileChannel.open(Path.of(dataFilePath), StandardOpenOption.READ)) {
+      report = SegmentValidator.getInstance().validate(source, privateKey);
+    } catch (java.nio.file.NoSuchFileException missingFileEx) {
+      throw new IllegalArgumentException("ERROR: Input file not found: " + dataFilePath);
+    } catch (GeneralSecurityException e) {
+      System.err.println(e.getMessage());
+      return false;
+    }
+    System.out.println("Segments: " + report.getSegmentCount());
+    for (long position : report.getShortSegmentPositions()) {
+      System.out.println("Short segment in the middle of the data at byte " + position);
+    }
+    if (report.getUnreadableSegmentPosition() != -1) {
+      System.out.println(
+          "Segment can't be decrypted at byte " + report.getUnreadableSegmentPosition());
+    }
+    System.out.println(report.isValid() ? "Valid" : "Invalid: " + dataFilePath);
+    return report.isValid();
+  }
+
+  /**
+   * Checks the MAC of every segment of the specified Crypt4GH file in several threads, without
+   * writing the decrypted data anywhere, and prints the first segment that fails and the
+   * throughput. If the segment index of the file (named after it with the suffix ".idx") exists, it
+   * is used to find the segments, so files with short segments in the middle can be verified too.
+   *
+   * @param dataFilePath the path to the Crypt4GH file to verify
+   * @param privateKeyFilePath the path to the recipient's private key file
+   * @param threads the number of threads checking segments
+   * @return true if all segments were verified
+   * @throws GeneralSecurityException In case the private key can't be read
+   * @throws IOException if an I/O error occurs
+   * @throws IllegalArgumentException if the data file or the private key file cannot be found, if
+   *     the private key cannot be decrypted or if the number of threads is not positive
+   */
+  boolean verifyFile(String dataFilePath, String privateKeyFilePath, int threads)
+      throws IOException, GeneralSecurityException {
+    if (threads < 1) {
+      throw new IllegalArgumentException("ERROR: Invalid number of threads: " + threads);
+    }
+    PrivateKey privateKey = loadPrivateKey(privateKeyFilePath);
+    SegmentIndex segmentIndex = null;
+    File indexFile = new File(dataFilePath + SegmentIndex.SUFFIX);
+    if (indexFile.exists()) {
+      try (InputStream inputStream = new BufferedInputStream(new FileInputStream(indexFile))) {
+        segmentIndex = SegmentIndex.read(inputStream);
+      }
+      System.out.println("Using segment index: " + indexFile.getAbsolutePath());
+    }
+    IntegrityVerifier.Report report;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try (FileChannel source = FileChannel.open(Path.of(dataFilePath), StandardOpenOption.READ)) {
+      report =
+          IntegrityVerifier.getInstance()
+              .verify(source, privateKey, segmentIndex, executor, threads);
+    } catch (java.nio.file.NoSuchFileException missingFileEx) {
+      throw new IllegalArgumentException("ERROR: Input file not found: " + dataFilePath);
+    } catch (GeneralSecurityException e) {
+      System.err.println(e.getMessage());
+      return false;
+    } finally {
+      executor.shutdown();
+    }
+    System.out.println(
+        "Verified "
+            + report.getVerifiedSegmentCount()
+            + " of "
+            + report.getSegmentCount()
+            + " segments ("
+            + report.getVerifiedBytes()
+            + " bytes) in "
+            + report.getDurationNanos() / 1_000_000
+            + " ms, "
+            + String.format("%.1f", report.getThroughput() / (1024 * 1024))
+            + " MiB/s");
+    if (!report.isValid()) {
+      System.out.println(
+          "Segment "
+              + report.getFirstFailedSegment()
+              + " at byte "
+              + report.getFirstFailedSegmentPosition()
+              + " failed verification");
+    }
+    System.out.println(report.isValid() ? "Valid" : "Invalid: " + dataFilePath);
+    return report.isValid();
+  }
+
+  /**
+   * Encrypts a batch of files concurrently, unlocking the keys only once. Every file is encrypted
+   * into a new file named after it with the suffix ".enc", and a summary of all files is printed
+   * at the end. Existing output files are never overwritten: the files they belong to fail. If
+   * checksum algorithms are given, a ".checksums" file is written next to every encrypted file.
+   *
+   * @param files a directory, a glob pattern or a manifest listing the files to encrypt
+   * @param privateKeyFilePath the path to the sender's private key file
+   * @param publicKeyFilePath the path to the recipient's public key file
+   * @param threads the number of files to encrypt concurrently
+   * @param failFast whether to stop starting new files once a file has failed
+   * @param checksumAlgorithms the digest algorithms of the checksums to compute, or null
+   * @return true if all files were encrypted successfully
+   * @throws GeneralSecurityException In case the keys can't be read
+   * @throws IOException if an I/O error occurs
+   * @throws IllegalArgumentException if no files were found, if the public or private key file
+   *     cannot be found or if the private key cannot be decrypted
+   */
+  boolean encryptFiles(
+      String files,
+      String privateKeyFilePath,
+      String publicKeyFilePath,
+      int threads,
+      boolean failFast,
+      String[] checksumAlgorithms)
+      throws IOException, GeneralSecurityException {
+    BatchProcessor batchProcessor = new BatchProcessor(threads, failFast, checksumAlgorithms);
+    List<Path> inputs = BatchProcessor.listFiles(files, ".enc");
+    PrivateKey privateKey = loadPrivateKey(privateKeyFilePath);
+    PublicKey publicKey = loadPublicKey(publicKeyFilePath);
+    PrivateKey writerPrivateKey = privateKey;
+    PublicKey readerPublicKey = publicKey;
+    System.out.println("Encrypting " + inputs.size() + " file(s)...");
+    return batchProcessor.process(
+        inputs,
+        ".enc",
+        (source, target, sourceChecksums) ->
+            no.elixir.crypt4gh.util.Crypt4GHUtils.getInstance()
+                .encrypt(source, target, writerPrivateKey, readerPublicKey, sourceChecksums, null));
+  }
+
+  /**
+   * Decrypts a batch of Crypt4GH files concurrently, unlocking the private key only once. Every
+   * file is decrypted into a new file named after it with the suffix ".dec", and a summary of all
+   * files is printed at the end. Existing output files are never overwritten: the files they
+   * belong to fail. If checksum algorithms are given, a ".checksums" file is written next to every
+   * decrypted file.
+   *
+   * @param files a directory, a glob pattern or a manifest listing the files to decrypt
+   * @param privateKeyFilePath the path to the recipient's private key file
+   * @param threads the number of files to decrypt concurrently
+   * @param failFast whether to stop starting new files once a file has failed
+   * @param checksumAlgorithms the digest algorithms of the checksums to compute, or null
+   * @return true if all files were decrypted successfully
+   * @throws GeneralSecurityException In case the private key can't be read
+   * @throws IOException if an I/O error occurs
+   * @throws IllegalArgumentException if no files were found, if the private key file cannot be
+   *     found or cannot be decrypted
+   */
+  boolean decryptFiles(
+      String files,
+      String privateKeyFilePath,
+      int threads,
+      boolean failFast,
+      String[] checksumAlgorithms)
+      throws IOException, GeneralSecurityException {
+    BatchProcessor batchProcessor = new BatchProcessor(threads, failFast, checksumAlgorithms);
+    List<Path> inputs = BatchProcessor.listFiles(files, ".dec");
+    PrivateKey privateKey = loadPrivateKey(privateKeyFilePath);
+    PrivateKey readerPrivateKey = privateKey;
+    System.out.println("Decrypting " + inputs.size() + " file(s)...");
+    return batchProcessor.process(
+        inputs,
+        ".dec",
+        (source, target, sourceChecksums) ->
+            no.elixir.crypt4gh.util.Crypt4GHUtils.getInstance()
+                .decrypt(source, target, readerPrivateKey, null, sourceChecksums));
+  }
+
+  /**
+   * Writes the checksums of an input file and of the output file it was turned into to a file
+   * named after the output file with the suffix ".checksums". Each line holds one checksum in the
+   * BSD-style format of "cksum --tag", e.g. "SHA256 (file.enc) = ...", with the file names relative
+   * to the directory of the checksum file.
+   *
+   * @param algorithms the digest algorithms of the checksums to write
+   * @param inputFile the input file
+   * @param inputChecksums the checksums of the input file
+   * @param outputFile the output file
+   * @param outputChecksums the checksums of the output file
+   * @return the lines written to the checksum file
+   * @throws IOException if the checksum file can't be written
+   */
+  List<String> writeChecksumFile(
+      String[] algorithms,
+      File inputFile,
+      Checksums inputChecksums,
+      File outputFile,
+      Checksums outputChecksums)
+      throws IOException {
+    List<String> lines = new ArrayList<>();
+    for (Map.Entry<File, Checksums> entry :
+        List.of(Map.entry(inputFile, inputChecksums), Map.entry(outputFile, outputChecksums))) {
+      Map<String, String> hexDigests = entry.getValue().getHexDigests();
+      for (String algorithm : algorithms) {
+        lines.add(
+            String.format(
+                "%s (%s) = %s",
+                algorithm.replace("SHA-", "SHA"),
+                entry.getKey().getName(),
+                hexDigests.get(algorithm)));
+      }
+    }
+    Files.write(Path.of(outputFile.getPath() + CHECKSUMS_SUFFIX), lines);
+    return lines;
+  }
+
+  /**
+   * Writes the checksums of a single file that was encrypted or decrypted to its checksum file, and
+   * prints them. Does nothing if no checksums were computed.
+   *
+   * @param algorithms the digest algorithms of the checksums, or null
+   * @param inputFile the input file
+   * @param inputChecksums the checksums of the input file, or null
+   * @param outputFile the output file
+   * @param outputChecksums the checksums of the output file, or null
+   * @throws IOException if the checksum file can't be written
+   */
+  private void printChecksums(
+      String[] algorithms,
+      File inputFile,
+      Checksums inputChecksums,
+      File outputFile,
+      Checksums outputChecksums)
+      throws IOException {
+    if (algorithms == null) {
+      return;
+    }
+    writeChecksumFile(algorithms, inputFile, inputChecksums, outputFile, outputChecksums)
+        .forEach(System.out::println);
+    System.out.println("Checksums: " + outputFile.getAbsolutePath() + CHECKSUMS_SUFFIX);
+  }
+
+  /**
+   * Creates the checksums to compute while a file is encrypted or decrypted.
+   *
+   * @param algorithms the digest algorithms of the checksums, or null
+   * @return the checksums, or null if no algorithms are given
+   * @throws GeneralSecurityException if an algorithm is not available
+   */
+  private Checksums newChecksums(String[] algorithms) throws GeneralSecurityException {
+    return algorithms == null ? null : new Checksums(algorithms);
+  }
+
+  /**
+   * Wraps a stream so that the bytes read from it are added to checksums.
+   *
+   * @param checksums the checksums, or null
+   * @param in the stream to wrap
+   * @return the wrapping stream, or the stream itself if there are no checksums
+   */
+  private InputStream wrap(Checksums checksums, InputStream in) {
+    return checksums == null ? in : checksums.wrap(in);
+  }
+
+  /**
+   * Wraps a stream so that the bytes written to it are added to checksums.
+   *
+   * @param checksums the checksums, or null
+   * @param out the stream to wrap
+   * @return the wrapping stream, or the stream itself if there are no checksums
+   */
+  private OutputStream wrap(Checksums checksums, OutputStream out) {
+    return checksums == null ? out : checksums.wrap(out);
+  }
+
+  /**
+   * Opens a file for writing, creating it or truncating it as needed.
+   *
+   * @param file the file to open
+   * @return a channel writing to the file
+   * @throws IOException If the file can't be opened
+   */
+  private FileChannel openOutputFile(File file) throws IOException {
+    return FileChannel.open(
+        file.toPath(),
+        StandardOpenOption.WRITE,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+  }
+
+  /**
+   * Reads a private key from a file, asking for its password if needed, and turns a missing file
+   * or a wrong password into an error message for the user.
+   *
+   * @param privateKeyFilePath path to the private key file
+   * @return private key
+   * @throws IOException If the file can't be read
+   * @throws GeneralSecurityException If the key can't be constructed from the given file
+   * @throws IllegalArgumentException if the private key file cannot be found or cannot be decrypted
+   */
+  private PrivateKey loadPrivateKey(String privateKeyFilePath)
+      throws IOException, GeneralSecurityException {
     try {
-      privateKey = readPrivateKey(privateKeyFilePath);
+      return readPrivateKey(privateKeyFilePath);
     } catch (java.nio.file.NoSuchFileException missingFileEx) {
       throw new IllegalArgumentException(
           "ERROR: Private key file not found: " + privateKeyFilePath);
@@ -177,18 +834,23 @@ class Crypt4GHUtils {
       throw new IllegalArgumentException(
           "ERROR: Unable to decrypt private key file. The password is probably wrong!");
     }
-    System.out.println("Decryption initialized...");
-    try (FileInputStream inputStream = new FileInputStream(dataInFile);
-        OutputStream outputStream = new FileOutputStream(dataOutFile);
-        Crypt4GHInputStream crypt4GHInputStream =
-            new Crypt4GHInputStream(inputStream, privateKey)) {
-      IOUtils.copyLarge(crypt4GHInputStream, outputStream);
-      System.out.println("Done: " + dataOutFile.getAbsolutePath());
-    } catch (FileNotFoundException fileNotFoundEx) {
-      throw new IllegalArgumentException("ERROR: Input file not found: " + dataFilePath);
-    } catch (GeneralSecurityException e) {
-      System.err.println(e.getMessage());
-      dataOutFile.delete();
+  }
+
+  /**
+   * Reads a public key from a file, and turns a missing file into an error message for the user.
+   *
+   * @param publicKeyFilePath path to the public key file
+   * @return public key
+   * @throws IOException If the file can't be read
+   * @throws GeneralSecurityException If the key can't be constructed from the given file
+   * @throws IllegalArgumentException if the public key file cannot be found
+   */
+  private PublicKey loadPublicKey(String publicKeyFilePath)
+      throws IOException, GeneralSecurityException {
+    try {
+      return keyUtils.readPublicKey(new File(publicKeyFilePath));
+    } catch (java.nio.file.NoSuchFileException missingFileEx) {
+      throw new IllegalArgumentException("ERROR: Public key file not found: " + publicKeyFilePath);
     }
   }
 
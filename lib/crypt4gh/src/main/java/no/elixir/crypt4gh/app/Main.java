@@ -1,5 +1,8 @@
 package no.elixir.crypt4gh.app;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
 import org.apache.commons.cli.*;
 
 /** Console application for encrypting/decrypting files. */
@@ -14,6 +17,48 @@ public class Main {
   /** Command-line option for decrypting a file */
   public static final String DECRYPT = "d";
 
+  /** Command-line option for re-encrypting a file for a new recipient */
+  public static final String REENCRYPT = "re";
+
+  /** Command-line option for re-encrypting a file with a new session key */
+  public static final String REKEY = "rk";
+
+  /** Command-line option for extracting a plaintext range into a new Crypt4GH file */
+  public static final String EXTRACT = "x";
+
+  /** Command-line option for printing the header structure and sizes of a file without a key */
+  public static final String INSPECT = "i";
+
+  /** Command-line option for writing the segment index of a file next to it */
+  public static final String INDEX = "ix";
+
+  /** Command-line option for checking that a file has no short segments in the middle */
+  public static final String VALIDATE = "va";
+
+  /** Command-line option for checking the MACs of all segments of a file in several threads */
+  public static final String VERIFY = "vf";
+
+  /** Command-line option for splitting a file into segment-aligned parts */
+  public static final String SPLIT = "sp";
+
+  /** Command-line option for specifying the plaintext range to extract */
+  public static final String RANGE = "r";
+
+  /** Command-line option for specifying the number of parts to split a file into */
+  public static final String PARTS = "n";
+
+  /** Command-line option for encrypting/decrypting a batch of files instead of a single file */
+  public static final String BATCH = "b";
+
+  /** Command-line option for specifying the number of files to process concurrently */
+  public static final String THREADS = "t";
+
+  /** Command-line option for stopping a batch at the first file that fails */
+  public static final String FAIL_FAST = "ff";
+
+  /** Command-line option for specifying the checksums to compute while encrypting/decrypting */
+  public static final String CHECKSUMS = "cs";
+
   /** Command-line option for specifying the key format (OpenSSL or Crypt4GH) */
   public static final String KEY_FORMAT = "kf";
 
@@ -49,6 +94,62 @@ public class Main {
         new Option(ENCRYPT, "encrypt", true, "encrypt the file (specify file to encrypt)"));
     mainOptions.addOption(
         new Option(DECRYPT, "decrypt", true, "decrypt the file (specify file to decrypt)"));
+    mainOptions.addOption(
+        new Option(
+            REENCRYPT,
+            "reencrypt",
+            true,
+            "re-encrypt the file for the recipient of the public key, without decrypting the data"
+                + " (specify file to re-encrypt)"));
+    mainOptions.addOption(
+        new Option(
+            REKEY,
+            "rekey",
+            true,
+            "re-encrypt the data of the file with a new session key, for the recipient of the"
+                + " public key (specify file to re-key)"));
+    mainOptions.addOption(
+        new Option(
+            EXTRACT,
+            "extract",
+            true,
+            "extract a plaintext range into a new file for the recipient of the public key, without"
+                + " decrypting the data (specify file to extract from)"));
+    mainOptions.addOption(
+        new Option(
+            SPLIT,
+            "split",
+            true,
+            "split the file into segment-aligned parts for the recipient of the public key, without"
+                + " decrypting the data (specify file to split)"));
+    mainOptions.addOption(
+        new Option(
+            INSPECT,
+            "inspect",
+            true,
+            "print the header structure, the number of segments and the plaintext size of the"
+                + " file, without a key (specify file to inspect)"));
+    mainOptions.addOption(
+        new Option(
+            INDEX,
+            "index",
+            true,
+            "write the index of the segments of the file next to it, with a hash of every segment"
+                + " (specify file to index)"));
+    mainOptions.addOption(
+        new Option(
+            VALIDATE,
+            "validate",
+            true,
+            "check that all segments of the file but the last one are full-size segments"
+                + " (specify file to validate)"));
+    mainOptions.addOption(
+        new Option(
+            VERIFY,
+            "verify",
+            true,
+            "check the MACs of all segments of the file in several threads, without writing the"
+                + " decrypted data (specify file to verify)"));
     mainOptions.addOption(new Option(VERSION, "version", false, "print application's version"));
     mainOptions.addOption(new Option(HELP, "help", false, "print this message"));
     options.addOptionGroup(mainOptions);
@@ -65,6 +166,38 @@ public class Main {
             "keypass",
             true,
             "password for Crypt4GH private key (will be prompted afterwards if skipped)"));
+    options.addOption(
+        new Option(
+            RANGE, "range", true, "plaintext byte range to extract (specify as start-end)"));
+    options.addOption(new Option(PARTS, "parts", true, "number of parts to split the file into"));
+    options.addOption(
+        new Option(
+            BATCH,
+            "batch",
+            false,
+            "encrypt/decrypt a batch of files concurrently (specify a directory, a glob pattern or"
+                + " a file listing one file per line instead of a file to encrypt/decrypt)"));
+    options.addOption(
+        new Option(
+            THREADS,
+            "threads",
+            true,
+            "number of files to encrypt/decrypt concurrently in batch mode, or of threads"
+                + " checking segments when verifying (defaults to the number of processors)"));
+    options.addOption(
+        new Option(
+            FAIL_FAST,
+            "failfast",
+            false,
+            "stop starting new files once a file of the batch has failed"));
+    options.addOption(
+        new Option(
+            CHECKSUMS,
+            "checksums",
+            true,
+            "compute checksums of the input and output files while encrypting/decrypting, and"
+                + " write them next to the output file (specify comma-separated digest algorithms,"
+                + " e.g. MD5,SHA-256)"));
     options.addOption(
         new Option(PUBLIC_KEY, "pubkey", true, "public key to use (specify key file)"));
     options.addOption(
@@ -82,6 +215,8 @@ public class Main {
         printHelp(options);
       } else if (line.hasOption(VERSION)) {
         printVersion();
+      } else if (line.hasOption(INSPECT)) {
+        crypt4GHUtils.inspectFile(line.getOptionValue(INSPECT));
       } else if (line.hasOption(GENERATE)) {
         crypt4GHUtils.generateX25519KeyPair(
             line.getOptionValue(GENERATE),
@@ -97,16 +232,129 @@ public class Main {
             System.err.println("Missing argument for option: " + SECRET_KEY);
             return;
           }
-          crypt4GHUtils.encryptFile(
-              line.getOptionValue(ENCRYPT),
+          if (line.hasOption(BATCH)) {
+            if (!crypt4GHUtils.encryptFiles(
+                line.getOptionValue(ENCRYPT),
+                line.getOptionValue(SECRET_KEY),
+                line.getOptionValue(PUBLIC_KEY),
+                getThreads(line),
+                line.hasOption(FAIL_FAST),
+                getChecksumAlgorithms(line))) {
+              System.exit(1);
+            }
+          } else {
+            crypt4GHUtils.encryptFile(
+                line.getOptionValue(ENCRYPT),
+                line.getOptionValue(SECRET_KEY),
+                line.getOptionValue(PUBLIC_KEY),
+                getChecksumAlgorithms(line));
+          }
+        } else if (line.hasOption(DECRYPT)) {
+          if (!line.hasOption(SECRET_KEY)) {
+            System.err.println("Missing argument for option: " + SECRET_KEY);
+            return;
+          }
+          if (line.hasOption(BATCH)) {
+            if (!crypt4GHUtils.decryptFiles(
+                line.getOptionValue(DECRYPT),
+                line.getOptionValue(SECRET_KEY),
+                getThreads(line),
+                line.hasOption(FAIL_FAST),
+                getChecksumAlgorithms(line))) {
+              System.exit(1);
+            }
+          } else {
+            crypt4GHUtils.decryptFile(
+                line.getOptionValue(DECRYPT),
+                line.getOptionValue(SECRET_KEY),
+                getChecksumAlgorithms(line));
+          }
+        } else if (line.hasOption(REENCRYPT)) {
+          if (!line.hasOption(PUBLIC_KEY)) {
+            System.err.println("Missing argument for option: " + PUBLIC_KEY);
+            return;
+          }
+          if (!line.hasOption(SECRET_KEY)) {
+            System.err.println("Missing argument for option: " + SECRET_KEY);
+            return;
+          }
+          crypt4GHUtils.reencryptFile(
+              line.getOptionValue(REENCRYPT),
               line.getOptionValue(SECRET_KEY),
               line.getOptionValue(PUBLIC_KEY));
-        } else if (line.hasOption(DECRYPT)) {
+        } else if (line.hasOption(REKEY)) {
+          if (!line.hasOption(PUBLIC_KEY)) {
+            System.err.println("Missing argument for option: " + PUBLIC_KEY);
+            return;
+          }
+          if (!line.hasOption(SECRET_KEY)) {
+            System.err.println("Missing argument for option: " + SECRET_KEY);
+            return;
+          }
+          crypt4GHUtils.rekeyFile(
+              line.getOptionValue(REKEY),
+              line.getOptionValue(SECRET_KEY),
+              line.getOptionValue(PUBLIC_KEY));
+        } else if (line.hasOption(EXTRACT)) {
+          if (!line.hasOption(RANGE)) {
+            System.err.println("Missing argument for option: " + RANGE);
+            return;
+          }
+          if (!line.hasOption(PUBLIC_KEY)) {
+            System.err.println("Missing argument for option: " + PUBLIC_KEY);
+            return;
+          }
+          if (!line.hasOption(SECRET_KEY)) {
+            System.err.println("Missing argument for option: " + SECRET_KEY);
+            return;
+          }
+          crypt4GHUtils.extractRange(
+              line.getOptionValue(EXTRACT),
+              line.getOptionValue(RANGE),
+              line.getOptionValue(SECRET_KEY),
+              line.getOptionValue(PUBLIC_KEY));
+        } else if (line.hasOption(SPLIT)) {
+          if (!line.hasOption(PARTS)) {
+            System.err.println("Missing argument for option: " + PARTS);
+            return;
+          }
+          if (!line.hasOption(PUBLIC_KEY)) {
+            System.err.println("Missing argument for option: " + PUBLIC_KEY);
+            return;
+          }
           if (!line.hasOption(SECRET_KEY)) {
             System.err.println("Missing argument for option: " + SECRET_KEY);
             return;
           }
-          crypt4GHUtils.decryptFile(line.getOptionValue(DECRYPT), line.getOptionValue(SECRET_KEY));
+          crypt4GHUtils.splitFile(
+              line.getOptionValue(SPLIT),
+              line.getOptionValue(PARTS),
+              line.getOptionValue(SECRET_KEY),
+              line.getOptionValue(PUBLIC_KEY));
+        } else if (line.hasOption(INDEX)) {
+          if (!line.hasOption(SECRET_KEY)) {
+            System.err.println("Missing argument for option: " + SECRET_KEY);
+            return;
+          }
+          crypt4GHUtils.indexFile(line.getOptionValue(INDEX), line.getOptionValue(SECRET_KEY));
+        } else if (line.hasOption(VALIDATE)) {
+          if (!line.hasOption(SECRET_KEY)) {
+            System.err.println("Missing argument for option: " + SECRET_KEY);
+            return;
+          }
+          if (!crypt4GHUtils.validateFile(
+              line.getOptionValue(VALIDATE), line.getOptionValue(SECRET_KEY))) {
+            System.exit(1);
+          }
+        } else if (line.hasOption(VERIFY)) {
+          if (!line.hasOption(SECRET_KEY)) {
+            System.err.println("Missing argument for option: " + SECRET_KEY);
+            return;
+          }
+          if (!crypt4GHUtils.verifyFile(
+              line.getOptionValue(VERIFY), line.getOptionValue(SECRET_KEY), getThreads(line))) {
+            System.exit(1);
+          }
         }
       }
     } catch (ParseException exp) {
@@ -116,6 +364,50 @@ public class Main {
     }
   }
 
+  /**
+   * Returns the number of files to process concurrently in batch mode, or of threads checking
+   * segments when verifying.
+   *
+   * @param line the parsed command line
+   * @return the value of the threads option, or the number of processors if it's missing
+   * @throws IllegalArgumentException if the value is not a number
+   */
+  private static int getThreads(CommandLine line) {
+    if (!line.hasOption(THREADS)) {
+      return Runtime.getRuntime().availableProcessors();
+    }
+    try {
+      return Integer.parseInt(line.getOptionValue(THREADS));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(
+          "ERROR: Invalid number of threads: " + line.getOptionValue(THREADS));
+    }
+  }
+
+  /**
+   * Returns the digest algorithms of the checksums to compute while encrypting/decrypting.
+   *
+   * @param line the parsed command line
+   * @return the algorithms listed in the checksums option, or null if it's missing
+   * @throws IllegalArgumentException if an algorithm is not available
+   */
+  private static String[] getChecksumAlgorithms(CommandLine line) {
+    if (!line.hasOption(CHECKSUMS)) {
+      return null;
+    }
+    String[] algorithms = line.getOptionValue(CHECKSUMS).split(",");
+    for (int i = 0; i < algorithms.length; i++) {
+      algorithms[i] = algorithms[i].trim().toUpperCase(Locale.ROOT);
+      try {
+        MessageDigest.getInstance(algorithms[i]);
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalArgumentException(
+            "ERROR: Unsupported checksum algorithm: " + algorithms[i]);
+      }
+    }
+    return algorithms;
+  }
+
   /**
    * Prints out the version number for this release of Crypt4GH. The version is read from the
    * Manifest file.
@@ -1,23 +1,23 @@
 package no.elixir.crypt4gh.pojo.body;
 
-import static no.elixir.crypt4gh.pojo.header.X25519ChaCha20IETFPoly1305HeaderPacket.CHA_CHA_20_POLY_1305;
-
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.security.GeneralSecurityException;
-import java.security.SecureRandom;
 import java.util.Arrays;
+import javax.crypto.AEADBadTagException;
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.ToString;
 import no.elixir.crypt4gh.pojo.EncryptableEntity;
 import no.elixir.crypt4gh.pojo.header.ChaCha20IETFPoly1305EncryptionParameters;
-import org.apache.commons.lang3.ArrayUtils;
+import no.elixir.crypt4gh.util.CryptoPrimitivePool;
+import no.elixir.crypt4gh.util.NonceGenerator;
 
 /** Data segment, ChaCha20 encrypted, 65564 bytes long (according to the current spec). */
 @EqualsAndHashCode(callSuper = true)
@@ -95,9 +95,10 @@ public class ChaCha20IETFPoly1305Segment extends Segment implements EncryptableE
   /** {@inheritDoc} */
   @Override
   public void encrypt(byte[] unencryptedData, SecretKey sharedKey) throws GeneralSecurityException {
-    SecureRandom.getInstanceStrong().nextBytes(nonce);
-    Cipher cipher = Cipher.getInstance(CHA_CHA_20_POLY_1305);
-    cipher.init(Cipher.ENCRYPT_MODE, sharedKey, new IvParameterSpec(nonce));
+    NonceGenerator.getDefault().nextNonce(nonce);
+    Cipher cipher =
+        CryptoPrimitivePool.getChaCha20Poly1305Cipher(
+            Cipher.ENCRYPT_MODE, sharedKey, new IvParameterSpec(nonce));
     byte[] encryptedPayloadWithMAC = cipher.doFinal(unencryptedData);
     encryptedData =
         Arrays.copyOfRange(encryptedPayloadWithMAC, 0, encryptedPayloadWithMAC.length - MAC_SIZE);
@@ -111,8 +112,172 @@ public class ChaCha20IETFPoly1305Segment extends Segment implements EncryptableE
   /** {@inheritDoc} */
   @Override
   public byte[] decrypt(SecretKey sharedKey) throws GeneralSecurityException {
-    Cipher cipher = Cipher.getInstance(CHA_CHA_20_POLY_1305);
-    cipher.init(Cipher.DECRYPT_MODE, sharedKey, new IvParameterSpec(nonce));
-    return cipher.doFinal(ArrayUtils.addAll(encryptedData, mac));
+    Cipher cipher =
+        CryptoPrimitivePool.getChaCha20Poly1305Cipher(
+            Cipher.DECRYPT_MODE, sharedKey, new IvParameterSpec(nonce));
+    // providers may return part of the plaintext from update, so both outputs are kept
+    byte[] decryptedData = new byte[encryptedData.length];
+    int decryptedLength = cipher.update(encryptedData, 0, encryptedData.length, decryptedData, 0);
+    decryptedLength += cipher.doFinal(mac, 0, MAC_SIZE, decryptedData, decryptedLength);
+    return decryptedLength == decryptedData.length
+        ? decryptedData
+        : Arrays.copyOf(decryptedData, decryptedLength);
+  }
+
+  /**
+   * Encrypts a block of data with a nonce from the given generator and places the serialized
+   * segment (nonce, followed by the encrypted data and the MAC) directly into an existing byte
+   * array, without creating a Segment object or any intermediate copies of the data.
+   *
+   * @param data an array containing the unencrypted data
+   * @param offset the position of the data in the array
+   * @param length the number of bytes to encrypt
+   * @param output the array to place the serialized segment into. It must have room for {@code
+   *     length + NONCE_SIZE + MAC_SIZE} bytes starting from the output offset
+   * @param outputOffset the position in the output array where the serialized segment should start
+   * @param dataKey the ChaCha20 data encryption key
+   * @param nonceGenerator the source of the nonce for this segment
+   * @return the number of bytes placed in the output array (including nonce and MAC)
+   * @throws GeneralSecurityException if the data cannot be encrypted
+   */
+  public static int encrypt(
+      byte[] data,
+      int offset,
+      int length,
+      byte[] output,
+      int outputOffset,
+      SecretKey dataKey,
+      NonceGenerator nonceGenerator)
+      throws GeneralSecurityException {
+    nonceGenerator.nextNonce(output, outputOffset, NONCE_SIZE);
+    Cipher cipher =
+        CryptoPrimitivePool.getChaCha20Poly1305Cipher(
+            Cipher.ENCRYPT_MODE, dataKey, new IvParameterSpec(output, outputOffset, NONCE_SIZE));
+    return NONCE_SIZE + cipher.doFinal(data, offset, length, output, outputOffset + NONCE_SIZE);
+  }
+
+  /**
+   * Decrypts a serialized segment (nonce, followed by the encrypted data and the MAC) directly into
+   * an existing byte array, without creating a Segment object or any intermediate copies of the
+   * data.
+   *
+   * @param encryptedSegment an array containing the serialized segment
+   * @param offset the position of the segment in the array
+   * @param length the length of the serialized segment (including nonce and MAC)
+   * @param output the array to place the decrypted data into
+   * @param outputOffset the position in the output array where the decrypted data should start
+   * @param dataKey the ChaCha20 data encryption key
+   * @return the number of decrypted bytes placed in the output array
+   * @throws GeneralSecurityException if the segment cannot be decrypted with the provided key
+   */
+  public static int decrypt(
+      byte[] encryptedSegment,
+      int offset,
+      int length,
+      byte[] output,
+      int outputOffset,
+      SecretKey dataKey)
+      throws GeneralSecurityException {
+    if (length < NONCE_SIZE + MAC_SIZE) {
+      throw new GeneralSecurityException("Encrypted segment is too short: " + length + " bytes");
+    }
+    Cipher cipher =
+        CryptoPrimitivePool.getChaCha20Poly1305Cipher(
+            Cipher.DECRYPT_MODE,
+            dataKey,
+            new IvParameterSpec(encryptedSegment, offset, NONCE_SIZE));
+    return cipher.doFinal(
+        encryptedSegment, offset + NONCE_SIZE, length - NONCE_SIZE, output, outputOffset);
+  }
+
+  /**
+   * Encrypts the remaining bytes of a buffer with a nonce from the given generator and places the
+   * serialized segment (nonce, followed by the encrypted data and the MAC) into another buffer.
+   * Both buffers may be heap or direct buffers (e.g. a memory-mapped file), and no intermediate
+   * arrays are created for the data. The positions of both buffers are advanced.
+   *
+   * @param data the buffer holding the unencrypted data, between its position and limit
+   * @param output the buffer to place the serialized segment into, starting at its position. It
+   *     must have room for {@code data.remaining() + NONCE_SIZE + MAC_SIZE} bytes
+   * @param dataKey the ChaCha20 data encryption key
+   * @param nonceGenerator the source of the nonce for this segment
+   * @return the number of bytes placed in the output buffer (including nonce and MAC)
+   * @throws GeneralSecurityException if the data cannot be encrypted
+   */
+  public static int encrypt(
+      ByteBuffer data, ByteBuffer output, SecretKey dataKey, NonceGenerator nonceGenerator)
+      throws GeneralSecurityException {
+    byte[] nonce = new byte[NONCE_SIZE];
+    nonceGenerator.nextNonce(nonce);
+    Cipher cipher =
+        CryptoPrimitivePool.getChaCha20Poly1305Cipher(
+            Cipher.ENCRYPT_MODE, dataKey, new IvParameterSpec(nonce));
+    if (output.remaining() < NONCE_SIZE + cipher.getOutputSize(data.remaining())) {
+      throw new ShortBufferException("Output buffer is too small for the encrypted segment");
+    }
+    output.put(nonce);
+    return NONCE_SIZE + cipher.doFinal(data, output);
+  }
+
+  /**
+   * Decrypts the serialized segment (nonce, followed by the encrypted data and the MAC) held in the
+   * remaining bytes of a buffer into another buffer. Both buffers may be heap or direct buffers
+   * (e.g. a memory-mapped file), and no intermediate arrays are created for the data. The positions
+   * of both buffers are advanced, unless the segment can't be decrypted.
+   *
+   * @param encryptedSegment the buffer holding the serialized segment, between its position and
+   *     limit
+   * @param output the buffer to place the decrypted data into, starting at its position
+   * @param dataKey the ChaCha20 data encryption key
+   * @return the number of decrypted bytes placed in the output buffer
+   * @throws GeneralSecurityException if the segment cannot be decrypted with the provided key
+   */
+  public static int decrypt(ByteBuffer encryptedSegment, ByteBuffer output, SecretKey dataKey)
+      throws GeneralSecurityException {
+    int length = encryptedSegment.remaining();
+    if (length < NONCE_SIZE + MAC_SIZE) {
+      throw new GeneralSecurityException("Encrypted segment is too short: " + length + " bytes");
+    }
+    int position = encryptedSegment.position();
+    byte[] nonce = new byte[NONCE_SIZE];
+    encryptedSegment.get(nonce);
+    try {
+      Cipher cipher =
+          CryptoPrimitivePool.getChaCha20Poly1305Cipher(
+              Cipher.DECRYPT_MODE, dataKey, new IvParameterSpec(nonce));
+      return cipher.doFinal(encryptedSegment, output);
+    } catch (GeneralSecurityException e) {
+      encryptedSegment.position(position);
+      throw e;
+    }
+  }
+
+  /**
+   * Finds the length of a serialized segment (nonce, followed by the encrypted data and the MAC)
+   * that starts at the beginning of an array but whose length is unknown, e.g. a segment cut short
+   * by a flush in the middle of a stream and followed by more segments. Every possible length is
+   * tried, from the shortest, by decrypting the segment with the JDK's ChaCha20-Poly1305 cipher
+   * until the MAC matches. Each attempt goes over the candidate data again, so the search takes
+   * time quadratic in the length of the segment, up to several seconds for the longest short
+   * segments. A segment index written while encrypting avoids the search altogether.
+   *
+   * @param data an array containing the serialized segment, starting at index 0
+   * @param maxLength the largest length to check (including nonce and MAC)
+   * @param dataKey the ChaCha20 data encryption key
+   * @return the shortest length (including nonce and MAC) that can be decrypted, or -1 if none
+   * @throws GeneralSecurityException if the cipher can't be initialized with the data key
+   */
+  static int findSegmentLength(byte[] data, int maxLength, SecretKey dataKey)
+      throws GeneralSecurityException {
+    byte[] output = new byte[Math.max(maxLength - NONCE_SIZE - MAC_SIZE, 0)];
+    for (int length = NONCE_SIZE + MAC_SIZE; length <= maxLength; length++) {
+      try {
+        decrypt(data, 0, length, output, 0, dataKey);
+        return length;
+      } catch (AEADBadTagException e) {
+        // the MAC doesn't match, so the segment doesn't end here
+      }
+    }
+    return -1;
   }
 }
@@ -1,14 +1,17 @@
 package no.elixir.crypt4gh.pojo.body;
 
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.util.Collection;
 import java.util.Optional;
+import javax.crypto.SecretKey;
 import lombok.Data;
 import lombok.ToString;
 import no.elixir.crypt4gh.pojo.Crypt4GHEntity;
 import no.elixir.crypt4gh.pojo.header.ChaCha20IETFPoly1305EncryptionParameters;
 import no.elixir.crypt4gh.pojo.header.DataEncryptionMethod;
 import no.elixir.crypt4gh.pojo.header.DataEncryptionParameters;
+import no.elixir.crypt4gh.util.NonceGenerator;
 
 /**
  * A segment represents one 64 KB block of data in the body of the Crypt4GH file following the
@@ -56,6 +59,51 @@ public abstract class Segment implements Crypt4GHEntity {
     }
   }
 
+  /**
+   * Encrypts a block of unencrypted data directly into an existing byte array, without creating a
+   * Segment object. The serialized segment (e.g. nonce, encrypted data and MAC for
+   * ChaCha20-Poly1305) is placed in the output array exactly as it should be written to the body of
+   * a Crypt4GH file.
+   *
+   * @param unencryptedData an array containing the unencrypted data
+   * @param offset the position of the data in the array
+   * @param length the number of bytes to encrypt (at most one segment)
+   * @param output the array to place the serialized segment into. It must have room for a full
+   *     encrypted segment starting from the output offset
+   * @param outputOffset the position in the output array where the serialized segment should start
+   * @param dataEncryptionParameters specifying the encryption method and containing the encryption
+   *     key
+   * @param nonceGenerator the source of nonces for the encryption
+   * @return the number of bytes placed in the output array
+   * @throws GeneralSecurityException if the encryption method was not recognized or the encryption
+   *     failed for other reasons
+   */
+  public static int encrypt(
+      byte[] unencryptedData,
+      int offset,
+      int length,
+      byte[] output,
+      int outputOffset,
+      DataEncryptionParameters dataEncryptionParameters,
+      NonceGenerator nonceGenerator)
+      throws GeneralSecurityException {
+    DataEncryptionMethod dataEncryptionMethod = dataEncryptionParameters.getDataEncryptionMethod();
+    switch (dataEncryptionMethod) {
+      case CHACHA20_IETF_POLY1305:
+        return ChaCha20IETFPoly1305Segment.encrypt(
+            unencryptedData,
+            offset,
+            length,
+            output,
+            outputOffset,
+            ((ChaCha20IETFPoly1305EncryptionParameters) dataEncryptionParameters).getDataKey(),
+            nonceGenerator);
+      default:
+        throw new GeneralSecurityException(
+            "Data Encryption Method not found for code: " + dataEncryptionMethod.getCode());
+    }
+  }
+
   /**
    * Creates a new Segment from a block of encrypted data.
    *
@@ -84,6 +132,137 @@ public abstract class Segment implements Crypt4GHEntity {
         "Data Segment can't be decrypted with any of the Header keys");
   }
 
+  /**
+   * Decrypts a block of encrypted data directly into an existing byte array, without creating a
+   * Segment object. This is the allocation-free counterpart of {@link #create(byte[], Collection)}
+   * used by the streaming readers.
+   *
+   * <p>The method will go through the list of provided Data Encryption Parameters one by one and
+   * attempt to decrypt the data using the cipher and key defined in each parameter object. An
+   * exception will be thrown if the data cannot be decrypted with any of those keys.
+   *
+   * @param encryptedData an array containing the encrypted segment, starting at index 0
+   * @param length the length of the encrypted segment
+   * @param output the array to place the decrypted data into. It must have room for at least the
+   *     length of the encrypted segment (minus nonce and MAC) starting from the output offset
+   * @param outputOffset the position in the output array where the decrypted data should start
+   * @param dataEncryptionParametersList a list of Data Encryption Parameters, each specifying an
+   *     encryption method and containing a decryption key
+   * @return the number of decrypted bytes placed in the output array
+   * @throws GeneralSecurityException if the data block could not be decrypted with any of the
+   *     provided Data Encryption Parameters
+   */
+  public static int decrypt(
+      byte[] encryptedData,
+      int length,
+      byte[] output,
+      int outputOffset,
+      Collection<DataEncryptionParameters> dataEncryptionParametersList)
+      throws GeneralSecurityException {
+    for (DataEncryptionParameters dataEncryptionParameters : dataEncryptionParametersList) {
+      DataEncryptionMethod dataEncryptionMethod =
+          dataEncryptionParameters.getDataEncryptionMethod();
+      switch (dataEncryptionMethod) {
+        case CHACHA20_IETF_POLY1305:
+          try {
+            return ChaCha20IETFPoly1305Segment.decrypt(
+                encryptedData,
+                0,
+                length,
+                output,
+                outputOffset,
+                ((ChaCha20IETFPoly1305EncryptionParameters) dataEncryptionParameters).getDataKey());
+          } catch (GeneralSecurityException e) {
+            continue;
+          }
+        default:
+          throw new GeneralSecurityException(
+              "Data Encryption Method not found for code: " + dataEncryptionMethod.getCode());
+      }
+    }
+    throw new GeneralSecurityException(
+        "Data Segment can't be decrypted with any of the Header keys");
+  }
+
+  /**
+   * Encrypts the remaining bytes of a buffer into another buffer, without creating a Segment object
+   * or any intermediate arrays for the data. This is the ByteBuffer counterpart of {@link
+   * #encrypt(byte[], int, int, byte[], int, DataEncryptionParameters, NonceGenerator)}, for use
+   * with NIO channels and memory-mapped files. The positions of both buffers are advanced.
+   *
+   * @param unencryptedData the buffer holding the unencrypted data (at most one segment), between
+   *     its position and limit
+   * @param output the buffer to place the serialized segment into, starting at its position. It
+   *     must have room for a full encrypted segment
+   * @param dataEncryptionParameters specifying the encryption method and containing the encryption
+   *     key
+   * @param nonceGenerator the source of nonces for the encryption
+   * @return the number of bytes placed in the output buffer
+   * @throws GeneralSecurityException if the encryption method was not recognized or the encryption
+   *     failed for other reasons
+   */
+  public static int encrypt(
+      ByteBuffer unencryptedData,
+      ByteBuffer output,
+      DataEncryptionParameters dataEncryptionParameters,
+      NonceGenerator nonceGenerator)
+      throws GeneralSecurityException {
+    DataEncryptionMethod dataEncryptionMethod = dataEncryptionParameters.getDataEncryptionMethod();
+    switch (dataEncryptionMethod) {
+      case CHACHA20_IETF_POLY1305:
+        return ChaCha20IETFPoly1305Segment.encrypt(
+            unencryptedData,
+            output,
+            ((ChaCha20IETFPoly1305EncryptionParameters) dataEncryptionParameters).getDataKey(),
+            nonceGenerator);
+      default:
+        throw new GeneralSecurityException(
+            "Data Encryption Method not found for code: " + dataEncryptionMethod.getCode());
+    }
+  }
+
+  /**
+   * Decrypts the encrypted segment held in the remaining bytes of a buffer into another buffer,
+   * without creating a Segment object or any intermediate arrays for the data. This is the
+   * ByteBuffer counterpart of {@link #decrypt(byte[], int, byte[], int, Collection)}, for use with
+   * NIO channels and memory-mapped files. The positions of both buffers are advanced, unless the
+   * segment can't be decrypted.
+   *
+   * @param encryptedData the buffer holding the encrypted segment, between its position and limit
+   * @param output the buffer to place the decrypted data into, starting at its position
+   * @param dataEncryptionParametersList a list of Data Encryption Parameters, each specifying an
+   *     encryption method and containing a decryption key
+   * @return the number of decrypted bytes placed in the output buffer
+   * @throws GeneralSecurityException if the data block could not be decrypted with any of the
+   *     provided Data Encryption Parameters
+   */
+  public static int decrypt(
+      ByteBuffer encryptedData,
+      ByteBuffer output,
+      Collection<DataEncryptionParameters> dataEncryptionParametersList)
+      throws GeneralSecurityException {
+    for (DataEncryptionParameters dataEncryptionParameters : dataEncryptionParametersList) {
+      DataEncryptionMethod dataEncryptionMethod =
+          dataEncryptionParameters.getDataEncryptionMethod();
+      switch (dataEncryptionMethod) {
+        case CHACHA20_IETF_POLY1305:
+          try {
+            return ChaCha20IETFPoly1305Segment.decrypt(
+                encryptedData,
+                output,
+                ((ChaCha20IETFPoly1305EncryptionParameters) dataEncryptionParameters).getDataKey());
+          } catch (GeneralSecurityException e) {
+            continue;
+          }
+        default:
+          throw new GeneralSecurityException(
+              "Data Encryption Method not found for code: " + dataEncryptionMethod.getCode());
+      }
+    }
+    throw new GeneralSecurityException(
+        "Data Segment can't be decrypted with any of the Header keys");
+  }
+
   /**
    * Tries to decrypt a segment from a block of encrypted data using the cipher and decryption key
    * included in the Data Encryption Parameters.
@@ -116,4 +295,43 @@ public abstract class Segment implements Crypt4GHEntity {
             "Data Encryption Method not found for code: " + dataEncryptionMethod.getCode());
     }
   }
+
+  /**
+   * Finds the length of an encrypted segment that starts at the beginning of an array but whose
+   * length is unknown, e.g. a short segment in the middle of the data, followed by more segments.
+   * Every possible length is tried, from the shortest, by decrypting the segment, which takes time
+   * quadratic in the length of the segment.
+   *
+   * @param encryptedData an array containing the encrypted segment, starting at index 0
+   * @param maxLength the largest length to check
+   * @param dataEncryptionParametersList a list of Data Encryption Parameters, each specifying an
+   *     encryption method and containing a decryption key
+   * @return the length of the encrypted segment, or -1 if no length can be decrypted
+   * @throws GeneralSecurityException if an encryption method was not recognized
+   */
+  public static int findLength(
+      byte[] encryptedData,
+      int maxLength,
+      Collection<DataEncryptionParameters> dataEncryptionParametersList)
+      throws GeneralSecurityException {
+    for (DataEncryptionParameters dataEncryptionParameters : dataEncryptionParametersList) {
+      DataEncryptionMethod dataEncryptionMethod =
+          dataEncryptionParameters.getDataEncryptionMethod();
+      switch (dataEncryptionMethod) {
+        case CHACHA20_IETF_POLY1305:
+          SecretKey dataKey =
+              ((ChaCha20IETFPoly1305EncryptionParameters) dataEncryptionParameters).getDataKey();
+          int length =
+              ChaCha20IETFPoly1305Segment.findSegmentLength(encryptedData, maxLength, dataKey);
+          if (length != -1) {
+            return length;
+          }
+          continue;
+        default:
+          throw new GeneralSecurityException(
+              "Data Encryption Method not found for code: " + dataEncryptionMethod.getCode());
+      }
+    }
+    return -1;
+  }
 }
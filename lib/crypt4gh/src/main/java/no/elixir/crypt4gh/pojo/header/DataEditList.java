@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.ToString;
@@ -52,6 +53,30 @@ public class DataEditList extends EncryptableHeaderPacket {
     }
   }
 
+  /**
+   * Converts the byte counts into the absolute ranges of plaintext data that are kept. The ranges
+   * are returned as pairs of start (inclusive) and end (exclusive) positions in the plaintext data,
+   * i.e. {@code [start0, end0, start1, end1, ...]}, in ascending order. Empty ranges are left out.
+   * Since the counts alternate between discarding and keeping, nothing after the last count is
+   * kept.
+   *
+   * @return an array holding the start and end position of each range that is kept
+   */
+  public long[] getKeptRanges() {
+    long[] keptRanges = new long[lengths.length];
+    int rangeCount = 0;
+    long position = 0;
+    for (int i = 0; i < lengths.length; i++) {
+      long end = position + lengths[i];
+      if (i % 2 == 1 && end > position) {
+        keptRanges[rangeCount++] = position;
+        keptRanges[rangeCount++] = end;
+      }
+      position = end;
+    }
+    return Arrays.copyOf(keptRanges, rangeCount);
+  }
+
   /**
    * Serializes this Data Edit List into a byte array. The serialized form starts with the packet
    * type code (4-byte integer), followed by the number of byte counts (4-byte integer), and finally
@@ -36,7 +36,8 @@ public class Header implements Crypt4GHEntity {
 
   /**
    * Reads a header from an input stream. The header packets that can be decrypted with the provided
-   * private key are added to the headerPackets list.
+   * private key are added to the headerPackets list. The shared key is derived once for every
+   * distinct writer public key in the header, not once for every header packet.
    *
    * @param inputStream a stream to read the header from
    * @param readerPrivateKey the private key of the reader
@@ -57,12 +58,7 @@ public class Header implements Crypt4GHEntity {
     }
     int headerPacketCount =
         Crypt4GHEntity.getInt(Arrays.copyOfRange(unencryptedHeaderBytes, 12, 16));
-    this.headerPackets = new ArrayList<>();
-    for (int i = 0; i < headerPacketCount; i++) {
-      Optional<HeaderPacket> headerPacketOptional =
-          HeaderPacket.create(inputStream, readerPrivateKey);
-      headerPacketOptional.ifPresent(headerPackets::add);
-    }
+    this.headerPackets = HeaderPacket.createAll(inputStream, headerPacketCount, readerPrivateKey);
   }
 
   /**
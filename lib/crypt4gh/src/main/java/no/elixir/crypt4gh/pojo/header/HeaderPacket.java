@@ -2,12 +2,19 @@ package no.elixir.crypt4gh.pojo.header;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
-import java.util.Optional;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.crypto.SecretKey;
 import lombok.Data;
 import lombok.ToString;
 import no.elixir.crypt4gh.pojo.Crypt4GHEntity;
+import no.elixir.crypt4gh.util.KeyUtils;
 
 /** Header packet, bearing its length, encryption type and encrypted payload. */
 @ToString
@@ -24,37 +31,75 @@ public abstract class HeaderPacket implements Crypt4GHEntity {
   protected EncryptableHeaderPacket encryptablePayload;
 
   /**
-   * Tries to read and decrypt a header packet from an input stream. If the header packet cannot be
-   * decrypted with the provided private key, an empty Optional is returned instead. This can happen
-   * if the header packet was encrypted for a different target recipient.
+   * Reads a number of header packets from an input stream and decrypts the ones that can be
+   * decrypted with the provided private key. Header packets encrypted for other recipients are
+   * skipped. All the header packets are read before any of them is decrypted, and packets sharing
+   * the same writer public key are decrypted with a single shared key. The key exchange thus runs
+   * once per distinct writer rather than once per header packet.
    *
-   * @param inputStream the stream to read the header packet from
+   * @param inputStream the stream to read the header packets from
+   * @param headerPacketCount the number of header packets to read
    * @param readerPrivateKey the private key of the reader
-   * @return an Optional that may contain a header packet if it could successfully be decrypted with
-   *     the provided key
-   * @throws IOException if somewhing goes wrong while reading from the stream
-   * @throws GeneralSecurityException if the encryption method specified in the header packet was
-   *     not recognized
+   * @return the header packets that could be decrypted with the provided key, in their original
+   *     order
+   * @throws IOException if something goes wrong while reading from the stream
+   * @throws GeneralSecurityException if the encryption method specified in a header packet was not
+   *     recognized
    */
-  static Optional<HeaderPacket> create(InputStream inputStream, PrivateKey readerPrivateKey)
+  static List<HeaderPacket> createAll(
+      InputStream inputStream, int headerPacketCount, PrivateKey readerPrivateKey)
       throws IOException, GeneralSecurityException {
-    int packetLength = Crypt4GHEntity.getInt(inputStream.readNBytes(4));
-    int packetEncryptionCode = Crypt4GHEntity.getInt(inputStream.readNBytes(4));
-    HeaderEncryptionMethod packetEncryption =
-        HeaderEncryptionMethod.getByCode(packetEncryptionCode);
-    byte[] encryptedPayload = inputStream.readNBytes(packetLength - 4 - 4);
-    switch (packetEncryption) {
-      case X25519_CHACHA20_IETF_POLY1305:
+    List<Integer> packetLengths = new ArrayList<>();
+    List<byte[]> packetBodies = new ArrayList<>();
+    for (int i = 0; i < headerPacketCount; i++) {
+      int packetLength = Crypt4GHEntity.getInt(inputStream.readNBytes(4));
+      int packetEncryptionCode = Crypt4GHEntity.getInt(inputStream.readNBytes(4));
+      HeaderEncryptionMethod packetEncryption =
+          HeaderEncryptionMethod.getByCode(packetEncryptionCode);
+      if (packetEncryption != HeaderEncryptionMethod.X25519_CHACHA20_IETF_POLY1305) {
+        throw new GeneralSecurityException(
+            "Header Encryption Method not found for code: " + packetEncryptionCode);
+      }
+      packetLengths.add(packetLength);
+      packetBodies.add(inputStream.readNBytes(packetLength - 4 - 4));
+    }
+    KeyUtils keyUtils = KeyUtils.getInstance();
+    Map<ByteBuffer, WriterKeys> writerKeysByPublicKey = new HashMap<>();
+    List<HeaderPacket> headerPackets = new ArrayList<>();
+    for (int i = 0; i < headerPacketCount; i++) {
+      byte[] packetBody = packetBodies.get(i);
+      byte[] writerPublicKeyBytes =
+          X25519ChaCha20IETFPoly1305HeaderPacket.getWriterPublicKeyBytes(packetBody);
+      WriterKeys writerKeys = writerKeysByPublicKey.get(ByteBuffer.wrap(writerPublicKeyBytes));
+      if (writerKeys == null) {
+        writerKeys = new WriterKeys();
         try {
-          return Optional.of(
-              new X25519ChaCha20IETFPoly1305HeaderPacket(
-                  packetLength, encryptedPayload, readerPrivateKey));
+          writerKeys.publicKey = keyUtils.constructPublicKey(writerPublicKeyBytes);
+          writerKeys.sharedKey =
+              keyUtils.getReaderSharedKey(readerPrivateKey, writerKeys.publicKey);
         } catch (GeneralSecurityException e) {
-          return Optional.empty();
+          // not a valid key for this reader, none of the writer's header packets can be decrypted
         }
-      default:
-        throw new GeneralSecurityException(
-            "Header Encryption Method not found for code: " + packetEncryptionCode);
+        writerKeysByPublicKey.put(ByteBuffer.wrap(writerPublicKeyBytes), writerKeys);
+      }
+      if (writerKeys.sharedKey == null) {
+        continue;
+      }
+      try {
+        headerPackets.add(
+            new X25519ChaCha20IETFPoly1305HeaderPacket(
+                packetLengths.get(i), packetBody, writerKeys.publicKey, writerKeys.sharedKey));
+      } catch (GeneralSecurityException e) {
+        // encrypted for a different recipient
+      }
     }
+    return headerPackets;
+  }
+
+  /** The keys derived for all header packets written with the same writer public key. */
+  private static class WriterKeys {
+
+    private PublicKey publicKey;
+    private SecretKey sharedKey;
   }
 }
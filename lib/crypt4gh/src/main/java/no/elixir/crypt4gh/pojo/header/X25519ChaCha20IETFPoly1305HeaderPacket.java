@@ -8,7 +8,6 @@ import java.nio.ByteOrder;
 import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.SecureRandom;
 import java.util.Arrays;
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
@@ -17,7 +16,9 @@ import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.ToString;
 import no.elixir.crypt4gh.pojo.EncryptableEntity;
+import no.elixir.crypt4gh.util.CryptoPrimitivePool;
 import no.elixir.crypt4gh.util.KeyUtils;
+import no.elixir.crypt4gh.util.NonceGenerator;
 import org.apache.commons.lang3.ArrayUtils;
 
 /** X25519 ChaCha20-IETF-Poly1305 encrypted header packet. */
@@ -72,10 +73,10 @@ public class X25519ChaCha20IETFPoly1305HeaderPacket extends HeaderPacket
       PublicKey readerPublicKey)
       throws GeneralSecurityException, IOException {
     this.packetEncryption = HeaderEncryptionMethod.X25519_CHACHA20_IETF_POLY1305;
-    this.writerPublicKey = KeyUtils.getInstance().derivePublicKey(writerPrivateKey);
+    this.writerPublicKey = KeyUtils.getInstance().getPublicKey(writerPrivateKey);
     this.encryptablePayload = encryptablePayload;
     SecretKey sharedKey =
-        KeyUtils.getInstance().generateWriterSharedKey(writerPrivateKey, readerPublicKey);
+        KeyUtils.getInstance().getWriterSharedKey(writerPrivateKey, readerPublicKey);
     encrypt(encryptablePayload.serialize(), sharedKey);
     this.packetLength =
         4 // packetLength length itself
@@ -109,9 +110,44 @@ public class X25519ChaCha20IETFPoly1305HeaderPacket extends HeaderPacket
   public X25519ChaCha20IETFPoly1305HeaderPacket(
       int packetLength, byte[] headerPacketBody, PrivateKey readerPrivateKey)
       throws IOException, GeneralSecurityException {
+    this(
+        packetLength,
+        headerPacketBody,
+        readerPrivateKey,
+        KeyUtils.getInstance().constructPublicKey(getWriterPublicKeyBytes(headerPacketBody)));
+  }
+
+  private X25519ChaCha20IETFPoly1305HeaderPacket(
+      int packetLength,
+      byte[] headerPacketBody,
+      PrivateKey readerPrivateKey,
+      PublicKey writerPublicKey)
+      throws IOException, GeneralSecurityException {
+    this(
+        packetLength,
+        headerPacketBody,
+        writerPublicKey,
+        KeyUtils.getInstance().getReaderSharedKey(readerPrivateKey, writerPublicKey));
+  }
+
+  /**
+   * Creates a new header packet from an existing header packet with an encrypted payload, using a
+   * shared key that has already been derived for the writer's public key. This lets several header
+   * packets from the same writer share one key exchange.
+   *
+   * @param packetLength the length of the supplied header packet
+   * @param headerPacketBody the existing header packet serialized in a byte array
+   * @param writerPublicKey the writer's public key, as included in the header packet
+   * @param sharedKey the shared key derived from the writer's public key and the reader's private
+   *     key
+   * @throws GeneralSecurityException if the payload can't be decrypted with the shared key
+   * @throws IOException if an EncryptableHeaderPacket cannot be created from the decrypted payload
+   */
+  X25519ChaCha20IETFPoly1305HeaderPacket(
+      int packetLength, byte[] headerPacketBody, PublicKey writerPublicKey, SecretKey sharedKey)
+      throws IOException, GeneralSecurityException {
     this.packetEncryption = HeaderEncryptionMethod.X25519_CHACHA20_IETF_POLY1305;
-    this.writerPublicKey =
-        KeyUtils.getInstance().constructPublicKey(Arrays.copyOfRange(headerPacketBody, 0, 32));
+    this.writerPublicKey = writerPublicKey;
     this.nonce = Arrays.copyOfRange(headerPacketBody, 32, 32 + NONCE_SIZE);
     this.encryptedPayload =
         Arrays.copyOfRange(headerPacketBody, 32 + NONCE_SIZE, headerPacketBody.length - MAC_SIZE);
@@ -119,13 +155,23 @@ public class X25519ChaCha20IETFPoly1305HeaderPacket extends HeaderPacket
         Arrays.copyOfRange(
             headerPacketBody, headerPacketBody.length - MAC_SIZE, headerPacketBody.length);
     this.packetLength = packetLength;
-    SecretKey sharedKey =
-        KeyUtils.getInstance().generateReaderSharedKey(readerPrivateKey, writerPublicKey);
     byte[] decryptedPayloadBytes = decrypt(sharedKey);
     this.encryptablePayload =
         EncryptableHeaderPacket.create(new ByteArrayInputStream(decryptedPayloadBytes));
   }
 
+  /**
+   * Extracts the writer's public key (U) from a serialized header packet body, without decrypting
+   * anything.
+   *
+   * @param headerPacketBody the header packet serialized in a byte array (after the packet length
+   *     and encryption method)
+   * @return the encoded public key of the writer
+   */
+  static byte[] getWriterPublicKeyBytes(byte[] headerPacketBody) {
+    return Arrays.copyOfRange(headerPacketBody, 0, 32);
+  }
+
   /**
    * Serializes the fields in this header packet to a byte array.
    *
@@ -170,9 +216,10 @@ public class X25519ChaCha20IETFPoly1305HeaderPacket extends HeaderPacket
   @Override
   public void encrypt(byte[] unencryptedBytes, SecretKey sharedKey)
       throws GeneralSecurityException {
-    SecureRandom.getInstanceStrong().nextBytes(nonce);
-    Cipher cipher = Cipher.getInstance(CHA_CHA_20_POLY_1305);
-    cipher.init(Cipher.ENCRYPT_MODE, sharedKey, new IvParameterSpec(nonce));
+    NonceGenerator.getDefault().nextNonce(nonce);
+    Cipher cipher =
+        CryptoPrimitivePool.getChaCha20Poly1305Cipher(
+            Cipher.ENCRYPT_MODE, sharedKey, new IvParameterSpec(nonce));
     byte[] encryptedPayloadWithMAC = cipher.doFinal(unencryptedBytes);
     encryptedPayload =
         Arrays.copyOfRange(encryptedPayloadWithMAC, 0, encryptedPayloadWithMAC.length - MAC_SIZE);
@@ -186,8 +233,9 @@ public class X25519ChaCha20IETFPoly1305HeaderPacket extends HeaderPacket
   /** {@inheritDoc} */
   @Override
   public byte[] decrypt(SecretKey sharedKey) throws GeneralSecurityException {
-    Cipher cipher = Cipher.getInstance(CHA_CHA_20_POLY_1305);
-    cipher.init(Cipher.DECRYPT_MODE, sharedKey, new IvParameterSpec(nonce));
+    Cipher cipher =
+        CryptoPrimitivePool.getChaCha20Poly1305Cipher(
+            Cipher.DECRYPT_MODE, sharedKey, new IvParameterSpec(nonce));
     return cipher.doFinal(ArrayUtils.addAll(encryptedPayload, mac));
   }
 }
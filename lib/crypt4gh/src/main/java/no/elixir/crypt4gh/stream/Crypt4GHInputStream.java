@@ -5,24 +5,30 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
-import java.util.ArrayDeque;
 import java.util.Objects;
-import java.util.Optional;
-import java.util.Queue;
-import lombok.AllArgsConstructor;
-import lombok.Data;
-import lombok.ToString;
-import lombok.extern.slf4j.Slf4j;
 import no.elixir.crypt4gh.pojo.header.DataEditList;
 import no.elixir.crypt4gh.pojo.header.Header;
 
-/** Crypt4GHInputStream that wraps existing InputStream. */
-@Slf4j
+/**
+ * Crypt4GHInputStream that wraps existing InputStream. If a Data Edit List is applied, the ranges
+ * of data it discards are skipped at the ciphertext level (so segments that are discarded entirely
+ * are never decrypted), and the ranges it keeps are copied in bulk.
+ */
 public class Crypt4GHInputStream extends FilterInputStream {
 
-  private boolean useDataEditList;
-  private Queue<DataEditListEntry> lengths = new ArrayDeque<>();
-  private long bytesRead;
+  private final boolean useDataEditList;
+
+  /**
+   * Start and end positions (in the data before editing) of the ranges kept by the Data Edit List,
+   * as returned by {@link DataEditList#getKeptRanges()}
+   */
+  private final long[] keptRanges;
+
+  /** The index in keptRanges of the start of the range currently being read */
+  private int keptRangeIndex;
+
+  /** The position of the internal stream in the data before editing */
+  private long position;
 
   /**
    * Constructs Crypt4GHInputStream that wraps existing InputStream.
@@ -34,16 +40,7 @@ public class Crypt4GHInputStream extends FilterInputStream {
    */
   public Crypt4GHInputStream(InputStream in, PrivateKey readerPrivateKey)
       throws IOException, GeneralSecurityException {
-    super(new Crypt4GHInputStreamInternal(in, readerPrivateKey));
-    Optional<DataEditList> dataEditListOptional =
-        ((Crypt4GHInputStreamInternal) this.in).getDataEditList();
-    this.useDataEditList = dataEditListOptional.isPresent();
-    long[] lengthsArray = dataEditListOptional.map(DataEditList::getLengths).orElse(new long[] {});
-    boolean skip = true;
-    for (long length : lengthsArray) {
-      lengths.add(new DataEditListEntry(length, skip));
-      skip = !skip; // alternate between skipping and keeping segments from the edit list
-    }
+    this(new Crypt4GHInputStreamInternal(in, readerPrivateKey));
   }
 
   /**
@@ -57,14 +54,29 @@ public class Crypt4GHInputStream extends FilterInputStream {
    */
   public Crypt4GHInputStream(InputStream in, DataEditList dataEditList, PrivateKey readerPrivateKey)
       throws IOException, GeneralSecurityException {
-    super(new Crypt4GHInputStreamInternal(in, readerPrivateKey));
-    this.useDataEditList = true;
-    long[] lengthsArray = dataEditList.getLengths();
-    boolean skip = true;
-    for (long length : lengthsArray) {
-      this.lengths.add(new DataEditListEntry(length, skip));
-      skip = !skip;
-    }
+    this(new Crypt4GHInputStreamInternal(in, readerPrivateKey), dataEditList);
+  }
+
+  /**
+   * Constructs Crypt4GHInputStream around an internal stream, applying the Data Edit List from the
+   * header (if present).
+   *
+   * @param in Internal stream that decrypts the segments.
+   */
+  Crypt4GHInputStream(Crypt4GHInputStreamInternal in) {
+    this(in, in.getDataEditList().orElse(null));
+  }
+
+  /**
+   * Constructs Crypt4GHInputStream around an internal stream, applying the given Data Edit List.
+   *
+   * @param in Internal stream that decrypts the segments.
+   * @param dataEditList DataEditList, or null if no Data Edit List should be applied.
+   */
+  Crypt4GHInputStream(Crypt4GHInputStreamInternal in, DataEditList dataEditList) {
+    super(in);
+    this.useDataEditList = dataEditList != null;
+    this.keptRanges = useDataEditList ? dataEditList.getKeptRanges() : new long[] {};
   }
 
   /**
@@ -85,57 +97,44 @@ public class Crypt4GHInputStream extends FilterInputStream {
   /** {@inheritDoc} */
   @Override
   public int read(byte[] b, int off, int len) throws IOException {
-    /*
-       Reusing default `InputStream`'s implementation, because `FilterStream`'s implementation doesn't fit
-    */
-    Objects.checkFromIndexSize(off, len, b.length);
-    if (len == 0) {
-      return 0;
-    }
+    return useDataEditList
+        ? readWithDataEditList(b, off, len)
+        : in.read(b, off, len); // bulk read straight from the decrypted segments
+  }
 
-    int c = read();
-    if (c == -1) {
+  /** Reads the next byte of data from this stream according to the Data Edit List */
+  private synchronized int readWithDataEditList() throws IOException {
+    if (seekKeptRange() == 0) {
       return -1;
     }
-    b[off] = (byte) c;
-
-    int i = 1;
-    try {
-      for (; i < len; i++) {
-        c = read();
-        if (c == -1) {
-          break;
-        }
-        b[off + i] = (byte) c;
-      }
-    } catch (IOException ee) {
-      log.error(ee.getMessage(), ee);
+    int c = in.read();
+    if (c != -1) {
+      position++;
     }
-    return i;
+    return c;
   }
 
-  /** Reads the next byte of data from this stream according to the Data Edit List */
-  private synchronized int readWithDataEditList() throws IOException {
-    if (!lengths.isEmpty()) {
-      DataEditListEntry dataEditListEntry = lengths.peek();
-      if (dataEditListEntry.skip) {
-        in.skip(dataEditListEntry.length);
-        lengths.remove();
-      }
+  /** Reads data from this stream in bulk according to the Data Edit List */
+  private synchronized int readWithDataEditList(byte[] b, int off, int len) throws IOException {
+    Objects.checkFromIndexSize(off, len, b.length);
+    if (len == 0) {
+      return 0;
     }
-    if (!lengths.isEmpty()) {
-      DataEditListEntry dataEditListEntry = lengths.peek();
-      long length = dataEditListEntry.length;
-      if (bytesRead == length) {
-        lengths.remove();
-        bytesRead = 0;
-        return readWithDataEditList();
-      } else {
-        bytesRead++;
-        return in.read();
+    int totalBytesRead = 0;
+    while (totalBytesRead < len) {
+      long bytesLeftInRange = seekKeptRange();
+      if (bytesLeftInRange == 0) {
+        break;
+      }
+      int bytesToRead = (int) Math.min(len - totalBytesRead, bytesLeftInRange);
+      int bytesRead = in.read(b, off + totalBytesRead, bytesToRead);
+      if (bytesRead == -1) {
+        break;
       }
+      position += bytesRead;
+      totalBytesRead += bytesRead;
     }
-    return -1;
+    return totalBytesRead == 0 ? -1 : totalBytesRead;
   }
 
   /** {@inheritDoc} */
@@ -149,58 +148,58 @@ public class Crypt4GHInputStream extends FilterInputStream {
    */
   private synchronized long skipWithDataEditList(long n) throws IOException {
     long bytesSkipped = 0;
-    if (!lengths.isEmpty()) {
-      DataEditListEntry dataEditListEntry = lengths.peek();
-      if (dataEditListEntry.skip) {
-        in.skip(dataEditListEntry.length);
-        lengths.remove();
-      } else {
-        long length = dataEditListEntry.length;
-        if (bytesRead == length) {
-          lengths.remove();
-          bytesRead = 0;
-        } else {
-          long bytesLeftToRead = length - bytesRead;
-          if (n <= bytesLeftToRead) {
-            bytesRead += n;
-            return in.skip(n);
-          } else {
-            bytesSkipped += in.skip(bytesLeftToRead);
-            n -= bytesLeftToRead;
-            lengths.remove();
-            bytesRead = 0;
-          }
-        }
+    while (bytesSkipped < n) {
+      long bytesLeftInRange = seekKeptRange();
+      if (bytesLeftInRange == 0) {
+        break;
       }
-    }
-    while (!lengths.isEmpty() && n != 0) {
-      DataEditListEntry dataEditListEntry = lengths.peek();
-      if (dataEditListEntry.skip) {
-        in.skip(dataEditListEntry.length);
-        lengths.remove();
-      } else {
-        long length = dataEditListEntry.length;
-        if (n <= length) {
-          long bytesSkippedJustNow = in.skip(n);
-          bytesRead += bytesSkippedJustNow;
-          bytesSkipped += bytesSkippedJustNow;
-          return bytesSkipped;
-        } else {
-          bytesSkipped += in.skip(length);
-          n -= length;
-          lengths.remove();
-        }
+      long start = position;
+      boolean reached = seek(start + Math.min(n - bytesSkipped, bytesLeftInRange));
+      bytesSkipped += position - start;
+      if (!reached) {
+        break;
       }
     }
     return bytesSkipped;
   }
 
-  @ToString
-  @AllArgsConstructor
-  @Data
-  private static class DataEditListEntry {
+  /**
+   * Moves the internal stream to the next byte kept by the Data Edit List, skipping the discarded
+   * data in between.
+   *
+   * @return the number of bytes left in the current kept range, or 0 if there is no more data
+   * @throws IOException if something goes wrong while skipping ahead in the stream
+   */
+  private long seekKeptRange() throws IOException {
+    while (keptRangeIndex < keptRanges.length) {
+      long end = keptRanges[keptRangeIndex + 1];
+      if (position < end) {
+        if (!seek(Math.max(position, keptRanges[keptRangeIndex]))) {
+          keptRangeIndex = keptRanges.length; // the data ends before the kept range
+          return 0;
+        }
+        return end - position;
+      }
+      keptRangeIndex += 2;
+    }
+    return 0;
+  }
 
-    private long length;
-    private boolean skip;
+  /**
+   * Skips the internal stream ahead to the given position in the data before editing.
+   *
+   * @param target the position to skip to
+   * @return true if the position was reached, false if the data ended before it
+   * @throws IOException if something goes wrong while skipping ahead in the stream
+   */
+  private boolean seek(long target) throws IOException {
+    while (position < target) {
+      long skipped = in.skip(target - position);
+      if (skipped <= 0) {
+        return false;
+      }
+      position += skipped;
+    }
+    return true;
   }
 }
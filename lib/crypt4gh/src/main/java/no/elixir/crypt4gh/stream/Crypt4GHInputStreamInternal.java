@@ -7,28 +7,28 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Objects;
 import java.util.Optional;
-import lombok.extern.slf4j.Slf4j;
 import no.elixir.crypt4gh.pojo.body.Segment;
 import no.elixir.crypt4gh.pojo.header.DataEditList;
 import no.elixir.crypt4gh.pojo.header.DataEncryptionParameters;
 import no.elixir.crypt4gh.pojo.header.Header;
 
 /** Internal part of Crypt4GHInputStream that wraps existing InputStream. Not a public API. */
-@Slf4j
 class Crypt4GHInputStreamInternal extends FilterInputStream {
 
   /** The header read from the input stream */
   private Header header;
 
   /**
-   * A buffer to store data read from the input stream. This will be passed on to the outer
-   * Crypt4GHInputStream
+   * A buffer to store decrypted data read from the input stream. This will be passed on to the
+   * outer Crypt4GHInputStream. The buffer is allocated once and reused for every segment.
    */
-  private int[] buffer;
+  private final byte[] buffer = new byte[UNENCRYPTED_DATA_SEGMENT_SIZE];
+
+  /** The number of valid (decrypted) bytes currently held in the buffer */
+  private int bufferLength;
 
   /**
    * The number of bytes the outer Crypt4GHInputStream has read from the internal buffer in this
@@ -36,6 +36,9 @@ class Crypt4GHInputStreamInternal extends FilterInputStream {
    */
   private int bytesRead;
 
+  /** A reusable buffer holding the encrypted segment that is currently being decrypted */
+  private byte[] encryptedSegmentBytes;
+
   /** The Data Encryption Parameters read from the header */
   private Collection<DataEncryptionParameters> dataEncryptionParametersList;
 
@@ -46,9 +49,6 @@ class Crypt4GHInputStreamInternal extends FilterInputStream {
   /** The size of each encrypted segment (according to the encryption method used in this file) */
   private int encryptedSegmentSize;
 
-  /** A counter to keep track of the last decrypted segment */
-  private long lastDecryptedSegment = -1;
-
   /**
    * Constructs the internal part of Crypt4GHInputStream that wraps existing InputStream. Not a
    * public API.
@@ -74,6 +74,7 @@ class Crypt4GHInputStreamInternal extends FilterInputStream {
     }
     this.encryptedSegmentSize =
         firstDataEncryptionParameters.getDataEncryptionMethod().getEncryptedSegmentSize();
+    this.encryptedSegmentBytes = new byte[encryptedSegmentSize];
     this.dataEditList = header.getDataEditList();
   }
 
@@ -98,128 +99,185 @@ class Crypt4GHInputStreamInternal extends FilterInputStream {
   /** {@inheritDoc} */
   @Override
   public int read() throws IOException {
-    if (buffer == null || buffer.length == bytesRead) {
-      fillBuffer();
-    }
-    if (buffer == null || buffer.length == 0) {
+    if (bytesRead == bufferLength && fillBuffer() == -1) {
       return -1;
-    } else {
-      return buffer[bytesRead++];
     }
+    return buffer[bytesRead++] & 0xff;
   }
 
-  /** {@inheritDoc} */
+  /**
+   * Reads up to {@code len} bytes of decrypted data into an array. Data is copied from the internal
+   * buffer in bulk, and whenever the internal buffer is empty and the remaining space in the array
+   * can hold a full segment, the next segment is decrypted straight into the array instead.
+   *
+   * @param b the buffer into which the data is read
+   * @param off the start offset in the array at which the data is written
+   * @param len the maximum number of bytes to read
+   * @return the total number of bytes read into the buffer, or -1 if the end of the stream has been
+   *     reached
+   * @throws IOException if something goes wrong while reading from the stream
+   */
   @Override
   public int read(byte[] b, int off, int len) throws IOException {
-    /*
-       Reusing default `InputStream`'s implementation, because `FilterStream`'s implementation doesn't fit
-    */
     Objects.checkFromIndexSize(off, len, b.length);
     if (len == 0) {
       return 0;
     }
-
-    int c = read();
-    if (c == -1) {
-      return -1;
-    }
-    b[off] = (byte) c;
-
-    int i = 1;
-    try {
-      for (; i < len; i++) {
-        c = read();
-        if (c == -1) {
+    int totalBytesRead = 0;
+    while (totalBytesRead < len) {
+      if (bytesRead == bufferLength) {
+        if (len - totalBytesRead >= UNENCRYPTED_DATA_SEGMENT_SIZE) {
+          int decryptedBytes = readSegment(b, off + totalBytesRead);
+          if (decryptedBytes == -1) {
+            break;
+          }
+          // the segment went straight to the caller, so mark the internal buffer as consumed
+          bufferLength = decryptedBytes;
+          bytesRead = decryptedBytes;
+          totalBytesRead += decryptedBytes;
+          continue;
+        }
+        if (fillBuffer() == -1) {
           break;
         }
-        b[off + i] = (byte) c;
       }
-    } catch (IOException ee) {
-      log.error(ee.getMessage(), ee);
+      int bytesToCopy = Math.min(len - totalBytesRead, bufferLength - bytesRead);
+      System.arraycopy(buffer, bytesRead, b, off + totalBytesRead, bytesToCopy);
+      bytesRead += bytesToCopy;
+      totalBytesRead += bytesToCopy;
     }
-    return i;
+    return totalBytesRead == 0 ? -1 : totalBytesRead;
   }
 
-  /** {@inheritDoc} */
+  /**
+   * Skips over and discards n bytes of decrypted data. Whole segments are skipped at the ciphertext
+   * level, so only the segment the new position ends up in is decrypted.
+   *
+   * @param n the number of bytes to be skipped
+   * @return the actual number of bytes skipped (which is less than n only if the end of the stream
+   *     was reached)
+   * @throws IOException if something goes wrong while skipping ahead in the stream
+   */
   @Override
   public long skip(long n) throws IOException {
     if (n <= 0) {
       return 0;
     }
-    if (buffer == null || buffer.length == bytesRead) {
-      fillBuffer();
+    int bytesLeftInBuffer = bufferLength - bytesRead;
+    if (n <= bytesLeftInBuffer) {
+      bytesRead += (int) n;
+      return n;
     }
-    long currentDecryptedPosition =
-        lastDecryptedSegment * UNENCRYPTED_DATA_SEGMENT_SIZE + bytesRead;
-    long newDecryptedPosition = currentDecryptedPosition + n;
-    long newSegmentNumber = newDecryptedPosition / UNENCRYPTED_DATA_SEGMENT_SIZE;
-    if (newSegmentNumber != lastDecryptedSegment) {
-      long segmentsToSkip = newSegmentNumber - lastDecryptedSegment - 1;
-      skipSegments(segmentsToSkip);
-      fillBuffer();
-      currentDecryptedPosition = lastDecryptedSegment * UNENCRYPTED_DATA_SEGMENT_SIZE;
+    long bytesSkipped = bytesLeftInBuffer;
+    bytesRead = bufferLength;
+    long segmentsToSkip = (n - bytesSkipped) / UNENCRYPTED_DATA_SEGMENT_SIZE;
+    if (segmentsToSkip > 0) {
+      bytesSkipped += skipSegments(segmentsToSkip);
     }
-    long delta = newDecryptedPosition - currentDecryptedPosition;
-    if (bytesRead + delta > buffer.length) {
-      long missingBytes = bytesRead + delta - buffer.length;
-      assert bytesRead + delta - missingBytes <= Integer.MAX_VALUE
-          : "Value assigned to int exceeds integer range";
-      bytesRead = (int) (bytesRead + delta - missingBytes);
-      return n - missingBytes;
+    if (bytesSkipped < n && fillBuffer() != -1) {
+      int bytesToSkip = (int) Math.min(n - bytesSkipped, bufferLength);
+      bytesRead = bytesToSkip;
+      bytesSkipped += bytesToSkip;
     }
-    assert bytesRead + delta <= Integer.MAX_VALUE : "Value assigned to int exceeds integer range";
-    bytesRead = (int) (bytesRead + delta);
-    return n;
+    return bytesSkipped;
   }
 
   /**
-   * Skips ahead a number of segments (data blocks) in the stream.
+   * Skips ahead a number of segments (data blocks) in the stream without decrypting them.
    *
    * @param n the number of segments to skip
+   * @return the number of decrypted bytes the skipped segments correspond to
    * @throws IOException if something goes wrong while skipping ahead in the stream
    */
-  @SuppressWarnings("ResultOfMethodCallIgnored")
-  private synchronized void skipSegments(long n) throws IOException {
-    in.skip(n * encryptedSegmentSize);
-    lastDecryptedSegment += n;
+  synchronized long skipSegments(long n) throws IOException {
+    long encryptedBytesToSkip = n * encryptedSegmentSize;
+    long encryptedBytesSkipped = 0;
+    while (encryptedBytesSkipped < encryptedBytesToSkip) {
+      long skipped = in.skip(encryptedBytesToSkip - encryptedBytesSkipped);
+      if (skipped <= 0) {
+        if (in.read() == -1) {
+          break;
+        }
+        skipped = 1;
+      }
+      encryptedBytesSkipped += skipped;
+    }
+    long fullSegments = encryptedBytesSkipped / encryptedSegmentSize;
+    long trailingBytes = encryptedBytesSkipped % encryptedSegmentSize;
+    return fullSegments * UNENCRYPTED_DATA_SEGMENT_SIZE + getDecryptedLength((int) trailingBytes);
+  }
+
+  /**
+   * Returns the number of decrypted bytes an encrypted segment of the given length holds.
+   *
+   * @param encryptedLength the length of the encrypted segment (including nonce and MAC)
+   * @return the number of decrypted bytes in the segment
+   */
+  int getDecryptedLength(int encryptedLength) {
+    int overhead = encryptedSegmentSize - UNENCRYPTED_DATA_SEGMENT_SIZE;
+    return Math.max(encryptedLength - overhead, 0);
+  }
+
+  /**
+   * Returns the size of a full encrypted segment (according to the encryption method used in this
+   * file).
+   *
+   * @return the size of a full encrypted segment
+   */
+  int getEncryptedSegmentSize() {
+    return encryptedSegmentSize;
   }
 
   /**
    * Reads an encrypted segment (data block) from the wrapped input stream, decrypts it and places
    * the data in the internal buffer.
    *
+   * @return the number of decrypted bytes placed in the buffer, or -1 if the end of the stream has
+   *     been reached
    * @throws IOException if something goes wrong while reading from the stream
    */
-  private synchronized void fillBuffer() throws IOException {
+  private synchronized int fillBuffer() throws IOException {
+    int decryptedBytes = readSegment(buffer, 0);
+    bufferLength = Math.max(decryptedBytes, 0);
+    bytesRead = 0;
+    return decryptedBytes;
+  }
+
+  /**
+   * Reads the next encrypted segment (data block) from the wrapped input stream and decrypts it
+   * into the provided array, which must have room for a full segment from the given offset.
+   *
+   * @param output the array to place the decrypted data into
+   * @param outputOffset the position in the array where the decrypted data should start
+   * @return the number of decrypted bytes, or -1 if the end of the stream has been reached
+   * @throws IOException if something goes wrong while reading from the stream
+   */
+  synchronized int readSegment(byte[] output, int outputOffset) throws IOException {
+    int encryptedBytes = in.readNBytes(encryptedSegmentBytes, 0, encryptedSegmentSize);
+    if (encryptedBytes == 0) {
+      return -1;
+    }
     try {
-      byte[] encryptedSegmentBytes = in.readNBytes(encryptedSegmentSize);
-      if (encryptedSegmentBytes.length > 0) {
-        decryptSegment(encryptedSegmentBytes);
-      } else if (buffer != null) {
-        Arrays.fill(buffer, -1);
-      }
-      bytesRead = 0;
+      return decryptSegment(encryptedSegmentBytes, encryptedBytes, output, outputOffset);
     } catch (GeneralSecurityException e) {
       throw new RuntimeException(e);
     }
   }
 
   /**
-   * Decrypts an encrypted segment provided as a byte array. The decrypted data is placed in the
-   * internal buffer and the lastDecryptedSegment counter is incremented.
+   * Decrypts an encrypted segment (data block) with the data keys from the header. This method does
+   * not modify the state of the stream, so it can be called from several threads at the same time.
    *
-   * @param encryptedSegmentBytes an encrypted segment
-   * @throws GeneralSecurityException if the segment could not be decrypted with any of the known
-   *     keys
+   * @param encryptedSegment the array holding the encrypted segment
+   * @param encryptedLength the length of the encrypted segment (including nonce and MAC)
+   * @param output the array to place the decrypted data into
+   * @param outputOffset the position in the array where the decrypted data should start
+   * @return the number of decrypted bytes
+   * @throws GeneralSecurityException if the segment can't be decrypted with any of the data keys
    */
-  private synchronized void decryptSegment(byte[] encryptedSegmentBytes)
+  int decryptSegment(byte[] encryptedSegment, int encryptedLength, byte[] output, int outputOffset)
       throws GeneralSecurityException {
-    Segment segment = Segment.create(encryptedSegmentBytes, dataEncryptionParametersList);
-    byte[] unencryptedData = segment.getUnencryptedData();
-    buffer = new int[unencryptedData.length];
-    for (int i = 0; i < unencryptedData.length; i++) {
-      buffer[i] = unencryptedData[i] & 0xff;
-    }
-    lastDecryptedSegment++;
+    return Segment.decrypt(
+        encryptedSegment, encryptedLength, output, outputOffset, dataEncryptionParametersList);
   }
 }
@@ -9,13 +9,16 @@ import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import javax.crypto.SecretKey;
 import no.elixir.crypt4gh.pojo.body.Segment;
 import no.elixir.crypt4gh.pojo.header.*;
+import no.elixir.crypt4gh.util.CounterNonceGenerator;
 import no.elixir.crypt4gh.util.KeyUtils;
+import no.elixir.crypt4gh.util.NonceGenerator;
+import no.elixir.crypt4gh.util.SegmentIndex;
 
 /** Crypt4GHOutputStream that wraps existing OutputStream. */
 public class Crypt4GHOutputStream extends FilterOutputStream {
@@ -24,6 +27,12 @@ public class Crypt4GHOutputStream extends FilterOutputStream {
   private byte[] buffer = new byte[UNENCRYPTED_DATA_SEGMENT_SIZE];
   private int bytesCached;
   private DataEncryptionParameters dataEncryptionParameters;
+  private byte[] encryptedBuffer;
+  private NonceGenerator nonceGenerator = NonceGenerator.getDefault();
+  private boolean segmentAlignedFlush;
+  private long headerLength;
+  private boolean dataWritten;
+  private SegmentIndex segmentIndex;
 
   /**
    * Constructs the Crypt4GHOutputStream by wrapping an existing OutputStream.
@@ -41,12 +50,16 @@ public class Crypt4GHOutputStream extends FilterOutputStream {
     KeyUtils keyUtils = KeyUtils.getInstance();
     SecretKey dataKey = keyUtils.generateSessionKey();
     this.dataEncryptionParameters = new ChaCha20IETFPoly1305EncryptionParameters(dataKey);
+    this.encryptedBuffer =
+        new byte[dataEncryptionParameters.getDataEncryptionMethod().getEncryptedSegmentSize()];
     HeaderPacket headerPacket =
         new X25519ChaCha20IETFPoly1305HeaderPacket(
             this.dataEncryptionParameters, writerPrivateKey, readerPublicKey);
     List<HeaderPacket> headerPackets = Collections.singletonList(headerPacket);
     this.header = new Header(headerPackets);
-    out.write(header.serialize());
+    byte[] serializedHeader = header.serialize();
+    this.headerLength = serializedHeader.length;
+    out.write(serializedHeader);
   }
 
   /**
@@ -70,6 +83,8 @@ public class Crypt4GHOutputStream extends FilterOutputStream {
     KeyUtils keyUtils = KeyUtils.getInstance();
     SecretKey dataKey = keyUtils.generateSessionKey();
     this.dataEncryptionParameters = new ChaCha20IETFPoly1305EncryptionParameters(dataKey);
+    this.encryptedBuffer =
+        new byte[dataEncryptionParameters.getDataEncryptionMethod().getEncryptedSegmentSize()];
     HeaderPacket dataEncryptionParametersHeaderPacket =
         new X25519ChaCha20IETFPoly1305HeaderPacket(
             this.dataEncryptionParameters, writerPrivateKey, readerPublicKey);
@@ -78,7 +93,9 @@ public class Crypt4GHOutputStream extends FilterOutputStream {
     List<HeaderPacket> headerPackets =
         new ArrayList<>(List.of(dataEncryptionParametersHeaderPacket, dataEditListHeaderPacket));
     this.header = new Header(headerPackets);
-    out.write(header.serialize());
+    byte[] serializedHeader = header.serialize();
+    this.headerLength = serializedHeader.length;
+    out.write(serializedHeader);
   }
 
   /**
@@ -90,6 +107,50 @@ public class Crypt4GHOutputStream extends FilterOutputStream {
     return header;
   }
 
+  /**
+   * Sets the source of nonces for the data segments written after this call. By default, nonces are
+   * drawn from the shared {@link NonceGenerator#getDefault() random generator}. Since every stream
+   * has its own session key, a {@link CounterNonceGenerator} may be used instead to avoid drawing
+   * random bytes for every segment.
+   *
+   * @param nonceGenerator The nonce generator to use for data segments.
+   */
+  public void setNonceGenerator(NonceGenerator nonceGenerator) {
+    this.nonceGenerator = Objects.requireNonNull(nonceGenerator);
+  }
+
+  /**
+   * Sets whether {@link #flush()} writes whole segments only. By default, flushing writes all the
+   * bytes cached so far as a segment of their own, so a stream flushed in the middle of the data
+   * (e.g. by a wrapping BufferedOutputStream or PrintStream) contains short segments that break
+   * readers expecting every segment but the last one to be full, including the ones in this
+   * library. In segment-aligned mode, flushing only writes the cached bytes if they fill a whole
+   * segment, and the last, partial segment is written when the stream is closed.
+   *
+   * @param segmentAlignedFlush Whether flushing should only write whole segments.
+   */
+  public void setSegmentAlignedFlush(boolean segmentAlignedFlush) {
+    this.segmentAlignedFlush = segmentAlignedFlush;
+  }
+
+  /**
+   * Starts building the index of the segments written by this stream, to be stored next to the
+   * file so that readers can find every segment without relying on their sizes (see {@link
+   * SegmentIndex}). The segments are added to the index as they are written, so the index costs no
+   * extra I/O, and it is complete once the stream is closed.
+   *
+   * @param hashed Whether to record a truncated SHA-256 hash of every segment.
+   * @return The index of the segments written by this stream.
+   * @throws IllegalStateException If data was already written to this stream.
+   */
+  public SegmentIndex createSegmentIndex(boolean hashed) {
+    if (dataWritten) {
+      throw new IllegalStateException("The segment index must be created before writing data");
+    }
+    segmentIndex = new SegmentIndex(headerLength, hashed);
+    return segmentIndex;
+  }
+
   /**
    * Writes a byte to an internal buffer and flushes this buffer when it get's full.
    *
@@ -98,6 +159,7 @@ public class Crypt4GHOutputStream extends FilterOutputStream {
    */
   @Override
   public void write(int b) throws IOException {
+    dataWritten = true;
     if (bytesCached == buffer.length) {
       try {
         flushBuffer();
@@ -108,32 +170,164 @@ public class Crypt4GHOutputStream extends FilterOutputStream {
     buffer[bytesCached++] = (byte) b; // it's actually always `byte`, not `int`
   }
 
+  /**
+   * Writes a range of bytes. The bytes are copied into the internal buffer in bulk, and whenever
+   * the buffer is empty and more than a full segment is left to write, the segment is encrypted
+   * straight from the supplied array.
+   *
+   * @param b The data.
+   * @param off The start offset in the data.
+   * @param len The number of bytes to write.
+   * @throws IOException In case the bytes can't be written or the buffer can't be flushed.
+   */
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    Objects.checkFromIndexSize(off, len, b.length);
+    dataWritten |= len > 0;
+    try {
+      while (len > 0) {
+        if (bytesCached == buffer.length) {
+          flushBuffer();
+        }
+        if (bytesCached == 0 && len > buffer.length) {
+          writeSegment(b, off, buffer.length);
+          off += buffer.length;
+          len -= buffer.length;
+          continue;
+        }
+        int bytesToCache = Math.min(len, buffer.length - bytesCached);
+        System.arraycopy(b, off, buffer, bytesCached, bytesToCache);
+        bytesCached += bytesToCache;
+        off += bytesToCache;
+        len -= bytesToCache;
+      }
+    } catch (GeneralSecurityException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   /**
    * Writes the bytes cached in the internal buffer to the underlying output stream. Flushing
-   * creates a new segment encrypted with .
+   * creates a new segment encrypted with the data encryption key. Nothing is written if the buffer
+   * is empty, so flushing twice in a row (e.g. by a wrapping stream right before closing) doesn't
+   * put an empty segment in the middle of the data.
    *
    * @throws IOException In case the bytes in the buffer can't be written to the output stream.
    * @throws GeneralSecurityException In case the encryption fails.
    */
   protected void flushBuffer() throws IOException, GeneralSecurityException {
-    Segment segment =
-        Segment.create(Arrays.copyOfRange(buffer, 0, bytesCached), dataEncryptionParameters);
-    out.write(segment.serialize());
+    if (bytesCached == 0) {
+      return;
+    }
+    writeSegment(buffer, 0, bytesCached);
     bytesCached = 0;
   }
 
   /**
-   * Flushes the internal buffer before flushing the underlying stream.
+   * Writes the bytes cached in the internal buffer for {@link #flush()}: all of them by default,
+   * or only a whole segment in segment-aligned mode.
+   *
+   * @throws IOException In case the bytes in the buffer can't be written to the output stream.
+   * @throws GeneralSecurityException In case the encryption fails.
+   */
+  protected void flushSegments() throws IOException, GeneralSecurityException {
+    if (!segmentAlignedFlush || bytesCached == buffer.length) {
+      flushBuffer();
+    }
+  }
+
+  /**
+   * Encrypts a block of data into the reusable segment buffer (nonce, encrypted data and MAC) and
+   * writes the serialized segment to the underlying output stream with a single call. Subclasses
+   * may override this to change how (or when) segments are written, as long as segments end up in
+   * the underlying stream in the order this method is called.
+   *
+   * @param data An array containing the unencrypted data. The array may be reused by the caller as
+   *     soon as this method returns.
+   * @param offset The position of the data in the array.
+   * @param length The number of bytes to encrypt (at most one segment).
+   * @throws IOException In case the segment can't be written to the output stream.
+   * @throws GeneralSecurityException In case the encryption fails.
+   */
+  protected void writeSegment(byte[] data, int offset, int length)
+      throws IOException, GeneralSecurityException {
+    int encryptedLength = encryptSegment(data, offset, length, encryptedBuffer);
+    writeEncryptedSegment(encryptedBuffer, encryptedLength);
+  }
+
+  /**
+   * Writes an encrypted segment to the underlying output stream, adding it to the segment index if
+   * one is being built. Every segment must go through this method, in the order of the data.
+   *
+   * @param encryptedSegment An array containing the serialized segment, starting at index 0.
+   * @param length The length of the serialized segment.
+   * @throws IOException In case the segment can't be written to the output stream.
+   * @throws GeneralSecurityException In case the segment can't be hashed for the index.
+   */
+  protected void writeEncryptedSegment(byte[] encryptedSegment, int length)
+      throws IOException, GeneralSecurityException {
+    if (segmentIndex != null) {
+      segmentIndex.addSegment(encryptedSegment, 0, length);
+    }
+    out.write(encryptedSegment, 0, length);
+  }
+
+  /**
+   * Encrypts a block of data with the data encryption key of this stream and places the serialized
+   * segment in the output array. This method does not modify the state of the stream, so it can be
+   * called from several threads at the same time.
+   *
+   * @param data An array containing the unencrypted data.
+   * @param offset The position of the data in the array.
+   * @param length The number of bytes to encrypt (at most one segment).
+   * @param output An array with room for a full encrypted segment.
+   * @return The number of bytes placed in the output array.
+   * @throws GeneralSecurityException In case the encryption fails.
+   */
+  protected int encryptSegment(byte[] data, int offset, int length, byte[] output)
+      throws GeneralSecurityException {
+    return Segment.encrypt(
+        data, offset, length, output, 0, dataEncryptionParameters, nonceGenerator);
+  }
+
+  /**
+   * Returns the size of a full encrypted segment (including nonce and MAC) for the data encryption
+   * method used by this stream.
+   *
+   * @return The size of a full encrypted segment.
+   */
+  protected int getEncryptedSegmentSize() {
+    return encryptedBuffer.length;
+  }
+
+  /**
+   * Flushes the internal buffer (only if it holds a whole segment, in segment-aligned mode) before
+   * flushing the underlying stream.
    *
    * @throws IOException In case if the buffer or underlying stream can't be flushed.
    */
   @Override
   public void flush() throws IOException {
     try {
-      flushBuffer();
+      flushSegments();
     } catch (GeneralSecurityException e) {
       throw new RuntimeException(e);
     }
     super.flush();
   }
+
+  /**
+   * Writes the last segment (which may be partial) and closes the underlying stream.
+   *
+   * @throws IOException In case the last segment can't be written or the stream can't be closed.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      flushBuffer();
+    } catch (GeneralSecurityException e) {
+      throw new RuntimeException(e);
+    }
+    super.close();
+  }
 }
@@ -0,0 +1,439 @@
+package no.elixir.crypt4gh.stream;
+
+import static no.elixir.crypt4gh.pojo.body.Segment.UNENCRYPTED_DATA_SEGMENT_SIZE;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
+import no.elixir.crypt4gh.pojo.body.Segment;
+import no.elixir.crypt4gh.pojo.header.DataEncryptionParameters;
+import no.elixir.crypt4gh.pojo.header.Header;
+import no.elixir.crypt4gh.util.SegmentIndex;
+
+/**
+ * Thread-safe reader for positional reads from a Crypt4GH file. The header is parsed once, and any
+ * number of threads can then read decrypted data at arbitrary positions with {@link #readAt(long,
+ * ByteBuffer)}. Decrypted segments are kept in a cache shared by all threads and bounded by a byte
+ * budget, evicting the least recently used segments first, so hot segments are only decrypted once.
+ * If several threads miss the same segment at the same time, it is still decrypted only once.
+ *
+ * <p>Positions refer to the decrypted data before any Data Edit List is applied.
+ *
+ * <p>Without a {@link SegmentIndex}, the segment holding a position is found by assuming that all
+ * segments but the last one are full. With an index, the position and length of every segment are
+ * taken from the index, so files with short segments in the middle of the data can be read too.
+ */
+public class Crypt4GHReader implements Closeable {
+
+  /** The default number of bytes of decrypted data to keep in the cache */
+  public static final long DEFAULT_CACHE_SIZE = 512L * UNENCRYPTED_DATA_SEGMENT_SIZE;
+
+  /** The channel to read the Crypt4GH file from */
+  private final FileChannel channel;
+
+  /** The header read from the channel */
+  private final Header header;
+
+  /** The Data Encryption Parameters read from the header */
+  private final Collection<DataEncryptionParameters> dataEncryptionParametersList;
+
+  /** The position in the file where the first encrypted segment starts */
+  private final long dataStart;
+
+  /** The size of each encrypted segment (according to the encryption method used in this file) */
+  private final int encryptedSegmentSize;
+
+  /** The index of the segments of the file, or null to compute their positions from their size */
+  private final SegmentIndex index;
+
+  /** The maximum number of bytes of decrypted data to keep in the cache */
+  private final long cacheSize;
+
+  /** Decrypted segments by segment index, in access order (least recently used first) */
+  private final Map<Long, FutureTask<byte[]>> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+  /** The number of bytes of decrypted data held in the cache */
+  private long cachedBytes;
+
+  private final LongAdder cacheHits = new LongAdder();
+  private final LongAdder cacheMisses = new LongAdder();
+
+  /**
+   * Constructs the Crypt4GHReader by reading the header from the start of the file, using the
+   * {@link #DEFAULT_CACHE_SIZE default cache size}.
+   *
+   * @param channel Channel to read the Crypt4GH file from. It is closed when the reader is closed.
+   * @param readerPrivateKey Recipient's private key.
+   * @throws IOException In case the Crypt4GH header can't be read from the channel.
+   * @throws GeneralSecurityException In case the Crypt4GH header can't be deserialized.
+   */
+  public Crypt4GHReader(FileChannel channel, PrivateKey readerPrivateKey)
+      throws IOException, GeneralSecurityException {
+    this(channel, readerPrivateKey, DEFAULT_CACHE_SIZE);
+  }
+
+  /**
+   * Constructs the Crypt4GHReader by reading the header from the start of the file.
+   *
+   * @param channel Channel to read the Crypt4GH file from. It is closed when the reader is closed.
+   * @param readerPrivateKey Recipient's private key.
+   * @param cacheSize Maximum number of bytes of decrypted data to keep in the cache. The most
+   *     recently used segment is always kept.
+   * @throws IOException In case the Crypt4GH header can't be read from the channel.
+   * @throws GeneralSecurityException In case the Crypt4GH header can't be deserialized.
+   */
+  public Crypt4GHReader(FileChannel channel, PrivateKey readerPrivateKey, long cacheSize)
+      throws IOException, GeneralSecurityException {
+    this(channel, readerPrivateKey, cacheSize, null);
+  }
+
+  /**
+   * Constructs the Crypt4GHReader by reading the header from the start of the file, finding the
+   * segments with a segment index.
+   *
+   * @param channel Channel to read the Crypt4GH file from. It is closed when the reader is closed.
+   * @param readerPrivateKey Recipient's private key.
+   * @param cacheSize Maximum number of bytes of decrypted data to keep in the cache. The most
+   *     recently used segment is always kept.
+   * @param segmentIndex Index of the segments of the file, or null to compute the positions of the
+   *     segments from their size.
+   * @throws IOException In case the Crypt4GH header can't be read from the channel, or the index
+   *     doesn't match the header or the size of the file.
+   * @throws GeneralSecurityException In case the Crypt4GH header can't be deserialized.
+   */
+  public Crypt4GHReader(
+      FileChannel channel, PrivateKey readerPrivateKey, long cacheSize, SegmentIndex segmentIndex)
+      throws IOException, GeneralSecurityException {
+    if (cacheSize < 0) {
+      throw new IllegalArgumentException("Cache size can't be negative: " + cacheSize);
+    }
+    this.channel = channel;
+    this.cacheSize = cacheSize;
+    channel.position(0);
+    // reads exactly the bytes of the header, so the channel ends up at the first segment
+    this.header = new Header(Channels.newInputStream(channel), readerPrivateKey);
+    this.dataStart = channel.position();
+    if (segmentIndex != null
+        && (segmentIndex.getHeaderLength() != dataStart
+            || segmentIndex.getFileSize() != channel.size())) {
+      throw new IOException("The segment index doesn't match the file");
+    }
+    this.index = segmentIndex;
+    this.dataEncryptionParametersList = header.getDataEncryptionParametersList();
+    DataEncryptionParameters firstDataEncryptionParameters =
+        dataEncryptionParametersList.iterator().next();
+    for (DataEncryptionParameters encryptionParameters : dataEncryptionParametersList) {
+      if (firstDataEncryptionParameters.getDataEncryptionMethod()
+          != encryptionParameters.getDataEncryptionMethod()) {
+        throw new GeneralSecurityException("Different Data Encryption Methods are not supported");
+      }
+    }
+    this.encryptedSegmentSize =
+        firstDataEncryptionParameters.getDataEncryptionMethod().getEncryptedSegmentSize();
+  }
+
+  /**
+   * Gets header.
+   *
+   * @return Crypt4GH full header.
+   */
+  public Header getHeader() {
+    return header;
+  }
+
+  /**
+   * Reads decrypted data starting at the given position, decrypting only the segments the read
+   * touches that are not already cached. This method can be called from several threads at the same
+   * time.
+   *
+   * @param position The position in the decrypted data to read from.
+   * @param dst The buffer into which the data is to be transferred.
+   * @return The number of bytes read, or -1 if the position is at (or past) the end of the data.
+   * @throws IOException In case the data can't be read from the underlying channel.
+   */
+  public int readAt(long position, ByteBuffer dst) throws IOException {
+    if (position < 0) {
+      throw new IllegalArgumentException("Position can't be negative: " + position);
+    }
+    long size = size();
+    if (position >= size) {
+      return -1;
+    }
+    int totalBytesRead = 0;
+    while (dst.hasRemaining() && position < size) {
+      long segmentIndex;
+      int segmentOffset;
+      if (index == null) {
+        segmentIndex = position / UNENCRYPTED_DATA_SEGMENT_SIZE;
+        segmentOffset = (int) (position % UNENCRYPTED_DATA_SEGMENT_SIZE);
+      } else {
+        segmentIndex = index.findSegment(position);
+        segmentOffset = (int) (position - index.getPlaintextPosition((int) segmentIndex));
+      }
+      byte[] segment = getSegment(segmentIndex);
+      int bytesToCopy = Math.min(dst.remaining(), segment.length - segmentOffset);
+      if (bytesToCopy <= 0) {
+        break;
+      }
+      dst.put(segment, segmentOffset, bytesToCopy);
+      position += bytesToCopy;
+      totalBytesRead += bytesToCopy;
+    }
+    return totalBytesRead;
+  }
+
+  /**
+   * Returns the size of the decrypted data, computed from the size of the file (or taken from the
+   * segment index, if any).
+   *
+   * @return The size of the decrypted data.
+   * @throws IOException In case the size of the underlying channel can't be read.
+   */
+  public long size() throws IOException {
+    if (index != null) {
+      return index.getPlaintextSize();
+    }
+    long encryptedSize = Math.max(channel.size() - dataStart, 0);
+    long fullSegments = encryptedSize / encryptedSegmentSize;
+    long trailingBytes = encryptedSize % encryptedSegmentSize;
+    long overhead = encryptedSegmentSize - UNENCRYPTED_DATA_SEGMENT_SIZE;
+    return fullSegments * UNENCRYPTED_DATA_SEGMENT_SIZE + Math.max(trailingBytes - overhead, 0);
+  }
+
+  /**
+   * Opens a stream yielding exactly the decrypted data in the range {@code [start, end)} of a
+   * Crypt4GH file. Only the segments covering the range are read and decrypted, so the work is
+   * proportional to the size of the range and not to its offset. The stream reads from the channel
+   * with positional reads, and closes the channel when it is closed.
+   *
+   * @param channel Channel to read the Crypt4GH file from.
+   * @param readerPrivateKey Recipient's private key.
+   * @param start The position in the decrypted data where the range starts (inclusive).
+   * @param end The position in the decrypted data where the range ends (exclusive). If the data
+   *     ends before this position, the stream ends with the data.
+   * @return A stream of the decrypted data in the range.
+   * @throws IOException In case the Crypt4GH header can't be read from the channel.
+   * @throws GeneralSecurityException In case the Crypt4GH header can't be deserialized.
+   */
+  public static InputStream openRange(
+      FileChannel channel, PrivateKey readerPrivateKey, long start, long end)
+      throws IOException, GeneralSecurityException {
+    // one cached segment is enough for a single sequential reader
+    Crypt4GHReader reader =
+        new Crypt4GHReader(channel, readerPrivateKey, UNENCRYPTED_DATA_SEGMENT_SIZE);
+    return reader.new RangeInputStream(start, end, true);
+  }
+
+  /**
+   * Opens a stream yielding exactly the decrypted data in the range {@code [start, end)}, sharing
+   * the cache of this reader. The reader is not closed when the stream is closed.
+   *
+   * @param start The position in the decrypted data where the range starts (inclusive).
+   * @param end The position in the decrypted data where the range ends (exclusive). If the data
+   *     ends before this position, the stream ends with the data.
+   * @return A stream of the decrypted data in the range.
+   */
+  public InputStream openRange(long start, long end) {
+    return new RangeInputStream(start, end, false);
+  }
+
+  /**
+   * Returns the number of segment lookups that were served from the cache.
+   *
+   * @return The number of cache hits.
+   */
+  public long getCacheHits() {
+    return cacheHits.sum();
+  }
+
+  /**
+   * Returns the number of segment lookups that required the segment to be decrypted.
+   *
+   * @return The number of cache misses.
+   */
+  public long getCacheMisses() {
+    return cacheMisses.sum();
+  }
+
+  /**
+   * Tells whether the underlying channel is open.
+   *
+   * @return true if the reader is open.
+   */
+  public boolean isOpen() {
+    return channel.isOpen();
+  }
+
+  /**
+   * Clears the cache and closes the underlying channel.
+   *
+   * @throws IOException In case the underlying channel can't be closed.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (cache) {
+      cache.clear();
+      cachedBytes = 0;
+    }
+    channel.close();
+  }
+
+  /**
+   * Returns a decrypted segment from the cache, decrypting it first in case of a cache miss.
+   *
+   * @param segmentIndex The index of the segment.
+   * @return The decrypted segment.
+   * @throws IOException In case the segment can't be read from the underlying channel.
+   */
+  private byte[] getSegment(long segmentIndex) throws IOException {
+    FutureTask<byte[]> segment;
+    boolean decrypt = false;
+    synchronized (cache) {
+      segment = cache.get(segmentIndex);
+      if (segment == null) {
+        segment = new FutureTask<>(() -> decryptSegment(segmentIndex));
+        cache.put(segmentIndex, segment);
+        cachedBytes += UNENCRYPTED_DATA_SEGMENT_SIZE;
+        evict();
+        decrypt = true;
+      }
+    }
+    if (decrypt) {
+      cacheMisses.increment();
+      segment.run();
+    } else {
+      cacheHits.increment();
+    }
+    try {
+      return segment.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for a segment to be decrypted", e);
+    } catch (ExecutionException e) {
+      synchronized (cache) {
+        if (cache.remove(segmentIndex, segment)) {
+          cachedBytes -= UNENCRYPTED_DATA_SEGMENT_SIZE;
+        }
+      }
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /** Removes the least recently used segments until the cache fits in its byte budget. */
+  private void evict() {
+    Iterator<FutureTask<byte[]>> iterator = cache.values().iterator();
+    while (cachedBytes > cacheSize && cache.size() > 1) {
+      iterator.next();
+      iterator.remove();
+      cachedBytes -= UNENCRYPTED_DATA_SEGMENT_SIZE;
+    }
+  }
+
+  /**
+   * Reads an encrypted segment from the underlying channel and decrypts it.
+   *
+   * @param segmentIndex The index of the segment.
+   * @return The decrypted segment, sized to the decrypted data.
+   * @throws IOException In case the segment can't be read from the underlying channel.
+   * @throws GeneralSecurityException In case the segment can't be decrypted.
+   */
+  private byte[] decryptSegment(long segmentIndex) throws IOException, GeneralSecurityException {
+    ByteBuffer encryptedSegment;
+    long segmentStart;
+    if (index == null) {
+      encryptedSegment = ByteBuffer.allocate(encryptedSegmentSize);
+      segmentStart = dataStart + segmentIndex * encryptedSegmentSize;
+    } else {
+      encryptedSegment = ByteBuffer.allocate(index.getEncryptedSegmentLength((int) segmentIndex));
+      segmentStart = index.getSegmentPosition((int) segmentIndex);
+    }
+    while (encryptedSegment.hasRemaining()) {
+      int bytesRead = channel.read(encryptedSegment, segmentStart + encryptedSegment.position());
+      if (bytesRead == -1) {
+        break;
+      }
+    }
+    byte[] decryptedSegment = new byte[UNENCRYPTED_DATA_SEGMENT_SIZE];
+    int decryptedLength =
+        Segment.decrypt(
+            encryptedSegment.array(),
+            encryptedSegment.position(),
+            decryptedSegment,
+            0,
+            dataEncryptionParametersList);
+    return decryptedLength == decryptedSegment.length
+        ? decryptedSegment
+        : Arrays.copyOf(decryptedSegment, decryptedLength);
+  }
+
+  /** A stream over a range of the decrypted data, reading from this reader. */
+  private class RangeInputStream extends InputStream {
+
+    private final byte[] singleByte = new byte[1];
+    private final long end;
+    private final boolean closeReader;
+    private long position;
+
+    RangeInputStream(long start, long end, boolean closeReader) {
+      if (start < 0 || end < start) {
+        throw new IllegalArgumentException("Invalid range: [" + start + ", " + end + ")");
+      }
+      this.position = start;
+      this.end = end;
+      this.closeReader = closeReader;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return read(singleByte, 0, 1) == -1 ? -1 : singleByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      Objects.checkFromIndexSize(off, len, b.length);
+      if (len == 0) {
+        return 0;
+      }
+      if (position >= end) {
+        return -1;
+      }
+      int bytesRead =
+          readAt(position, ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)));
+      if (bytesRead > 0) {
+        position += bytesRead;
+      }
+      return bytesRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long bytesToSkip = Math.max(Math.min(n, Math.min(end, size()) - position), 0);
+      position += bytesToSkip;
+      return bytesToSkip;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closeReader) {
+        Crypt4GHReader.this.close();
+      }
+    }
+  }
+}
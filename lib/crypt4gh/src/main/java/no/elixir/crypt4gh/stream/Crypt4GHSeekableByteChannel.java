@@ -0,0 +1,208 @@
+package no.elixir.crypt4gh.stream;
+
+import static no.elixir.crypt4gh.pojo.body.Segment.UNENCRYPTED_DATA_SEGMENT_SIZE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import no.elixir.crypt4gh.pojo.header.Header;
+import no.elixir.crypt4gh.util.SegmentIndex;
+
+/**
+ * Read-only SeekableByteChannel over a Crypt4GH file, exposing the decrypted data. The position in
+ * the decrypted data is mapped directly to the encrypted segment holding it, so seeking (forwards
+ * or backwards) is free and a read only decrypts the segments it touches. Reads go through a {@link
+ * Crypt4GHReader}, which may be shared by several channels (each with its own position) to share
+ * its cache of decrypted segments.
+ *
+ * <p>Data Edit Lists are not supported, since they don't map to a seekable position.
+ */
+public class Crypt4GHSeekableByteChannel implements SeekableByteChannel {
+
+  /** The reader decrypting the segments */
+  private final Crypt4GHReader reader;
+
+  /** Whether the reader should be closed together with this channel */
+  private final boolean closeReader;
+
+  /** Whether this channel is open */
+  private boolean open = true;
+
+  /** The position in the decrypted data */
+  private long position;
+
+  /**
+   * Constructs the Crypt4GHSeekableByteChannel by reading the header from the start of the file.
+   * The most recently decrypted segment is kept, so small sequential reads decrypt every segment
+   * only once.
+   *
+   * @param channel Channel to read the Crypt4GH file from. It is closed when this channel is
+   *     closed.
+   * @param readerPrivateKey Recipient's private key.
+   * @throws IOException In case the Crypt4GH header can't be read from the channel, or it contains
+   *     a Data Edit List.
+   * @throws GeneralSecurityException In case the Crypt4GH header can't be deserialized.
+   */
+  public Crypt4GHSeekableByteChannel(FileChannel channel, PrivateKey readerPrivateKey)
+      throws IOException, GeneralSecurityException {
+    this(new Crypt4GHReader(channel, readerPrivateKey, UNENCRYPTED_DATA_SEGMENT_SIZE), true);
+  }
+
+  /**
+   * Constructs the Crypt4GHSeekableByteChannel by reading the header from the start of the file,
+   * finding the segments with a segment index, so that files with short segments in the middle of
+   * the data can be read too.
+   *
+   * @param channel Channel to read the Crypt4GH file from. It is closed when this channel is
+   *     closed.
+   * @param readerPrivateKey Recipient's private key.
+   * @param segmentIndex Index of the segments of the file.
+   * @throws IOException In case the Crypt4GH header can't be read from the channel, it contains a
+   *     Data Edit List, or the index doesn't match the header or the size of the file.
+   * @throws GeneralSecurityException In case the Crypt4GH header can't be deserialized.
+   */
+  public Crypt4GHSeekableByteChannel(
+      FileChannel channel, PrivateKey readerPrivateKey, SegmentIndex segmentIndex)
+      throws IOException, GeneralSecurityException {
+    this(
+        new Crypt4GHReader(
+            channel, readerPrivateKey, UNENCRYPTED_DATA_SEGMENT_SIZE, segmentIndex),
+        true);
+  }
+
+  /**
+   * Constructs the Crypt4GHSeekableByteChannel on top of an existing reader, starting at position
+   * 0. The reader is not closed when this channel is closed.
+   *
+   * @param reader Reader to decrypt the segments with.
+   * @throws IOException In case the header of the reader contains a Data Edit List.
+   */
+  public Crypt4GHSeekableByteChannel(Crypt4GHReader reader) throws IOException {
+    this(reader, false);
+  }
+
+  private Crypt4GHSeekableByteChannel(Crypt4GHReader reader, boolean closeReader)
+      throws IOException {
+    if (reader.getHeader().getDataEditList().isPresent()) {
+      if (closeReader) {
+        reader.close();
+      }
+      throw new IOException("Data Edit Lists are not supported by seekable channels");
+    }
+    this.reader = reader;
+    this.closeReader = closeReader;
+  }
+
+  /**
+   * Gets header.
+   *
+   * @return Crypt4GH full header.
+   */
+  public Header getHeader() {
+    return reader.getHeader();
+  }
+
+  /**
+   * Reads decrypted data from the current position, decrypting only the segments the read touches.
+   *
+   * @param dst The buffer into which the data is to be transferred.
+   * @return The number of bytes read, or -1 if the position is at (or past) the end of the data.
+   * @throws IOException In case the data can't be read from the underlying channel.
+   */
+  @Override
+  public synchronized int read(ByteBuffer dst) throws IOException {
+    ensureOpen();
+    int bytesRead = reader.readAt(position, dst);
+    if (bytesRead > 0) {
+      position += bytesRead;
+    }
+    return bytesRead;
+  }
+
+  /**
+   * Not supported, the channel is read-only.
+   *
+   * @throws NonWritableChannelException Always.
+   */
+  @Override
+  public int write(ByteBuffer src) {
+    throw new NonWritableChannelException();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public synchronized long position() throws IOException {
+    ensureOpen();
+    return position;
+  }
+
+  /**
+   * Sets the position in the decrypted data. Setting the position past the end of the data is
+   * allowed, subsequent reads will then signal the end of the data.
+   *
+   * @param newPosition The new position in the decrypted data.
+   * @return This channel.
+   * @throws IOException In case the channel is closed.
+   */
+  @Override
+  public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+    ensureOpen();
+    if (newPosition < 0) {
+      throw new IllegalArgumentException("Position can't be negative: " + newPosition);
+    }
+    position = newPosition;
+    return this;
+  }
+
+  /**
+   * Returns the size of the decrypted data, computed from the size of the file.
+   *
+   * @return The size of the decrypted data.
+   * @throws IOException In case the size of the underlying channel can't be read.
+   */
+  @Override
+  public long size() throws IOException {
+    ensureOpen();
+    return reader.size();
+  }
+
+  /**
+   * Not supported, the channel is read-only.
+   *
+   * @throws NonWritableChannelException Always.
+   */
+  @Override
+  public SeekableByteChannel truncate(long size) {
+    throw new NonWritableChannelException();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public synchronized boolean isOpen() {
+    return open && reader.isOpen();
+  }
+
+  /**
+   * Closes this channel, and the reader if it was created by this channel.
+   *
+   * @throws IOException In case the reader can't be closed.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    open = false;
+    if (closeReader) {
+      reader.close();
+    }
+  }
+
+  private void ensureOpen() throws ClosedChannelException {
+    if (!isOpen()) {
+      throw new ClosedChannelException();
+    }
+  }
+}
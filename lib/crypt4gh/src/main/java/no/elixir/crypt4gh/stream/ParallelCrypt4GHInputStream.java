@@ -0,0 +1,79 @@
+package no.elixir.crypt4gh.stream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import no.elixir.crypt4gh.pojo.header.DataEditList;
+
+/**
+ * Crypt4GHInputStream that decrypts segments in parallel. Encrypted segments are read ahead of the
+ * consumer and handed over to an executor, so reading from the wrapped InputStream overlaps with
+ * decryption. Decrypted segments are served in their original order from a bounded set of reused
+ * buffers. Skipping and Data Edit Lists behave exactly as in {@link Crypt4GHInputStream}.
+ *
+ * <p>The executor is not shut down when the stream is closed.
+ */
+public class ParallelCrypt4GHInputStream extends Crypt4GHInputStream {
+
+  /**
+   * Constructs ParallelCrypt4GHInputStream that wraps existing InputStream. Segments are decrypted
+   * in the common ForkJoinPool, reading up to two segments ahead per thread.
+   *
+   * @param in Existing InputStream.
+   * @param readerPrivateKey Recipient's private key.
+   * @throws IOException In case the Crypt4GH header can't be read from the underlying InputStream.
+   * @throws GeneralSecurityException In case the Crypt4GH header can't be deserialized.
+   */
+  public ParallelCrypt4GHInputStream(InputStream in, PrivateKey readerPrivateKey)
+      throws IOException, GeneralSecurityException {
+    this(
+        in,
+        readerPrivateKey,
+        ForkJoinPool.commonPool(),
+        2 * ForkJoinPool.getCommonPoolParallelism());
+  }
+
+  /**
+   * Constructs ParallelCrypt4GHInputStream that wraps existing InputStream.
+   *
+   * @param in Existing InputStream.
+   * @param readerPrivateKey Recipient's private key.
+   * @param executor Executor to decrypt the segments in (e.g. a ForkJoinPool).
+   * @param segmentsAhead Maximum number of segments to read ahead. Each segment read ahead takes up
+   *     about 128 KB of memory.
+   * @throws IOException In case the Crypt4GH header can't be read from the underlying InputStream.
+   * @throws GeneralSecurityException In case the Crypt4GH header can't be deserialized.
+   */
+  public ParallelCrypt4GHInputStream(
+      InputStream in, PrivateKey readerPrivateKey, ExecutorService executor, int segmentsAhead)
+      throws IOException, GeneralSecurityException {
+    super(new ParallelCrypt4GHInputStreamInternal(in, readerPrivateKey, executor, segmentsAhead));
+  }
+
+  /**
+   * Constructs ParallelCrypt4GHInputStream that wraps existing InputStream with DataEditList.
+   *
+   * @param in Existing InputStream.
+   * @param dataEditList DataEditList
+   * @param readerPrivateKey Recipient's private key.
+   * @param executor Executor to decrypt the segments in (e.g. a ForkJoinPool).
+   * @param segmentsAhead Maximum number of segments to read ahead. Each segment read ahead takes up
+   *     about 128 KB of memory.
+   * @throws IOException In case the Crypt4GH header can't be read from the underlying InputStream.
+   * @throws GeneralSecurityException In case the Crypt4GH header can't be deserialized.
+   */
+  public ParallelCrypt4GHInputStream(
+      InputStream in,
+      DataEditList dataEditList,
+      PrivateKey readerPrivateKey,
+      ExecutorService executor,
+      int segmentsAhead)
+      throws IOException, GeneralSecurityException {
+    super(
+        new ParallelCrypt4GHInputStreamInternal(in, readerPrivateKey, executor, segmentsAhead),
+        dataEditList);
+  }
+}
@@ -0,0 +1,183 @@
+package no.elixir.crypt4gh.stream;
+
+import static no.elixir.crypt4gh.pojo.body.Segment.UNENCRYPTED_DATA_SEGMENT_SIZE;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Internal part of ParallelCrypt4GHInputStream that reads encrypted segments ahead of the consumer
+ * and decrypts them on an executor. Not a public API.
+ */
+class ParallelCrypt4GHInputStreamInternal extends Crypt4GHInputStreamInternal {
+
+  /** The executor decrypting the segments */
+  private final ExecutorService executor;
+
+  /** The maximum number of segments read ahead of the consumer */
+  private final int segmentsAhead;
+
+  /** Segments handed over to the executor, in the order they were read from the stream */
+  private final Deque<PrefetchedSegment> pendingSegments = new ArrayDeque<>();
+
+  /** Segments that have been consumed and whose buffers can be reused */
+  private final Deque<PrefetchedSegment> freeSegments = new ArrayDeque<>();
+
+  /** Whether the end of the wrapped stream has been reached */
+  private boolean endOfStream;
+
+  /**
+   * Constructs the internal part of ParallelCrypt4GHInputStream that wraps existing InputStream.
+   * Not a public API.
+   *
+   * @param in the stream to read the Crypt4GH file from
+   * @param readerPrivateKey the private key of the intended recipient
+   * @param executor the executor to decrypt the segments in
+   * @param segmentsAhead the maximum number of segments to read ahead of the consumer
+   * @throws IOException if something goes wrong while reading from the stream
+   * @throws GeneralSecurityException if the header contains several Data Encryption Parameters
+   *     specifying different encryption methods
+   */
+  ParallelCrypt4GHInputStreamInternal(
+      InputStream in, PrivateKey readerPrivateKey, ExecutorService executor, int segmentsAhead)
+      throws IOException, GeneralSecurityException {
+    super(in, readerPrivateKey);
+    if (segmentsAhead < 1) {
+      throw new IllegalArgumentException("At least one segment must be read ahead");
+    }
+    this.executor = executor;
+    this.segmentsAhead = segmentsAhead;
+  }
+
+  /**
+   * Hands over the next segment read ahead to the consumer, waiting for its decryption to finish if
+   * needed, and tops up the segments read ahead.
+   *
+   * @param output the array to place the decrypted data into
+   * @param outputOffset the position in the array where the decrypted data should start
+   * @return the number of decrypted bytes, or -1 if the end of the stream has been reached
+   * @throws IOException if something goes wrong while reading from the stream
+   */
+  @Override
+  synchronized int readSegment(byte[] output, int outputOffset) throws IOException {
+    readAhead();
+    PrefetchedSegment segment = pendingSegments.poll();
+    if (segment == null) {
+      return -1;
+    }
+    int decryptedLength;
+    try {
+      decryptedLength = segment.decryptedLength.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for a segment to be decrypted", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof GeneralSecurityException) {
+        throw new RuntimeException(e.getCause());
+      }
+      throw new IOException(e.getCause());
+    }
+    System.arraycopy(segment.decryptedData, 0, output, outputOffset, decryptedLength);
+    freeSegments.add(segment);
+    readAhead();
+    return decryptedLength;
+  }
+
+  /**
+   * Skips ahead a number of segments. Segments already read ahead are discarded first, the rest are
+   * skipped in the wrapped stream without being read.
+   *
+   * @param n the number of segments to skip
+   * @return the number of decrypted bytes the skipped segments correspond to
+   * @throws IOException if something goes wrong while skipping ahead in the stream
+   */
+  @Override
+  synchronized long skipSegments(long n) throws IOException {
+    long bytesSkipped = 0;
+    while (n > 0 && !pendingSegments.isEmpty()) {
+      PrefetchedSegment segment = pendingSegments.poll();
+      // the executor may still be writing to the buffers, so they are not reused
+      segment.decryptedLength.cancel(false);
+      bytesSkipped += getDecryptedLength(segment.encryptedLength);
+      n--;
+    }
+    if (n > 0 && !endOfStream) {
+      bytesSkipped += super.skipSegments(n);
+    }
+    return bytesSkipped;
+  }
+
+  /**
+   * Cancels the segments read ahead and closes the wrapped stream.
+   *
+   * @throws IOException if the wrapped stream can't be closed
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    for (PrefetchedSegment segment : pendingSegments) {
+      segment.decryptedLength.cancel(false);
+    }
+    pendingSegments.clear();
+    freeSegments.clear();
+    endOfStream = true;
+    super.close();
+  }
+
+  /**
+   * Reads encrypted segments from the wrapped stream and hands them over to the executor until the
+   * maximum number of segments are read ahead or the end of the stream is reached.
+   *
+   * @throws IOException if something goes wrong while reading from the stream
+   */
+  private void readAhead() throws IOException {
+    while (!endOfStream && pendingSegments.size() < segmentsAhead) {
+      PrefetchedSegment segment = freeSegments.isEmpty() ? newSegment() : freeSegments.poll();
+      int encryptedLength = in.readNBytes(segment.encryptedData, 0, segment.encryptedData.length);
+      if (encryptedLength < segment.encryptedData.length) {
+        endOfStream = true;
+      }
+      if (encryptedLength == 0) {
+        freeSegments.add(segment);
+        break;
+      }
+      segment.encryptedLength = encryptedLength;
+      segment.decryptedLength =
+          executor.submit(
+              () ->
+                  decryptSegment(
+                      segment.encryptedData, encryptedLength, segment.decryptedData, 0));
+      pendingSegments.add(segment);
+    }
+  }
+
+  /**
+   * Allocates the buffers for a new segment read ahead.
+   *
+   * @return A new PrefetchedSegment.
+   */
+  private PrefetchedSegment newSegment() {
+    return new PrefetchedSegment(
+        new byte[getEncryptedSegmentSize()], new byte[UNENCRYPTED_DATA_SEGMENT_SIZE]);
+  }
+
+  /** A segment read ahead and handed over to the executor, together with its buffers. */
+  private static class PrefetchedSegment {
+
+    private final byte[] encryptedData;
+    private final byte[] decryptedData;
+    private int encryptedLength;
+    private Future<Integer> decryptedLength;
+
+    PrefetchedSegment(byte[] encryptedData, byte[] decryptedData) {
+      this.encryptedData = encryptedData;
+      this.decryptedData = decryptedData;
+    }
+  }
+}
@@ -0,0 +1,215 @@
+package no.elixir.crypt4gh.stream;
+
+import static no.elixir.crypt4gh.pojo.body.Segment.UNENCRYPTED_DATA_SEGMENT_SIZE;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import no.elixir.crypt4gh.pojo.header.DataEditList;
+
+/**
+ * Crypt4GHOutputStream that encrypts segments in parallel. Every filled segment is handed over to
+ * an executor, and the encrypted segments are written to the wrapped OutputStream in their original
+ * order. The number of segments being encrypted (or waiting to be written) at the same time is
+ * bounded, and their buffers are reused, so memory usage stays capped regardless of the size of the
+ * data. The output is identical in structure to that of {@link Crypt4GHOutputStream}.
+ *
+ * <p>The executor is not shut down when the stream is closed.
+ */
+public class ParallelCrypt4GHOutputStream extends Crypt4GHOutputStream {
+
+  /** The executor encrypting the segments */
+  private final ExecutorService executor;
+
+  /** The maximum number of segments being encrypted or waiting to be written at the same time */
+  private final int maxSegmentsInFlight;
+
+  /** Segments handed over to the executor, in the order they should be written */
+  private final Deque<PendingSegment> pendingSegments = new ArrayDeque<>();
+
+  /** Segments that have been written and whose buffers can be reused */
+  private final Deque<PendingSegment> freeSegments = new ArrayDeque<>();
+
+  /**
+   * Constructs the ParallelCrypt4GHOutputStream by wrapping an existing OutputStream. Segments are
+   * encrypted in the common ForkJoinPool, with up to two segments in flight per thread.
+   *
+   * @param out Existing OutputStream.
+   * @param writerPrivateKey Sender's private key.
+   * @param readerPublicKey Recipient's public key.
+   * @throws IOException In case the Crypt4GH header can't be written to the underlying
+   *     OutputStream.
+   * @throws GeneralSecurityException In case the Crypt4GH header is malformed.
+   */
+  public ParallelCrypt4GHOutputStream(
+      OutputStream out, PrivateKey writerPrivateKey, PublicKey readerPublicKey)
+      throws IOException, GeneralSecurityException {
+    this(
+        out,
+        writerPrivateKey,
+        readerPublicKey,
+        ForkJoinPool.commonPool(),
+        2 * ForkJoinPool.getCommonPoolParallelism());
+  }
+
+  /**
+   * Constructs the ParallelCrypt4GHOutputStream by wrapping an existing OutputStream.
+   *
+   * @param out Existing OutputStream.
+   * @param writerPrivateKey Sender's private key.
+   * @param readerPublicKey Recipient's public key.
+   * @param executor Executor to encrypt the segments in (e.g. a ForkJoinPool).
+   * @param maxSegmentsInFlight Maximum number of segments being encrypted or waiting to be written
+   *     at the same time. Each segment in flight takes up about 128 KB of memory.
+   * @throws IOException In case the Crypt4GH header can't be written to the underlying
+   *     OutputStream.
+   * @throws GeneralSecurityException In case the Crypt4GH header is malformed.
+   */
+  public ParallelCrypt4GHOutputStream(
+      OutputStream out,
+      PrivateKey writerPrivateKey,
+      PublicKey readerPublicKey,
+      ExecutorService executor,
+      int maxSegmentsInFlight)
+      throws IOException, GeneralSecurityException {
+    super(out, writerPrivateKey, readerPublicKey);
+    this.executor = executor;
+    this.maxSegmentsInFlight = checkMaxSegmentsInFlight(maxSegmentsInFlight);
+  }
+
+  /**
+   * Constructs the ParallelCrypt4GHOutputStream by wrapping existing OutputStream with DataEditList
+   * included to a header.
+   *
+   * @param out Existing OutputStream.
+   * @param dataEditList Data Edit List.
+   * @param writerPrivateKey Sender's private key.
+   * @param readerPublicKey Recipient's public key.
+   * @param executor Executor to encrypt the segments in (e.g. a ForkJoinPool).
+   * @param maxSegmentsInFlight Maximum number of segments being encrypted or waiting to be written
+   *     at the same time. Each segment in flight takes up about 128 KB of memory.
+   * @throws IOException In case the Crypt4GH header can't be written to the underlying
+   *     OutputStream.
+   * @throws GeneralSecurityException In case the Crypt4GH header is malformed.
+   */
+  public ParallelCrypt4GHOutputStream(
+      OutputStream out,
+      DataEditList dataEditList,
+      PrivateKey writerPrivateKey,
+      PublicKey readerPublicKey,
+      ExecutorService executor,
+      int maxSegmentsInFlight)
+      throws IOException, GeneralSecurityException {
+    super(out, dataEditList, writerPrivateKey, readerPublicKey);
+    this.executor = executor;
+    this.maxSegmentsInFlight = checkMaxSegmentsInFlight(maxSegmentsInFlight);
+  }
+
+  /**
+   * Copies the segment data into a free buffer and hands it over to the executor for encryption. If
+   * the maximum number of segments are already in flight, the oldest segment is written first.
+   *
+   * @param data An array containing the unencrypted data.
+   * @param offset The position of the data in the array.
+   * @param length The number of bytes to encrypt (at most one segment).
+   * @throws IOException In case a previous segment can't be written to the output stream.
+   * @throws GeneralSecurityException In case the encryption of a previous segment failed.
+   */
+  @Override
+  protected void writeSegment(byte[] data, int offset, int length)
+      throws IOException, GeneralSecurityException {
+    while (pendingSegments.size() >= maxSegmentsInFlight) {
+      writeOldestSegment();
+    }
+    PendingSegment segment = freeSegments.isEmpty() ? newSegment() : freeSegments.poll();
+    System.arraycopy(data, offset, segment.unencryptedData, 0, length);
+    segment.encryptedLength =
+        executor.submit(
+            () -> encryptSegment(segment.unencryptedData, 0, length, segment.encryptedData));
+    pendingSegments.add(segment);
+    while (!pendingSegments.isEmpty() && pendingSegments.peek().encryptedLength.isDone()) {
+      writeOldestSegment();
+    }
+  }
+
+  /**
+   * Flushes the internal buffer (only if it holds a whole segment, in segment-aligned mode), waits
+   * for all segments in flight to be written and then flushes the underlying stream.
+   *
+   * @throws IOException In case if the buffer or underlying stream can't be flushed.
+   */
+  @Override
+  public void flush() throws IOException {
+    try {
+      flushSegments();
+      while (!pendingSegments.isEmpty()) {
+        writeOldestSegment();
+      }
+    } catch (GeneralSecurityException e) {
+      throw new RuntimeException(e);
+    }
+    out.flush();
+  }
+
+  /**
+   * Waits for the oldest segment in flight to be encrypted and writes it to the underlying stream.
+   *
+   * @throws IOException In case the segment can't be written to the output stream.
+   * @throws GeneralSecurityException In case the encryption failed.
+   */
+  private void writeOldestSegment() throws IOException, GeneralSecurityException {
+    PendingSegment segment = pendingSegments.poll();
+    int encryptedLength;
+    try {
+      encryptedLength = segment.encryptedLength.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for a segment to be encrypted", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof GeneralSecurityException) {
+        throw (GeneralSecurityException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+    writeEncryptedSegment(segment.encryptedData, encryptedLength);
+    freeSegments.add(segment);
+  }
+
+  /**
+   * Allocates the buffers for a new segment in flight.
+   *
+   * @return A new PendingSegment.
+   */
+  private PendingSegment newSegment() {
+    return new PendingSegment(
+        new byte[UNENCRYPTED_DATA_SEGMENT_SIZE], new byte[getEncryptedSegmentSize()]);
+  }
+
+  private static int checkMaxSegmentsInFlight(int maxSegmentsInFlight) {
+    if (maxSegmentsInFlight < 1) {
+      throw new IllegalArgumentException("At least one segment must be allowed in flight");
+    }
+    return maxSegmentsInFlight;
+  }
+
+  /** A segment handed over to the executor, together with the buffers it occupies. */
+  private static class PendingSegment {
+
+    private final byte[] unencryptedData;
+    private final byte[] encryptedData;
+    private Future<Integer> encryptedLength;
+
+    PendingSegment(byte[] unencryptedData, byte[] encryptedData) {
+      this.unencryptedData = unencryptedData;
+      this.encryptedData = encryptedData;
+    }
+  }
+}
@@ -0,0 +1,272 @@
+package no.elixir.crypt4gh.util;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Computes one or more message digests (e.g. MD5 and SHA-256) of the same data in a single pass.
+ * The data is either passed to {@link #update} or flows through one of the wrappers returned by
+ * the {@code wrap} methods, so checksums of both the plaintext and the ciphertext can be computed
+ * while a file is being encrypted or decrypted, instead of reading it again afterwards:
+ *
+ * <pre>{@code
+ * Checksums plaintext = new Checksums("MD5", "SHA-256");
+ * Checksums ciphertext = new Checksums("MD5", "SHA-256");
+ * try (OutputStream out =
+ *     plaintext.wrap(new Crypt4GHOutputStream(ciphertext.wrap(file), writerKey, readerKey))) {
+ *   data.transferTo(out);
+ * }
+ * Map<String, String> ciphertextChecksums = ciphertext.getHexDigests();
+ * }</pre>
+ *
+ * <p>The digests are finished when a wrapper is closed or when they are first retrieved, after
+ * which no more data can be added. Instances are not thread-safe.
+ */
+public class Checksums {
+
+  /** The digests being computed, by algorithm name, in the order the algorithms were given */
+  private final Map<String, MessageDigest> messageDigests = new LinkedHashMap<>();
+
+  /** The finished digests, or null while data can still be added */
+  private Map<String, byte[]> digests;
+
+  /**
+   * Creates the digests for the given algorithms.
+   *
+   * @param algorithms The names of the digest algorithms, e.g. "MD5" or "SHA-256".
+   * @throws NoSuchAlgorithmException In case one of the algorithms is not available.
+   * @throws IllegalArgumentException If no algorithm is given.
+   */
+  public Checksums(String... algorithms) throws NoSuchAlgorithmException {
+    if (algorithms.length == 0) {
+      throw new IllegalArgumentException("At least one digest algorithm is required");
+    }
+    for (String algorithm : algorithms) {
+      if (!messageDigests.containsKey(algorithm)) {
+        messageDigests.put(algorithm, MessageDigest.getInstance(algorithm));
+      }
+    }
+  }
+
+  /**
+   * Adds a range of bytes to all the digests.
+   *
+   * @param data The array containing the data.
+   * @param offset The position of the data in the array.
+   * @param length The number of bytes to add.
+   * @throws IllegalStateException If the digests are already finished.
+   */
+  public void update(byte[] data, int offset, int length) {
+    checkNotFinished();
+    for (MessageDigest messageDigest : messageDigests.values()) {
+      messageDigest.update(data, offset, length);
+    }
+  }
+
+  /**
+   * Adds the remaining bytes of a buffer to all the digests, without changing its position.
+   *
+   * @param data The buffer containing the data.
+   * @throws IllegalStateException If the digests are already finished.
+   */
+  public void update(ByteBuffer data) {
+    checkNotFinished();
+    for (MessageDigest messageDigest : messageDigests.values()) {
+      messageDigest.update(data.duplicate());
+    }
+  }
+
+  /**
+   * Finishes the digests (if not done already) and returns them.
+   *
+   * @return The digests by algorithm name, in the order the algorithms were given.
+   */
+  public Map<String, byte[]> getDigests() {
+    if (digests == null) {
+      Map<String, byte[]> result = new LinkedHashMap<>();
+      messageDigests.forEach(
+          (algorithm, messageDigest) -> result.put(algorithm, messageDigest.digest()));
+      digests = Collections.unmodifiableMap(result);
+    }
+    return digests;
+  }
+
+  /**
+   * Finishes the digests (if not done already) and returns them as lowercase hexadecimal strings.
+   *
+   * @return The hexadecimal digests by algorithm name, in the order the algorithms were given.
+   */
+  public Map<String, String> getHexDigests() {
+    Map<String, String> result = new LinkedHashMap<>();
+    getDigests()
+        .forEach((algorithm, digest) -> result.put(algorithm, HexFormat.of().formatHex(digest)));
+    return Collections.unmodifiableMap(result);
+  }
+
+  /**
+   * Wraps an output stream so that every byte written to it is added to the digests. Closing the
+   * wrapper closes the stream and finishes the digests.
+   *
+   * @param out The stream to wrap.
+   * @return The wrapping stream.
+   */
+  public OutputStream wrap(OutputStream out) {
+    Objects.requireNonNull(out);
+    return new FilterOutputStream(out) {
+
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+        update((byte) b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        update(b, off, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          getDigests();
+        }
+      }
+    };
+  }
+
+  /**
+   * Wraps an input stream so that every byte read from it is added to the digests. Bytes skipped
+   * over are read and added as well, so the digests cover the stream up to the point it was read
+   * to, no matter how the reader moved through it. Closing the wrapper closes the stream and
+   * finishes the digests.
+   *
+   * @param in The stream to wrap.
+   * @return The wrapping stream.
+   */
+  public InputStream wrap(InputStream in) {
+    Objects.requireNonNull(in);
+    return new FilterInputStream(in) {
+
+      @Override
+      public int read() throws IOException {
+        int b = in.read();
+        if (b != -1) {
+          update((byte) b);
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int bytesRead = in.read(b, off, len);
+        if (bytesRead > 0) {
+          update(b, off, bytesRead);
+        }
+        return bytesRead;
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+        byte[] skipped = new byte[(int) Math.min(Math.max(n, 0), 8192)];
+        long bytesSkipped = 0;
+        while (bytesSkipped < n) {
+          int bytesRead = read(skipped, 0, (int) Math.min(skipped.length, n - bytesSkipped));
+          if (bytesRead == -1) {
+            break;
+          }
+          bytesSkipped += bytesRead;
+        }
+        return bytesSkipped;
+      }
+
+      @Override
+      public boolean markSupported() {
+        return false;
+      }
+
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          getDigests();
+        }
+      }
+    };
+  }
+
+  /**
+   * Wraps a channel so that every byte written to it is added to the digests. Closing the wrapper
+   * closes the channel and finishes the digests.
+   *
+   * @param channel The channel to wrap.
+   * @return The wrapping channel.
+   */
+  public WritableByteChannel wrap(WritableByteChannel channel) {
+    Objects.requireNonNull(channel);
+    return new WritableByteChannel() {
+
+      @Override
+      public int write(ByteBuffer src) throws IOException {
+        ByteBuffer written = src.duplicate();
+        int bytesWritten = channel.write(src);
+        written.limit(written.position() + bytesWritten);
+        update(written);
+        return bytesWritten;
+      }
+
+      @Override
+      public boolean isOpen() {
+        return channel.isOpen();
+      }
+
+      @Override
+      public void close() throws IOException {
+        try {
+          channel.close();
+        } finally {
+          getDigests();
+        }
+      }
+    };
+  }
+
+  /**
+   * Adds a single byte to all the digests.
+   *
+   * @param data The byte to add.
+   * @throws IllegalStateException If the digests are already finished.
+   */
+  private void update(byte data) {
+    checkNotFinished();
+    for (MessageDigest messageDigest : messageDigests.values()) {
+      messageDigest.update(data);
+    }
+  }
+
+  /**
+   * Makes sure data can still be added to the digests.
+   *
+   * @throws IllegalStateException If the digests are already finished.
+   */
+  private void checkNotFinished() {
+    if (digests != null) {
+      throw new IllegalStateException("The digests are already finished");
+    }
+  }
+}
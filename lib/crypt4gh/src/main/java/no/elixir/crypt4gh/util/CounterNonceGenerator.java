@@ -0,0 +1,55 @@
+package no.elixir.crypt4gh.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Nonce generator handing out nonces made of a random prefix followed by a counter. The prefix is
+ * drawn once per generator from the shared {@link RandomNonceGenerator}, and the counter (8 bytes,
+ * little-endian) is incremented for every nonce, so a generator never repeats a nonce.
+ *
+ * <p>A generator should only be used with a single encryption key, e.g. for the data segments of
+ * one Crypt4GH stream (which has its own randomly generated session key). It must not be used for
+ * header packets, since the key used to encrypt those is shared by all files between the same
+ * writer and reader.
+ */
+public class CounterNonceGenerator implements NonceGenerator {
+
+  /** The size of the counter part of each nonce (in bytes) */
+  public static final int COUNTER_SIZE = 8;
+
+  /** The random prefix of all nonces handed out by this generator */
+  private final byte[] prefix;
+
+  /** The counter value to use for the next nonce */
+  private final AtomicLong counter = new AtomicLong();
+
+  /**
+   * Creates a new generator for nonces of the given size, with a random prefix.
+   *
+   * @param nonceSize the size of the nonces (in bytes), which must be larger than the counter
+   */
+  public CounterNonceGenerator(int nonceSize) {
+    if (nonceSize <= COUNTER_SIZE) {
+      throw new IllegalArgumentException("Nonce size must be larger than " + COUNTER_SIZE);
+    }
+    this.prefix = new byte[nonceSize - COUNTER_SIZE];
+    RandomNonceGenerator.getInstance().nextNonce(prefix);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void nextNonce(byte[] nonce, int offset, int length) {
+    if (length != prefix.length + COUNTER_SIZE) {
+      throw new IllegalArgumentException(
+          "Expected nonce size " + (prefix.length + COUNTER_SIZE) + ", but got: " + length);
+    }
+    long value = counter.getAndIncrement();
+    if (value == -1) {
+      throw new IllegalStateException("Nonce counter exhausted");
+    }
+    System.arraycopy(prefix, 0, nonce, offset, prefix.length);
+    for (int i = 0; i < COUNTER_SIZE; i++) {
+      nonce[offset + prefix.length + i] = (byte) (value >>> (8 * i));
+    }
+  }
+}
@@ -1,14 +1,36 @@
 package no.elixir.crypt4gh.util;
 
+import static no.elixir.crypt4gh.pojo.body.Segment.UNENCRYPTED_DATA_SEGMENT_SIZE;
+
 import com.rfksystems.blake2b.security.Blake2bProvider;
 import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.Security;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import no.elixir.crypt4gh.pojo.body.Segment;
+import no.elixir.crypt4gh.pojo.header.ChaCha20IETFPoly1305EncryptionParameters;
+import no.elixir.crypt4gh.pojo.header.DataEditList;
+import no.elixir.crypt4gh.pojo.header.DataEncryptionParameters;
 import no.elixir.crypt4gh.pojo.header.Header;
 import no.elixir.crypt4gh.pojo.header.HeaderEncryptionMethod;
 import no.elixir.crypt4gh.pojo.header.HeaderPacket;
@@ -18,6 +40,12 @@ import no.elixir.crypt4gh.stream.Crypt4GHInputStream;
 /** A bunch of methods mostly for working with Crypt4GH headers. */
 public class Crypt4GHUtils {
 
+  /** The number of segments mapped into memory at a time by the NIO encryption and decryption */
+  private static final int MAPPED_SEGMENTS = 1024;
+
+  /** The number of segments written at a time by the NIO encryption and decryption */
+  private static final int WRITTEN_SEGMENTS = 16;
+
   /** A singleton instance of this class */
   private static Crypt4GHUtils ourInstance = new Crypt4GHUtils();
 
@@ -81,6 +109,617 @@ public class Crypt4GHUtils {
     }
   }
 
+  /**
+   * Re-encrypts a Crypt4GH file for a new recipient. The header is decrypted with the current
+   * recipient's private key and written again for the new recipient (as with {@link
+   * #setRecipient(byte[], PrivateKey, PublicKey)}), and the body, which stays the same, is moved
+   * with {@link FileChannel#transferTo(long, long, WritableByteChannel)}, so the operating system
+   * copies it without it passing through the JVM heap.
+   *
+   * @param source Channel to read the original Crypt4GH file from.
+   * @param target Channel to write the re-encrypted Crypt4GH file to, from its current position.
+   * @param privateKeyForDecryption Private key to decrypt the original header (and to encrypt the
+   *     new one).
+   * @param newRecipientPublicKey Public key of the new recipient.
+   * @return The header written to the new file.
+   * @throws IOException In case of I/O error.
+   * @throws GeneralSecurityException In case of encryption related error.
+   */
+  public Header reencrypt(
+      FileChannel source,
+      WritableByteChannel target,
+      PrivateKey privateKeyForDecryption,
+      PublicKey newRecipientPublicKey)
+      throws IOException, GeneralSecurityException {
+    source.position(0);
+    Header header = new Header(Channels.newInputStream(source), privateKeyForDecryption);
+    long dataStart = source.position();
+    Header newHeader =
+        new Header(
+            getHeaderPacketsWithNewRecipient(
+                header, privateKeyForDecryption, newRecipientPublicKey));
+    writeHeader(newHeader, target);
+    transferFully(source, dataStart, Math.max(source.size() - dataStart, 0), target);
+    return newHeader;
+  }
+
+  /**
+   * Rotates the session key of a Crypt4GH file: every segment is decrypted with the current data
+   * key and encrypted again with a newly generated one. The segments are re-keyed in parallel on an
+   * executor, each task decrypting and encrypting one segment, and written to the target in their
+   * original order. The number of segments in flight is bounded, and their buffers are reused, so
+   * memory usage stays capped regardless of the size of the file. Segment boundaries are kept, so a
+   * Data Edit List in the original header stays valid and is carried over.
+   *
+   * @param source Stream to read the original Crypt4GH file from.
+   * @param target Stream to write the re-keyed Crypt4GH file to.
+   * @param privateKeyForDecryption Private key to decrypt the original header (and to encrypt the
+   *     new one).
+   * @param recipientPublicKey Public key of the recipient of the re-keyed file.
+   * @param executor Executor to re-key the segments in.
+   * @param maxSegmentsInFlight Maximum number of segments being re-keyed or waiting to be written
+   *     at the same time. Each segment in flight takes up about 192 KB of memory.
+   * @return The header written to the re-keyed file.
+   * @throws IOException In case of I/O error.
+   * @throws GeneralSecurityException In case of encryption related error.
+   */
+  public Header rotateSessionKey(
+      InputStream source,
+      OutputStream target,
+      PrivateKey privateKeyForDecryption,
+      PublicKey recipientPublicKey,
+      ExecutorService executor,
+      int maxSegmentsInFlight)
+      throws IOException, GeneralSecurityException {
+    if (maxSegmentsInFlight < 1) {
+      throw new IllegalArgumentException("At least one segment must be allowed in flight");
+    }
+    Header header = new Header(source, privateKeyForDecryption);
+    Collection<DataEncryptionParameters> dataEncryptionParametersList =
+        header.getDataEncryptionParametersList();
+    DataEncryptionParameters firstDataEncryptionParameters =
+        dataEncryptionParametersList.iterator().next();
+    for (DataEncryptionParameters encryptionParameters : dataEncryptionParametersList) {
+      if (firstDataEncryptionParameters.getDataEncryptionMethod()
+          != encryptionParameters.getDataEncryptionMethod()) {
+        throw new GeneralSecurityException("Different Data Encryption Methods are not supported");
+      }
+    }
+    int encryptedSegmentSize =
+        firstDataEncryptionParameters.getDataEncryptionMethod().getEncryptedSegmentSize();
+    DataEncryptionParameters newDataEncryptionParameters =
+        new ChaCha20IETFPoly1305EncryptionParameters(
+            KeyUtils.getInstance().generateSessionKey());
+    List<HeaderPacket> headerPackets = new ArrayList<>();
+    headerPackets.add(
+        new X25519ChaCha20IETFPoly1305HeaderPacket(
+            newDataEncryptionParameters, privateKeyForDecryption, recipientPublicKey));
+    Optional<DataEditList> dataEditList = header.getDataEditList();
+    if (dataEditList.isPresent()) {
+      headerPackets.add(
+          new X25519ChaCha20IETFPoly1305HeaderPacket(
+              dataEditList.get(), privateKeyForDecryption, recipientPublicKey));
+    }
+    Header newHeader = new Header(headerPackets);
+    target.write(newHeader.serialize());
+
+    NonceGenerator nonceGenerator = NonceGenerator.getDefault();
+    Deque<RekeyedSegment> pendingSegments = new ArrayDeque<>();
+    Deque<RekeyedSegment> freeSegments = new ArrayDeque<>();
+    try {
+      while (true) {
+        while (pendingSegments.size() >= maxSegmentsInFlight) {
+          writeOldestSegment(pendingSegments, freeSegments, target);
+        }
+        RekeyedSegment freeSegment = freeSegments.poll();
+        RekeyedSegment segment =
+            freeSegment != null ? freeSegment : new RekeyedSegment(encryptedSegmentSize);
+        int encryptedLength = source.readNBytes(segment.encryptedData, 0, encryptedSegmentSize);
+        if (encryptedLength == 0) {
+          break;
+        }
+        segment.rekeyedLength =
+            executor.submit(
+                () -> {
+                  int decryptedLength =
+                      Segment.decrypt(
+                          segment.encryptedData,
+                          encryptedLength,
+                          segment.decryptedData,
+                          0,
+                          dataEncryptionParametersList);
+                  return Segment.encrypt(
+                      segment.decryptedData,
+                      0,
+                      decryptedLength,
+                      segment.rekeyedData,
+                      0,
+                      newDataEncryptionParameters,
+                      nonceGenerator);
+                });
+        pendingSegments.add(segment);
+        if (encryptedLength < encryptedSegmentSize) {
+          break;
+        }
+      }
+      while (!pendingSegments.isEmpty()) {
+        writeOldestSegment(pendingSegments, freeSegments, target);
+      }
+    } finally {
+      for (RekeyedSegment segment : pendingSegments) {
+        segment.rekeyedLength.cancel(false);
+      }
+    }
+    target.flush();
+    return newHeader;
+  }
+
+  /**
+   * Extracts a range of the plaintext data of a Crypt4GH file into a new Crypt4GH file for a new
+   * recipient, without decrypting the data. The new header holds the Data Encryption Parameters of
+   * the original file and a Data Edit List selecting the range, both encrypted for the new
+   * recipient. The ciphertext segments covering the range are then copied as they are with {@link
+   * FileChannel#transferTo(long, long, WritableByteChannel)}, so the extraction is pure I/O.
+   *
+   * @param source Channel to read the original Crypt4GH file from.
+   * @param target Channel to write the new Crypt4GH file to, from its current position.
+   * @param privateKeyForDecryption Private key to decrypt the original header (and to encrypt the
+   *     new one).
+   * @param newRecipientPublicKey Public key of the new recipient.
+   * @param start The position in the plaintext data where the range starts (inclusive).
+   * @param end The position in the plaintext data where the range ends (exclusive). If the data
+   *     ends before this position, the range ends with the data.
+   * @return The header written to the new file.
+   * @throws IOException In case of I/O error, or if the original header contains a Data Edit List.
+   * @throws GeneralSecurityException In case of encryption related error.
+   */
+  public Header extractRange(
+      FileChannel source,
+      WritableByteChannel target,
+      PrivateKey privateKeyForDecryption,
+      PublicKey newRecipientPublicKey,
+      long start,
+      long end)
+      throws IOException, GeneralSecurityException {
+    if (start < 0 || end < start) {
+      throw new IllegalArgumentException("Invalid range: [" + start + ", " + end + ")");
+    }
+    source.position(0);
+    Header header = new Header(Channels.newInputStream(source), privateKeyForDecryption);
+    long dataStart = source.position();
+    if (header.getDataEditList().isPresent()) {
+      throw new IOException("Extracting ranges from files with a Data Edit List is not supported");
+    }
+    List<HeaderPacket> headerPackets = new ArrayList<>();
+    int encryptedSegmentSize = 0;
+    for (DataEncryptionParameters dataEncryptionParameters :
+        header.getDataEncryptionParametersList()) {
+      encryptedSegmentSize =
+          dataEncryptionParameters.getDataEncryptionMethod().getEncryptedSegmentSize();
+      headerPackets.add(
+          new X25519ChaCha20IETFPoly1305HeaderPacket(
+              dataEncryptionParameters, privateKeyForDecryption, newRecipientPublicKey));
+    }
+    long firstSegment = start / UNENCRYPTED_DATA_SEGMENT_SIZE;
+    long segmentsStart = dataStart + firstSegment * encryptedSegmentSize;
+    long segmentsEnd = source.size();
+    long endSegment =
+        end / UNENCRYPTED_DATA_SEGMENT_SIZE + (end % UNENCRYPTED_DATA_SEGMENT_SIZE > 0 ? 1 : 0);
+    if (endSegment <= (segmentsEnd - dataStart) / encryptedSegmentSize) {
+      segmentsEnd = dataStart + endSegment * encryptedSegmentSize;
+    }
+    DataEditList dataEditList =
+        new DataEditList(
+            new long[] {start - firstSegment * UNENCRYPTED_DATA_SEGMENT_SIZE, end - start});
+    headerPackets.add(
+        new X25519ChaCha20IETFPoly1305HeaderPacket(
+            dataEditList, privateKeyForDecryption, newRecipientPublicKey));
+    Header newHeader = new Header(headerPackets);
+    writeHeader(newHeader, target);
+    transferFully(source, segmentsStart, Math.max(segmentsEnd - segmentsStart, 0), target);
+    return newHeader;
+  }
+
+  /**
+   * Splits a Crypt4GH file into several Crypt4GH files, one per target, without decrypting the
+   * data, e.g. to process the parts of a large file on different nodes. The segments are divided
+   * into contiguous runs of (nearly) equal length, so part {@code i} of {@code n} holds the
+   * plaintext data from segment {@code i * segmentCount / n}, i.e. starting at a multiple of 64
+   * KiB. Every part gets a header holding the Data Encryption Parameters of the original file,
+   * encrypted for the recipient, and its segments are copied as they are with {@link
+   * FileChannel#transferTo(long, long, WritableByteChannel)}, so splitting is pure sequential I/O.
+   * If the original header contains a Data Edit List, each part gets a Data Edit List keeping the
+   * data that the original one keeps in that part. Parts left without segments, when there are more
+   * targets than segments, hold an empty body.
+   *
+   * @param source Channel to read the original Crypt4GH file from.
+   * @param targets Channels to write the parts to, in order, each from its current position.
+   * @param privateKeyForDecryption Private key to decrypt the original header (and to encrypt the
+   *     new ones).
+   * @param recipientPublicKey Public key of the recipient of the parts.
+   * @return The headers written to the parts, in order.
+   * @throws IOException In case of I/O error.
+   * @throws GeneralSecurityException In case of encryption related error.
+   */
+  public List<Header> split(
+      FileChannel source,
+      List<? extends WritableByteChannel> targets,
+      PrivateKey privateKeyForDecryption,
+      PublicKey recipientPublicKey)
+      throws IOException, GeneralSecurityException {
+    if (targets.isEmpty()) {
+      throw new IllegalArgumentException("At least one part is required");
+    }
+    source.position(0);
+    Header header = new Header(Channels.newInputStream(source), privateKeyForDecryption);
+    long dataStart = source.position();
+    List<HeaderPacket> dataEncryptionPackets = new ArrayList<>();
+    int encryptedSegmentSize = 0;
+    for (DataEncryptionParameters dataEncryptionParameters :
+        header.getDataEncryptionParametersList()) {
+      encryptedSegmentSize =
+          dataEncryptionParameters.getDataEncryptionMethod().getEncryptedSegmentSize();
+      dataEncryptionPackets.add(
+          new X25519ChaCha20IETFPoly1305HeaderPacket(
+              dataEncryptionParameters, privateKeyForDecryption, recipientPublicKey));
+    }
+    long dataEnd = Math.max(source.size(), dataStart);
+    long segmentCount = (dataEnd - dataStart + encryptedSegmentSize - 1) / encryptedSegmentSize;
+    long[] keptRanges = header.getDataEditList().map(DataEditList::getKeptRanges).orElse(null);
+    List<Header> headers = new ArrayList<>();
+    for (int i = 0; i < targets.size(); i++) {
+      long firstSegment = segmentCount * i / targets.size();
+      long endSegment = segmentCount * (i + 1) / targets.size();
+      List<HeaderPacket> headerPackets = new ArrayList<>(dataEncryptionPackets);
+      if (keptRanges != null) {
+        DataEditList dataEditList =
+            getPartDataEditList(
+                keptRanges,
+                firstSegment * UNENCRYPTED_DATA_SEGMENT_SIZE,
+                endSegment * UNENCRYPTED_DATA_SEGMENT_SIZE);
+        headerPackets.add(
+            new X25519ChaCha20IETFPoly1305HeaderPacket(
+                dataEditList, privateKeyForDecryption, recipientPublicKey));
+      }
+      Header partHeader = new Header(headerPackets);
+      writeHeader(partHeader, targets.get(i));
+      long partStart = dataStart + firstSegment * encryptedSegmentSize;
+      long partEnd = Math.min(dataStart + endSegment * encryptedSegmentSize, dataEnd);
+      transferFully(source, partStart, partEnd - partStart, targets.get(i));
+      headers.add(partHeader);
+    }
+    return headers;
+  }
+
+  /**
+   * Encrypts a file into a new Crypt4GH file without going through streams. The source is mapped
+   * into memory in windows of 1024 segments (64 MiB) with {@link FileChannel#map}, each segment is
+   * encrypted straight from the mapped window into a direct buffer, and the encrypted segments are
+   * written to the target channel in batches of 16. This avoids the copies between the page cache
+   * and the JVM heap, and the system call per buffer, of the stream-based {@link
+   * no.elixir.crypt4gh.stream.Crypt4GHOutputStream}.
+   *
+   * @param source Channel to read the file to encrypt from. It must be a regular file, since it is
+   *     mapped into memory.
+   * @param target Channel to write the Crypt4GH file to, from its current position.
+   * @param writerPrivateKey Sender's private key.
+   * @param readerPublicKey Recipient's public key.
+   * @return The header written to the Crypt4GH file.
+   * @throws IOException In case of I/O error.
+   * @throws GeneralSecurityException In case of encryption related error.
+   */
+  public Header encrypt(
+      FileChannel source,
+      WritableByteChannel target,
+      PrivateKey writerPrivateKey,
+      PublicKey readerPublicKey)
+      throws IOException, GeneralSecurityException {
+    return encrypt(source, target, writerPrivateKey, readerPublicKey, null, null);
+  }
+
+  /**
+   * Encrypts a file into a new Crypt4GH file like {@link #encrypt(FileChannel, WritableByteChannel,
+   * PrivateKey, PublicKey)}, computing checksums of the plaintext and of the Crypt4GH file in the
+   * same pass. Each segment of plaintext is added to the checksums while it is still in the CPU
+   * cache, right before it is encrypted.
+   *
+   * @param source Channel to read the file to encrypt from. It must be a regular file, since it is
+   *     mapped into memory.
+   * @param target Channel to write the Crypt4GH file to, from its current position.
+   * @param writerPrivateKey Sender's private key.
+   * @param readerPublicKey Recipient's public key.
+   * @param plaintextChecksums Checksums to add the whole source file to, or null.
+   * @param ciphertextChecksums Checksums to add the whole Crypt4GH file (header included) to, or
+   *     null.
+   * @return The header written to the Crypt4GH file.
+   * @throws IOException In case of I/O error.
+   * @throws GeneralSecurityException In case of encryption related error.
+   */
+  public Header encrypt(
+      FileChannel source,
+      WritableByteChannel target,
+      PrivateKey writerPrivateKey,
+      PublicKey readerPublicKey,
+      Checksums plaintextChecksums,
+      Checksums ciphertextChecksums)
+      throws IOException, GeneralSecurityException {
+    if (ciphertextChecksums != null) {
+      target = ciphertextChecksums.wrap(target);
+    }
+    DataEncryptionParameters dataEncryptionParameters =
+        new ChaCha20IETFPoly1305EncryptionParameters(KeyUtils.getInstance().generateSessionKey());
+    Header header =
+        new Header(
+            List.of(
+                new X25519ChaCha20IETFPoly1305HeaderPacket(
+                    dataEncryptionParameters, writerPrivateKey, readerPublicKey)));
+    writeHeader(header, target);
+    int encryptedSegmentSize =
+        dataEncryptionParameters.getDataEncryptionMethod().getEncryptedSegmentSize();
+    ByteBuffer encryptedSegments =
+        ByteBuffer.allocateDirect(WRITTEN_SEGMENTS * encryptedSegmentSize);
+    NonceGenerator nonceGenerator = NonceGenerator.getDefault();
+    long size = source.size();
+    long windowSize = (long) MAPPED_SEGMENTS * UNENCRYPTED_DATA_SEGMENT_SIZE;
+    for (long windowStart = 0; windowStart < size; windowStart += windowSize) {
+      MappedByteBuffer window =
+          source.map(
+              FileChannel.MapMode.READ_ONLY, windowStart, Math.min(windowSize, size - windowStart));
+      while (window.hasRemaining()) {
+        if (encryptedSegments.remaining() < encryptedSegmentSize) {
+          writeFully(encryptedSegments.flip(), target);
+          encryptedSegments.clear();
+        }
+        ByteBuffer data = window.slice();
+        data.limit(Math.min(data.remaining(), UNENCRYPTED_DATA_SEGMENT_SIZE));
+        window.position(window.position() + data.remaining());
+        if (plaintextChecksums != null) {
+          plaintextChecksums.update(data);
+        }
+        Segment.encrypt(data, encryptedSegments, dataEncryptionParameters, nonceGenerator);
+      }
+    }
+    writeFully(encryptedSegments.flip(), target);
+    return header;
+  }
+
+  /**
+   * Decrypts a Crypt4GH file into a new file without going through streams. The body is mapped into
+   * memory in windows of 1024 segments (64 MiB) with {@link FileChannel#map}, each segment is
+   * copied out of the mapped window into a reused buffer and decrypted there, and the decrypted
+   * data is written to the target channel in batches of 16 segments. A Data Edit List in the header
+   * is applied, and segments holding no kept data are not decrypted at all.
+   *
+   * @param source Channel to read the Crypt4GH file from. It must be a regular file, since it is
+   *     mapped into memory.
+   * @param target Channel to write the decrypted data to, from its current position.
+   * @param readerPrivateKey Recipient's private key.
+   * @return The header of the Crypt4GH file.
+   * @throws IOException In case of I/O error.
+   * @throws GeneralSecurityException In case of decryption related error.
+   */
+  public Header decrypt(FileChannel source, WritableByteChannel target, PrivateKey readerPrivateKey)
+      throws IOException, GeneralSecurityException {
+    return decrypt(source, target, readerPrivateKey, null, null);
+  }
+
+  /**
+   * Decrypts a Crypt4GH file into a new file like {@link #decrypt(FileChannel, WritableByteChannel,
+   * PrivateKey)}, computing checksums of the Crypt4GH file and of the decrypted data in the same
+   * pass. The ciphertext checksums always cover the whole Crypt4GH file: segments discarded by a
+   * Data Edit List are added to them without being decrypted.
+   *
+   * @param source Channel to read the Crypt4GH file from. It must be a regular file, since it is
+   *     mapped into memory.
+   * @param target Channel to write the decrypted data to, from its current position.
+   * @param readerPrivateKey Recipient's private key.
+   * @param plaintextChecksums Checksums to add the decrypted data written to the target to, or
+   *     null.
+   * @param ciphertextChecksums Checksums to add the whole source file to, or null.
+   * @return The header of the Crypt4GH file.
+   * @throws IOException In case of I/O error.
+   * @throws GeneralSecurityException In case of decryption related error.
+   */
+  public Header decrypt(
+      FileChannel source,
+      WritableByteChannel target,
+      PrivateKey readerPrivateKey,
+      Checksums plaintextChecksums,
+      Checksums ciphertextChecksums)
+      throws IOException, GeneralSecurityException {
+    if (plaintextChecksums != null) {
+      target = plaintextChecksums.wrap(target);
+    }
+    source.position(0);
+    Header header = new Header(Channels.newInputStream(source), readerPrivateKey);
+    long dataStart = source.position();
+    if (ciphertextChecksums != null && dataStart > 0) {
+      ciphertextChecksums.update(source.map(FileChannel.MapMode.READ_ONLY, 0, dataStart));
+    }
+    Collection<DataEncryptionParameters> dataEncryptionParametersList =
+        header.getDataEncryptionParametersList();
+    int encryptedSegmentSize =
+        dataEncryptionParametersList
+            .iterator()
+            .next()
+            .getDataEncryptionMethod()
+            .getEncryptedSegmentSize();
+    long[] keptRanges = header.getDataEditList().map(DataEditList::getKeptRanges).orElse(null);
+    int keptRangeIndex = 0;
+    // The JDK's ChaCha20-Poly1305 only decrypts array-backed buffers without intermediate copies,
+    // so each segment is copied out of the mapped window once and decrypted on the heap
+    ByteBuffer encryptedSegment = ByteBuffer.allocate(encryptedSegmentSize);
+    ByteBuffer decryptedData =
+        ByteBuffer.allocate(WRITTEN_SEGMENTS * UNENCRYPTED_DATA_SEGMENT_SIZE);
+    ByteBuffer decryptedSegment =
+        keptRanges == null ? null : ByteBuffer.allocate(UNENCRYPTED_DATA_SEGMENT_SIZE);
+    long size = source.size();
+    long windowSize = (long) MAPPED_SEGMENTS * encryptedSegmentSize;
+    long segmentStart = 0; // the position of the current segment in the plaintext data
+    for (long windowStart = dataStart; windowStart < size; windowStart += windowSize) {
+      MappedByteBuffer window =
+          source.map(
+              FileChannel.MapMode.READ_ONLY, windowStart, Math.min(windowSize, size - windowStart));
+      while (window.hasRemaining()) {
+        if (decryptedData.remaining() < UNENCRYPTED_DATA_SEGMENT_SIZE) {
+          writeFully(decryptedData.flip(), target);
+          decryptedData.clear();
+        }
+        ByteBuffer mappedSegment = window.slice();
+        mappedSegment.limit(Math.min(mappedSegment.remaining(), encryptedSegmentSize));
+        window.position(window.position() + mappedSegment.remaining());
+        if (ciphertextChecksums != null) {
+          ciphertextChecksums.update(mappedSegment);
+        }
+        if (keptRanges == null) {
+          encryptedSegment.clear();
+          encryptedSegment.put(mappedSegment).flip();
+          Segment.decrypt(encryptedSegment, decryptedData, dataEncryptionParametersList);
+          continue;
+        }
+        while (keptRangeIndex < keptRanges.length
+            && keptRanges[keptRangeIndex + 1] <= segmentStart) {
+          keptRangeIndex += 2;
+        }
+        if (keptRangeIndex == keptRanges.length) {
+          if (ciphertextChecksums == null) {
+            break; // nothing is kept after this point
+          }
+          continue; // the rest of the file is only read for the checksums
+        }
+        if (keptRanges[keptRangeIndex] < segmentStart + UNENCRYPTED_DATA_SEGMENT_SIZE) {
+          encryptedSegment.clear();
+          encryptedSegment.put(mappedSegment).flip();
+          decryptedSegment.clear();
+          Segment.decrypt(encryptedSegment, decryptedSegment, dataEncryptionParametersList);
+          long segmentEnd = segmentStart + decryptedSegment.position();
+          for (int i = keptRangeIndex;
+              i < keptRanges.length && keptRanges[i] < segmentEnd;
+              i += 2) {
+            decryptedSegment.limit((int) (Math.min(keptRanges[i + 1], segmentEnd) - segmentStart));
+            decryptedSegment.position((int) (Math.max(keptRanges[i], segmentStart) - segmentStart));
+            decryptedData.put(decryptedSegment);
+          }
+        }
+        segmentStart += UNENCRYPTED_DATA_SEGMENT_SIZE;
+      }
+      if (keptRanges != null
+          && keptRangeIndex == keptRanges.length
+          && ciphertextChecksums == null) {
+        break;
+      }
+    }
+    writeFully(decryptedData.flip(), target);
+    return header;
+  }
+
+  /**
+   * Restricts the kept ranges of a Data Edit List to a part of the plaintext data, and converts
+   * them into a Data Edit List relative to the start of the part.
+   *
+   * @param keptRanges the absolute ranges kept by the original Data Edit List
+   * @param start the position in the plaintext data where the part starts (inclusive)
+   * @param end the position in the plaintext data where the part ends (exclusive)
+   * @return a Data Edit List keeping the same data of the part, which keeps nothing if no range
+   *     overlaps the part
+   */
+  private DataEditList getPartDataEditList(long[] keptRanges, long start, long end) {
+    long[] lengths = new long[keptRanges.length];
+    int lengthCount = 0;
+    long position = start;
+    for (int i = 0; i < keptRanges.length; i += 2) {
+      long rangeStart = Math.max(keptRanges[i], start);
+      long rangeEnd = Math.min(keptRanges[i + 1], end);
+      if (rangeStart < rangeEnd) {
+        lengths[lengthCount++] = rangeStart - position;
+        lengths[lengthCount++] = rangeEnd - rangeStart;
+        position = rangeEnd;
+      }
+    }
+    return new DataEditList(Arrays.copyOf(lengths, lengthCount));
+  }
+
+  /**
+   * Waits for the oldest segment in flight to be re-keyed and writes it to the target stream.
+   *
+   * @param pendingSegments the segments in flight, in the order they should be written
+   * @param freeSegments the segments whose buffers can be reused
+   * @param target the stream to write to
+   * @throws IOException In case of I/O error.
+   * @throws GeneralSecurityException In case the segment couldn't be re-keyed.
+   */
+  private void writeOldestSegment(
+      Deque<RekeyedSegment> pendingSegments,
+      Deque<RekeyedSegment> freeSegments,
+      OutputStream target)
+      throws IOException, GeneralSecurityException {
+    RekeyedSegment segment = pendingSegments.poll();
+    int rekeyedLength;
+    try {
+      rekeyedLength = segment.rekeyedLength.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for a segment to be re-keyed", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof GeneralSecurityException) {
+        throw (GeneralSecurityException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+    target.write(segment.rekeyedData, 0, rekeyedLength);
+    freeSegments.add(segment);
+  }
+
+  /**
+   * Serializes a header and writes it to a channel.
+   *
+   * @param header the header to write
+   * @param target the channel to write to
+   * @throws IOException In case of I/O error.
+   * @throws GeneralSecurityException In case of encryption related error.
+   */
+  private void writeHeader(Header header, WritableByteChannel target)
+      throws IOException, GeneralSecurityException {
+    writeFully(ByteBuffer.wrap(header.serialize()), target);
+  }
+
+  /**
+   * Writes the remaining bytes of a buffer to a channel, which may write less than requested in a
+   * single call.
+   *
+   * @param buffer the buffer to write
+   * @param target the channel to write to
+   * @throws IOException In case of I/O error.
+   */
+  private void writeFully(ByteBuffer buffer, WritableByteChannel target) throws IOException {
+    while (buffer.hasRemaining()) {
+      target.write(buffer);
+    }
+  }
+
+  /**
+   * Copies a region of a file to a channel with {@link FileChannel#transferTo(long, long,
+   * WritableByteChannel)}, which may transfer less than requested in a single call.
+   *
+   * @param source the channel to copy from
+   * @param position the position in the source where the region starts
+   * @param count the number of bytes to copy
+   * @param target the channel to copy to
+   * @throws IOException In case of I/O error, or if the source ends before the region does.
+   */
+  private void transferFully(
+      FileChannel source, long position, long count, WritableByteChannel target)
+      throws IOException {
+    while (count > 0) {
+      long transferred = source.transferTo(position, count, target);
+      if (transferred <= 0) {
+        throw new EOFException("Unexpected end of file at position " + position);
+      }
+      position += transferred;
+      count -= transferred;
+    }
+  }
+
   /**
    * Gets the header packets from an existing header and encrypts them for a new recipient.
    *
@@ -113,4 +752,18 @@ public class Crypt4GHUtils {
     }
     return result;
   }
+
+  /** A segment handed over to the executor for re-keying, together with the buffers it occupies. */
+  private static class RekeyedSegment {
+
+    private final byte[] encryptedData;
+    private final byte[] decryptedData = new byte[UNENCRYPTED_DATA_SEGMENT_SIZE];
+    private final byte[] rekeyedData;
+    private Future<Integer> rekeyedLength;
+
+    RekeyedSegment(int encryptedSegmentSize) {
+      this.encryptedData = new byte[encryptedSegmentSize];
+      this.rekeyedData = new byte[encryptedSegmentSize];
+    }
+  }
 }
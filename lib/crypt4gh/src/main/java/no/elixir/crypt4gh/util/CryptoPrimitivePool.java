@@ -0,0 +1,137 @@
+package no.elixir.crypt4gh.util;
+
+import static no.elixir.crypt4gh.pojo.header.X25519ChaCha20IETFPoly1305HeaderPacket.CHA_CHA_20_POLY_1305;
+import static no.elixir.crypt4gh.util.KeyUtils.X25519;
+
+import com.rfksystems.blake2b.Blake2b;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Thread-local pool of the JCA primitives used for every segment and key operation. Looking up an
+ * algorithm with {@code getInstance} goes through the registered providers every time, which is
+ * noticeable when it is done once per 64 KiB segment. Instead, each thread gets its own instance of
+ * every primitive the first time it asks for it, and reuses it afterwards.
+ *
+ * <p>The instances are not thread-safe, so they must not be handed over to other threads. Ciphers
+ * are handed out initialized, KeyAgreements must be initialized before every use (as a fresh
+ * instance would have to be), and message digests are reset before being handed out.
+ */
+public final class CryptoPrimitivePool {
+
+  private static final ThreadLocal<Cipher> CHA_CHA_20_POLY_1305_CIPHER = new ThreadLocal<>();
+  private static final ThreadLocal<KeyFactory> X25519_KEY_FACTORY = new ThreadLocal<>();
+  private static final ThreadLocal<KeyAgreement> X25519_KEY_AGREEMENT = new ThreadLocal<>();
+  private static final ThreadLocal<MessageDigest> BLAKE2B_512_DIGEST = new ThreadLocal<>();
+  private static final ThreadLocal<MessageDigest> SHA_256_DIGEST = new ThreadLocal<>();
+
+  private CryptoPrimitivePool() {}
+
+  /**
+   * Returns this thread's ChaCha20-Poly1305 Cipher, initialized with the given key and nonce.
+   *
+   * <p>The JDK refuses to initialize a ChaCha20-Poly1305 Cipher with the same key and nonce as its
+   * previous initialization, which is its guard against nonce reuse. In encryption mode the
+   * exception is passed on, so a repeated nonce is never used to encrypt. Some JDK versions apply
+   * the same check in decryption mode, where a repeated key and nonce are harmless (e.g. a segment
+   * decrypted twice, or right after being encrypted): there this thread's Cipher is replaced by a
+   * new one instead.
+   *
+   * @param opmode the operation mode of the Cipher ({@link Cipher#ENCRYPT_MODE} or {@link
+   *     Cipher#DECRYPT_MODE})
+   * @param key the ChaCha20 key
+   * @param nonce the nonce
+   * @return an initialized ChaCha20-Poly1305 Cipher
+   * @throws GeneralSecurityException if the ChaCha20-Poly1305 algorithm can't be found or the
+   *     Cipher can't be initialized with the given key and nonce, in particular when encrypting
+   *     with the same key and nonce as the previous initialization
+   */
+  public static Cipher getChaCha20Poly1305Cipher(int opmode, Key key, IvParameterSpec nonce)
+      throws GeneralSecurityException {
+    Cipher cipher = CHA_CHA_20_POLY_1305_CIPHER.get();
+    if (cipher != null) {
+      try {
+        cipher.init(opmode, key, nonce);
+        return cipher;
+      } catch (InvalidKeyException e) {
+        if (opmode != Cipher.DECRYPT_MODE) {
+          throw e;
+        }
+        // most likely the same key and nonce as the previous initialization, start afresh
+      }
+    }
+    cipher = Cipher.getInstance(CHA_CHA_20_POLY_1305);
+    cipher.init(opmode, key, nonce);
+    CHA_CHA_20_POLY_1305_CIPHER.set(cipher);
+    return cipher;
+  }
+
+  /**
+   * Returns this thread's X25519 KeyFactory.
+   *
+   * @return an X25519 KeyFactory
+   * @throws NoSuchAlgorithmException if the X25519 algorithm can't be found
+   */
+  public static KeyFactory getX25519KeyFactory() throws NoSuchAlgorithmException {
+    KeyFactory keyFactory = X25519_KEY_FACTORY.get();
+    if (keyFactory == null) {
+      keyFactory = KeyFactory.getInstance(X25519);
+      X25519_KEY_FACTORY.set(keyFactory);
+    }
+    return keyFactory;
+  }
+
+  /**
+   * Returns this thread's X25519 KeyAgreement. It must be initialized before use.
+   *
+   * @return an X25519 KeyAgreement
+   * @throws NoSuchAlgorithmException if the X25519 algorithm can't be found
+   */
+  public static KeyAgreement getX25519KeyAgreement() throws NoSuchAlgorithmException {
+    KeyAgreement keyAgreement = X25519_KEY_AGREEMENT.get();
+    if (keyAgreement == null) {
+      keyAgreement = KeyAgreement.getInstance(X25519);
+      X25519_KEY_AGREEMENT.set(keyAgreement);
+    }
+    return keyAgreement;
+  }
+
+  /**
+   * Returns this thread's Blake2b-512 MessageDigest, reset.
+   *
+   * @return a Blake2b-512 MessageDigest
+   * @throws NoSuchAlgorithmException if the Blake2b-512 algorithm can't be found
+   */
+  public static MessageDigest getBlake2b512Digest() throws NoSuchAlgorithmException {
+    return getDigest(BLAKE2B_512_DIGEST, Blake2b.BLAKE2_B_512);
+  }
+
+  /**
+   * Returns this thread's SHA-256 MessageDigest, reset.
+   *
+   * @return a SHA-256 MessageDigest
+   * @throws NoSuchAlgorithmException if the SHA-256 algorithm can't be found
+   */
+  public static MessageDigest getSha256Digest() throws NoSuchAlgorithmException {
+    return getDigest(SHA_256_DIGEST, "SHA-256");
+  }
+
+  private static MessageDigest getDigest(ThreadLocal<MessageDigest> pool, String algorithm)
+      throws NoSuchAlgorithmException {
+    MessageDigest messageDigest = pool.get();
+    if (messageDigest == null) {
+      messageDigest = MessageDigest.getInstance(algorithm);
+      pool.set(messageDigest);
+    } else {
+      messageDigest.reset();
+    }
+    return messageDigest;
+  }
+}
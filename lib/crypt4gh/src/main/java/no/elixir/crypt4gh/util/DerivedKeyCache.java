@@ -0,0 +1,244 @@
+package no.elixir.crypt4gh.util;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Bounded, thread-safe cache of key material derived from X25519 keys: the shared keys computed
+ * from a private key and a public key, and the public keys derived from private keys. Entries are
+ * looked up by the SHA-256 fingerprints of the encoded keys, and the least recently used entries
+ * are evicted once the cache is full.
+ *
+ * <p>Cached shared keys are zeroed when they are evicted, invalidated or cleared, and callers only
+ * ever get copies of them. A key that should no longer be used (e.g. a revoked private key) can be
+ * purged from the cache with {@link #invalidate(Key)}.
+ */
+public class DerivedKeyCache {
+
+  /** The default maximum number of shared keys (and of public keys) kept in the cache */
+  public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+  /** The maximum number of shared keys (and of public keys) kept in the cache */
+  private final int maxEntries;
+
+  /** Shared keys by role and fingerprints of the keys they were derived from, in access order */
+  private final LinkedHashMap<String, CachedSharedKey> sharedKeys;
+
+  /** Derived public keys by fingerprint of the private key, in access order */
+  private final LinkedHashMap<String, PublicKey> publicKeys;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * Creates an empty cache.
+   *
+   * @param maxEntries the maximum number of shared keys (and of public keys) to keep
+   */
+  public DerivedKeyCache(int maxEntries) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("The cache must hold at least one entry");
+    }
+    this.maxEntries = maxEntries;
+    this.sharedKeys =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, CachedSharedKey> eldest) {
+            if (size() > DerivedKeyCache.this.maxEntries) {
+              eldest.getValue().destroy();
+              return true;
+            }
+            return false;
+          }
+        };
+    this.publicKeys =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, PublicKey> eldest) {
+            return size() > DerivedKeyCache.this.maxEntries;
+          }
+        };
+  }
+
+  /**
+   * Returns the shared key derived from a private key and a public key, deriving and caching it if
+   * it is not cached yet. The derivation runs outside the lock, so concurrent misses for the same
+   * keys may derive the key more than once.
+   *
+   * @param role distinguishes shared keys derived from the same keys in different ways (e.g. as
+   *     writer or as reader)
+   * @param privateKey the private key the shared key is derived from
+   * @param publicKey the public key the shared key is derived from
+   * @param derivation derives the shared key on a cache miss
+   * @return a copy of the shared key
+   * @throws GeneralSecurityException if the keys can't be fingerprinted or the derivation fails
+   */
+  SecretKey getSharedKey(
+      String role, PrivateKey privateKey, PublicKey publicKey, Derivation<SecretKey> derivation)
+      throws GeneralSecurityException {
+    String cacheKey = role + ":" + fingerprint(privateKey) + ":" + fingerprint(publicKey);
+    synchronized (this) {
+      CachedSharedKey cachedSharedKey = sharedKeys.get(cacheKey);
+      if (cachedSharedKey != null) {
+        hits.increment();
+        return cachedSharedKey.toSecretKey();
+      }
+    }
+    misses.increment();
+    SecretKey sharedKey = derivation.derive();
+    CachedSharedKey cachedSharedKey = new CachedSharedKey(sharedKey);
+    synchronized (this) {
+      if (sharedKeys.putIfAbsent(cacheKey, cachedSharedKey) != null) {
+        cachedSharedKey.destroy();
+      }
+    }
+    return sharedKey;
+  }
+
+  /**
+   * Returns the public key derived from a private key, deriving and caching it if it is not cached
+   * yet.
+   *
+   * @param privateKey the private key the public key is derived from
+   * @param derivation derives the public key on a cache miss
+   * @return the public key
+   * @throws GeneralSecurityException if the key can't be fingerprinted or the derivation fails
+   */
+  PublicKey getPublicKey(PrivateKey privateKey, Derivation<PublicKey> derivation)
+      throws GeneralSecurityException {
+    String cacheKey = fingerprint(privateKey);
+    synchronized (this) {
+      PublicKey publicKey = publicKeys.get(cacheKey);
+      if (publicKey != null) {
+        hits.increment();
+        return publicKey;
+      }
+    }
+    misses.increment();
+    PublicKey publicKey = derivation.derive();
+    synchronized (this) {
+      publicKeys.putIfAbsent(cacheKey, publicKey);
+    }
+    return publicKey;
+  }
+
+  /**
+   * Removes all entries derived from the given key (private or public) from the cache, zeroing the
+   * shared keys.
+   *
+   * @param key the key to purge from the cache
+   * @throws GeneralSecurityException if the key can't be fingerprinted
+   */
+  public void invalidate(Key key) throws GeneralSecurityException {
+    String fingerprint = fingerprint(key);
+    synchronized (this) {
+      Iterator<Map.Entry<String, CachedSharedKey>> iterator = sharedKeys.entrySet().iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<String, CachedSharedKey> entry = iterator.next();
+        if (entry.getKey().contains(fingerprint)) {
+          entry.getValue().destroy();
+          iterator.remove();
+        }
+      }
+      publicKeys.remove(fingerprint);
+    }
+  }
+
+  /** Removes all entries from the cache, zeroing the shared keys. */
+  public synchronized void clear() {
+    sharedKeys.values().forEach(CachedSharedKey::destroy);
+    sharedKeys.clear();
+    publicKeys.clear();
+  }
+
+  /**
+   * Returns the number of entries (shared keys and public keys) in the cache.
+   *
+   * @return the number of cached entries
+   */
+  public synchronized int size() {
+    return sharedKeys.size() + publicKeys.size();
+  }
+
+  /**
+   * Returns the number of lookups answered from the cache.
+   *
+   * @return the number of cache hits
+   */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /**
+   * Returns the number of lookups that had to derive the key.
+   *
+   * @return the number of cache misses
+   */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * Computes the fingerprint of a key, i.e. the hex-encoded SHA-256 digest of its encoded form.
+   *
+   * @param key the key to fingerprint
+   * @return the fingerprint of the key
+   * @throws GeneralSecurityException if the key has no encoded form
+   */
+  private static String fingerprint(Key key) throws GeneralSecurityException {
+    byte[] encoded = key.getEncoded();
+    if (encoded == null) {
+      throw new GeneralSecurityException("Key doesn't support encoding: " + key.getAlgorithm());
+    }
+    byte[] digest = CryptoPrimitivePool.getSha256Digest().digest(encoded);
+    Arrays.fill(encoded, (byte) 0);
+    return HexFormat.of().formatHex(digest);
+  }
+
+  /**
+   * Derivation of a key on a cache miss.
+   *
+   * @param <T> the type of the derived key
+   */
+  @FunctionalInterface
+  interface Derivation<T> {
+
+    /**
+     * Derives the key.
+     *
+     * @return the derived key
+     * @throws GeneralSecurityException if the key can't be derived
+     */
+    T derive() throws GeneralSecurityException;
+  }
+
+  /** A cached shared key, kept as raw bytes so that it can be zeroed. */
+  private static class CachedSharedKey {
+
+    private final byte[] encoded;
+    private final String algorithm;
+
+    CachedSharedKey(SecretKey secretKey) {
+      this.encoded = secretKey.getEncoded();
+      this.algorithm = secretKey.getAlgorithm();
+    }
+
+    SecretKey toSecretKey() {
+      return new SecretKeySpec(encoded, algorithm);
+    }
+
+    void destroy() {
+      Arrays.fill(encoded, (byte) 0);
+    }
+  }
+}
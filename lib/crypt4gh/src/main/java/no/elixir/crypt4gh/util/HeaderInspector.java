@@ -0,0 +1,286 @@
+package no.elixir.crypt4gh.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import lombok.Getter;
+import lombok.ToString;
+import no.elixir.crypt4gh.pojo.Crypt4GHEntity;
+import no.elixir.crypt4gh.pojo.body.ChaCha20IETFPoly1305Segment;
+import no.elixir.crypt4gh.pojo.body.Segment;
+import no.elixir.crypt4gh.pojo.header.DataEditList;
+import no.elixir.crypt4gh.pojo.header.DataEncryptionMethod;
+import no.elixir.crypt4gh.pojo.header.Header;
+import no.elixir.crypt4gh.pojo.header.HeaderEncryptionMethod;
+
+/**
+ * Inspects Crypt4GH files without a private key. Only the unencrypted start of the header and the
+ * lengths and writer public keys of the header packets are read, and the sizes of the data are
+ * computed from the size of the file, so no key exchange or decryption takes place. Also computes
+ * the size of a Crypt4GH file from the size of its plaintext, e.g. to announce the length of an
+ * upload before encrypting it.
+ *
+ * <p>Since the Data Edit List is encrypted, the plaintext size reported is the size of all the
+ * encrypted data, before any Data Edit List is applied.
+ */
+public class HeaderInspector {
+
+  /** The size of the encoded X25519 public key of the writer at the start of a header packet */
+  private static final int WRITER_PUBLIC_KEY_SIZE = 32;
+
+  /**
+   * The size of a header packet without its payload: packet length (4 bytes), encryption method (4
+   * bytes), writer public key (32 bytes), nonce (12 bytes) and MAC (16 bytes)
+   */
+  private static final int HEADER_PACKET_OVERHEAD =
+      4
+          + 4
+          + WRITER_PUBLIC_KEY_SIZE
+          + ChaCha20IETFPoly1305Segment.NONCE_SIZE
+          + ChaCha20IETFPoly1305Segment.MAC_SIZE;
+
+  /** The size of a Data Encryption Parameters payload: type, method and data key */
+  private static final int DATA_ENCRYPTION_PARAMETERS_SIZE = 4 + 4 + 32;
+
+  /** The size of the encryption overhead of a segment: nonce and MAC */
+  private static final int SEGMENT_OVERHEAD =
+      DataEncryptionMethod.CHACHA20_IETF_POLY1305.getEncryptedSegmentSize()
+          - Segment.UNENCRYPTED_DATA_SEGMENT_SIZE;
+
+  private static HeaderInspector ourInstance = new HeaderInspector();
+
+  /**
+   * Returns a singleton instance of this class.
+   *
+   * @return a HeaderInspector object
+   */
+  public static HeaderInspector getInstance() {
+    return ourInstance;
+  }
+
+  private HeaderInspector() {}
+
+  /**
+   * Inspects a Crypt4GH file.
+   *
+   * @param source Channel to read the Crypt4GH file from. Only the header is read, from the start
+   *     of the file.
+   * @return The structure of the header and the sizes of the data.
+   * @throws IOException In case of I/O error.
+   * @throws GeneralSecurityException In case the file is not a valid Crypt4GH file.
+   */
+  public Report inspect(FileChannel source) throws IOException, GeneralSecurityException {
+    source.position(0);
+    return inspect(Channels.newInputStream(source), source.size());
+  }
+
+  /**
+   * Inspects a Crypt4GH file whose size is known, e.g. an object in a remote store read with a
+   * ranged request. Only the header is read from the stream.
+   *
+   * @param inputStream Stream to read the Crypt4GH file from, from the start.
+   * @param fileSize The size of the whole Crypt4GH file.
+   * @return The structure of the header and the sizes of the data.
+   * @throws IOException In case of I/O error.
+   * @throws GeneralSecurityException In case the file is not a valid Crypt4GH file.
+   */
+  public Report inspect(InputStream inputStream, long fileSize)
+      throws IOException, GeneralSecurityException {
+    byte[] unencryptedHeaderBytes = inputStream.readNBytes(Header.UNENCRYPTED_HEADER_LENGTH);
+    if (unencryptedHeaderBytes.length < Header.UNENCRYPTED_HEADER_LENGTH
+        || !Header.MAGIC_WORD.equals(
+            new String(Arrays.copyOfRange(unencryptedHeaderBytes, 0, 8)))) {
+      throw new GeneralSecurityException("Not a Crypt4GH stream");
+    }
+    int version = Crypt4GHEntity.getInt(Arrays.copyOfRange(unencryptedHeaderBytes, 8, 12));
+    if (Header.VERSION != version) {
+      throw new GeneralSecurityException("Unsupported Crypt4GH version: " + version);
+    }
+    int headerPacketCount =
+        Crypt4GHEntity.getInt(Arrays.copyOfRange(unencryptedHeaderBytes, 12, 16));
+    if (headerPacketCount < 0) {
+      throw new GeneralSecurityException("Invalid header packet count: " + headerPacketCount);
+    }
+    Report report = new Report();
+    report.fileSize = fileSize;
+    report.headerLength = Header.UNENCRYPTED_HEADER_LENGTH;
+    for (int i = 0; i < headerPacketCount; i++) {
+      byte[] packetStart = inputStream.readNBytes(4 + 4 + WRITER_PUBLIC_KEY_SIZE);
+      if (packetStart.length < 4 + 4 + WRITER_PUBLIC_KEY_SIZE) {
+        throw new GeneralSecurityException("Truncated Crypt4GH header");
+      }
+      int packetLength = Crypt4GHEntity.getInt(Arrays.copyOfRange(packetStart, 0, 4));
+      if (packetLength < HEADER_PACKET_OVERHEAD) {
+        throw new GeneralSecurityException("Invalid header packet length: " + packetLength);
+      }
+      int packetEncryptionCode = Crypt4GHEntity.getInt(Arrays.copyOfRange(packetStart, 4, 8));
+      if (packetEncryptionCode != HeaderEncryptionMethod.X25519_CHACHA20_IETF_POLY1305.getCode()) {
+        throw new GeneralSecurityException(
+            "Header Encryption Method not found for code: " + packetEncryptionCode);
+      }
+      inputStream.skipNBytes(packetLength - packetStart.length);
+      report.packetLengths.add(packetLength);
+      report.writerPublicKeys.add(Arrays.copyOfRange(packetStart, 8, packetStart.length));
+      report.headerLength += packetLength;
+    }
+    report.encryptedBodySize = fileSize - report.headerLength;
+    if (!isValidEncryptedBodySize(report.encryptedBodySize)) {
+      throw new GeneralSecurityException("Truncated Crypt4GH file");
+    }
+    report.segmentCount = getSegmentCount(report.encryptedBodySize);
+    report.plaintextSize = getPlaintextSize(report.encryptedBodySize);
+    return report;
+  }
+
+  /**
+   * Computes the size of the encrypted data (all segments, without the header) of a given
+   * plaintext size.
+   *
+   * @param plaintextSize The size of the plaintext.
+   * @return The size of the encrypted data.
+   * @throws IllegalArgumentException If the plaintext size is negative.
+   */
+  public long getEncryptedBodySize(long plaintextSize) {
+    if (plaintextSize < 0) {
+      throw new IllegalArgumentException("Invalid plaintext size: " + plaintextSize);
+    }
+    long segmentCount =
+        (plaintextSize + Segment.UNENCRYPTED_DATA_SEGMENT_SIZE - 1)
+            / Segment.UNENCRYPTED_DATA_SEGMENT_SIZE;
+    return plaintextSize + segmentCount * SEGMENT_OVERHEAD;
+  }
+
+  /**
+   * Computes the size of the plaintext of a given size of encrypted data (all segments, without
+   * the header).
+   *
+   * @param encryptedBodySize The size of the encrypted data.
+   * @return The size of the plaintext.
+   * @throws IllegalArgumentException If no plaintext encrypts to this size, e.g. because the
+   *     encrypted data is truncated.
+   */
+  public long getPlaintextSize(long encryptedBodySize) {
+    if (!isValidEncryptedBodySize(encryptedBodySize)) {
+      throw new IllegalArgumentException("Invalid encrypted data size: " + encryptedBodySize);
+    }
+    return encryptedBodySize - getSegmentCount(encryptedBodySize) * SEGMENT_OVERHEAD;
+  }
+
+  /**
+   * Computes the number of segments of a given size of encrypted data.
+   *
+   * @param encryptedBodySize The size of the encrypted data.
+   * @return The number of segments.
+   */
+  public long getSegmentCount(long encryptedBodySize) {
+    long encryptedSegmentSize =
+        DataEncryptionMethod.CHACHA20_IETF_POLY1305.getEncryptedSegmentSize();
+    return (encryptedBodySize + encryptedSegmentSize - 1) / encryptedSegmentSize;
+  }
+
+  /**
+   * Computes the size of the header written by Crypt4GHOutputStream for one recipient.
+   *
+   * @param dataEditList The Data Edit List written to the header, or null.
+   * @return The size of the header.
+   */
+  public int getHeaderLength(DataEditList dataEditList) {
+    int headerLength =
+        Header.UNENCRYPTED_HEADER_LENGTH + HEADER_PACKET_OVERHEAD + DATA_ENCRYPTION_PARAMETERS_SIZE;
+    if (dataEditList != null) {
+      headerLength += HEADER_PACKET_OVERHEAD + 4 + 4 + 8 * dataEditList.getLengths().length;
+    }
+    return headerLength;
+  }
+
+  /**
+   * Computes the size of the Crypt4GH file written by Crypt4GHOutputStream (or the encryption
+   * methods of Crypt4GHUtils) for one recipient, e.g. to set the Content-Length of an upload or to
+   * plan the parts of a multipart upload before encrypting.
+   *
+   * @param plaintextSize The size of the plaintext.
+   * @param dataEditList The Data Edit List written to the header, or null.
+   * @return The size of the Crypt4GH file.
+   */
+  public long getEncryptedSize(long plaintextSize, DataEditList dataEditList) {
+    return getHeaderLength(dataEditList) + getEncryptedBodySize(plaintextSize);
+  }
+
+  /**
+   * Tells whether some plaintext encrypts to a given size of encrypted data, i.e. whether the last
+   * segment is large enough to hold its nonce and MAC.
+   *
+   * @param encryptedBodySize The size of the encrypted data.
+   * @return True if the size is valid.
+   */
+  private boolean isValidEncryptedBodySize(long encryptedBodySize) {
+    if (encryptedBodySize < 0) {
+      return false;
+    }
+    long lastSegmentSize =
+        encryptedBodySize % DataEncryptionMethod.CHACHA20_IETF_POLY1305.getEncryptedSegmentSize();
+    return lastSegmentSize == 0 || lastSegmentSize >= SEGMENT_OVERHEAD;
+  }
+
+  /** The structure of the header and the sizes of the data of a Crypt4GH file. */
+  @ToString
+  public static class Report {
+
+    /** The size of the whole file */
+    @Getter private long fileSize;
+
+    /** The size of the header, including all header packets */
+    @Getter private long headerLength;
+
+    /** The lengths of the header packets, in the order they appear in the header */
+    private final List<Integer> packetLengths = new ArrayList<>();
+
+    /**
+     * The encoded X25519 public keys of the writers of the header packets (as found in Crypt4GH
+     * public key files), in the order they appear in the header
+     */
+    private final List<byte[]> writerPublicKeys = new ArrayList<>();
+
+    /** The size of the encrypted data, i.e. all segments */
+    @Getter private long encryptedBodySize;
+
+    /** The number of segments */
+    @Getter private long segmentCount;
+
+    /** The size of the plaintext, before any Data Edit List is applied */
+    @Getter private long plaintextSize;
+
+    /**
+     * Returns the number of header packets.
+     *
+     * @return The number of header packets.
+     */
+    public int getPacketCount() {
+      return packetLengths.size();
+    }
+
+    /**
+     * Returns the lengths of the header packets.
+     *
+     * @return The lengths of the header packets, in the order they appear in the header.
+     */
+    public List<Integer> getPacketLengths() {
+      return Collections.unmodifiableList(packetLengths);
+    }
+
+    /**
+     * Returns the encoded X25519 public keys of the writers of the header packets.
+     *
+     * @return The writer public keys (32 bytes each), in the order they appear in the header.
+     */
+    public List<byte[]> getWriterPublicKeys() {
+      return Collections.unmodifiableList(writerPublicKeys);
+    }
+  }
+}
@@ -0,0 +1,284 @@
+package no.elixir.crypt4gh.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.Getter;
+import lombok.ToString;
+import no.elixir.crypt4gh.pojo.body.Segment;
+import no.elixir.crypt4gh.pojo.header.DataEncryptionParameters;
+import no.elixir.crypt4gh.pojo.header.Header;
+
+/**
+ * Verifies the integrity of a Crypt4GH file by checking the MAC of every segment with the session
+ * key, without writing the decrypted data anywhere. The segments are read with positional reads
+ * and checked by several tasks at the same time, each taking the next unchecked segment, so the
+ * verification scales with the number of cores instead of running at the speed of a single
+ * decrypting stream.
+ */
+public class IntegrityVerifier {
+
+  private static IntegrityVerifier ourInstance = new IntegrityVerifier();
+
+  /**
+   * Returns a singleton instance of this class.
+   *
+   * @return an IntegrityVerifier object
+   */
+  public static IntegrityVerifier getInstance() {
+    return ourInstance;
+  }
+
+  private IntegrityVerifier() {}
+
+  /**
+   * Verifies every segment of a Crypt4GH file in the common ForkJoinPool, with one task per
+   * thread of the pool.
+   *
+   * @param source Channel to read the Crypt4GH file from.
+   * @param readerPrivateKey Recipient's private key.
+   * @return The outcome of the verification.
+   * @throws IOException In case of I/O error.
+   * @throws GeneralSecurityException In case the header can't be decrypted.
+   */
+  public Report verify(FileChannel source, PrivateKey readerPrivateKey)
+      throws IOException, GeneralSecurityException {
+    return verify(
+        source,
+        readerPrivateKey,
+        null,
+        ForkJoinPool.commonPool(),
+        ForkJoinPool.getCommonPoolParallelism());
+  }
+
+  /**
+   * Verifies every segment of a Crypt4GH file. The header is parsed with the private key to get the
+   * session keys, then the segments are checked by the given number of tasks. Checking stops at the
+   * first segment that fails, but all the segments before it are still checked, so the failing
+   * segment reported is always the first one in the file.
+   *
+   * @param source Channel to read the Crypt4GH file from.
+   * @param readerPrivateKey Recipient's private key.
+   * @param segmentIndex Index of the segments of the file, or null to assume that all segments but
+   *     the last one are full.
+   * @param executor Executor to check the segments in.
+   * @param parallelism Number of tasks checking segments at the same time.
+   * @return The outcome of the verification.
+   * @throws IOException In case of I/O error, or if the index doesn't match the header or the size
+   *     of the file.
+   * @throws GeneralSecurityException In case the header can't be decrypted.
+   */
+  public Report verify(
+      FileChannel source,
+      PrivateKey readerPrivateKey,
+      SegmentIndex segmentIndex,
+      ExecutorService executor,
+      int parallelism)
+      throws IOException, GeneralSecurityException {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("At least one task is required: " + parallelism);
+    }
+    long start = System.nanoTime();
+    source.position(0);
+    Header header = new Header(Channels.newInputStream(source), readerPrivateKey);
+    long dataStart = source.position();
+    long fileSize = source.size();
+    // an index of a shorter file would leave the data after its last segment unchecked
+    if (segmentIndex != null
+        && (segmentIndex.getHeaderLength() != dataStart
+            || segmentIndex.getFileSize() != fileSize)) {
+      throw new IOException("The segment index doesn't match the file");
+    }
+    Collection<DataEncryptionParameters> dataEncryptionParametersList =
+        header.getDataEncryptionParametersList();
+    int encryptedSegmentSize =
+        dataEncryptionParametersList
+            .iterator()
+            .next()
+            .getDataEncryptionMethod()
+            .getEncryptedSegmentSize();
+    long segmentCount =
+        segmentIndex != null
+            ? segmentIndex.getSegmentCount()
+            : (fileSize - dataStart + encryptedSegmentSize - 1) / encryptedSegmentSize;
+
+    Verification verification =
+        new Verification(
+            source,
+            segmentIndex,
+            dataEncryptionParametersList,
+            dataStart,
+            fileSize,
+            encryptedSegmentSize,
+            segmentCount);
+    List<Future<?>> futures = new ArrayList<>();
+    for (long i = 0; i < Math.min(parallelism, segmentCount); i++) {
+      futures.add(
+          executor.submit(
+              () -> {
+                verification.verifySegments();
+                return null;
+              }));
+    }
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while verifying the segments", e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new IOException(e.getCause());
+      }
+    }
+
+    Report report = new Report();
+    report.segmentCount = segmentCount;
+    report.verifiedSegmentCount = verification.verifiedSegments.sum();
+    report.verifiedBytes = verification.verifiedBytes.sum();
+    long firstFailedSegment = verification.firstFailedSegment.get();
+    if (firstFailedSegment != Long.MAX_VALUE) {
+      report.firstFailedSegment = firstFailedSegment;
+      report.firstFailedSegmentPosition =
+          segmentIndex != null
+              ? segmentIndex.getSegmentPosition((int) firstFailedSegment)
+              : dataStart + firstFailedSegment * encryptedSegmentSize;
+    }
+    report.durationNanos = System.nanoTime() - start;
+    return report;
+  }
+
+  /** The state shared by the tasks verifying the segments of a file. */
+  private static class Verification {
+
+    private final FileChannel source;
+    private final SegmentIndex segmentIndex;
+    private final Collection<DataEncryptionParameters> dataEncryptionParametersList;
+    private final long dataStart;
+    private final long fileSize;
+    private final int encryptedSegmentSize;
+    private final long segmentCount;
+    private final AtomicLong nextSegment = new AtomicLong();
+    private final AtomicLong firstFailedSegment = new AtomicLong(Long.MAX_VALUE);
+    private final LongAdder verifiedSegments = new LongAdder();
+    private final LongAdder verifiedBytes = new LongAdder();
+
+    Verification(
+        FileChannel source,
+        SegmentIndex segmentIndex,
+        Collection<DataEncryptionParameters> dataEncryptionParametersList,
+        long dataStart,
+        long fileSize,
+        int encryptedSegmentSize,
+        long segmentCount) {
+      this.source = source;
+      this.segmentIndex = segmentIndex;
+      this.dataEncryptionParametersList = dataEncryptionParametersList;
+      this.dataStart = dataStart;
+      this.fileSize = fileSize;
+      this.encryptedSegmentSize = encryptedSegmentSize;
+      this.segmentCount = segmentCount;
+    }
+
+    /**
+     * Checks the next unchecked segment until all segments are checked, or all the segments left
+     * come after a segment that failed.
+     *
+     * @throws IOException In case a segment can't be read.
+     */
+    void verifySegments() throws IOException {
+      ByteBuffer encryptedSegment = ByteBuffer.allocate(encryptedSegmentSize);
+      byte[] decryptedSegment = new byte[encryptedSegmentSize];
+      long segment;
+      while ((segment = nextSegment.getAndIncrement()) < segmentCount
+          && segment < firstFailedSegment.get()) {
+        long position;
+        int length;
+        if (segmentIndex != null) {
+          position = segmentIndex.getSegmentPosition((int) segment);
+          length = segmentIndex.getEncryptedSegmentLength((int) segment);
+        } else {
+          position = dataStart + segment * encryptedSegmentSize;
+          length = (int) Math.min(encryptedSegmentSize, fileSize - position);
+        }
+        if (encryptedSegment.capacity() < length) {
+          encryptedSegment = ByteBuffer.allocate(length);
+          decryptedSegment = new byte[length];
+        }
+        encryptedSegment.clear().limit(length);
+        while (encryptedSegment.hasRemaining()) {
+          if (source.read(encryptedSegment, position + encryptedSegment.position()) == -1) {
+            break;
+          }
+        }
+        try {
+          if (encryptedSegment.hasRemaining()) {
+            throw new GeneralSecurityException("Truncated segment");
+          }
+          Segment.decrypt(
+              encryptedSegment.array(), length, decryptedSegment, 0, dataEncryptionParametersList);
+          verifiedSegments.increment();
+          verifiedBytes.add(length);
+        } catch (GeneralSecurityException e) {
+          firstFailedSegment.accumulateAndGet(segment, Math::min);
+        }
+      }
+    }
+  }
+
+  /** The outcome of verifying the segments of a Crypt4GH file. */
+  @Getter
+  @ToString
+  public static class Report {
+
+    /** The number of segments in the file */
+    private long segmentCount;
+
+    /** The number of segments whose MAC was verified */
+    private long verifiedSegmentCount;
+
+    /** The number of bytes of encrypted segments whose MAC was verified */
+    private long verifiedBytes;
+
+    /** The index of the first segment that failed verification, or -1 */
+    private long firstFailedSegment = -1;
+
+    /** The position in the file of the first segment that failed verification, or -1 */
+    private long firstFailedSegmentPosition = -1;
+
+    /** The time the verification took, header included, in nanoseconds */
+    private long durationNanos;
+
+    /**
+     * Tells whether all segments were verified.
+     *
+     * @return True if no segment failed verification.
+     */
+    public boolean isValid() {
+      return firstFailedSegment == -1;
+    }
+
+    /**
+     * Returns the throughput of the verification.
+     *
+     * @return The number of bytes verified per second.
+     */
+    public double getThroughput() {
+      return durationNanos == 0 ? 0 : verifiedBytes * 1e9 / durationNanos;
+    }
+  }
+}
@@ -3,7 +3,6 @@ package no.elixir.crypt4gh.util;
 import static no.elixir.crypt4gh.pojo.header.X25519ChaCha20IETFPoly1305HeaderPacket.CHA_CHA_20_POLY_1305;
 import static no.elixir.crypt4gh.pojo.header.X25519ChaCha20IETFPoly1305HeaderPacket.NONCE_SIZE;
 
-import com.rfksystems.blake2b.Blake2b;
 import com.rfksystems.blake2b.security.Blake2bProvider;
 import java.io.*;
 import java.math.BigInteger;
@@ -82,10 +81,31 @@ public class KeyUtils {
     return ourInstance;
   }
 
+  /** Role of shared keys derived from the writer's private key and the reader's public key */
+  private static final String WRITER_ROLE = "writer";
+
+  /** Role of shared keys derived from the reader's private key and the writer's public key */
+  private static final String READER_ROLE = "reader";
+
+  /** Cache of the public keys and shared keys derived by this class */
+  private final DerivedKeyCache derivedKeyCache =
+      new DerivedKeyCache(DerivedKeyCache.DEFAULT_MAX_ENTRIES);
+
   private KeyUtils() {
     Security.addProvider(new Blake2bProvider());
   }
 
+  /**
+   * Returns the cache used by {@link #getPublicKey(PrivateKey)}, {@link
+   * #getWriterSharedKey(PrivateKey, PublicKey)} and {@link #getReaderSharedKey(PrivateKey,
+   * PublicKey)}, e.g. to invalidate a key that should no longer be used.
+   *
+   * @return the cache of derived keys
+   */
+  public DerivedKeyCache getDerivedKeyCache() {
+    return derivedKeyCache;
+  }
+
   /**
    * Generates X25519 key pair.
    *
@@ -123,7 +143,7 @@ public class KeyUtils {
    * @throws GeneralSecurityException In case U can't be extracted.
    */
   public byte[] getU(PublicKey publicKey) throws GeneralSecurityException {
-    KeyFactory keyFactory = KeyFactory.getInstance(X25519);
+    KeyFactory keyFactory = CryptoPrimitivePool.getX25519KeyFactory();
     XECPublicKeySpec publicKeySpec = keyFactory.getKeySpec(publicKey, XECPublicKeySpec.class);
     byte[] u = publicKeySpec.getU().toByteArray();
     ArrayUtils.reverse(
@@ -141,7 +161,7 @@ public class KeyUtils {
    * @throws GeneralSecurityException In case scalar can't be extracted.
    */
   public byte[] getScalar(PrivateKey privateKey) throws GeneralSecurityException {
-    KeyFactory keyFactory = KeyFactory.getInstance(X25519);
+    KeyFactory keyFactory = CryptoPrimitivePool.getX25519KeyFactory();
     XECPrivateKeySpec publicKeySpec = keyFactory.getKeySpec(privateKey, XECPrivateKeySpec.class);
     return publicKeySpec.getScalar();
   }
@@ -167,7 +187,7 @@ public class KeyUtils {
    *     given scalar.
    */
   public PrivateKey constructPrivateKey(byte[] scalar) throws GeneralSecurityException {
-    KeyFactory keyFactory = KeyFactory.getInstance(X25519);
+    KeyFactory keyFactory = CryptoPrimitivePool.getX25519KeyFactory();
     return keyFactory.generatePrivate(
         new XECPrivateKeySpec(new NamedParameterSpec(X25519), scalar));
   }
@@ -181,7 +201,7 @@ public class KeyUtils {
    *     given U.
    */
   public PublicKey constructPublicKey(byte[] u) throws GeneralSecurityException {
-    KeyFactory keyFactory = KeyFactory.getInstance(X25519);
+    KeyFactory keyFactory = CryptoPrimitivePool.getX25519KeyFactory();
     u = u.clone();
     ArrayUtils.reverse(
         u); // conversion from byte[] to BigInteger will reverse array, thus reversing it here in
@@ -204,6 +224,18 @@ public class KeyUtils {
     return keyPairGenerator.generateKeyPair().getPublic();
   }
 
+  /**
+   * Returns the X25519 public key derived from the given X25519 private key, using the cache of
+   * derived keys.
+   *
+   * @param privateKey X25519 private key to derive public key from.
+   * @return Derived X25519 public key.
+   * @throws GeneralSecurityException In case X25519 public key can't be derived.
+   */
+  public PublicKey getPublicKey(PrivateKey privateKey) throws GeneralSecurityException {
+    return derivedKeyCache.getPublicKey(privateKey, () -> derivePublicKey(privateKey));
+  }
+
   /**
    * Generates Diffie Hellman shared key from sender's X25519 private and recipient's X25519 public
    * keys.
@@ -216,7 +248,7 @@ public class KeyUtils {
    */
   public byte[] generateDiffieHellmanSharedKey(PrivateKey privateKey, PublicKey publicKey)
       throws NoSuchAlgorithmException, InvalidKeyException {
-    KeyAgreement keyAgreement = KeyAgreement.getInstance(X25519);
+    KeyAgreement keyAgreement = CryptoPrimitivePool.getX25519KeyAgreement();
     keyAgreement.init(privateKey);
     keyAgreement.doPhase(publicKey, true);
     return keyAgreement.generateSecret();
@@ -233,10 +265,10 @@ public class KeyUtils {
    */
   public SecretKey generateWriterSharedKey(PrivateKey writerPrivateKey, PublicKey readerPublicKey)
       throws GeneralSecurityException {
-    PublicKey writerPublicKey = derivePublicKey(writerPrivateKey);
+    PublicKey writerPublicKey = getPublicKey(writerPrivateKey);
     byte[] diffieHellmanKey = generateDiffieHellmanSharedKey(writerPrivateKey, readerPublicKey);
     byte[] digest =
-        MessageDigest.getInstance(Blake2b.BLAKE2_B_512)
+        CryptoPrimitivePool.getBlake2b512Digest()
             .digest(
                 ArrayUtils.addAll(
                     ArrayUtils.addAll(diffieHellmanKey, encodeKey(readerPublicKey)),
@@ -255,10 +287,10 @@ public class KeyUtils {
    */
   public SecretKey generateReaderSharedKey(PrivateKey readerPrivateKey, PublicKey writerPublicKey)
       throws GeneralSecurityException {
-    PublicKey readerPublicKey = derivePublicKey(readerPrivateKey);
+    PublicKey readerPublicKey = getPublicKey(readerPrivateKey);
     byte[] diffieHellmanKey = generateDiffieHellmanSharedKey(readerPrivateKey, writerPublicKey);
     byte[] digest =
-        MessageDigest.getInstance(Blake2b.BLAKE2_B_512)
+        CryptoPrimitivePool.getBlake2b512Digest()
             .digest(
                 ArrayUtils.addAll(
                     ArrayUtils.addAll(diffieHellmanKey, encodeKey(readerPublicKey)),
@@ -266,6 +298,46 @@ public class KeyUtils {
     return new SecretKeySpec(Arrays.copyOfRange(digest, 0, 32), CHA_CHA_20);
   }
 
+  /**
+   * Returns writer's shared key based on sender's X25519 private and recipient's X25519 public
+   * keys, using the cache of derived keys. Equivalent to {@link
+   * #generateWriterSharedKey(PrivateKey, PublicKey)}, but the key exchange and digest only run once
+   * for each pair of keys as long as the shared key stays in the cache.
+   *
+   * @param writerPrivateKey Sender's X25519 private key.
+   * @param readerPublicKey Recipient's X25519 public key.
+   * @return Blake2b-based shared key.
+   * @throws GeneralSecurityException In case there's a problem in generating keys.
+   */
+  public SecretKey getWriterSharedKey(PrivateKey writerPrivateKey, PublicKey readerPublicKey)
+      throws GeneralSecurityException {
+    return derivedKeyCache.getSharedKey(
+        WRITER_ROLE,
+        writerPrivateKey,
+        readerPublicKey,
+        () -> generateWriterSharedKey(writerPrivateKey, readerPublicKey));
+  }
+
+  /**
+   * Returns reader's shared key based on recipient's X25519 private and sender's X25519 public
+   * keys, using the cache of derived keys. Equivalent to {@link
+   * #generateReaderSharedKey(PrivateKey, PublicKey)}, but the key exchange and digest only run once
+   * for each pair of keys as long as the shared key stays in the cache.
+   *
+   * @param readerPrivateKey Recipient's X25519 private key.
+   * @param writerPublicKey Sender's X25519 public key.
+   * @return Blake2b-based shared key.
+   * @throws GeneralSecurityException In case there's a problem in generating keys.
+   */
+  public SecretKey getReaderSharedKey(PrivateKey readerPrivateKey, PublicKey writerPublicKey)
+      throws GeneralSecurityException {
+    return derivedKeyCache.getSharedKey(
+        READER_ROLE,
+        readerPrivateKey,
+        writerPublicKey,
+        () -> generateReaderSharedKey(readerPrivateKey, writerPublicKey));
+  }
+
   /**
    * Generates ChaCha20 secret key.
    *
@@ -297,7 +369,7 @@ public class KeyUtils {
    * @throws GeneralSecurityException If the key can't be constructed from the given content.
    */
   public PublicKey readPublicKey(String keyMaterial) throws GeneralSecurityException {
-    KeyFactory keyFactory = KeyFactory.getInstance(X25519);
+    KeyFactory keyFactory = CryptoPrimitivePool.getX25519KeyFactory();
     byte[] decodedKey = decodeKey(keyMaterial);
     try {
       return keyFactory.generatePublic(new X509EncodedKeySpec(decodedKey));
@@ -334,7 +406,7 @@ public class KeyUtils {
    */
   public PrivateKey readPrivateKey(String keyMaterial, char[] password)
       throws GeneralSecurityException, IllegalArgumentException {
-    KeyFactory keyFactory = KeyFactory.getInstance(X25519);
+    KeyFactory keyFactory = CryptoPrimitivePool.getX25519KeyFactory();
     byte[] decodedKey = decodeKey(keyMaterial);
     try {
       return keyFactory.generatePrivate(new PKCS8EncodedKeySpec(decodedKey));
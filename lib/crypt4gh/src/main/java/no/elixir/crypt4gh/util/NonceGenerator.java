@@ -0,0 +1,41 @@
+package no.elixir.crypt4gh.util;
+
+/**
+ * A source of nonces for ChaCha20-Poly1305 encryption of header packets and data segments.
+ *
+ * <p>Implementations must be thread-safe, and must never hand out the same nonce twice for the same
+ * encryption key. Two implementations are provided: {@link RandomNonceGenerator}, which draws every
+ * nonce from a shared non-blocking DRBG and is the default, and {@link CounterNonceGenerator},
+ * which combines a random prefix with a counter and is meant to be used for the segments of a
+ * single stream (i.e. with a single session key).
+ */
+public interface NonceGenerator {
+
+  /**
+   * Places a new nonce in (a part of) the provided array.
+   *
+   * @param nonce the array to place the nonce into
+   * @param offset the position in the array where the nonce should start
+   * @param length the length of the nonce (in bytes)
+   */
+  void nextNonce(byte[] nonce, int offset, int length);
+
+  /**
+   * Fills the provided array with a new nonce.
+   *
+   * @param nonce the array to place the nonce into
+   */
+  default void nextNonce(byte[] nonce) {
+    nextNonce(nonce, 0, nonce.length);
+  }
+
+  /**
+   * Returns the default nonce generator, which is shared by all header packets and data segments
+   * unless another generator is specified.
+   *
+   * @return the shared {@link RandomNonceGenerator}
+   */
+  static NonceGenerator getDefault() {
+    return RandomNonceGenerator.getInstance();
+  }
+}
@@ -0,0 +1,61 @@
+package no.elixir.crypt4gh.util;
+
+import java.security.DrbgParameters;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Nonce generator drawing every nonce from a single, shared DRBG (NIST SP 800-90A deterministic
+ * random bit generator). The DRBG is seeded once from the platform's entropy source and is
+ * instantiated without prediction resistance, so generating nonces never waits for the strong
+ * (potentially blocking) entropy pool. The DRBG is thread-safe.
+ */
+public class RandomNonceGenerator implements NonceGenerator {
+
+  /** Singleton instance of this class */
+  private static final RandomNonceGenerator ourInstance = new RandomNonceGenerator();
+
+  /**
+   * Returns a singleton instance of this class.
+   *
+   * @return a RandomNonceGenerator object
+   */
+  public static RandomNonceGenerator getInstance() {
+    return ourInstance;
+  }
+
+  /** Per-thread scratch buffer for nonces that fill only part of an array */
+  private static final ThreadLocal<byte[]> RANDOM_BYTES = new ThreadLocal<>();
+
+  /** The random number generator all nonces are drawn from */
+  private final SecureRandom secureRandom;
+
+  private RandomNonceGenerator() {
+    SecureRandom drbg;
+    try {
+      drbg =
+          SecureRandom.getInstance(
+              "DRBG",
+              DrbgParameters.instantiation(256, DrbgParameters.Capability.RESEED_ONLY, null));
+    } catch (NoSuchAlgorithmException e) {
+      drbg = new SecureRandom();
+    }
+    this.secureRandom = drbg;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void nextNonce(byte[] nonce, int offset, int length) {
+    if (offset == 0 && length == nonce.length) {
+      secureRandom.nextBytes(nonce);
+    } else {
+      byte[] randomBytes = RANDOM_BYTES.get();
+      if (randomBytes == null || randomBytes.length != length) {
+        randomBytes = new byte[length];
+        RANDOM_BYTES.set(randomBytes);
+      }
+      secureRandom.nextBytes(randomBytes);
+      System.arraycopy(randomBytes, 0, nonce, offset, length);
+    }
+  }
+}
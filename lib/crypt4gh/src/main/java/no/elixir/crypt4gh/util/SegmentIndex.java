@@ -0,0 +1,399 @@
+package no.elixir.crypt4gh.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import no.elixir.crypt4gh.pojo.body.ChaCha20IETFPoly1305Segment;
+import no.elixir.crypt4gh.pojo.header.DataEncryptionMethod;
+
+/**
+ * Index of the segments of a Crypt4GH file, stored next to it in a sidecar file (e.g.
+ * "file.c4gh.idx"). The index records the length of the header and the position and length of every
+ * encrypted segment, so readers can map a position in the decrypted data to its segment without
+ * assuming that all segments but the last one are full, and optionally a truncated SHA-256 hash of
+ * every encrypted segment, so corrupted segments can be found without decrypting the file.
+ *
+ * <p>An index is either built while encrypting (see {@link
+ * no.elixir.crypt4gh.stream.Crypt4GHOutputStream#createSegmentIndex(boolean)}), or from an existing
+ * file with {@link #create(FileChannel, PrivateKey, boolean)}. The sidecar format is little-endian:
+ * the magic word "c4ghidx1", the length of the hashes (4-byte integer, 0 without hashes), the
+ * header length and the number of segments (8-byte longs), and then for every segment its position
+ * (8-byte long), its length (4-byte integer) and its hash.
+ */
+public class SegmentIndex {
+
+  /** The suffix of index files, appended to the name of the Crypt4GH file */
+  public static final String SUFFIX = ".idx";
+
+  /** The number of bytes of the SHA-256 hash of a segment kept in the index */
+  public static final int HASH_LENGTH = 8;
+
+  /** The magic word at the start of index files */
+  private static final String MAGIC_WORD = "c4ghidx1";
+
+  /** The size of the encryption overhead of a segment: nonce and MAC */
+  private static final int SEGMENT_OVERHEAD =
+      ChaCha20IETFPoly1305Segment.NONCE_SIZE + ChaCha20IETFPoly1305Segment.MAC_SIZE;
+
+  /** The length of a full encrypted segment, the longest a segment can be */
+  private static final int MAX_SEGMENT_LENGTH =
+      DataEncryptionMethod.CHACHA20_IETF_POLY1305.getEncryptedSegmentSize();
+
+  /** The position in the file where the first segment starts */
+  private final long headerLength;
+
+  /** Whether the hashes of the segments are recorded */
+  private final boolean hashed;
+
+  /** The number of segments in the index */
+  private int segmentCount;
+
+  /** The positions in the file where the segments start, followed by where the last one ends */
+  private long[] segmentPositions;
+
+  /** The positions in the decrypted data where the segments start, followed by the data size */
+  private long[] plaintextPositions;
+
+  /** The truncated hashes of the segments, one after the other */
+  private byte[] hashes;
+
+  /**
+   * Creates an empty index, to which the segments are added in the order they appear in the file.
+   *
+   * @param headerLength The length of the header of the file, i.e. the position of the first
+   *     segment.
+   * @param hashed Whether to record a truncated SHA-256 hash of every segment.
+   */
+  public SegmentIndex(long headerLength, boolean hashed) {
+    if (headerLength < 0) {
+      throw new IllegalArgumentException("Invalid header length: " + headerLength);
+    }
+    this.headerLength = headerLength;
+    this.hashed = hashed;
+    this.segmentPositions = new long[16];
+    this.plaintextPositions = new long[16];
+    this.hashes = new byte[hashed ? 16 * HASH_LENGTH : 0];
+    segmentPositions[0] = headerLength;
+  }
+
+  /**
+   * Builds the index of an existing Crypt4GH file. The length of every segment is checked by
+   * decrypting it, and the actual length of short segments in the middle of the data is found the
+   * same way as by {@link SegmentValidator}, so the index is correct for such files too.
+   *
+   * @param source Channel to read the Crypt4GH file from, from the start.
+   * @param readerPrivateKey Recipient's private key.
+   * @param hashed Whether to record a truncated SHA-256 hash of every segment.
+   * @return The index of the file.
+   * @throws IOException In case of I/O error.
+   * @throws GeneralSecurityException In case the header or one of the segments can't be decrypted.
+   */
+  public static SegmentIndex create(FileChannel source, PrivateKey readerPrivateKey, boolean hashed)
+      throws IOException, GeneralSecurityException {
+    SegmentValidator.Report report =
+        SegmentValidator.getInstance().scan(source, readerPrivateKey, true, hashed);
+    if (report.getUnreadableSegmentPosition() != -1) {
+      throw new GeneralSecurityException(
+          "Segment can't be decrypted at byte " + report.getUnreadableSegmentPosition());
+    }
+    return report.segmentIndex;
+  }
+
+  /**
+   * Adds the next segment of the file to the index.
+   *
+   * @param encryptedSegment An array containing the encrypted segment (nonce, encrypted data and
+   *     MAC).
+   * @param offset The position of the segment in the array.
+   * @param length The length of the encrypted segment.
+   * @throws NoSuchAlgorithmException In case SHA-256 is not available.
+   */
+  public void addSegment(byte[] encryptedSegment, int offset, int length)
+      throws NoSuchAlgorithmException {
+    if (length < SEGMENT_OVERHEAD || length > MAX_SEGMENT_LENGTH) {
+      throw new IllegalArgumentException("Invalid segment length: " + length);
+    }
+    byte[] hash = null;
+    if (hashed) {
+      MessageDigest sha256 = CryptoPrimitivePool.getSha256Digest();
+      sha256.update(encryptedSegment, offset, length);
+      hash = sha256.digest();
+    }
+    append(length, hash);
+  }
+
+  /**
+   * Returns the length of the header of the file, i.e. the position of the first segment.
+   *
+   * @return The length of the header.
+   */
+  public long getHeaderLength() {
+    return headerLength;
+  }
+
+  /**
+   * Tells whether the index records the hashes of the segments.
+   *
+   * @return True if the hashes are recorded.
+   */
+  public boolean isHashed() {
+    return hashed;
+  }
+
+  /**
+   * Returns the number of segments in the index.
+   *
+   * @return The number of segments.
+   */
+  public int getSegmentCount() {
+    return segmentCount;
+  }
+
+  /**
+   * Returns the position in the file where a segment starts.
+   *
+   * @param segmentIndex The index of the segment.
+   * @return The position of the encrypted segment.
+   */
+  public long getSegmentPosition(int segmentIndex) {
+    return segmentPositions[checkSegmentIndex(segmentIndex)];
+  }
+
+  /**
+   * Returns the length of an encrypted segment, including its nonce and MAC.
+   *
+   * @param segmentIndex The index of the segment.
+   * @return The length of the encrypted segment.
+   */
+  public int getEncryptedSegmentLength(int segmentIndex) {
+    checkSegmentIndex(segmentIndex);
+    return (int) (segmentPositions[segmentIndex + 1] - segmentPositions[segmentIndex]);
+  }
+
+  /**
+   * Returns the position in the decrypted data where a segment starts.
+   *
+   * @param segmentIndex The index of the segment.
+   * @return The position of the decrypted segment.
+   */
+  public long getPlaintextPosition(int segmentIndex) {
+    return plaintextPositions[checkSegmentIndex(segmentIndex)];
+  }
+
+  /**
+   * Returns the truncated SHA-256 hash of an encrypted segment.
+   *
+   * @param segmentIndex The index of the segment.
+   * @return The first {@link #HASH_LENGTH} bytes of the SHA-256 hash of the encrypted segment.
+   * @throws IllegalStateException If the index doesn't record hashes.
+   */
+  public byte[] getSegmentHash(int segmentIndex) {
+    checkSegmentIndex(segmentIndex);
+    if (!hashed) {
+      throw new IllegalStateException("The segment index doesn't record hashes");
+    }
+    int hashStart = segmentIndex * HASH_LENGTH;
+    return Arrays.copyOfRange(hashes, hashStart, hashStart + HASH_LENGTH);
+  }
+
+  /**
+   * Returns the size of the decrypted data, before any Data Edit List is applied.
+   *
+   * @return The size of the decrypted data.
+   */
+  public long getPlaintextSize() {
+    return plaintextPositions[segmentCount];
+  }
+
+  /**
+   * Returns the size of the whole Crypt4GH file.
+   *
+   * @return The position in the file where the last segment ends.
+   */
+  public long getFileSize() {
+    return segmentPositions[segmentCount];
+  }
+
+  /**
+   * Finds the segment holding a position in the decrypted data.
+   *
+   * @param plaintextPosition The position in the decrypted data.
+   * @return The index of the segment, or -1 if the position is at (or past) the end of the data.
+   */
+  public int findSegment(long plaintextPosition) {
+    if (plaintextPosition < 0) {
+      throw new IllegalArgumentException("Position can't be negative: " + plaintextPosition);
+    }
+    if (plaintextPosition >= getPlaintextSize()) {
+      return -1;
+    }
+    int index = Arrays.binarySearch(plaintextPositions, 0, segmentCount, plaintextPosition);
+    // an empty segment starts where the next one starts: skip to the last segment starting here
+    if (index >= 0) {
+      while (index + 1 < segmentCount && plaintextPositions[index + 1] == plaintextPosition) {
+        index++;
+      }
+      return index;
+    }
+    return -index - 2;
+  }
+
+  /**
+   * Checks the segments of a Crypt4GH file against their hashes, without decrypting them.
+   *
+   * @param source Channel to read the Crypt4GH file from.
+   * @return The indices of the segments whose hash doesn't match, or that are missing from the
+   *     file, in ascending order.
+   * @throws IOException In case of I/O error.
+   * @throws NoSuchAlgorithmException In case SHA-256 is not available.
+   * @throws IllegalStateException If the index doesn't record hashes.
+   */
+  public List<Integer> verify(FileChannel source) throws IOException, NoSuchAlgorithmException {
+    if (!hashed) {
+      throw new IllegalStateException("The segment index doesn't record hashes");
+    }
+    List<Integer> corruptedSegments = new ArrayList<>();
+    ByteBuffer buffer = ByteBuffer.allocate(0);
+    MessageDigest sha256 = CryptoPrimitivePool.getSha256Digest();
+    for (int i = 0; i < segmentCount; i++) {
+      int length = getEncryptedSegmentLength(i);
+      if (buffer.capacity() < length) {
+        buffer = ByteBuffer.allocate(length);
+      }
+      buffer.clear().limit(length);
+      while (buffer.hasRemaining()) {
+        if (source.read(buffer, segmentPositions[i] + buffer.position()) == -1) {
+          break;
+        }
+      }
+      sha256.reset();
+      sha256.update(buffer.array(), 0, buffer.position());
+      byte[] hash = sha256.digest();
+      int hashStart = i * HASH_LENGTH;
+      if (buffer.hasRemaining()
+          || !Arrays.equals(
+              hash, 0, HASH_LENGTH, hashes, hashStart, hashStart + HASH_LENGTH)) {
+        corruptedSegments.add(i);
+      }
+    }
+    return corruptedSegments;
+  }
+
+  /**
+   * Writes the index in the sidecar format.
+   *
+   * @param outputStream The stream to write the index to. It is not closed.
+   * @throws IOException In case of I/O error.
+   */
+  public void write(OutputStream outputStream) throws IOException {
+    int hashLength = hashed ? HASH_LENGTH : 0;
+    ByteBuffer buffer = ByteBuffer.allocate(8192).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.put(MAGIC_WORD.getBytes(StandardCharsets.US_ASCII));
+    buffer.putInt(hashLength);
+    buffer.putLong(headerLength);
+    buffer.putLong(segmentCount);
+    for (int i = 0; i < segmentCount; i++) {
+      if (buffer.remaining() < 8 + 4 + hashLength) {
+        outputStream.write(buffer.array(), 0, buffer.position());
+        buffer.clear();
+      }
+      buffer.putLong(segmentPositions[i]);
+      buffer.putInt(getEncryptedSegmentLength(i));
+      buffer.put(hashes, i * hashLength, hashLength);
+    }
+    outputStream.write(buffer.array(), 0, buffer.position());
+  }
+
+  /**
+   * Reads an index in the sidecar format.
+   *
+   * @param inputStream The stream to read the index from.
+   * @return The index.
+   * @throws IOException In case of I/O error, or if the stream doesn't contain a valid index.
+   */
+  public static SegmentIndex read(InputStream inputStream) throws IOException {
+    ByteBuffer start = readFully(inputStream, 8 + 4 + 8 + 8);
+    byte[] magicWord = new byte[8];
+    start.get(magicWord);
+    if (!MAGIC_WORD.equals(new String(magicWord, StandardCharsets.US_ASCII))) {
+      throw new IOException("Not a Crypt4GH segment index");
+    }
+    int hashLength = start.getInt();
+    if (hashLength != 0 && hashLength != HASH_LENGTH) {
+      throw new IOException("Unsupported segment hash length: " + hashLength);
+    }
+    SegmentIndex segmentIndex = new SegmentIndex(start.getLong(), hashLength != 0);
+    long segmentCount = start.getLong();
+    if (segmentCount < 0 || segmentCount >= Integer.MAX_VALUE) {
+      throw new IOException("Invalid segment count: " + segmentCount);
+    }
+    for (long i = 0; i < segmentCount; i++) {
+      ByteBuffer segment = readFully(inputStream, 8 + 4 + hashLength);
+      long position = segment.getLong();
+      int length = segment.getInt();
+      if (position != segmentIndex.getFileSize()
+          || length < SEGMENT_OVERHEAD
+          || length > MAX_SEGMENT_LENGTH) {
+        throw new IOException("Invalid segment in the segment index: " + i);
+      }
+      byte[] hash = new byte[hashLength];
+      segment.get(hash);
+      segmentIndex.append(length, hash);
+    }
+    return segmentIndex;
+  }
+
+  /**
+   * Reads a number of bytes from a stream.
+   *
+   * @param inputStream The stream to read from.
+   * @param length The number of bytes to read.
+   * @return A little-endian buffer holding the bytes.
+   * @throws IOException In case of I/O error, or if the stream ends before all bytes are read.
+   */
+  private static ByteBuffer readFully(InputStream inputStream, int length) throws IOException {
+    byte[] bytes = inputStream.readNBytes(length);
+    if (bytes.length < length) {
+      throw new IOException("Truncated Crypt4GH segment index");
+    }
+    return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * Appends a segment to the index, growing the arrays if needed.
+   *
+   * @param length The length of the encrypted segment.
+   * @param hash The hash of the segment (only the first {@link #HASH_LENGTH} bytes are kept), or
+   *     null if the index doesn't record hashes.
+   */
+  private void append(int length, byte[] hash) {
+    if (segmentCount + 1 == segmentPositions.length) {
+      segmentPositions = Arrays.copyOf(segmentPositions, 2 * segmentPositions.length);
+      plaintextPositions = Arrays.copyOf(plaintextPositions, 2 * plaintextPositions.length);
+      hashes = Arrays.copyOf(hashes, 2 * hashes.length);
+    }
+    if (hashed) {
+      System.arraycopy(hash, 0, hashes, segmentCount * HASH_LENGTH, HASH_LENGTH);
+    }
+    segmentPositions[segmentCount + 1] = segmentPositions[segmentCount] + length;
+    plaintextPositions[segmentCount + 1] =
+        plaintextPositions[segmentCount] + length - SEGMENT_OVERHEAD;
+    segmentCount++;
+  }
+
+  private int checkSegmentIndex(int segmentIndex) {
+    return Objects.checkIndex(segmentIndex, segmentCount);
+  }
+}
@@ -0,0 +1,157 @@
+package no.elixir.crypt4gh.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import lombok.Getter;
+import lombok.ToString;
+import no.elixir.crypt4gh.pojo.body.Segment;
+import no.elixir.crypt4gh.pojo.header.DataEncryptionParameters;
+import no.elixir.crypt4gh.pojo.header.Header;
+
+/**
+ * Checks that every segment of a Crypt4GH file but the last one is a full segment. Segments are not
+ * delimited in the file, so readers (including the ones in this library) find them by their fixed
+ * size, and random access computes the position of a segment from its index. A short segment in the
+ * middle of the data, e.g. written by flushing a Crypt4GHOutputStream that is not in
+ * segment-aligned mode, breaks both. The validator finds the actual length of such segments by
+ * trying to decrypt them at every possible length, so it can report all of them rather than just
+ * the first one. This takes up to several seconds per short segment.
+ */
+public class SegmentValidator {
+
+  private static SegmentValidator ourInstance = new SegmentValidator();
+
+  /**
+   * Returns a singleton instance of this class.
+   *
+   * @return a SegmentValidator object
+   */
+  public static SegmentValidator getInstance() {
+    return ourInstance;
+  }
+
+  private SegmentValidator() {}
+
+  /**
+   * Reads all the segments of a Crypt4GH file and reports the ones that are shorter than a full
+   * segment without being the last one. The segments are decrypted but the decrypted data is
+   * discarded.
+   *
+   * @param source Channel to read the Crypt4GH file from, from the start.
+   * @param readerPrivateKey Recipient's private key.
+   * @return The report listing the short segments in the middle of the data.
+   * @throws IOException In case of I/O error.
+   * @throws GeneralSecurityException In case the header can't be decrypted.
+   */
+  public Report validate(FileChannel source, PrivateKey readerPrivateKey)
+      throws IOException, GeneralSecurityException {
+    return scan(source, readerPrivateKey, false, false);
+  }
+
+  /**
+   * Reads all the segments of a Crypt4GH file, finding the length of every segment, and optionally
+   * builds the segment index of the file on the way.
+   *
+   * @param source Channel to read the Crypt4GH file from, from the start.
+   * @param readerPrivateKey Recipient's private key.
+   * @param index Whether to build the segment index of the segments read.
+   * @param hashed Whether the segment index records the hashes of the segments.
+   * @return The report listing the short segments, holding the segment index if requested.
+   * @throws IOException In case of I/O error.
+   * @throws GeneralSecurityException In case the header can't be decrypted.
+   */
+  Report scan(FileChannel source, PrivateKey readerPrivateKey, boolean index, boolean hashed)
+      throws IOException, GeneralSecurityException {
+    source.position(0);
+    Header header = new Header(Channels.newInputStream(source), readerPrivateKey);
+    Collection<DataEncryptionParameters> dataEncryptionParametersList =
+        header.getDataEncryptionParametersList();
+    int encryptedSegmentSize =
+        dataEncryptionParametersList
+            .iterator()
+            .next()
+            .getDataEncryptionMethod()
+            .getEncryptedSegmentSize();
+    byte[] encryptedData = new byte[encryptedSegmentSize];
+    byte[] decryptedData = new byte[encryptedSegmentSize];
+    ByteBuffer buffer = ByteBuffer.wrap(encryptedData);
+    Report report = new Report();
+    long position = source.position();
+    if (index) {
+      report.segmentIndex = new SegmentIndex(position, hashed);
+    }
+    while (true) {
+      while (buffer.hasRemaining()) {
+        if (source.read(buffer) == -1) {
+          break;
+        }
+      }
+      int available = buffer.position();
+      if (available == 0) {
+        break;
+      }
+      int length = available;
+      try {
+        Segment.decrypt(encryptedData, length, decryptedData, 0, dataEncryptionParametersList);
+      } catch (GeneralSecurityException e) {
+        length = Segment.findLength(encryptedData, length - 1, dataEncryptionParametersList);
+        if (length == -1) {
+          report.unreadableSegmentPosition = position;
+          break;
+        }
+        report.shortSegmentPositions.add(position); // always followed by the rest of the data
+      }
+      if (report.segmentIndex != null) {
+        report.segmentIndex.addSegment(encryptedData, 0, length);
+      }
+      report.segmentCount++;
+      position += length;
+      buffer.flip().position(length);
+      buffer.compact();
+    }
+    return report;
+  }
+
+  /** The outcome of validating the segments of a Crypt4GH file. */
+  @ToString
+  public static class Report {
+
+    /** The number of segments that could be read */
+    @Getter private long segmentCount;
+
+    /** The positions in the file of the short segments that are not the last segment */
+    private final List<Long> shortSegmentPositions = new ArrayList<>();
+
+    /** The position in the file of a segment that couldn't be decrypted at any length, or -1 */
+    @Getter private long unreadableSegmentPosition = -1;
+
+    /** The index of the segments read, if requested */
+    SegmentIndex segmentIndex;
+
+    /**
+     * Returns the positions in the file of the short segments that are not the last segment.
+     *
+     * @return The positions of the short segments, in the order they appear in the file.
+     */
+    public List<Long> getShortSegmentPositions() {
+      return Collections.unmodifiableList(shortSegmentPositions);
+    }
+
+    /**
+     * Tells whether all segments could be read and all but the last one are full segments.
+     *
+     * @return True if the file has no short segments in the middle of the data.
+     */
+    public boolean isValid() {
+      return shortSegmentPositions.isEmpty() && unreadableSegmentPosition == -1;
+    }
+  }
+}
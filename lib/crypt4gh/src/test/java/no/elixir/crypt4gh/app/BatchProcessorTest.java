@@ -0,0 +1,179 @@
+package no.elixir.crypt4gh.app;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+/** Testing the listing of batch inputs and the processing of batches of files */
+public class BatchProcessorTest {
+
+  private static final String OUTPUT_SUFFIX = ".out";
+
+  /** Copies the source to the target, adding it to the source checksums */
+  private static final BatchProcessor.FileOperation COPY =
+      (source, target, sourceChecksums) -> {
+        ByteBuffer data = source.map(FileChannel.MapMode.READ_ONLY, 0, source.size());
+        if (sourceChecksums != null) {
+          sourceChecksums.update(data);
+        }
+        while (data.hasRemaining()) {
+          target.write(data);
+        }
+      };
+
+  @Test
+  public void listDirectoryTest() throws Exception {
+    Path directory = Files.createTempDirectory("batch");
+    try {
+      Path first = Files.writeString(directory.resolve("a.txt"), "a");
+      Path second = Files.writeString(directory.resolve("b.txt"), "b");
+      Files.createDirectory(directory.resolve("nested"));
+      Files.writeString(directory.resolve("nested").resolve("c.txt"), "c");
+      // outputs of an earlier run on the same directory
+      Files.writeString(directory.resolve("a.txt" + OUTPUT_SUFFIX), "a");
+      Files.writeString(
+          directory.resolve("a.txt" + OUTPUT_SUFFIX + Crypt4GHUtils.CHECKSUMS_SUFFIX), "a");
+      assertEquals(
+          List.of(first, second), BatchProcessor.listFiles(directory.toString(), OUTPUT_SUFFIX));
+
+      Path empty = Files.createDirectory(directory.resolve("empty"));
+      assertThrows(
+          IllegalArgumentException.class,
+          () -> BatchProcessor.listFiles(empty.toString(), OUTPUT_SUFFIX));
+      assertThrows(
+          IllegalArgumentException.class,
+          () -> BatchProcessor.listFiles(directory.resolve("missing").toString(), OUTPUT_SUFFIX));
+    } finally {
+      FileUtils.deleteDirectory(directory.toFile());
+    }
+  }
+
+  @Test
+  public void listGlobTest() throws Exception {
+    Path directory = Files.createTempDirectory("batch");
+    try {
+      Path data = Files.createDirectory(directory.resolve("data"));
+      Path first = Files.writeString(data.resolve("a.txt"), "a");
+      Files.writeString(data.resolve("a.bin"), "a");
+      Files.writeString(data.resolve("b.txt" + OUTPUT_SUFFIX), "b");
+      Path nested = Files.createDirectories(data.resolve("x").resolve("y"));
+      Path second = Files.writeString(nested.resolve("c.txt"), "c");
+
+      // the base directory holds no glob characters, so only its direct children match "*"
+      assertEquals(List.of(first), BatchProcessor.listFiles(data + "/*.txt", OUTPUT_SUFFIX));
+      // "**" crosses directories, at any depth
+      assertEquals(
+          List.of(first, second), BatchProcessor.listFiles(data + "/**.txt", OUTPUT_SUFFIX));
+      assertEquals(List.of(second), BatchProcessor.listFiles(data + "/x/*/*.txt", OUTPUT_SUFFIX));
+      assertThrows(
+          IllegalArgumentException.class,
+          () -> BatchProcessor.listFiles(data + "/*.vcf", OUTPUT_SUFFIX));
+      assertThrows(
+          IllegalArgumentException.class,
+          () -> BatchProcessor.listFiles(directory + "/missing/*.txt", OUTPUT_SUFFIX));
+    } finally {
+      FileUtils.deleteDirectory(directory.toFile());
+    }
+  }
+
+  @Test
+  public void listManifestTest() throws Exception {
+    Path directory = Files.createTempDirectory("batch");
+    Path other = Files.createTempFile("batch", ".txt");
+    try {
+      Path manifest =
+          Files.write(
+              directory.resolve("manifest"),
+              List.of("# files to encrypt", "", "  a.txt  ", "sub/b.txt", other.toString()));
+      assertEquals(
+          List.of(directory.resolve("a.txt"), directory.resolve("sub/b.txt"), other),
+          BatchProcessor.listFiles(manifest.toString(), OUTPUT_SUFFIX));
+
+      Path emptyManifest = Files.write(directory.resolve("empty"), List.of("# nothing", ""));
+      assertThrows(
+          IllegalArgumentException.class,
+          () -> BatchProcessor.listFiles(emptyManifest.toString(), OUTPUT_SUFFIX));
+    } finally {
+      FileUtils.deleteDirectory(directory.toFile());
+      Files.deleteIfExists(other);
+    }
+  }
+
+  @Test
+  public void processTest() throws Exception {
+    Path directory = Files.createTempDirectory("batch");
+    try {
+      Path first = Files.writeString(directory.resolve("a.txt"), "first");
+      Path second = Files.writeString(directory.resolve("b.txt"), "second");
+      BatchProcessor batchProcessor = new BatchProcessor(2, false, new String[] {"MD5"});
+      assertTrue(batchProcessor.process(List.of(first, second), OUTPUT_SUFFIX, COPY));
+      assertEquals("first", Files.readString(output(first)));
+      assertEquals("second", Files.readString(output(second)));
+      List<String> checksums = Files.readAllLines(checksums(first));
+      assertEquals(2, checksums.size());
+      assertTrue(checksums.get(0).startsWith("MD5 (a.txt) = 8b04d5e3775d298e78455efc5ca404d5"));
+
+      // the outputs of the first run are not overwritten by the second one
+      Files.writeString(output(first), "existing");
+      Files.delete(output(second));
+      assertFalse(batchProcessor.process(List.of(first, second), OUTPUT_SUFFIX, COPY));
+      assertEquals("existing", Files.readString(output(first)));
+      assertEquals("second", Files.readString(output(second)));
+
+      assertThrows(IllegalArgumentException.class, () -> new BatchProcessor(0, false, null));
+    } finally {
+      FileUtils.deleteDirectory(directory.toFile());
+    }
+  }
+
+  @Test
+  public void processFailFastTest() throws Exception {
+    Path directory = Files.createTempDirectory("batch");
+    try {
+      Path first = Files.writeString(directory.resolve("a.txt"), "first");
+      Path second = Files.writeString(directory.resolve("b.txt"), "second");
+      Path third = Files.writeString(directory.resolve("c.txt"), "the third");
+      BatchProcessor.FileOperation failOnFirst =
+          (source, target, sourceChecksums) -> {
+            target.write(ByteBuffer.wrap(new byte[10]));
+            if (source.size() == "first".length()) {
+              throw new IOException("Failing on purpose");
+            }
+          };
+      List<Path> inputs = List.of(first, second, third);
+
+      // a failed file leaves no output behind, and the files after it are not started
+      BatchProcessor batchProcessor = new BatchProcessor(1, true, new String[] {"MD5"});
+      assertFalse(batchProcessor.process(inputs, OUTPUT_SUFFIX, failOnFirst));
+      for (Path input : inputs) {
+        assertFalse(Files.exists(output(input)));
+        assertFalse(Files.exists(checksums(input)));
+      }
+
+      // without fail-fast, the other files are still processed
+      batchProcessor = new BatchProcessor(1, false, null);
+      assertFalse(batchProcessor.process(inputs, OUTPUT_SUFFIX, failOnFirst));
+      assertFalse(Files.exists(output(first)));
+      assertEquals(10, Files.size(output(second)));
+      assertEquals(10, Files.size(output(third)));
+    } finally {
+      FileUtils.deleteDirectory(directory.toFile());
+    }
+  }
+
+  private static Path output(Path input) {
+    return input.resolveSibling(input.getFileName() + OUTPUT_SUFFIX);
+  }
+
+  private static Path checksums(Path input) {
+    return input.resolveSibling(
+        input.getFileName() + OUTPUT_SUFFIX + Crypt4GHUtils.CHECKSUMS_SUFFIX);
+  }
+}
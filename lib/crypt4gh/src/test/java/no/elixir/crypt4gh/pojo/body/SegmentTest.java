@@ -0,0 +1,97 @@
+package no.elixir.crypt4gh.pojo.body;
+
+import static no.elixir.crypt4gh.pojo.body.Segment.UNENCRYPTED_DATA_SEGMENT_SIZE;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import no.elixir.crypt4gh.pojo.header.ChaCha20IETFPoly1305EncryptionParameters;
+import no.elixir.crypt4gh.pojo.header.DataEncryptionParameters;
+import no.elixir.crypt4gh.util.KeyUtils;
+import no.elixir.crypt4gh.util.NonceGenerator;
+import org.junit.jupiter.api.Test;
+
+/** Testing the ByteBuffer encryption and decryption of data segments */
+public class SegmentTest {
+
+  private static final int ENCRYPTED_SEGMENT_SIZE = UNENCRYPTED_DATA_SEGMENT_SIZE + 28;
+
+  private KeyUtils keyUtils = KeyUtils.getInstance();
+
+  @Test
+  public void byteBufferRoundTripTest() throws Exception {
+    DataEncryptionParameters dataEncryptionParameters =
+        new ChaCha20IETFPoly1305EncryptionParameters(keyUtils.generateSessionKey());
+    byte[] data = new byte[UNENCRYPTED_DATA_SEGMENT_SIZE];
+    new SecureRandom().nextBytes(data);
+
+    for (boolean direct : new boolean[] {false, true}) {
+      ByteBuffer unencrypted = allocate(data.length, direct).put(data).flip();
+      ByteBuffer encrypted = allocate(ENCRYPTED_SEGMENT_SIZE, direct);
+      int encryptedLength =
+          Segment.encrypt(
+              unencrypted, encrypted, dataEncryptionParameters, NonceGenerator.getDefault());
+      assertEquals(ENCRYPTED_SEGMENT_SIZE, encryptedLength);
+      assertFalse(unencrypted.hasRemaining());
+
+      // the array API decrypts what the ByteBuffer API encrypted
+      byte[] encryptedBytes = new byte[encryptedLength];
+      encrypted.flip().get(encryptedBytes);
+      byte[] decryptedBytes = new byte[UNENCRYPTED_DATA_SEGMENT_SIZE];
+      Segment.decrypt(
+          encryptedBytes, encryptedLength, decryptedBytes, 0, List.of(dataEncryptionParameters));
+      assertArrayEquals(data, decryptedBytes);
+
+      ByteBuffer decrypted = allocate(UNENCRYPTED_DATA_SEGMENT_SIZE, direct);
+      int decryptedLength =
+          Segment.decrypt(encrypted.flip(), decrypted, List.of(dataEncryptionParameters));
+      assertEquals(data.length, decryptedLength);
+      byte[] result = new byte[decryptedLength];
+      decrypted.flip().get(result);
+      assertArrayEquals(data, result);
+    }
+  }
+
+  @Test
+  public void byteBufferDecryptionWithSeveralKeysTest() throws Exception {
+    DataEncryptionParameters wrongParameters =
+        new ChaCha20IETFPoly1305EncryptionParameters(keyUtils.generateSessionKey());
+    DataEncryptionParameters rightParameters =
+        new ChaCha20IETFPoly1305EncryptionParameters(keyUtils.generateSessionKey());
+    byte[] data = "Short final segment".getBytes();
+
+    ByteBuffer encrypted = ByteBuffer.allocate(ENCRYPTED_SEGMENT_SIZE + 10).position(10);
+    Segment.encrypt(ByteBuffer.wrap(data), encrypted, rightParameters, NonceGenerator.getDefault());
+    encrypted.flip().position(10);
+
+    ByteBuffer decrypted = ByteBuffer.allocate(UNENCRYPTED_DATA_SEGMENT_SIZE);
+    assertThrows(
+        GeneralSecurityException.class,
+        () -> Segment.decrypt(encrypted, decrypted, List.of(wrongParameters)));
+    assertEquals(10, encrypted.position());
+
+    int decryptedLength =
+        Segment.decrypt(encrypted, decrypted, List.of(wrongParameters, rightParameters));
+    assertEquals(data.length, decryptedLength);
+    assertArrayEquals(data, Arrays.copyOf(decrypted.array(), decryptedLength));
+  }
+
+  @Test
+  public void segmentObjectRoundTripTest() throws Exception {
+    DataEncryptionParameters dataEncryptionParameters =
+        new ChaCha20IETFPoly1305EncryptionParameters(keyUtils.generateSessionKey());
+    byte[] data = new byte[UNENCRYPTED_DATA_SEGMENT_SIZE - 7];
+    new SecureRandom().nextBytes(data);
+    byte[] encryptedData = Segment.create(data, dataEncryptionParameters).serialize();
+    assertArrayEquals(
+        data,
+        Segment.create(encryptedData, List.of(dataEncryptionParameters)).getUnencryptedData());
+  }
+
+  private ByteBuffer allocate(int capacity, boolean direct) {
+    return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+  }
+}
@@ -4,18 +4,37 @@ import static no.elixir.crypt4gh.pojo.body.Segment.UNENCRYPTED_DATA_SEGMENT_SIZE
 import static org.junit.jupiter.api.Assertions.*;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.security.GeneralSecurityException;
 import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import no.elixir.crypt4gh.pojo.header.ChaCha20IETFPoly1305EncryptionParameters;
 import no.elixir.crypt4gh.pojo.header.DataEditList;
+import no.elixir.crypt4gh.pojo.header.DataEncryptionParameters;
 import no.elixir.crypt4gh.pojo.header.Header;
+import no.elixir.crypt4gh.pojo.header.HeaderPacket;
+import no.elixir.crypt4gh.pojo.header.HeaderPacketType;
+import no.elixir.crypt4gh.pojo.header.X25519ChaCha20IETFPoly1305HeaderPacket;
 import no.elixir.crypt4gh.util.Crypt4GHUtils;
+import no.elixir.crypt4gh.util.DerivedKeyCache;
 import no.elixir.crypt4gh.util.KeyUtils;
+import no.elixir.crypt4gh.util.SegmentValidator;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.junit.jupiter.api.Test;
@@ -146,6 +165,394 @@ public class Crypt4GHTests {
     }
   }
 
+  /**
+   * Tests bulk reads of various sizes (smaller than, equal to and larger than a segment), mixed
+   * with single-byte reads and skips, against the original data.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void memoryReencryptionBulkReadTest() throws Exception {
+    PrivateKey writerPrivateKey = keyUtils.generatePrivateKey();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+
+    byte[] unencryptedData = new byte[3 * UNENCRYPTED_DATA_SEGMENT_SIZE + 12345];
+    new SecureRandom().nextBytes(unencryptedData);
+
+    try (ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream()) {
+      try (Crypt4GHOutputStream crypt4GHOutputStream =
+          new Crypt4GHOutputStream(
+              byteArrayOutputStream, writerPrivateKey, readerKeyPair.getPublic())) {
+        crypt4GHOutputStream.write(unencryptedData);
+      }
+      byte[] encryptedData = byteArrayOutputStream.toByteArray();
+      for (int bufferSize : new int[] {1, 1000, UNENCRYPTED_DATA_SEGMENT_SIZE, 200_000}) {
+        try (Crypt4GHInputStream crypt4GHInputStream =
+            new Crypt4GHInputStream(
+                new ByteArrayInputStream(encryptedData), readerKeyPair.getPrivate())) {
+          ByteArrayOutputStream decryptedData = new ByteArrayOutputStream();
+          decryptedData.write(crypt4GHInputStream.read());
+          byte[] buffer = new byte[bufferSize + 7];
+          int read;
+          while ((read = crypt4GHInputStream.read(buffer, 7, bufferSize)) != -1) {
+            decryptedData.write(buffer, 7, read);
+          }
+          assertArrayEquals(unencryptedData, decryptedData.toByteArray());
+          assertEquals(-1, crypt4GHInputStream.read());
+        }
+      }
+      try (Crypt4GHInputStream crypt4GHInputStream =
+          new Crypt4GHInputStream(
+              new ByteArrayInputStream(encryptedData), readerKeyPair.getPrivate())) {
+        byte[] buffer = new byte[UNENCRYPTED_DATA_SEGMENT_SIZE];
+        assertEquals(buffer.length, crypt4GHInputStream.read(buffer));
+        assertEquals(
+            2 * UNENCRYPTED_DATA_SEGMENT_SIZE, crypt4GHInputStream.skip(2L * buffer.length));
+        assertEquals(
+            unencryptedData[3 * UNENCRYPTED_DATA_SEGMENT_SIZE] & 0xff, crypt4GHInputStream.read());
+        assertEquals(12344, crypt4GHInputStream.skip(Long.MAX_VALUE));
+        assertEquals(-1, crypt4GHInputStream.read(buffer));
+      }
+    }
+  }
+
+  /**
+   * Tests bulk writes of various sizes, and checks that data filling a whole number of segments is
+   * not followed by an extra empty segment.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void memoryReencryptionBulkWriteTest() throws Exception {
+    PrivateKey writerPrivateKey = keyUtils.generatePrivateKey();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+
+    byte[] unencryptedData = new byte[2 * UNENCRYPTED_DATA_SEGMENT_SIZE];
+    new SecureRandom().nextBytes(unencryptedData);
+
+    int[] chunkSizes = {1, 777, UNENCRYPTED_DATA_SEGMENT_SIZE, unencryptedData.length};
+    for (int chunkSize : chunkSizes) {
+      try (ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream()) {
+        int headerLength;
+        try (Crypt4GHOutputStream crypt4GHOutputStream =
+            new Crypt4GHOutputStream(
+                byteArrayOutputStream, writerPrivateKey, readerKeyPair.getPublic())) {
+          headerLength = crypt4GHOutputStream.getHeader().serialize().length;
+          for (int i = 0; i < unencryptedData.length; i += chunkSize) {
+            crypt4GHOutputStream.write(
+                unencryptedData, i, Math.min(chunkSize, unencryptedData.length - i));
+          }
+        }
+        byte[] encryptedData = byteArrayOutputStream.toByteArray();
+        assertEquals(headerLength + 2 * (UNENCRYPTED_DATA_SEGMENT_SIZE + 28), encryptedData.length);
+        try (Crypt4GHInputStream crypt4GHInputStream =
+            new Crypt4GHInputStream(
+                new ByteArrayInputStream(encryptedData), readerKeyPair.getPrivate())) {
+          assertArrayEquals(unencryptedData, crypt4GHInputStream.readAllBytes());
+        }
+      }
+    }
+  }
+
+  /**
+   * Tests that segments encrypted in parallel are written in order and can be decrypted, also when
+   * the number of segments in flight is smaller than the number of threads.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void memoryReencryptionParallelOutputStreamTest() throws Exception {
+    PrivateKey writerPrivateKey = keyUtils.generatePrivateKey();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+
+    byte[] unencryptedData = new byte[20 * UNENCRYPTED_DATA_SEGMENT_SIZE + 4321];
+    new SecureRandom().nextBytes(unencryptedData);
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (int maxSegmentsInFlight : new int[] {1, 3, 16}) {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        int headerLength;
+        try (ParallelCrypt4GHOutputStream crypt4GHOutputStream =
+            new ParallelCrypt4GHOutputStream(
+                byteArrayOutputStream,
+                writerPrivateKey,
+                readerKeyPair.getPublic(),
+                executor,
+                maxSegmentsInFlight)) {
+          headerLength = crypt4GHOutputStream.getHeader().serialize().length;
+          crypt4GHOutputStream.write(unencryptedData, 0, 1000);
+          crypt4GHOutputStream.write(unencryptedData, 1000, unencryptedData.length - 1000);
+        }
+        byte[] encryptedData = byteArrayOutputStream.toByteArray();
+        assertEquals(
+            headerLength + 20 * (UNENCRYPTED_DATA_SEGMENT_SIZE + 28) + 4321 + 28,
+            encryptedData.length);
+        try (Crypt4GHInputStream crypt4GHInputStream =
+            new Crypt4GHInputStream(
+                new ByteArrayInputStream(encryptedData), readerKeyPair.getPrivate())) {
+          assertArrayEquals(unencryptedData, crypt4GHInputStream.readAllBytes());
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Tests decryption with ParallelCrypt4GHInputStream, including skips across segments and a
+   * DataEditList, against the output of Crypt4GHInputStream.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void memoryReencryptionParallelInputStreamTest() throws Exception {
+    PrivateKey writerPrivateKey = keyUtils.generatePrivateKey();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+
+    byte[] unencryptedData = new byte[20 * UNENCRYPTED_DATA_SEGMENT_SIZE + 4321];
+    new SecureRandom().nextBytes(unencryptedData);
+
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    try (Crypt4GHOutputStream crypt4GHOutputStream =
+        new Crypt4GHOutputStream(
+            byteArrayOutputStream, writerPrivateKey, readerKeyPair.getPublic())) {
+      crypt4GHOutputStream.write(unencryptedData);
+    }
+    byte[] encryptedData = byteArrayOutputStream.toByteArray();
+
+    long skip = 3L * UNENCRYPTED_DATA_SEGMENT_SIZE + 100;
+    DataEditList dataEditList =
+        new DataEditList(new long[] {950, 2L * UNENCRYPTED_DATA_SEGMENT_SIZE, 510, 70000});
+    byte[] expectedEditedData;
+    try (Crypt4GHInputStream crypt4GHInputStream =
+        new Crypt4GHInputStream(
+            new ByteArrayInputStream(encryptedData), dataEditList, readerKeyPair.getPrivate())) {
+      expectedEditedData = crypt4GHInputStream.readAllBytes();
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (int segmentsAhead : new int[] {1, 3, 32}) {
+        try (Crypt4GHInputStream crypt4GHInputStream =
+            new ParallelCrypt4GHInputStream(
+                new ByteArrayInputStream(encryptedData),
+                readerKeyPair.getPrivate(),
+                executor,
+                segmentsAhead)) {
+          assertArrayEquals(unencryptedData, crypt4GHInputStream.readAllBytes());
+        }
+        try (Crypt4GHInputStream crypt4GHInputStream =
+            new ParallelCrypt4GHInputStream(
+                new ByteArrayInputStream(encryptedData),
+                readerKeyPair.getPrivate(),
+                executor,
+                segmentsAhead)) {
+          assertEquals(123, crypt4GHInputStream.read(new byte[123]));
+          assertEquals(skip, crypt4GHInputStream.skip(skip));
+          byte[] rest = crypt4GHInputStream.readAllBytes();
+          assertArrayEquals(
+              Arrays.copyOfRange(unencryptedData, (int) (123 + skip), unencryptedData.length),
+              rest);
+          assertEquals(0, crypt4GHInputStream.skip(skip));
+        }
+        try (Crypt4GHInputStream crypt4GHInputStream =
+            new ParallelCrypt4GHInputStream(
+                new ByteArrayInputStream(encryptedData),
+                dataEditList,
+                readerKeyPair.getPrivate(),
+                executor,
+                segmentsAhead)) {
+          assertArrayEquals(expectedEditedData, crypt4GHInputStream.readAllBytes());
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Tests random access to a file on a file-system through Crypt4GHSeekableByteChannel, seeking
+   * both forwards and backwards across segment boundaries.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void seekableByteChannelTest() throws Exception {
+    PrivateKey writerPrivateKey = keyUtils.generatePrivateKey();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+
+    byte[] unencryptedData = new byte[3 * UNENCRYPTED_DATA_SEGMENT_SIZE + 1000];
+    new SecureRandom().nextBytes(unencryptedData);
+
+    File encryptedFile = Files.createTempFile("test", "enc").toFile();
+    try {
+      try (Crypt4GHOutputStream crypt4GHOutputStream =
+          new Crypt4GHOutputStream(
+              new FileOutputStream(encryptedFile), writerPrivateKey, readerKeyPair.getPublic())) {
+        crypt4GHOutputStream.write(unencryptedData);
+      }
+      try (Crypt4GHSeekableByteChannel channel =
+          new Crypt4GHSeekableByteChannel(
+              FileChannel.open(encryptedFile.toPath()), readerKeyPair.getPrivate())) {
+        assertEquals(unencryptedData.length, channel.size());
+        long[] positions = {
+          2L * UNENCRYPTED_DATA_SEGMENT_SIZE + 5, 10, UNENCRYPTED_DATA_SEGMENT_SIZE - 100, 0
+        };
+        for (long position : positions) {
+          ByteBuffer buffer = ByteBuffer.allocate(UNENCRYPTED_DATA_SEGMENT_SIZE + 300);
+          channel.position(position);
+          int bytesRead = channel.read(buffer);
+          assertEquals(buffer.capacity(), bytesRead);
+          assertEquals(position + bytesRead, channel.position());
+          assertArrayEquals(
+              Arrays.copyOfRange(unencryptedData, (int) position, (int) position + bytesRead),
+              buffer.array());
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(5000);
+        channel.position(unencryptedData.length - 200);
+        assertEquals(200, channel.read(buffer));
+        assertEquals(-1, channel.read(buffer.clear()));
+        channel.position(unencryptedData.length + 1);
+        assertEquals(-1, channel.read(buffer.clear()));
+        assertThrows(NonWritableChannelException.class, () -> channel.write(buffer));
+      }
+    } finally {
+      encryptedFile.delete();
+    }
+  }
+
+  /**
+   * Tests positional reads from several threads through one Crypt4GHReader, and that segments are
+   * served from the cache once decrypted.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void concurrentPositionalReadsTest() throws Exception {
+    PrivateKey writerPrivateKey = keyUtils.generatePrivateKey();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+
+    byte[] unencryptedData = new byte[4 * UNENCRYPTED_DATA_SEGMENT_SIZE + 1000];
+    new SecureRandom().nextBytes(unencryptedData);
+
+    File encryptedFile = Files.createTempFile("test", "enc").toFile();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      try (Crypt4GHOutputStream crypt4GHOutputStream =
+          new Crypt4GHOutputStream(
+              new FileOutputStream(encryptedFile), writerPrivateKey, readerKeyPair.getPublic())) {
+        crypt4GHOutputStream.write(unencryptedData);
+      }
+      try (Crypt4GHReader reader =
+          new Crypt4GHReader(
+              FileChannel.open(encryptedFile.toPath()),
+              readerKeyPair.getPrivate(),
+              2L * UNENCRYPTED_DATA_SEGMENT_SIZE)) {
+        assertEquals(unencryptedData.length, reader.size());
+        List<Future<?>> futures = new ArrayList<>();
+        for (int thread = 0; thread < 8; thread++) {
+          futures.add(
+              executor.submit(
+                  () -> {
+                    Random random = new Random();
+                    for (int i = 0; i < 200; i++) {
+                      int position = random.nextInt(unencryptedData.length);
+                      ByteBuffer buffer = ByteBuffer.allocate(random.nextInt(100_000) + 1);
+                      int bytesRead = reader.readAt(position, buffer);
+                      assertEquals(
+                          Math.min(buffer.capacity(), unencryptedData.length - position),
+                          bytesRead);
+                      assertArrayEquals(
+                          Arrays.copyOfRange(unencryptedData, position, position + bytesRead),
+                          Arrays.copyOf(buffer.array(), bytesRead));
+                    }
+                    return null;
+                  }));
+        }
+        for (Future<?> future : futures) {
+          future.get();
+        }
+        assertEquals(-1, reader.readAt(unencryptedData.length, ByteBuffer.allocate(10)));
+
+        try (Crypt4GHReader cachingReader =
+            new Crypt4GHReader(
+                FileChannel.open(encryptedFile.toPath()), readerKeyPair.getPrivate())) {
+          for (int i = 0; i < 3; i++) {
+            ByteBuffer buffer = ByteBuffer.allocate(unencryptedData.length);
+            assertEquals(unencryptedData.length, cachingReader.readAt(0, buffer));
+            assertArrayEquals(unencryptedData, buffer.array());
+          }
+          assertEquals(5, cachingReader.getCacheMisses());
+          assertEquals(10, cachingReader.getCacheHits());
+        }
+      }
+    } finally {
+      executor.shutdown();
+      encryptedFile.delete();
+    }
+  }
+
+  /**
+   * Tests reading plaintext byte ranges of a file on a file-system, including ranges that cross
+   * segment boundaries and ranges that extend past the end of the data.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void openRangeTest() throws Exception {
+    PrivateKey writerPrivateKey = keyUtils.generatePrivateKey();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+
+    byte[] unencryptedData = new byte[5 * UNENCRYPTED_DATA_SEGMENT_SIZE + 77];
+    new SecureRandom().nextBytes(unencryptedData);
+
+    File encryptedFile = Files.createTempFile("test", "enc").toFile();
+    try {
+      try (Crypt4GHOutputStream crypt4GHOutputStream =
+          new Crypt4GHOutputStream(
+              new FileOutputStream(encryptedFile), writerPrivateKey, readerKeyPair.getPublic())) {
+        crypt4GHOutputStream.write(unencryptedData);
+      }
+      long[][] ranges = {
+        {0, 10},
+        {UNENCRYPTED_DATA_SEGMENT_SIZE - 5, 3L * UNENCRYPTED_DATA_SEGMENT_SIZE + 5},
+        {4L * UNENCRYPTED_DATA_SEGMENT_SIZE + 1, unencryptedData.length + 1000L},
+        {100, 100}
+      };
+      for (long[] range : ranges) {
+        int start = (int) range[0];
+        int end = (int) Math.min(range[1], unencryptedData.length);
+        try (InputStream inputStream =
+            Crypt4GHReader.openRange(
+                FileChannel.open(encryptedFile.toPath()),
+                readerKeyPair.getPrivate(),
+                range[0],
+                range[1])) {
+          assertArrayEquals(
+              Arrays.copyOfRange(unencryptedData, start, end), inputStream.readAllBytes());
+        }
+      }
+      try (Crypt4GHReader reader =
+          new Crypt4GHReader(
+              FileChannel.open(encryptedFile.toPath()), readerKeyPair.getPrivate())) {
+        InputStream inputStream = reader.openRange(3L * UNENCRYPTED_DATA_SEGMENT_SIZE, 1L << 40);
+        assertEquals(
+            unencryptedData[3 * UNENCRYPTED_DATA_SEGMENT_SIZE], (byte) inputStream.read());
+        assertEquals(
+            UNENCRYPTED_DATA_SEGMENT_SIZE, inputStream.skip(UNENCRYPTED_DATA_SEGMENT_SIZE));
+        assertArrayEquals(
+            Arrays.copyOfRange(
+                unencryptedData, 4 * UNENCRYPTED_DATA_SEGMENT_SIZE + 1, unencryptedData.length),
+            inputStream.readAllBytes());
+        // segments 3, 4 and 5 are decrypted, the skip itself decrypts nothing
+        assertEquals(3, reader.getCacheMisses());
+      }
+    } finally {
+      encryptedFile.delete();
+    }
+  }
+
   /**
    * Tests re-encryption of a file on a file-system.
    *
@@ -422,6 +829,70 @@ public class Crypt4GHTests {
     }
   }
 
+  /**
+   * Tests a DataEditList whose ranges span several segments, mixing single-byte reads, bulk reads
+   * and skips, and ending beyond the end of the data.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void dataEditListAcrossSegmentsTest() throws Exception {
+    PrivateKey writerPrivateKey = keyUtils.generatePrivateKey();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+
+    byte[] unencryptedData = new byte[10 * UNENCRYPTED_DATA_SEGMENT_SIZE + 123];
+    new SecureRandom().nextBytes(unencryptedData);
+
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    try (Crypt4GHOutputStream crypt4GHOutputStream =
+        new Crypt4GHOutputStream(
+            byteArrayOutputStream, writerPrivateKey, readerKeyPair.getPublic())) {
+      crypt4GHOutputStream.write(unencryptedData);
+    }
+    byte[] encryptedData = byteArrayOutputStream.toByteArray();
+
+    long[] lengths = {
+      3L * UNENCRYPTED_DATA_SEGMENT_SIZE + 7, 100, 0, 70000, 5, 0, 200000, 1_000_000
+    };
+    DataEditList dataEditList = new DataEditList(lengths);
+    long[] keptRanges = dataEditList.getKeptRanges();
+    assertArrayEquals(
+        new long[] {
+          3L * UNENCRYPTED_DATA_SEGMENT_SIZE + 7,
+          3L * UNENCRYPTED_DATA_SEGMENT_SIZE + 107,
+          3L * UNENCRYPTED_DATA_SEGMENT_SIZE + 107,
+          3L * UNENCRYPTED_DATA_SEGMENT_SIZE + 70107,
+          3L * UNENCRYPTED_DATA_SEGMENT_SIZE + 270_112,
+          3L * UNENCRYPTED_DATA_SEGMENT_SIZE + 1_270_112
+        },
+        keptRanges);
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    for (int i = 0; i < keptRanges.length; i += 2) {
+      int end = (int) Math.min(keptRanges[i + 1], unencryptedData.length);
+      expected.write(unencryptedData, (int) keptRanges[i], end - (int) keptRanges[i]);
+    }
+    byte[] expectedData = expected.toByteArray();
+
+    try (Crypt4GHInputStream crypt4GHInputStream =
+        new Crypt4GHInputStream(
+            new ByteArrayInputStream(encryptedData), dataEditList, readerKeyPair.getPrivate())) {
+      assertArrayEquals(expectedData, crypt4GHInputStream.readAllBytes());
+      assertEquals(-1, crypt4GHInputStream.read());
+    }
+    try (Crypt4GHInputStream crypt4GHInputStream =
+        new Crypt4GHInputStream(
+            new ByteArrayInputStream(encryptedData), dataEditList, readerKeyPair.getPrivate())) {
+      assertEquals(expectedData[0] & 0xff, crypt4GHInputStream.read());
+      assertEquals(150, crypt4GHInputStream.skip(150));
+      byte[] chunk = new byte[80000];
+      assertEquals(chunk.length, crypt4GHInputStream.readNBytes(chunk, 0, chunk.length));
+      assertArrayEquals(Arrays.copyOfRange(expectedData, 151, 151 + chunk.length), chunk);
+      long bytesLeft = expectedData.length - 151 - chunk.length;
+      assertEquals(bytesLeft, crypt4GHInputStream.skip(Long.MAX_VALUE));
+      assertEquals(-1, crypt4GHInputStream.read(chunk));
+    }
+  }
+
   /**
    * Tests setting recipient to a header.
    *
@@ -576,6 +1047,435 @@ public class Crypt4GHTests {
     }
   }
 
+  /**
+   * Tests parsing a header with packets for many recipients from several writers: only the packets
+   * for the reader must be decrypted, in their original order, deriving one shared key per writer.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void multiRecipientHeaderTest() throws Exception {
+    PrivateKey[] writerPrivateKeys = {keyUtils.generatePrivateKey(), keyUtils.generatePrivateKey()};
+    List<KeyPair> readerKeyPairs = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      readerKeyPairs.add(keyUtils.generateKeyPair());
+    }
+    DataEncryptionParameters dataEncryptionParameters =
+        new ChaCha20IETFPoly1305EncryptionParameters(keyUtils.generateSessionKey());
+    DataEditList dataEditList = new DataEditList(new long[] {10, 20});
+    List<HeaderPacket> headerPackets = new ArrayList<>();
+    for (int i = 0; i < readerKeyPairs.size(); i++) {
+      PrivateKey writerPrivateKey = writerPrivateKeys[i % writerPrivateKeys.length];
+      PublicKey readerPublicKey = readerKeyPairs.get(i).getPublic();
+      headerPackets.add(
+          new X25519ChaCha20IETFPoly1305HeaderPacket(
+              dataEncryptionParameters, writerPrivateKey, readerPublicKey));
+      headerPackets.add(
+          new X25519ChaCha20IETFPoly1305HeaderPacket(
+              dataEditList, writerPrivateKey, readerPublicKey));
+    }
+    // the reader's keys are also used by another writer, further down in the header
+    headerPackets.add(
+        new X25519ChaCha20IETFPoly1305HeaderPacket(
+            dataEncryptionParameters, writerPrivateKeys[1], readerKeyPairs.get(4).getPublic()));
+    byte[] serializedHeader = new Header(headerPackets).serialize();
+
+    DerivedKeyCache derivedKeyCache = keyUtils.getDerivedKeyCache();
+    derivedKeyCache.clear();
+    long misses = derivedKeyCache.getMisses();
+    Header header =
+        new Header(
+            new ByteArrayInputStream(serializedHeader), readerKeyPairs.get(4).getPrivate());
+    // one shared key per writer, and the reader's public key derived once
+    assertEquals(misses + writerPrivateKeys.length + 1, derivedKeyCache.getMisses());
+    List<HeaderPacket> parsedHeaderPackets = header.getHeaderPackets();
+    assertEquals(3, parsedHeaderPackets.size());
+    assertEquals(
+        HeaderPacketType.DATA_ENCRYPTION_PARAMETERS,
+        parsedHeaderPackets.get(0).getEncryptablePayload().getPacketType());
+    assertEquals(
+        HeaderPacketType.DATA_EDIT_LIST,
+        parsedHeaderPackets.get(1).getEncryptablePayload().getPacketType());
+    assertEquals(
+        HeaderPacketType.DATA_ENCRYPTION_PARAMETERS,
+        parsedHeaderPackets.get(2).getEncryptablePayload().getPacketType());
+    assertArrayEquals(
+        keyUtils.getPublicKey(writerPrivateKeys[0]).getEncoded(),
+        ((X25519ChaCha20IETFPoly1305HeaderPacket) parsedHeaderPackets.get(0))
+            .getWriterPublicKey()
+            .getEncoded());
+    assertArrayEquals(
+        keyUtils.getPublicKey(writerPrivateKeys[1]).getEncoded(),
+        ((X25519ChaCha20IETFPoly1305HeaderPacket) parsedHeaderPackets.get(2))
+            .getWriterPublicKey()
+            .getEncoded());
+    assertArrayEquals(new long[] {10, 20}, header.getDataEditList().orElseThrow().getLengths());
+
+    assertTrue(
+        new Header(new ByteArrayInputStream(serializedHeader), keyUtils.generatePrivateKey())
+            .getHeaderPackets()
+            .isEmpty());
+  }
+
+  /**
+   * Tests re-encryption of a file on a file-system for another recipient, where only the header is
+   * replaced and the body is copied as it is.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void reencryptFileTest() throws Exception {
+    PrivateKey writerPrivateKey = keyUtils.generatePrivateKey();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    KeyPair anotherReaderKeyPair = keyUtils.generateKeyPair();
+
+    byte[] unencryptedData = new byte[3 * UNENCRYPTED_DATA_SEGMENT_SIZE + 500];
+    new SecureRandom().nextBytes(unencryptedData);
+
+    File encryptedFile = Files.createTempFile("test", "enc").toFile();
+    File reencryptedFile = Files.createTempFile("test2", "enc").toFile();
+    try {
+      int headerLength;
+      try (Crypt4GHOutputStream crypt4GHOutputStream =
+          new Crypt4GHOutputStream(
+              new FileOutputStream(encryptedFile), writerPrivateKey, readerKeyPair.getPublic())) {
+        headerLength = crypt4GHOutputStream.getHeader().serialize().length;
+        crypt4GHOutputStream.write(unencryptedData);
+      }
+      Header header;
+      try (FileChannel source = FileChannel.open(encryptedFile.toPath());
+          FileOutputStream target = new FileOutputStream(reencryptedFile)) {
+        header =
+            crypt4GHUtils.reencrypt(
+                source,
+                target.getChannel(),
+                readerKeyPair.getPrivate(),
+                anotherReaderKeyPair.getPublic());
+      }
+      byte[] encryptedBytes = Files.readAllBytes(encryptedFile.toPath());
+      byte[] reencryptedBytes = Files.readAllBytes(reencryptedFile.toPath());
+      int newHeaderLength = header.serialize().length;
+      assertArrayEquals(
+          Arrays.copyOfRange(encryptedBytes, headerLength, encryptedBytes.length),
+          Arrays.copyOfRange(reencryptedBytes, newHeaderLength, reencryptedBytes.length));
+      try (Crypt4GHInputStream crypt4GHInputStream =
+          new Crypt4GHInputStream(
+              new ByteArrayInputStream(reencryptedBytes), anotherReaderKeyPair.getPrivate())) {
+        assertArrayEquals(unencryptedData, crypt4GHInputStream.readAllBytes());
+      }
+      assertThrows(
+          GeneralSecurityException.class,
+          () ->
+              new Crypt4GHInputStream(
+                  new ByteArrayInputStream(reencryptedBytes), readerKeyPair.getPrivate()));
+    } finally {
+      encryptedFile.delete();
+      reencryptedFile.delete();
+    }
+  }
+
+  /**
+   * Tests rotating the session key of a file, with and without a Data Edit List: the data must
+   * decrypt to the same plaintext with the new key, while the body is encrypted anew.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void rotateSessionKeyTest() throws Exception {
+    PrivateKey writerPrivateKey = keyUtils.generatePrivateKey();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    KeyPair anotherReaderKeyPair = keyUtils.generateKeyPair();
+
+    byte[] unencryptedData = new byte[10 * UNENCRYPTED_DATA_SEGMENT_SIZE + 777];
+    new SecureRandom().nextBytes(unencryptedData);
+    DataEditList dataEditList =
+        new DataEditList(new long[] {100, 2L * UNENCRYPTED_DATA_SEGMENT_SIZE, 300, 5000});
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (DataEditList originalDataEditList : new DataEditList[] {null, dataEditList}) {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try (Crypt4GHOutputStream crypt4GHOutputStream =
+            originalDataEditList == null
+                ? new Crypt4GHOutputStream(
+                    byteArrayOutputStream, writerPrivateKey, readerKeyPair.getPublic())
+                : new Crypt4GHOutputStream(
+                    byteArrayOutputStream,
+                    originalDataEditList,
+                    writerPrivateKey,
+                    readerKeyPair.getPublic())) {
+          crypt4GHOutputStream.write(unencryptedData);
+        }
+        byte[] encryptedData = byteArrayOutputStream.toByteArray();
+        byte[] expectedData;
+        Header originalHeader;
+        try (Crypt4GHInputStream crypt4GHInputStream =
+            new Crypt4GHInputStream(
+                new ByteArrayInputStream(encryptedData), readerKeyPair.getPrivate())) {
+          originalHeader = crypt4GHInputStream.getHeader();
+          expectedData = crypt4GHInputStream.readAllBytes();
+        }
+
+        for (int maxSegmentsInFlight : new int[] {1, 4}) {
+          ByteArrayOutputStream rekeyedOutputStream = new ByteArrayOutputStream();
+          Header header =
+              crypt4GHUtils.rotateSessionKey(
+                  new ByteArrayInputStream(encryptedData),
+                  rekeyedOutputStream,
+                  readerKeyPair.getPrivate(),
+                  anotherReaderKeyPair.getPublic(),
+                  executor,
+                  maxSegmentsInFlight);
+          byte[] rekeyedData = rekeyedOutputStream.toByteArray();
+          int headerLength = originalHeader.serialize().length;
+          int newHeaderLength = header.serialize().length;
+          assertEquals(encryptedData.length - headerLength, rekeyedData.length - newHeaderLength);
+          assertNotEquals(
+              originalHeader.getDataEncryptionParametersList().iterator().next(),
+              header.getDataEncryptionParametersList().iterator().next());
+          assertFalse(
+              Arrays.equals(
+                  Arrays.copyOfRange(encryptedData, headerLength, headerLength + 1000),
+                  Arrays.copyOfRange(rekeyedData, newHeaderLength, newHeaderLength + 1000)));
+          assertArrayEquals(
+              originalHeader.getDataEditList().map(DataEditList::getLengths).orElse(null),
+              header.getDataEditList().map(DataEditList::getLengths).orElse(null));
+          try (Crypt4GHInputStream crypt4GHInputStream =
+              new Crypt4GHInputStream(
+                  new ByteArrayInputStream(rekeyedData), anotherReaderKeyPair.getPrivate())) {
+            assertArrayEquals(expectedData, crypt4GHInputStream.readAllBytes());
+          }
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Tests extracting plaintext ranges of a file into new files for another recipient, copying the
+   * covering segments without decrypting them.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void extractRangeTest() throws Exception {
+    PrivateKey writerPrivateKey = keyUtils.generatePrivateKey();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    KeyPair anotherReaderKeyPair = keyUtils.generateKeyPair();
+
+    byte[] unencryptedData = new byte[6 * UNENCRYPTED_DATA_SEGMENT_SIZE + 500];
+    new SecureRandom().nextBytes(unencryptedData);
+
+    File encryptedFile = Files.createTempFile("test", "enc").toFile();
+    File extractedFile = Files.createTempFile("test2", "enc").toFile();
+    try {
+      try (Crypt4GHOutputStream crypt4GHOutputStream =
+          new Crypt4GHOutputStream(
+              new FileOutputStream(encryptedFile), writerPrivateKey, readerKeyPair.getPublic())) {
+        crypt4GHOutputStream.write(unencryptedData);
+      }
+      long[][] ranges = {
+        {UNENCRYPTED_DATA_SEGMENT_SIZE + 10, 3L * UNENCRYPTED_DATA_SEGMENT_SIZE + 20},
+        {2L * UNENCRYPTED_DATA_SEGMENT_SIZE, 3L * UNENCRYPTED_DATA_SEGMENT_SIZE},
+        {6L * UNENCRYPTED_DATA_SEGMENT_SIZE + 100, Long.MAX_VALUE}
+      };
+      for (long[] range : ranges) {
+        Header header;
+        try (FileChannel source = FileChannel.open(encryptedFile.toPath());
+            FileOutputStream target = new FileOutputStream(extractedFile)) {
+          header =
+              crypt4GHUtils.extractRange(
+                  source,
+                  target.getChannel(),
+                  readerKeyPair.getPrivate(),
+                  anotherReaderKeyPair.getPublic(),
+                  range[0],
+                  range[1]);
+        }
+        long coveringSegments =
+            (Math.min(range[1], unencryptedData.length) - 1) / UNENCRYPTED_DATA_SEGMENT_SIZE
+                - range[0] / UNENCRYPTED_DATA_SEGMENT_SIZE
+                + 1;
+        long plaintextInSegments =
+            Math.min(
+                coveringSegments * UNENCRYPTED_DATA_SEGMENT_SIZE,
+                unencryptedData.length
+                    - range[0] / UNENCRYPTED_DATA_SEGMENT_SIZE * UNENCRYPTED_DATA_SEGMENT_SIZE);
+        assertEquals(
+            header.serialize().length + plaintextInSegments + coveringSegments * 28,
+            extractedFile.length());
+        try (Crypt4GHInputStream crypt4GHInputStream =
+            new Crypt4GHInputStream(
+                new FileInputStream(extractedFile), anotherReaderKeyPair.getPrivate())) {
+          assertArrayEquals(
+              Arrays.copyOfRange(
+                  unencryptedData,
+                  (int) range[0],
+                  (int) Math.min(range[1], unencryptedData.length)),
+              crypt4GHInputStream.readAllBytes());
+        }
+      }
+    } finally {
+      encryptedFile.delete();
+      extractedFile.delete();
+    }
+  }
+
+  /**
+   * Tests splitting a file into segment-aligned parts without decrypting the data, with and without
+   * a Data Edit List, including more parts than segments.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void splitTest() throws Exception {
+    PrivateKey writerPrivateKey = keyUtils.generatePrivateKey();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    KeyPair anotherReaderKeyPair = keyUtils.generateKeyPair();
+
+    byte[] unencryptedData = new byte[7 * UNENCRYPTED_DATA_SEGMENT_SIZE + 500];
+    new SecureRandom().nextBytes(unencryptedData);
+    DataEditList dataEditList =
+        new DataEditList(
+            new long[] {
+              100, 2L * UNENCRYPTED_DATA_SEGMENT_SIZE, 50000, 10L * UNENCRYPTED_DATA_SEGMENT_SIZE
+            });
+
+    File encryptedFile = Files.createTempFile("test", "enc").toFile();
+    try {
+      for (DataEditList del : new DataEditList[] {null, dataEditList}) {
+        int headerLength;
+        try (Crypt4GHOutputStream crypt4GHOutputStream =
+            del == null
+                ? new Crypt4GHOutputStream(
+                    new FileOutputStream(encryptedFile),
+                    writerPrivateKey,
+                    readerKeyPair.getPublic())
+                : new Crypt4GHOutputStream(
+                    new FileOutputStream(encryptedFile),
+                    del,
+                    writerPrivateKey,
+                    readerKeyPair.getPublic())) {
+          headerLength = crypt4GHOutputStream.getHeader().serialize().length;
+          crypt4GHOutputStream.write(unencryptedData);
+        }
+        byte[] expectedData;
+        try (Crypt4GHInputStream crypt4GHInputStream =
+            new Crypt4GHInputStream(
+                new FileInputStream(encryptedFile), readerKeyPair.getPrivate())) {
+          expectedData = crypt4GHInputStream.readAllBytes();
+        }
+        for (int parts : new int[] {1, 3, 10}) {
+          List<ByteArrayOutputStream> partOutputStreams = new ArrayList<>();
+          List<WritableByteChannel> targets = new ArrayList<>();
+          for (int i = 0; i < parts; i++) {
+            partOutputStreams.add(new ByteArrayOutputStream());
+            targets.add(Channels.newChannel(partOutputStreams.get(i)));
+          }
+          List<Header> headers;
+          try (FileChannel source = FileChannel.open(encryptedFile.toPath())) {
+            headers =
+                crypt4GHUtils.split(
+                    source, targets, readerKeyPair.getPrivate(), anotherReaderKeyPair.getPublic());
+          }
+          assertEquals(parts, headers.size());
+          ByteArrayOutputStream joinedData = new ByteArrayOutputStream();
+          long encryptedBodySize = 0;
+          for (int i = 0; i < parts; i++) {
+            byte[] part = partOutputStreams.get(i).toByteArray();
+            assertEquals(del != null, headers.get(i).getDataEditList().isPresent());
+            long partBodySize = part.length - headers.get(i).serialize().length;
+            encryptedBodySize += partBodySize;
+            // every part holds whole segments, as (nearly) even a share of them as possible
+            long segments = (partBodySize + 65563) / 65564;
+            assertTrue(segments == 8 / parts || segments == 8 / parts + 1);
+            try (Crypt4GHInputStream crypt4GHInputStream =
+                new Crypt4GHInputStream(
+                    new ByteArrayInputStream(part), anotherReaderKeyPair.getPrivate())) {
+              joinedData.write(crypt4GHInputStream.readAllBytes());
+            }
+          }
+          assertEquals(encryptedFile.length() - headerLength, encryptedBodySize);
+          assertArrayEquals(expectedData, joinedData.toByteArray());
+        }
+      }
+    } finally {
+      encryptedFile.delete();
+    }
+  }
+
+  /**
+   * Tests encrypting and decrypting files through memory-mapped NIO channels, against the streams,
+   * with and without a Data Edit List.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void mappedFileEncryptionDecryptionTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+
+    File unencryptedFile = Files.createTempFile("test", "raw").toFile();
+    File encryptedFile = Files.createTempFile("test", "enc").toFile();
+    File decryptedFile = Files.createTempFile("test", "dec").toFile();
+    try {
+      for (int size :
+          new int[] {0, UNENCRYPTED_DATA_SEGMENT_SIZE, 3 * UNENCRYPTED_DATA_SEGMENT_SIZE + 500}) {
+        byte[] unencryptedData = new byte[size];
+        new SecureRandom().nextBytes(unencryptedData);
+        Files.write(unencryptedFile.toPath(), unencryptedData);
+        try (FileChannel source = FileChannel.open(unencryptedFile.toPath());
+            FileOutputStream target = new FileOutputStream(encryptedFile)) {
+          crypt4GHUtils.encrypt(
+              source, target.getChannel(), writerKeyPair.getPrivate(), readerKeyPair.getPublic());
+        }
+        try (Crypt4GHInputStream crypt4GHInputStream =
+            new Crypt4GHInputStream(
+                new FileInputStream(encryptedFile), readerKeyPair.getPrivate())) {
+          assertArrayEquals(unencryptedData, crypt4GHInputStream.readAllBytes());
+        }
+        try (FileChannel source = FileChannel.open(encryptedFile.toPath());
+            FileOutputStream target = new FileOutputStream(decryptedFile)) {
+          crypt4GHUtils.decrypt(source, target.getChannel(), readerKeyPair.getPrivate());
+        }
+        assertArrayEquals(unencryptedData, Files.readAllBytes(decryptedFile.toPath()));
+      }
+
+      byte[] unencryptedData = new byte[10 * UNENCRYPTED_DATA_SEGMENT_SIZE + 777];
+      new SecureRandom().nextBytes(unencryptedData);
+      DataEditList dataEditList =
+          new DataEditList(
+              new long[] {
+                100, 2L * UNENCRYPTED_DATA_SEGMENT_SIZE, 3L * UNENCRYPTED_DATA_SEGMENT_SIZE, 5000
+              });
+      try (Crypt4GHOutputStream crypt4GHOutputStream =
+          new Crypt4GHOutputStream(
+              new FileOutputStream(encryptedFile),
+              dataEditList,
+              writerKeyPair.getPrivate(),
+              readerKeyPair.getPublic())) {
+        crypt4GHOutputStream.write(unencryptedData);
+      }
+      byte[] expectedData;
+      try (Crypt4GHInputStream crypt4GHInputStream =
+          new Crypt4GHInputStream(
+              new FileInputStream(encryptedFile), readerKeyPair.getPrivate())) {
+        expectedData = crypt4GHInputStream.readAllBytes();
+      }
+      assertEquals(2 * UNENCRYPTED_DATA_SEGMENT_SIZE + 5000, expectedData.length);
+      try (FileChannel source = FileChannel.open(encryptedFile.toPath());
+          FileOutputStream target = new FileOutputStream(decryptedFile)) {
+        crypt4GHUtils.decrypt(source, target.getChannel(), readerKeyPair.getPrivate());
+      }
+      assertArrayEquals(expectedData, Files.readAllBytes(decryptedFile.toPath()));
+    } finally {
+      unencryptedFile.delete();
+      encryptedFile.delete();
+      decryptedFile.delete();
+    }
+  }
+
   /**
    * Tests decryption of empty content created by the <a
    * href="https://github.com/neicnordic/crypt4gh">Go implementation</a> of `crypt4gh` and OpenSSL
@@ -635,4 +1535,164 @@ public class Crypt4GHTests {
       assertEquals(0, decryptedFile.length());
     }
   }
+
+  @Test
+  public void segmentAlignedFlushTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    byte[] unencryptedData = new byte[3 * UNENCRYPTED_DATA_SEGMENT_SIZE + 500];
+    new SecureRandom().nextBytes(unencryptedData);
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      for (boolean parallel : new boolean[] {false, true}) {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        Crypt4GHOutputStream crypt4GHOutputStream =
+            parallel
+                ? new ParallelCrypt4GHOutputStream(
+                    byteArrayOutputStream,
+                    writerKeyPair.getPrivate(),
+                    readerKeyPair.getPublic(),
+                    executor,
+                    2)
+                : new Crypt4GHOutputStream(
+                    byteArrayOutputStream, writerKeyPair.getPrivate(), readerKeyPair.getPublic());
+        int headerSize = byteArrayOutputStream.size();
+        crypt4GHOutputStream.setSegmentAlignedFlush(true);
+        try (PrintStream printStream = new PrintStream(crypt4GHOutputStream, true)) {
+          printStream.write(unencryptedData, 0, 10);
+          printStream.flush();
+          assertEquals(headerSize, byteArrayOutputStream.size());
+          printStream.write(unencryptedData, 10, UNENCRYPTED_DATA_SEGMENT_SIZE - 10);
+          printStream.flush(); // a whole segment is cached now
+          assertEquals(headerSize + 65564, byteArrayOutputStream.size());
+          for (int i = UNENCRYPTED_DATA_SEGMENT_SIZE; i < unencryptedData.length; i += 1000) {
+            printStream.write(unencryptedData, i, Math.min(1000, unencryptedData.length - i));
+            printStream.flush();
+          }
+        }
+        byte[] encryptedData = byteArrayOutputStream.toByteArray();
+        assertEquals(headerSize + 3 * 65564 + 500 + 28, encryptedData.length);
+        try (Crypt4GHInputStream crypt4GHInputStream =
+            new Crypt4GHInputStream(
+                new ByteArrayInputStream(encryptedData), readerKeyPair.getPrivate())) {
+          assertArrayEquals(unencryptedData, crypt4GHInputStream.readAllBytes());
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Pins the segment layout of empty and flushed data: flushing an empty buffer writes nothing, so
+   * an empty plaintext is encrypted to the header alone, without an empty data segment.
+   *
+   * @throws Exception In case something fails.
+   */
+  @Test
+  public void emptyBufferFlushLayoutTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    byte[] unencryptedData = new byte[1000];
+    new SecureRandom().nextBytes(unencryptedData);
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      for (boolean parallel : new boolean[] {false, true}) {
+        for (int length : new int[] {0, unencryptedData.length}) {
+          ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+          Crypt4GHOutputStream crypt4GHOutputStream =
+              parallel
+                  ? new ParallelCrypt4GHOutputStream(
+                      byteArrayOutputStream,
+                      writerKeyPair.getPrivate(),
+                      readerKeyPair.getPublic(),
+                      executor,
+                      2)
+                  : new Crypt4GHOutputStream(
+                      byteArrayOutputStream, writerKeyPair.getPrivate(), readerKeyPair.getPublic());
+          int headerSize = byteArrayOutputStream.size();
+          crypt4GHOutputStream.flush();
+          assertEquals(headerSize, byteArrayOutputStream.size());
+          crypt4GHOutputStream.write(unencryptedData, 0, length);
+          crypt4GHOutputStream.flush();
+          crypt4GHOutputStream.flush();
+          crypt4GHOutputStream.close();
+          byte[] encryptedData = byteArrayOutputStream.toByteArray();
+          assertEquals(headerSize + (length == 0 ? 0 : length + 28), encryptedData.length);
+          try (Crypt4GHInputStream crypt4GHInputStream =
+              new Crypt4GHInputStream(
+                  new ByteArrayInputStream(encryptedData), readerKeyPair.getPrivate())) {
+            assertArrayEquals(
+                Arrays.copyOf(unencryptedData, length), crypt4GHInputStream.readAllBytes());
+          }
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void shortSegmentValidationTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    byte[] unencryptedData = new byte[3 * UNENCRYPTED_DATA_SEGMENT_SIZE + 500];
+    new SecureRandom().nextBytes(unencryptedData);
+    SegmentValidator segmentValidator = SegmentValidator.getInstance();
+
+    File encryptedFile = Files.createTempFile("test", "enc").toFile();
+    try {
+      int headerSize;
+      try (Crypt4GHOutputStream crypt4GHOutputStream =
+          new Crypt4GHOutputStream(
+              new FileOutputStream(encryptedFile),
+              writerKeyPair.getPrivate(),
+              readerKeyPair.getPublic())) {
+        headerSize = (int) encryptedFile.length();
+        crypt4GHOutputStream.write(unencryptedData, 0, 10);
+        crypt4GHOutputStream.flush();
+        crypt4GHOutputStream.write(unencryptedData, 10, 70000);
+        crypt4GHOutputStream.flush();
+        crypt4GHOutputStream.write(unencryptedData, 70010, unencryptedData.length - 70010);
+      }
+      SegmentValidator.Report report;
+      try (FileChannel source = FileChannel.open(encryptedFile.toPath())) {
+        report = segmentValidator.validate(source, readerKeyPair.getPrivate());
+      }
+      assertFalse(report.isValid());
+      assertEquals(5, report.getSegmentCount());
+      long secondShortSegmentPosition = headerSize + 38 + 65564;
+      assertEquals(
+          List.of((long) headerSize, secondShortSegmentPosition),
+          report.getShortSegmentPositions());
+      assertEquals(-1, report.getUnreadableSegmentPosition());
+
+      byte[] encryptedData = Files.readAllBytes(encryptedFile.toPath());
+      encryptedData[(int) secondShortSegmentPosition + 100] ^= 1;
+      Files.write(encryptedFile.toPath(), encryptedData);
+      try (FileChannel source = FileChannel.open(encryptedFile.toPath())) {
+        report = segmentValidator.validate(source, readerKeyPair.getPrivate());
+      }
+      assertFalse(report.isValid());
+      assertEquals(List.of((long) headerSize), report.getShortSegmentPositions());
+      assertEquals(secondShortSegmentPosition, report.getUnreadableSegmentPosition());
+
+      try (Crypt4GHOutputStream crypt4GHOutputStream =
+          new Crypt4GHOutputStream(
+              new FileOutputStream(encryptedFile),
+              writerKeyPair.getPrivate(),
+              readerKeyPair.getPublic())) {
+        crypt4GHOutputStream.write(unencryptedData);
+      }
+      try (FileChannel source = FileChannel.open(encryptedFile.toPath())) {
+        report = segmentValidator.validate(source, readerKeyPair.getPrivate());
+      }
+      assertTrue(report.isValid());
+      assertEquals(4, report.getSegmentCount());
+    } finally {
+      encryptedFile.delete();
+    }
+  }
 }
@@ -0,0 +1,157 @@
+package no.elixir.crypt4gh.util;
+
+import static no.elixir.crypt4gh.pojo.body.Segment.UNENCRYPTED_DATA_SEGMENT_SIZE;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.List;
+import no.elixir.crypt4gh.pojo.header.DataEditList;
+import no.elixir.crypt4gh.stream.Crypt4GHInputStream;
+import no.elixir.crypt4gh.stream.Crypt4GHOutputStream;
+import org.junit.jupiter.api.Test;
+
+/** Testing checksums computed while encrypting and decrypting */
+public class ChecksumsTest {
+
+  private KeyUtils keyUtils = KeyUtils.getInstance();
+
+  @Test
+  public void checksumsTest() throws Exception {
+    byte[] data = new byte[1000];
+    new SecureRandom().nextBytes(data);
+    Checksums checksums = new Checksums("MD5", "SHA-256", "MD5");
+    checksums.update(data, 0, 500);
+    ByteBuffer buffer = ByteBuffer.wrap(data, 500, 500);
+    checksums.update(buffer);
+    assertEquals(500, buffer.position());
+    assertEquals(List.of("MD5", "SHA-256"), List.copyOf(checksums.getHexDigests().keySet()));
+    assertEquals(hex("MD5", data), checksums.getHexDigests().get("MD5"));
+    assertEquals(hex("SHA-256", data), checksums.getHexDigests().get("SHA-256"));
+    assertThrows(IllegalStateException.class, () -> checksums.update(data, 0, 1));
+    assertThrows(IllegalArgumentException.class, () -> new Checksums());
+    assertThrows(NoSuchAlgorithmException.class, () -> new Checksums("FOO"));
+  }
+
+  @Test
+  public void streamChecksumsTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    byte[] unencryptedData = new byte[3 * UNENCRYPTED_DATA_SEGMENT_SIZE + 123];
+    new SecureRandom().nextBytes(unencryptedData);
+
+    Checksums plaintextChecksums = new Checksums("MD5", "SHA-256");
+    Checksums ciphertextChecksums = new Checksums("MD5", "SHA-256");
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    try (OutputStream outputStream =
+        plaintextChecksums.wrap(
+            new Crypt4GHOutputStream(
+                ciphertextChecksums.wrap(byteArrayOutputStream),
+                writerKeyPair.getPrivate(),
+                readerKeyPair.getPublic()))) {
+      outputStream.write(unencryptedData, 0, 1000);
+      outputStream.write(unencryptedData[1000]);
+      outputStream.write(unencryptedData, 1001, unencryptedData.length - 1001);
+    }
+    byte[] encryptedData = byteArrayOutputStream.toByteArray();
+    assertEquals(
+        hex("SHA-256", unencryptedData), plaintextChecksums.getHexDigests().get("SHA-256"));
+    assertEquals(hex("MD5", encryptedData), ciphertextChecksums.getHexDigests().get("MD5"));
+    assertEquals(hex("SHA-256", encryptedData), ciphertextChecksums.getHexDigests().get("SHA-256"));
+
+    // skipped ciphertext is still part of the checksums
+    Checksums skippedChecksums = new Checksums("SHA-256");
+    try (InputStream inputStream =
+        new Crypt4GHInputStream(
+            skippedChecksums.wrap(new ByteArrayInputStream(encryptedData)),
+            readerKeyPair.getPrivate())) {
+      inputStream.skipNBytes(2L * UNENCRYPTED_DATA_SEGMENT_SIZE + 7);
+      assertEquals(
+          unencryptedData[2 * UNENCRYPTED_DATA_SEGMENT_SIZE + 7], (byte) inputStream.read());
+      inputStream.readAllBytes();
+    }
+    assertEquals(hex("SHA-256", encryptedData), skippedChecksums.getHexDigests().get("SHA-256"));
+  }
+
+  @Test
+  public void mappedFileChecksumsTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    Crypt4GHUtils crypt4GHUtils = Crypt4GHUtils.getInstance();
+    Path unencryptedFile = Files.createTempFile("test", "raw");
+    Path encryptedFile = Files.createTempFile("test", "enc");
+    Path decryptedFile = Files.createTempFile("test", "dec");
+    try {
+      byte[] unencryptedData = new byte[10 * UNENCRYPTED_DATA_SEGMENT_SIZE + 777];
+      new SecureRandom().nextBytes(unencryptedData);
+      Files.write(unencryptedFile, unencryptedData);
+      Checksums plaintextChecksums = new Checksums("SHA-256");
+      Checksums ciphertextChecksums = new Checksums("SHA-256");
+      try (FileChannel source = FileChannel.open(unencryptedFile);
+          FileOutputStream target = new FileOutputStream(encryptedFile.toFile())) {
+        crypt4GHUtils.encrypt(
+            source,
+            target.getChannel(),
+            writerKeyPair.getPrivate(),
+            readerKeyPair.getPublic(),
+            plaintextChecksums,
+            ciphertextChecksums);
+      }
+      assertEquals(
+          hex("SHA-256", unencryptedData), plaintextChecksums.getHexDigests().get("SHA-256"));
+      byte[] encryptedData = Files.readAllBytes(encryptedFile);
+      assertEquals(
+          hex("SHA-256", encryptedData), ciphertextChecksums.getHexDigests().get("SHA-256"));
+
+      // the segments after the last kept range are still part of the ciphertext checksums
+      DataEditList dataEditList =
+          new DataEditList(new long[] {100, 2L * UNENCRYPTED_DATA_SEGMENT_SIZE, 5000, 5000});
+      try (Crypt4GHOutputStream crypt4GHOutputStream =
+          new Crypt4GHOutputStream(
+              new FileOutputStream(encryptedFile.toFile()),
+              dataEditList,
+              writerKeyPair.getPrivate(),
+              readerKeyPair.getPublic())) {
+        crypt4GHOutputStream.write(unencryptedData);
+      }
+      encryptedData = Files.readAllBytes(encryptedFile);
+      plaintextChecksums = new Checksums("SHA-256");
+      ciphertextChecksums = new Checksums("SHA-256");
+      try (FileChannel source = FileChannel.open(encryptedFile);
+          FileOutputStream target = new FileOutputStream(decryptedFile.toFile())) {
+        crypt4GHUtils.decrypt(
+            source,
+            target.getChannel(),
+            readerKeyPair.getPrivate(),
+            plaintextChecksums,
+            ciphertextChecksums);
+      }
+      byte[] decryptedData = Files.readAllBytes(decryptedFile);
+      assertEquals(2 * UNENCRYPTED_DATA_SEGMENT_SIZE + 5000, decryptedData.length);
+      assertEquals(
+          hex("SHA-256", decryptedData), plaintextChecksums.getHexDigests().get("SHA-256"));
+      assertEquals(
+          hex("SHA-256", encryptedData), ciphertextChecksums.getHexDigests().get("SHA-256"));
+    } finally {
+      Files.deleteIfExists(unencryptedFile);
+      Files.deleteIfExists(encryptedFile);
+      Files.deleteIfExists(decryptedFile);
+    }
+  }
+
+  private static String hex(String algorithm, byte[] data) throws NoSuchAlgorithmException {
+    return HexFormat.of().formatHex(MessageDigest.getInstance(algorithm).digest(data));
+  }
+}
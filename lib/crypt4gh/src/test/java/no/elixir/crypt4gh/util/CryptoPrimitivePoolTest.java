@@ -0,0 +1,84 @@
+package no.elixir.crypt4gh.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import org.junit.jupiter.api.Test;
+
+/** Testing the thread-local pool of JCA primitives */
+public class CryptoPrimitivePoolTest {
+
+  private KeyUtils keyUtils = KeyUtils.getInstance();
+
+  @Test
+  public void instancesAreReusedPerThreadTest() throws Exception {
+    SecretKey key = keyUtils.generateSessionKey();
+    byte[] nonce = new byte[12];
+    Cipher cipher =
+        CryptoPrimitivePool.getChaCha20Poly1305Cipher(
+            Cipher.ENCRYPT_MODE, key, new IvParameterSpec(nonce));
+    nonce[0] = 1;
+    assertSame(
+        cipher,
+        CryptoPrimitivePool.getChaCha20Poly1305Cipher(
+            Cipher.ENCRYPT_MODE, key, new IvParameterSpec(nonce)));
+    assertSame(
+        CryptoPrimitivePool.getX25519KeyFactory(), CryptoPrimitivePool.getX25519KeyFactory());
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      assertNotSame(
+          CryptoPrimitivePool.getX25519KeyAgreement(),
+          executor.submit(CryptoPrimitivePool::getX25519KeyAgreement).get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void cipherCanDecryptWhatItEncryptedTest() throws Exception {
+    SecretKey key = keyUtils.generateSessionKey();
+    byte[] nonce = new byte[12];
+    NonceGenerator.getDefault().nextNonce(nonce);
+    byte[] data = "crypt4gh".getBytes(StandardCharsets.UTF_8);
+    byte[] encrypted =
+        CryptoPrimitivePool.getChaCha20Poly1305Cipher(
+                Cipher.ENCRYPT_MODE, key, new IvParameterSpec(nonce))
+            .doFinal(data);
+    // the JDK rejects reinitializing a ChaCha20-Poly1305 Cipher with the same key and nonce
+    byte[] decrypted =
+        CryptoPrimitivePool.getChaCha20Poly1305Cipher(
+                Cipher.DECRYPT_MODE, key, new IvParameterSpec(nonce))
+            .doFinal(encrypted);
+    assertArrayEquals(data, decrypted);
+  }
+
+  @Test
+  public void nonceReuseIsRejectedTest() throws Exception {
+    SecretKey key = keyUtils.generateSessionKey();
+    byte[] nonce = new byte[12];
+    NonceGenerator.getDefault().nextNonce(nonce);
+    CryptoPrimitivePool.getChaCha20Poly1305Cipher(
+            Cipher.ENCRYPT_MODE, key, new IvParameterSpec(nonce))
+        .doFinal(new byte[16]);
+    assertThrows(
+        InvalidKeyException.class,
+        () ->
+            CryptoPrimitivePool.getChaCha20Poly1305Cipher(
+                Cipher.ENCRYPT_MODE, key, new IvParameterSpec(nonce)));
+  }
+
+  @Test
+  public void digestsAreResetTest() throws Exception {
+    byte[] data = "crypt4gh".getBytes(StandardCharsets.UTF_8);
+    byte[] expected = MessageDigest.getInstance("SHA-256").digest(data);
+    CryptoPrimitivePool.getSha256Digest().update(new byte[] {1, 2, 3});
+    assertArrayEquals(expected, CryptoPrimitivePool.getSha256Digest().digest(data));
+  }
+}
@@ -0,0 +1,112 @@
+package no.elixir.crypt4gh.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.security.KeyPair;
+import java.security.PublicKey;
+import javax.crypto.SecretKey;
+import org.junit.jupiter.api.Test;
+
+/** Testing the cache of derived public keys and shared keys */
+public class DerivedKeyCacheTest {
+
+  private KeyUtils keyUtils = KeyUtils.getInstance();
+
+  @Test
+  public void cachedSharedKeysMatchGeneratedKeysTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    SecretKey writerSharedKey =
+        keyUtils.getWriterSharedKey(writerKeyPair.getPrivate(), readerKeyPair.getPublic());
+    SecretKey readerSharedKey =
+        keyUtils.getReaderSharedKey(readerKeyPair.getPrivate(), writerKeyPair.getPublic());
+    assertArrayEquals(writerSharedKey.getEncoded(), readerSharedKey.getEncoded());
+    assertArrayEquals(
+        keyUtils
+            .generateWriterSharedKey(writerKeyPair.getPrivate(), readerKeyPair.getPublic())
+            .getEncoded(),
+        keyUtils
+            .getWriterSharedKey(writerKeyPair.getPrivate(), readerKeyPair.getPublic())
+            .getEncoded());
+    assertArrayEquals(
+        writerKeyPair.getPublic().getEncoded(),
+        keyUtils.getPublicKey(writerKeyPair.getPrivate()).getEncoded());
+  }
+
+  @Test
+  public void sharedKeysAreDerivedOnceTest() throws Exception {
+    DerivedKeyCache cache = new DerivedKeyCache(10);
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    int[] derivations = new int[1];
+    for (int i = 0; i < 5; i++) {
+      cache.getSharedKey(
+          "writer",
+          writerKeyPair.getPrivate(),
+          readerKeyPair.getPublic(),
+          () -> {
+            derivations[0]++;
+            return keyUtils.generateWriterSharedKey(
+                writerKeyPair.getPrivate(), readerKeyPair.getPublic());
+          });
+    }
+    assertEquals(1, derivations[0]);
+    assertEquals(1, cache.getMisses());
+    assertEquals(4, cache.getHits());
+    assertArrayEquals(
+        keyUtils
+            .generateWriterSharedKey(writerKeyPair.getPrivate(), readerKeyPair.getPublic())
+            .getEncoded(),
+        cache
+            .getSharedKey(
+                "writer",
+                writerKeyPair.getPrivate(),
+                readerKeyPair.getPublic(),
+                () -> fail("Shared key should be cached"))
+            .getEncoded());
+  }
+
+  @Test
+  public void leastRecentlyUsedEntriesAreEvictedTest() throws Exception {
+    DerivedKeyCache cache = new DerivedKeyCache(2);
+    KeyPair first = keyUtils.generateKeyPair();
+    KeyPair second = keyUtils.generateKeyPair();
+    KeyPair third = keyUtils.generateKeyPair();
+    cache.getPublicKey(first.getPrivate(), first::getPublic);
+    cache.getPublicKey(second.getPrivate(), second::getPublic);
+    cache.getPublicKey(first.getPrivate(), first::getPublic);
+    cache.getPublicKey(third.getPrivate(), third::getPublic);
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.getHits());
+    PublicKey publicKey =
+        cache.getPublicKey(first.getPrivate(), () -> fail("Public key should be cached"));
+    assertEquals(first.getPublic(), publicKey);
+    cache.getPublicKey(second.getPrivate(), second::getPublic);
+    assertEquals(4, cache.getMisses());
+  }
+
+  @Test
+  public void invalidateRemovesDerivedEntriesTest() throws Exception {
+    DerivedKeyCache cache = new DerivedKeyCache(10);
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    KeyPair anotherReaderKeyPair = keyUtils.generateKeyPair();
+    SecretKey sharedKey =
+        keyUtils.generateWriterSharedKey(writerKeyPair.getPrivate(), readerKeyPair.getPublic());
+    cache.getSharedKey(
+        "writer", writerKeyPair.getPrivate(), readerKeyPair.getPublic(), () -> sharedKey);
+    cache.getSharedKey(
+        "writer", writerKeyPair.getPrivate(), anotherReaderKeyPair.getPublic(), () -> sharedKey);
+    cache.getPublicKey(writerKeyPair.getPrivate(), writerKeyPair::getPublic);
+    assertEquals(3, cache.size());
+
+    cache.invalidate(readerKeyPair.getPublic());
+    assertEquals(2, cache.size());
+    cache.invalidate(writerKeyPair.getPrivate());
+    assertEquals(0, cache.size());
+
+    cache.getPublicKey(writerKeyPair.getPrivate(), writerKeyPair::getPublic);
+    cache.clear();
+    assertEquals(0, cache.size());
+  }
+}
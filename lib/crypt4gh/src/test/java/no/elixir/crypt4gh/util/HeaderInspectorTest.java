@@ -0,0 +1,125 @@
+package no.elixir.crypt4gh.util;
+
+import static no.elixir.crypt4gh.pojo.body.Segment.UNENCRYPTED_DATA_SEGMENT_SIZE;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import no.elixir.crypt4gh.pojo.header.DataEditList;
+import no.elixir.crypt4gh.stream.Crypt4GHOutputStream;
+import org.junit.jupiter.api.Test;
+
+/** Testing the key-less inspection of Crypt4GH files */
+public class HeaderInspectorTest {
+
+  private KeyUtils keyUtils = KeyUtils.getInstance();
+  private HeaderInspector headerInspector = HeaderInspector.getInstance();
+
+  @Test
+  public void inspectTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    byte[] unencryptedData = new byte[3 * UNENCRYPTED_DATA_SEGMENT_SIZE + 123];
+    new SecureRandom().nextBytes(unencryptedData);
+    DataEditList dataEditList = new DataEditList(new long[] {100, 200, 300, 400});
+    int[] plaintextSizes = {
+      0, 1, UNENCRYPTED_DATA_SEGMENT_SIZE, UNENCRYPTED_DATA_SEGMENT_SIZE + 1, unencryptedData.length
+    };
+    for (DataEditList del : new DataEditList[] {null, dataEditList}) {
+      for (int plaintextSize : plaintextSizes) {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try (Crypt4GHOutputStream crypt4GHOutputStream =
+            del == null
+                ? new Crypt4GHOutputStream(
+                    byteArrayOutputStream, writerKeyPair.getPrivate(), readerKeyPair.getPublic())
+                : new Crypt4GHOutputStream(
+                    byteArrayOutputStream,
+                    del,
+                    writerKeyPair.getPrivate(),
+                    readerKeyPair.getPublic())) {
+          crypt4GHOutputStream.write(unencryptedData, 0, plaintextSize);
+        }
+        byte[] encryptedData = byteArrayOutputStream.toByteArray();
+        HeaderInspector.Report report =
+            headerInspector.inspect(new ByteArrayInputStream(encryptedData), encryptedData.length);
+        assertEquals(plaintextSize, report.getPlaintextSize());
+        assertEquals(
+            (plaintextSize + UNENCRYPTED_DATA_SEGMENT_SIZE - 1) / UNENCRYPTED_DATA_SEGMENT_SIZE,
+            report.getSegmentCount());
+        assertEquals(del == null ? 1 : 2, report.getPacketCount());
+        assertEquals(headerInspector.getHeaderLength(del), report.getHeaderLength());
+        assertEquals(
+            report.getHeaderLength(),
+            16 + report.getPacketLengths().stream().mapToInt(Integer::intValue).sum());
+        assertEquals(
+            encryptedData.length - report.getHeaderLength(), report.getEncryptedBodySize());
+        assertEquals(encryptedData.length, headerInspector.getEncryptedSize(plaintextSize, del));
+        for (byte[] writerPublicKey : report.getWriterPublicKeys()) {
+          assertArrayEquals(keyUtils.getU(writerKeyPair.getPublic()), writerPublicKey);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void inspectFileTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    Path encryptedFile = Files.createTempFile("test", "enc");
+    try {
+      try (Crypt4GHOutputStream crypt4GHOutputStream =
+          new Crypt4GHOutputStream(
+              Files.newOutputStream(encryptedFile),
+              writerKeyPair.getPrivate(),
+              readerKeyPair.getPublic())) {
+        crypt4GHOutputStream.write(new byte[2 * UNENCRYPTED_DATA_SEGMENT_SIZE + 5]);
+      }
+      try (FileChannel source = FileChannel.open(encryptedFile)) {
+        source.position(1000);
+        HeaderInspector.Report report = headerInspector.inspect(source);
+        assertEquals(2 * UNENCRYPTED_DATA_SEGMENT_SIZE + 5, report.getPlaintextSize());
+        assertEquals(3, report.getSegmentCount());
+        assertEquals(Files.size(encryptedFile), report.getFileSize());
+      }
+
+      // a last segment too short for its nonce and MAC means the file was truncated
+      byte[] encryptedData = Files.readAllBytes(encryptedFile);
+      byte[] truncatedData = Arrays.copyOf(encryptedData, encryptedData.length - 20);
+      assertThrows(
+          GeneralSecurityException.class,
+          () ->
+              headerInspector.inspect(
+                  new ByteArrayInputStream(truncatedData), truncatedData.length));
+      byte[] notCrypt4GHData = new byte[1000];
+      assertThrows(
+          GeneralSecurityException.class,
+          () -> headerInspector.inspect(new ByteArrayInputStream(notCrypt4GHData), 1000));
+    } finally {
+      Files.deleteIfExists(encryptedFile);
+    }
+  }
+
+  @Test
+  public void sizeCalculatorTest() {
+    assertEquals(0, headerInspector.getEncryptedBodySize(0));
+    assertEquals(29, headerInspector.getEncryptedBodySize(1));
+    assertEquals(65564, headerInspector.getEncryptedBodySize(UNENCRYPTED_DATA_SEGMENT_SIZE));
+    assertEquals(
+        65564 + 29, headerInspector.getEncryptedBodySize(UNENCRYPTED_DATA_SEGMENT_SIZE + 1));
+    long largeSize = 10_000_000_000L;
+    assertEquals(
+        largeSize,
+        headerInspector.getPlaintextSize(headerInspector.getEncryptedBodySize(largeSize)));
+    assertEquals(124, headerInspector.getHeaderLength(null));
+    assertThrows(
+        IllegalArgumentException.class, () -> headerInspector.getPlaintextSize(65564 + 27));
+    assertThrows(IllegalArgumentException.class, () -> headerInspector.getEncryptedBodySize(-1));
+  }
+}
@@ -0,0 +1,137 @@
+package no.elixir.crypt4gh.util;
+
+import static no.elixir.crypt4gh.pojo.body.Segment.UNENCRYPTED_DATA_SEGMENT_SIZE;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import no.elixir.crypt4gh.stream.Crypt4GHOutputStream;
+import org.junit.jupiter.api.Test;
+
+/** Testing the parallel verification of the MACs of Crypt4GH files */
+public class IntegrityVerifierTest {
+
+  private KeyUtils keyUtils = KeyUtils.getInstance();
+  private IntegrityVerifier integrityVerifier = IntegrityVerifier.getInstance();
+
+  @Test
+  public void integrityVerifierTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    byte[] unencryptedData = new byte[12 * UNENCRYPTED_DATA_SEGMENT_SIZE + 321];
+    new SecureRandom().nextBytes(unencryptedData);
+    Path encryptedFile = Files.createTempFile("test", "enc");
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      try (Crypt4GHOutputStream crypt4GHOutputStream =
+          new Crypt4GHOutputStream(
+              Files.newOutputStream(encryptedFile),
+              writerKeyPair.getPrivate(),
+              readerKeyPair.getPublic())) {
+        crypt4GHOutputStream.write(unencryptedData);
+      }
+      byte[] encryptedData = Files.readAllBytes(encryptedFile);
+      try (FileChannel source = FileChannel.open(encryptedFile)) {
+        IntegrityVerifier.Report report =
+            integrityVerifier.verify(source, readerKeyPair.getPrivate(), null, executor, 4);
+        assertTrue(report.isValid());
+        assertEquals(13, report.getSegmentCount());
+        assertEquals(13, report.getVerifiedSegmentCount());
+        assertEquals(encryptedData.length - 124, report.getVerifiedBytes());
+        assertEquals(-1, report.getFirstFailedSegment());
+        assertTrue(integrityVerifier.verify(source, readerKeyPair.getPrivate()).isValid());
+        assertThrows(
+            GeneralSecurityException.class,
+            () -> integrityVerifier.verify(source, writerKeyPair.getPrivate()));
+        assertThrows(
+            IllegalArgumentException.class,
+            () -> integrityVerifier.verify(source, readerKeyPair.getPrivate(), null, executor, 0));
+      }
+
+      // the first corrupted segment is reported, whichever task found it
+      int encryptedSegmentSize = UNENCRYPTED_DATA_SEGMENT_SIZE + 28;
+      byte[] corruptedData = encryptedData.clone();
+      corruptedData[124 + 9 * encryptedSegmentSize + 50] ^= 1;
+      corruptedData[124 + 5 * encryptedSegmentSize + 50] ^= 1;
+      Files.write(encryptedFile, corruptedData);
+      try (FileChannel source = FileChannel.open(encryptedFile)) {
+        IntegrityVerifier.Report report =
+            integrityVerifier.verify(source, readerKeyPair.getPrivate(), null, executor, 4);
+        assertFalse(report.isValid());
+        assertEquals(5, report.getFirstFailedSegment());
+        assertEquals(124 + 5 * encryptedSegmentSize, report.getFirstFailedSegmentPosition());
+        assertTrue(report.getVerifiedSegmentCount() >= 5);
+      }
+
+      // a truncated file fails at its last segment
+      Files.write(encryptedFile, Arrays.copyOf(encryptedData, encryptedData.length - 300));
+      try (FileChannel source = FileChannel.open(encryptedFile)) {
+        IntegrityVerifier.Report report =
+            integrityVerifier.verify(source, readerKeyPair.getPrivate(), null, executor, 3);
+        assertEquals(12, report.getFirstFailedSegment());
+        assertEquals(12, report.getVerifiedSegmentCount());
+      }
+    } finally {
+      executor.shutdown();
+      Files.deleteIfExists(encryptedFile);
+    }
+  }
+
+  @Test
+  public void integrityVerifierWithSegmentIndexTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    byte[] unencryptedData = new byte[3 * UNENCRYPTED_DATA_SEGMENT_SIZE];
+    new SecureRandom().nextBytes(unencryptedData);
+    Path encryptedFile = Files.createTempFile("test", "enc");
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      SegmentIndex segmentIndex;
+      try (Crypt4GHOutputStream crypt4GHOutputStream =
+          new Crypt4GHOutputStream(
+              Files.newOutputStream(encryptedFile),
+              writerKeyPair.getPrivate(),
+              readerKeyPair.getPublic())) {
+        segmentIndex = crypt4GHOutputStream.createSegmentIndex(false);
+        crypt4GHOutputStream.write(unencryptedData, 0, 1000);
+        crypt4GHOutputStream.flush();
+        crypt4GHOutputStream.write(unencryptedData, 1000, unencryptedData.length - 1000);
+      }
+      // short segments can only be found with the index
+      try (FileChannel source = FileChannel.open(encryptedFile)) {
+        IntegrityVerifier.Report report =
+            integrityVerifier.verify(source, readerKeyPair.getPrivate(), segmentIndex, executor, 2);
+        assertTrue(report.isValid());
+        assertEquals(4, report.getSegmentCount());
+        assertEquals(Files.size(encryptedFile) - 124, report.getVerifiedBytes());
+        assertEquals(
+            0,
+            integrityVerifier
+                .verify(source, readerKeyPair.getPrivate(), null, executor, 2)
+                .getFirstFailedSegment());
+      }
+
+      // data appended after the last indexed segment would go unchecked
+      Files.write(encryptedFile, new byte[100], StandardOpenOption.APPEND);
+      try (FileChannel source = FileChannel.open(encryptedFile)) {
+        assertThrows(
+            IOException.class,
+            () ->
+                integrityVerifier.verify(
+                    source, readerKeyPair.getPrivate(), segmentIndex, executor, 2));
+      }
+    } finally {
+      executor.shutdown();
+      Files.deleteIfExists(encryptedFile);
+    }
+  }
+}
@@ -0,0 +1,79 @@
+package no.elixir.crypt4gh.util;
+
+import static no.elixir.crypt4gh.pojo.body.ChaCha20IETFPoly1305Segment.NONCE_SIZE;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import no.elixir.crypt4gh.stream.Crypt4GHInputStream;
+import no.elixir.crypt4gh.stream.Crypt4GHOutputStream;
+import org.junit.jupiter.api.Test;
+
+/** Testing the nonce generators used for header packets and data segments */
+public class NonceGeneratorTest {
+
+  private KeyUtils keyUtils = KeyUtils.getInstance();
+
+  @Test
+  public void randomNoncesAreUniqueTest() {
+    NonceGenerator nonceGenerator = NonceGenerator.getDefault();
+    Set<String> nonces = new HashSet<>();
+    for (int i = 0; i < 10_000; i++) {
+      byte[] nonce = new byte[NONCE_SIZE];
+      nonceGenerator.nextNonce(nonce);
+      assertTrue(nonces.add(Arrays.toString(nonce)), "Duplicate nonce");
+    }
+  }
+
+  @Test
+  public void randomNoncesFillOnlyTheRequestedRangeTest() {
+    NonceGenerator nonceGenerator = NonceGenerator.getDefault();
+    byte[] first = new byte[NONCE_SIZE + 4];
+    byte[] second = new byte[NONCE_SIZE + 4];
+    nonceGenerator.nextNonce(first, 2, NONCE_SIZE);
+    nonceGenerator.nextNonce(second, 2, NONCE_SIZE);
+    assertArrayEquals(new byte[2], Arrays.copyOfRange(first, 0, 2));
+    assertArrayEquals(new byte[2], Arrays.copyOfRange(first, NONCE_SIZE + 2, NONCE_SIZE + 4));
+    assertFalse(Arrays.equals(first, second));
+  }
+
+  @Test
+  public void counterNoncesShareRandomPrefixTest() {
+    NonceGenerator nonceGenerator = new CounterNonceGenerator(NONCE_SIZE);
+    byte[] first = new byte[NONCE_SIZE + 3];
+    byte[] second = new byte[NONCE_SIZE];
+    nonceGenerator.nextNonce(first, 3, NONCE_SIZE);
+    nonceGenerator.nextNonce(second);
+    assertArrayEquals(Arrays.copyOfRange(first, 3, 7), Arrays.copyOfRange(second, 0, 4));
+    assertEquals(0, first[7]);
+    assertEquals(1, second[4]);
+    assertThrows(IllegalArgumentException.class, () -> nonceGenerator.nextNonce(new byte[16]));
+  }
+
+  @Test
+  public void counterNoncesInStreamTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    byte[] unencryptedData = new byte[300_000];
+    new SecureRandom().nextBytes(unencryptedData);
+
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    try (Crypt4GHOutputStream crypt4GHOutputStream =
+        new Crypt4GHOutputStream(
+            byteArrayOutputStream, writerKeyPair.getPrivate(), readerKeyPair.getPublic())) {
+      crypt4GHOutputStream.setNonceGenerator(new CounterNonceGenerator(NONCE_SIZE));
+      crypt4GHOutputStream.write(unencryptedData);
+    }
+    try (Crypt4GHInputStream crypt4GHInputStream =
+        new Crypt4GHInputStream(
+            new ByteArrayInputStream(byteArrayOutputStream.toByteArray()),
+            readerKeyPair.getPrivate())) {
+      assertArrayEquals(unencryptedData, crypt4GHInputStream.readAllBytes());
+    }
+  }
+}
@@ -0,0 +1,200 @@
+package no.elixir.crypt4gh.util;
+
+import static no.elixir.crypt4gh.pojo.body.Segment.UNENCRYPTED_DATA_SEGMENT_SIZE;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import no.elixir.crypt4gh.stream.Crypt4GHOutputStream;
+import no.elixir.crypt4gh.stream.Crypt4GHReader;
+import no.elixir.crypt4gh.stream.Crypt4GHSeekableByteChannel;
+import no.elixir.crypt4gh.stream.ParallelCrypt4GHOutputStream;
+import org.junit.jupiter.api.Test;
+
+/** Testing the segment index written while encrypting or built from existing files */
+public class SegmentIndexTest {
+
+  private KeyUtils keyUtils = KeyUtils.getInstance();
+
+  @Test
+  public void segmentIndexTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    byte[] unencryptedData = new byte[3 * UNENCRYPTED_DATA_SEGMENT_SIZE + 500];
+    new SecureRandom().nextBytes(unencryptedData);
+    Path encryptedFile = Files.createTempFile("test", "enc");
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      for (boolean parallel : new boolean[] {false, true}) {
+        SegmentIndex segmentIndex;
+        try (Crypt4GHOutputStream crypt4GHOutputStream =
+            parallel
+                ? new ParallelCrypt4GHOutputStream(
+                    Files.newOutputStream(encryptedFile),
+                    writerKeyPair.getPrivate(),
+                    readerKeyPair.getPublic(),
+                    executor,
+                    2)
+                : new Crypt4GHOutputStream(
+                    Files.newOutputStream(encryptedFile),
+                    writerKeyPair.getPrivate(),
+                    readerKeyPair.getPublic())) {
+          segmentIndex = crypt4GHOutputStream.createSegmentIndex(true);
+          // flushing writes short segments, which only readers using the index can find
+          crypt4GHOutputStream.write(unencryptedData, 0, 10);
+          crypt4GHOutputStream.flush();
+          crypt4GHOutputStream.write(unencryptedData, 10, 70000);
+          crypt4GHOutputStream.flush();
+          crypt4GHOutputStream.write(unencryptedData, 70010, unencryptedData.length - 70010);
+          assertThrows(
+              IllegalStateException.class, () -> crypt4GHOutputStream.createSegmentIndex(false));
+        }
+        assertEquals(5, segmentIndex.getSegmentCount());
+        assertEquals(unencryptedData.length, segmentIndex.getPlaintextSize());
+        assertEquals(Files.size(encryptedFile), segmentIndex.getFileSize());
+        assertEquals(10, segmentIndex.getPlaintextPosition(1));
+        assertEquals(38, segmentIndex.getEncryptedSegmentLength(0));
+        assertEquals(2, segmentIndex.findSegment(70009));
+        assertEquals(3, segmentIndex.findSegment(70010));
+        assertEquals(-1, segmentIndex.findSegment(unencryptedData.length));
+
+        // the same index is built from the file, and survives the sidecar format
+        try (FileChannel source = FileChannel.open(encryptedFile)) {
+          assertIndexEquals(
+              segmentIndex, SegmentIndex.create(source, readerKeyPair.getPrivate(), true));
+        }
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        segmentIndex.write(byteArrayOutputStream);
+        SegmentIndex readSegmentIndex =
+            SegmentIndex.read(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+        assertIndexEquals(segmentIndex, readSegmentIndex);
+
+        try (Crypt4GHReader reader =
+            new Crypt4GHReader(
+                FileChannel.open(encryptedFile),
+                readerKeyPair.getPrivate(),
+                Crypt4GHReader.DEFAULT_CACHE_SIZE,
+                readSegmentIndex)) {
+          assertEquals(unencryptedData.length, reader.size());
+          assertArrayEquals(unencryptedData, reader.openRange(0, reader.size()).readAllBytes());
+          ByteBuffer buffer = ByteBuffer.allocate(1000);
+          reader.readAt(69500, buffer);
+          assertArrayEquals(Arrays.copyOfRange(unencryptedData, 69500, 70500), buffer.array());
+        }
+        try (Crypt4GHSeekableByteChannel channel =
+            new Crypt4GHSeekableByteChannel(
+                FileChannel.open(encryptedFile), readerKeyPair.getPrivate(), readSegmentIndex)) {
+          ByteBuffer buffer = ByteBuffer.allocate(100);
+          channel.position(5).read(buffer);
+          assertArrayEquals(Arrays.copyOfRange(unencryptedData, 5, 105), buffer.array());
+        }
+        try (FileChannel source = FileChannel.open(encryptedFile)) {
+          assertEquals(List.of(), segmentIndex.verify(source));
+        }
+
+        // corrupted segments are found from their hashes, without decrypting
+        byte[] encryptedData = Files.readAllBytes(encryptedFile);
+        encryptedData[(int) segmentIndex.getSegmentPosition(3) + 100] ^= 1;
+        Files.write(encryptedFile, Arrays.copyOf(encryptedData, encryptedData.length - 1));
+        try (FileChannel source = FileChannel.open(encryptedFile)) {
+          assertEquals(List.of(3, 4), segmentIndex.verify(source));
+        }
+      }
+    } finally {
+      executor.shutdown();
+      Files.deleteIfExists(encryptedFile);
+    }
+  }
+
+  @Test
+  public void segmentIndexMismatchTest() throws Exception {
+    KeyPair writerKeyPair = keyUtils.generateKeyPair();
+    KeyPair readerKeyPair = keyUtils.generateKeyPair();
+    Path encryptedFile = Files.createTempFile("test", "enc");
+    try {
+      try (Crypt4GHOutputStream crypt4GHOutputStream =
+          new Crypt4GHOutputStream(
+              Files.newOutputStream(encryptedFile),
+              writerKeyPair.getPrivate(),
+              readerKeyPair.getPublic())) {
+        crypt4GHOutputStream.write(new byte[1000]);
+      }
+      SegmentIndex segmentIndex = new SegmentIndex(10, false);
+      assertThrows(
+          IOException.class,
+          () ->
+              new Crypt4GHReader(
+                  FileChannel.open(encryptedFile),
+                  readerKeyPair.getPrivate(),
+                  Crypt4GHReader.DEFAULT_CACHE_SIZE,
+                  segmentIndex));
+      try (FileChannel source = FileChannel.open(encryptedFile)) {
+        assertThrows(IllegalStateException.class, () -> segmentIndex.verify(source));
+      }
+
+      // an index of the file before more data was appended to it doesn't cover all the data
+      SegmentIndex staleSegmentIndex;
+      try (FileChannel source = FileChannel.open(encryptedFile)) {
+        staleSegmentIndex = SegmentIndex.create(source, readerKeyPair.getPrivate(), false);
+      }
+      Files.write(encryptedFile, new byte[100], StandardOpenOption.APPEND);
+      assertThrows(
+          IOException.class,
+          () ->
+              new Crypt4GHReader(
+                  FileChannel.open(encryptedFile),
+                  readerKeyPair.getPrivate(),
+                  Crypt4GHReader.DEFAULT_CACHE_SIZE,
+                  staleSegmentIndex));
+      assertThrows(
+          IOException.class,
+          () -> SegmentIndex.read(new ByteArrayInputStream("not an index".getBytes())));
+    } finally {
+      Files.deleteIfExists(encryptedFile);
+    }
+  }
+
+  @Test
+  public void segmentIndexOversizedSegmentTest() throws Exception {
+    int encryptedSegmentSize = UNENCRYPTED_DATA_SEGMENT_SIZE + 28;
+    SegmentIndex segmentIndex = new SegmentIndex(124, true);
+    byte[] encryptedSegment = new byte[encryptedSegmentSize + 1];
+    segmentIndex.addSegment(encryptedSegment, 0, encryptedSegmentSize);
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> segmentIndex.addSegment(encryptedSegment, 0, encryptedSegmentSize + 1));
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    segmentIndex.write(byteArrayOutputStream);
+    byte[] indexBytes = byteArrayOutputStream.toByteArray();
+    assertIndexEquals(segmentIndex, SegmentIndex.read(new ByteArrayInputStream(indexBytes)));
+
+    // a corrupt index must not make readers allocate more than one segment
+    ByteBuffer.wrap(indexBytes)
+        .order(ByteOrder.LITTLE_ENDIAN)
+        .putInt(8 + 4 + 8 + 8 + 8, Integer.MAX_VALUE);
+    assertThrows(IOException.class, () -> SegmentIndex.read(new ByteArrayInputStream(indexBytes)));
+  }
+
+  private static void assertIndexEquals(SegmentIndex expected, SegmentIndex actual) {
+    assertEquals(expected.getHeaderLength(), actual.getHeaderLength());
+    assertEquals(expected.getSegmentCount(), actual.getSegmentCount());
+    for (int i = 0; i < expected.getSegmentCount(); i++) {
+      assertEquals(expected.getSegmentPosition(i), actual.getSegmentPosition(i));
+      assertEquals(expected.getEncryptedSegmentLength(i), actual.getEncryptedSegmentLength(i));
+      assertArrayEquals(expected.getSegmentHash(i), actual.getSegmentHash(i));
+    }
+  }
+}